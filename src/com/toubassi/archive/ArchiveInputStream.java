@@ -23,30 +23,61 @@ THE SOFTWARE.
 */
 package com.toubassi.archive;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
  * Reads an archive created using ArchiveOutputStream.
  * See ArchiveOutputStream for more information.
+ * 
+ * Objects are created by the no argument Constructor of their class, which
+ * is looked up the first time the class is seen.  Class.newInstance would
+ * look it up, and check that the caller may use it, for every object.
+ * (Invoking a MethodHandle for it instead turned out to be slower, since a
+ * handle that isn't a constant can't be inlined.)
+ * 
  * @author garrick
  */
 public class ArchiveInputStream extends DataInputStream
 {
+    private static final Class NoParameters[] = new Class[0];
+    private static final Object NoArguments[] = new Object[0];
+    
     private int version;
     private ArrayList strings = new ArrayList();
     private ArrayList instances = new ArrayList();
     private ArrayList classes = new ArrayList();
     private HashMap classVersions = new HashMap();
     
+    /**
+     * Class versions by class name, looked up by identity first since the
+     * names are almost always literals.
+     */
+    private IdentityHashMap classVersionNames = new IdentityHashMap();
+    
+    /**
+     * The Constructor of each class, and the ExternalArchiver of each class
+     * archived with one.
+     */
+    private IdentityHashMap constructors = new IdentityHashMap();
+    private IdentityHashMap classArchivers = new IdentityHashMap();
+    
+    /**
+     * Whatever the caller wants the objects being unarchived to find, such
+     * as what they are being unarchived into.
+     */
+    private Object context;
+    
     public static Object unarchive(String path) throws IOException
     {
         ArchiveInputStream input = new ArchiveInputStream(path);
@@ -62,7 +93,7 @@ public class ArchiveInputStream extends DataInputStream
     
     public ArchiveInputStream(InputStream input) throws IOException
     {
-        super(input instanceof BufferedInputStream ? input : new BufferedInputStream(input));
+        super(new ArchiveBufferedInputStream(input));
         if (readInt() != ArchiveOutputStream.Magic) {
             throw new IOException("Bad magic number");
         }
@@ -79,10 +110,25 @@ public class ArchiveInputStream extends DataInputStream
         this(new FileInputStream(path));
     }
     
+    public void setContext(Object context)
+    {
+        this.context = context;
+    }
+    
+    public Object context()
+    {
+        return context;
+    }
+    
     private Object instantiateUnarchivedObject(Class unarchivedObjectClass) throws IOException
     {
         try {
-            return unarchivedObjectClass.newInstance();
+            Constructor constructor = (Constructor)constructors.get(unarchivedObjectClass);
+            if (constructor == null) {
+                constructor = unarchivedObjectClass.getConstructor(NoParameters);
+                constructors.put(unarchivedObjectClass, constructor);
+            }
+            return constructor.newInstance(NoArguments);
         }
         catch (Exception e) {
             IOException wrapper = new IOException("Could not instantiate " + unarchivedObjectClass);
@@ -109,7 +155,11 @@ public class ArchiveInputStream extends DataInputStream
             ((Archivable)object).unarchive(this);
         }
         else {
-            ExternalArchiver archiver = ArchiveOutputStream.externalArchiverForClassname(object.getClass().getName());
+            ExternalArchiver archiver = (ExternalArchiver)classArchivers.get(object.getClass());
+            if (archiver == null) {
+                archiver = ArchiveOutputStream.externalArchiverForClassname(object.getClass().getName());
+                classArchivers.put(object.getClass(), archiver);
+            }
             
             if (archiver == null) {
                 throw new IOException("Don't know how to unarchive " + object.getClass());
@@ -239,11 +289,15 @@ public class ArchiveInputStream extends DataInputStream
     
     public int readClassVersion(String classname) throws IOException
     {
-        Integer id = (Integer)classVersions.get(classname);
+        Integer id = (Integer)classVersionNames.get(classname);
         
         if (id == null) {
-            id = new Integer(readCompactInt());
-            classVersions.put(classname, id);
+            id = (Integer)classVersions.get(classname);
+            if (id == null) {
+                id = Integer.valueOf(readCompactInt());
+                classVersions.put(classname, id);
+            }
+            classVersionNames.put(classname, id);
         }
         return id.intValue();
     }    
@@ -313,3 +367,84 @@ public class ArchiveInputStream extends DataInputStream
         return value;
     }
 }
+
+/**
+ * A BufferedInputStream without the locking, which an archive has no use
+ * for since it is read by a single thread.  Compact ints and longs are read
+ * a byte at a time, so the lock was taken for nearly every byte.
+ */
+class ArchiveBufferedInputStream extends FilterInputStream
+{
+    private byte buffer[] = new byte[8192];
+    private int position;
+    private int count;
+    
+    public ArchiveBufferedInputStream(InputStream input)
+    {
+        super(input);
+    }
+    
+    public int read() throws IOException
+    {
+        if (position == count && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+    
+    public int read(byte b[], int offset, int length) throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        int available = count - position;
+        if (available == 0) {
+            // Large reads go straight to the stream rather than through
+            // the buffer.
+            if (length >= buffer.length) {
+                return in.read(b, offset, length);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            available = count - position;
+        }
+        int numRead = Math.min(available, length);
+        System.arraycopy(buffer, position, b, offset, numRead);
+        position += numRead;
+        return numRead;
+    }
+    
+    public long skip(long n) throws IOException
+    {
+        int available = count - position;
+        if (available > 0) {
+            int skipped = (int)Math.min(available, Math.max(n, 0));
+            position += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+    
+    public int available() throws IOException
+    {
+        return (count - position) + in.available();
+    }
+    
+    public boolean markSupported()
+    {
+        return false;
+    }
+    
+    private boolean fill() throws IOException
+    {
+        position = 0;
+        count = 0;
+        int numRead = in.read(buffer, 0, buffer.length);
+        if (numRead <= 0) {
+            return false;
+        }
+        count = numRead;
+        return true;
+    }
+}
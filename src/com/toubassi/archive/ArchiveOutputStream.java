@@ -23,15 +23,17 @@ THE SOFTWARE.
 */
 package com.toubassi.archive;
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -43,11 +45,14 @@ import java.util.List;
  * archived if they either implement Archivable, or if there is
  * an ExternalArchiver registered for them.
  * 
+ * An archive remembers what it has written in tables of its own, keyed by
+ * identity where it can be, so archiving takes no locks beyond those of
+ * the underlying stream, and separate archives can be written at once.
+ * 
  * @author garrick
  */
 public class ArchiveOutputStream extends DataOutputStream
 {
-    private static final MutableIdentityHashKey probeIdKey = new MutableIdentityHashKey();
     static final HashMap externalArchivers = new HashMap();
 
     /** All archives start with this magic number. */    
@@ -57,10 +62,13 @@ public class ArchiveOutputStream extends DataOutputStream
     static int ArchiveVersion = 1;
     
     /**
-     * Keeps track of class version information set with writeClassVersion.
-     * Maps class name to version Integer.
+     * Keeps track of the class names whose version has been written with
+     * writeClassVersion.  The names are almost always literals, so they
+     * are first looked for by identity, which doesn't hash their
+     * characters.
      */
-    private HashMap classVersions = new HashMap();
+    private IdentityHashMap classVersionNames = new IdentityHashMap();
+    private HashSet classVersions = new HashSet();
     
     /** 
      * Keeps track of strings written with writeCompactString.
@@ -71,16 +79,28 @@ public class ArchiveOutputStream extends DataOutputStream
     /**
      * Keeps track of instances of objects written as either
      * StrictlyTypedReferences or PolymorphicReferences.  Maps
-     * objects to an Integer id.
+     * objects to their id.
      */
-    private HashMap instances = new HashMap();
+    private IdentityTable instances = new IdentityTable();
     
     /**
      * Keeps track of classes of objects that have been archived
      * as either PolymorphicReference or PolymorphicValue.  Maps
-     * classes to an Integer id.
+     * classes to their id.
+     */
+    private IdentityTable classes = new IdentityTable();
+    
+    /**
+     * The ExternalArchiver for each class archived with one, so the class
+     * name needn't be looked up for every object.
+     */
+    private IdentityHashMap classArchivers = new IdentityHashMap();
+    
+    /**
+     * Compact ints and longs are encoded here so they can be written with
+     * one call rather than a call per byte.
      */
-    private HashMap classes = new HashMap();
+    private byte compactBytes[] = new byte[10];
     
     /**
      * Tracks statistics # of bytes per class, per instance, both
@@ -129,7 +149,7 @@ public class ArchiveOutputStream extends DataOutputStream
      */
     public ArchiveOutputStream(OutputStream output) throws IOException
     {
-        super(output instanceof BufferedOutputStream ? output : new BufferedOutputStream(output));
+        super(new ArchiveBufferedOutputStream(output));
         writeInt(Magic);
         writeCompactInt(ArchiveVersion);
     }
@@ -152,6 +172,27 @@ public class ArchiveOutputStream extends DataOutputStream
         this(new FileOutputStream(path));
     }
     
+    /**
+     * DataOutputStream synchronizes each write.  That adds up for an
+     * archive, which is written a few bytes at a time by a single thread.
+     */
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+        if (++written < 0) {
+            written = Integer.MAX_VALUE;
+        }
+    }
+    
+    public void write(byte b[], int offset, int length) throws IOException
+    {
+        out.write(b, offset, length);
+        written += length;
+        if (written < 0) {
+            written = Integer.MAX_VALUE;
+        }
+    }
+    
     /**
      * If true, then statistics are kept on the archive process.  See
      * dumpStatistics.  By default statistics are not kept.
@@ -174,22 +215,16 @@ public class ArchiveOutputStream extends DataOutputStream
             return false;
         }
         
-        Integer id;
-        synchronized (probeIdKey) {
-            probeIdKey.setObject(object);
-            id = (Integer)instances.get(probeIdKey);            
-            probeIdKey.clearObject();
-        }
+        int id = instances.get(object);
         
-        if (id == null) {
-            id = new Integer(instances.size() + 1);
-            instances.put(new IdentityHashKey(object), id);
+        if (id == 0) {
+            instances.put(object, instances.size() + 1);
 
             writeCompactInt(0);
             return true;
         }
         else {
-            writeCompactInt(id.intValue());
+            writeCompactInt(id);
             return false;
         }                
     }
@@ -203,16 +238,16 @@ public class ArchiveOutputStream extends DataOutputStream
      */
     private void writeClassInformation(Object object) throws IOException
     {
-        Integer id = (Integer)classes.get(object.getClass());
+        Class objectClass = object.getClass();
+        int id = classes.get(objectClass);
         
-        if (id == null) {
-            id = new Integer(classes.size() + 1);
-            classes.put(object.getClass(), id);
+        if (id == 0) {
+            classes.put(objectClass, classes.size() + 1);
             writeCompactInt(0);
-            writeUTF(object.getClass().getName());
+            writeUTF(objectClass.getName());
         }
         else {
-            writeCompactInt(id.intValue());
+            writeCompactInt(id);
         }
     }
 
@@ -251,7 +286,11 @@ public class ArchiveOutputStream extends DataOutputStream
 		        ((Archivable)object).archive(this);	            
 	        }
 	        else {
-	            ExternalArchiver archiver = externalArchiverForClassname(object.getClass().getName());
+	            ExternalArchiver archiver = (ExternalArchiver)classArchivers.get(object.getClass());
+	            if (archiver == null) {
+	                archiver = externalArchiverForClassname(object.getClass().getName());
+	                classArchivers.put(object.getClass(), archiver);
+	            }
 	            
 	            if (archiver == null) {
 	                throw new IOException("Don't know how to archive " + object.getClass());
@@ -333,8 +372,11 @@ public class ArchiveOutputStream extends DataOutputStream
      */
     public void writeClassVersion(String classname, int version) throws IOException
     {
-        if (classVersions.get(classname) == null) {
-            classVersions.put(classname, new Integer(version));
+        if (classVersionNames.containsKey(classname)) {
+            return;
+        }
+        classVersionNames.put(classname, classname);
+        if (classVersions.add(classname)) {
             writeCompactInt(version);
         }
     }
@@ -347,6 +389,7 @@ public class ArchiveOutputStream extends DataOutputStream
     {
         if (string == null) {
             writeCompactInt(-1);
+            return;
         }
         
         Integer id = (Integer)strings.get(string);
@@ -369,6 +412,14 @@ public class ArchiveOutputStream extends DataOutputStream
      */
     public void writeCompactInt(int value) throws IOException
     {
+        if (value >= 0 && value < 0x40) {
+            write(value);
+            return;
+        }
+        
+        byte bytes[] = compactBytes;
+        int length = 0;
+        
         if (value < 0) {
             if (value == Integer.MIN_VALUE) {
                 write(0x40);
@@ -380,26 +431,22 @@ public class ArchiveOutputStream extends DataOutputStream
                 write(value | 0x40);
                 return;
             } else {
-                write((value & 0xff) | 0xc0);
+                bytes[length++] = (byte)((value & 0xff) | 0xc0);
             }
         } else {
-            if (value < 0x40) {
-                write(value);
-                return;
-            } else {
-                write((value & 0x3f) | 0x80);
-            }
+            bytes[length++] = (byte)((value & 0x3f) | 0x80);
         }
 
         value = value >>> 6;
         while (true) {
             if (value < 0x80) {
-                write((int)value);
+                bytes[length++] = (byte)value;
                 break;
             }
-            write((int)((value & 0xff) | 0x80));
+            bytes[length++] = (byte)((value & 0xff) | 0x80);
             value = value >>> 7;            
         }
+        write(bytes, 0, length);
     }
     
     /**
@@ -409,6 +456,14 @@ public class ArchiveOutputStream extends DataOutputStream
      */
     public void writeCompactLong(long value) throws IOException
     {
+        if (value >= 0 && value < 0x40) {
+            write((int)value);
+            return;
+        }
+        
+        byte bytes[] = compactBytes;
+        int length = 0;
+        
         if (value < 0) {
             if (value == Long.MIN_VALUE) {
                 write(0x40);
@@ -420,26 +475,22 @@ public class ArchiveOutputStream extends DataOutputStream
                 write((int)(value | 0x40));
                 return;
             } else {
-                write((int)((value & 0xff) | 0xc0));
+                bytes[length++] = (byte)((value & 0xff) | 0xc0);
             }
         } else {
-            if (value < 0x40) {
-                write((int)value);
-                return;
-            } else {
-                write((int)((value & 0x3f) | 0x80));
-            }
+            bytes[length++] = (byte)((value & 0x3f) | 0x80);
         }
 
         value = value >>> 6;
         while (true) {
             if (value < 0x80) {
-                write((int)value);
+                bytes[length++] = (byte)value;
                 break;
             }
-            write((int)((value & 0xff) | 0x80));
+            bytes[length++] = (byte)((value & 0xff) | 0x80);
             value = value >>> 7;            
         }
+        write(bytes, 0, length);
     }
 
     /**
@@ -455,49 +506,52 @@ public class ArchiveOutputStream extends DataOutputStream
 }
 
 /**
- * Used to keep to implement an == HashMap rather than a
- * .equals HashMap.
+ * A BufferedOutputStream without the locking, which an archive has no use
+ * for since it is written by a single thread.
  */
-class IdentityHashKey
+class ArchiveBufferedOutputStream extends FilterOutputStream
 {
-    protected Object object;
+    private byte buffer[] = new byte[8192];
+    private int count;
     
-    public IdentityHashKey(Object object)
+    public ArchiveBufferedOutputStream(OutputStream output)
     {
-        this.object = object;
+        super(output);
     }
     
-    public int hashCode()
+    public void write(int b) throws IOException
     {
-        return System.identityHashCode(object);
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte)b;
     }
     
-    public boolean equals(Object other)
+    public void write(byte b[], int offset, int length) throws IOException
     {
-        if (!(other instanceof IdentityHashKey)) {
-            return false;
+        if (length >= buffer.length) {
+            flushBuffer();
+            out.write(b, offset, length);
+            return;
         }
-        return object == ((IdentityHashKey)other).object;
-    }
-}
-
-/**
- * Used to implement a reusable probe to an == HashMap
- */
-class MutableIdentityHashKey extends IdentityHashKey
-{
-    public MutableIdentityHashKey()
-    {
-        super(null);
+        if (length > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, offset, buffer, count, length);
+        count += length;
     }
     
-    public void setObject(Object object)
+    public void flush() throws IOException
     {
-        this.object = object;
+        flushBuffer();
+        out.flush();
     }
     
-    public void clearObject()
+    private void flushBuffer() throws IOException
     {
-        object = null;
-    }    
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
 }
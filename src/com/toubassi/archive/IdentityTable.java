@@ -0,0 +1,115 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.archive;
+
+/**
+ * IdentityTable maps objects, compared by ==, to positive ints.  It is
+ * what ArchiveOutputStream uses to remember the ids of the objects and
+ * classes it has written, rather than a HashMap of identity wrappers to
+ * Integers.  It is an open addressing hash table using linear probing,
+ * kept at most half full, so a lookup allocates nothing and usually
+ * touches a single slot.  Objects are never removed.
+ * 
+ * IdentityTable is not synchronized.  Each archive has its own.
+ * 
+ * @author garrick
+ */
+final class IdentityTable
+{
+    private Object keys[];
+    private int values[];
+    private int shift;
+    private int count;
+    
+    public IdentityTable()
+    {
+        allocate(64);
+    }
+    
+    public int size()
+    {
+        return count;
+    }
+    
+    /**
+     * Returns the value for object, or 0 if it has none.
+     */
+    public int get(Object object)
+    {
+        int mask = keys.length - 1;
+        for (int slot = slot(object); keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == object) {
+                return values[slot];
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Sets the value for object, which must not already have one.
+     */
+    public void put(Object object, int value)
+    {
+        if ((count + 1) * 2 > keys.length) {
+            Object oldKeys[] = keys;
+            int oldValues[] = values;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        insert(object, value);
+        count++;
+    }
+    
+    private void allocate(int capacity)
+    {
+        keys = new Object[capacity];
+        values = new int[capacity];
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+    
+    /**
+     * Identity hash codes are often sequential, so they are multiplied by
+     * the golden ratio to spread them across the table.
+     */
+    private int slot(Object object)
+    {
+        return (System.identityHashCode(object) * 0x9E3779B9) >>> shift;
+    }
+    
+    private void insert(Object object, int value)
+    {
+        int mask = keys.length - 1;
+        int slot = slot(object);
+        while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = object;
+        values[slot] = value;
+    }
+}
@@ -223,6 +223,40 @@ public class TestArchiving
         in.close();
     }
     
+    public static void testReferences() throws IOException
+    {
+        // Enough objects that the archive's tables grow several times
+        Simple simples[] = new Simple[5000];
+        for (int i = 0; i < simples.length; i++) {
+            simples[i] = new Simple();
+        }
+        
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        ArchiveOutputStream out = new ArchiveOutputStream(bytesOut);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < simples.length; i++) {
+                out.writeObject(simples[i], pass == 0 ? Archivable.PolymorphicReference : Archivable.StrictlyTypedReference);
+            }
+        }
+        // A class version is only written once, even under another String
+        out.writeClassVersion(new String("com.toubassi.archive.test.Simple"), 57);
+        out.writeCompactInt(-1);
+        out.close();
+        
+        ArchiveInputStream in = new ArchiveInputStream(new ByteArrayInputStream(bytesOut.toByteArray()));
+        Simple simplesIn[] = new Simple[simples.length];
+        for (int i = 0; i < simples.length; i++) {
+            simplesIn[i] = (Simple)in.readObject(Archivable.PolymorphicReference, null);
+            assert simplesIn[i].equals(simples[i]);
+        }
+        for (int i = 0; i < simples.length; i++) {
+            assert in.readObject(Archivable.StrictlyTypedReference, Simple.class) == simplesIn[i];
+        }
+        assert in.readClassVersion(new String("com.toubassi.archive.test.Simple")) == 57;
+        assert in.readCompactInt() == -1;
+        in.close();
+    }
+    
     public static void main(String[] args) throws IOException
     {
         List list = new ArrayList();
@@ -286,5 +320,6 @@ public class TestArchiving
         testCompactLongs();
         testCompactInts();
         testDates();
+        testReferences();
     }
 }
@@ -27,10 +27,12 @@ THE SOFTWARE.
  */
 package com.toubassi.filebunker.commandline;
 
+import com.toubassi.filebunker.vault.BackupDatabase;
 import com.toubassi.filebunker.vault.BackupEstimate;
 import com.toubassi.filebunker.vault.BackupResult;
 import com.toubassi.filebunker.vault.BackupSpecification;
 import com.toubassi.filebunker.vault.DirectoryRevision;
+import com.toubassi.filebunker.vault.EncryptionKey;
 import com.toubassi.filebunker.vault.FileOperationListener;
 import com.toubassi.filebunker.vault.FileRevision;
 import com.toubassi.filebunker.vault.FileStoreUtil;
@@ -42,6 +44,8 @@ import com.toubassi.filebunker.vault.Vault;
 import com.toubassi.filebunker.vault.VaultException;
 import com.toubassi.util.Arguments;
 import com.toubassi.util.ArgumentsException;
+import com.toubassi.util.Timer;
+import com.toubassi.util.TimerScheduler;
 
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -71,6 +75,13 @@ public class FileBunker
 		"    backup FileOrDir1 [FileOrDir2 ...]\n" +
 		"        Backs up the specified files or directories.\n" +
 		"\n" +
+		"    watch [-interval Seconds] FileOrDir1 [FileOrDir2 ...]\n" +
+		"        Runs continuously, backing up the specified files or directories\n" +
+		"        incrementally every Seconds (default 60) if anything has changed.\n" +
+		"        Changes are noticed as they happen so only changed directories\n" +
+		"        are scanned, though everything is rescanned periodically (see the\n" +
+		"        ContinuousBackupRescanHours configuration parameter).\n" +
+		"\n" +
 		"    restore DestinationFileOrDir FileOrDirToRestore\n" +
 		"        Restores the most recent version of FileOrDirToRestore to the path\n" +
 		"        DestinationFileOrDir\n" +
@@ -111,6 +122,14 @@ public class FileBunker
 		"        that may not be the current FileBunker password.  It should\n" +
 		"        be the password at the time the file was backed up.  The\n" +
 		"        -config flag is not necessary for this operation.\n" +
+		"\n" +
+		"    rebuildDatabase BackupIndexFile [BackupIndexSegmentFile ...]\n" +
+		"        Recreates the backup database in the -config directory, which\n" +
+		"        must not already have one, from the most recent BackupIndex\n" +
+		"        and the BackupIndexSegments of the same generation (the number\n" +
+		"        after BackupIndexSegment), each first decrypted with the\n" +
+		"        decrypt operation.  The -password flag is not necessary for\n" +
+		"        this operation.\n" +
 		"";
 		
 	public static void performBackup(String[] args) throws ArgumentsException, VaultException, IOException
@@ -140,7 +159,8 @@ public class FileBunker
 			
 		    FileInputStream fileInput = new FileInputStream(sourceFile);
 		    BufferedInputStream bufferedInput = new BufferedInputStream(fileInput);
-		    InputStream input = FileStoreUtil.restoreInputStream(bufferedInput, arguments.flagString("password"));
+		    EncryptionKey key = new EncryptionKey(arguments.flagString("password"));
+		    InputStream input = FileStoreUtil.restoreInputStream(bufferedInput, key);
 		    
 		    FileOutputStream fileOutput = new FileOutputStream(destFile);
 
@@ -155,6 +175,24 @@ public class FileBunker
 		    
 		    return;
 		}
+		else if (operation.equals("rebuildDatabase")) {
+			ArrayList paths = arguments.parameters();
+			
+			if (paths.isEmpty()) {
+			    fatal("Must specify a decrypted BackupIndex, and any decrypted BackupIndexSegments.");
+			}
+			
+			File configDirectory = new File(arguments.flagString("config"));
+			configDirectory.mkdirs();
+			
+			ArrayList segments = new ArrayList();
+			for (int i = 1, count = paths.size(); i < count; i++) {
+			    segments.add(new File((String)paths.get(i)));
+			}
+			BackupDatabase.rebuild(configDirectory, new File((String)paths.get(0)), segments);
+			
+			return;
+		}
 
 		
 		Vault vault = null;		
@@ -261,6 +299,41 @@ public class FileBunker
 			vault.backup(spec, new GenericFileOperationListener(), result);
 			System.out.println(result);
 		}				
+		else if (operation.equals("watch")) {
+
+			BackupSpecification spec = new BackupSpecification();
+
+			ArrayList paths = arguments.parameters();
+			if (paths.isEmpty()) {
+			    fatal("Must specify one or more files/directories to watch.");
+			}
+			
+			for (int i = 0, count = paths.size(); i < count; i++) {
+			    String path = (String)paths.get(i);
+			    spec.addFile(new File(path).getCanonicalFile());
+			}
+			
+			long intervalMillis = arguments.flagInt("interval", 60) * 1000L;
+			watch(vault, spec, intervalMillis);
+		}
+	}
+	
+	/**
+	 * Backs up spec whenever it has changed, checking every intervalMillis.
+	 * Never returns.
+	 */
+	private static void watch(Vault vault, BackupSpecification spec, long intervalMillis) throws VaultException
+	{
+	    vault.watch(spec);
+	    
+	    TimerScheduler scheduler = new TimerScheduler();
+	    scheduler.start(new Timer(0, 1, new ContinuousBackupRunnable(vault, spec)));
+	    scheduler.start(new Timer(intervalMillis, 0, new ContinuousBackupRunnable(vault, spec)));
+	    
+	    while (scheduler.millisUntilNextExpiration() >= 0) {
+	        scheduler.waitUntilNextExpiration();
+	        scheduler.runExpiredTimers();
+	    }
 	}
 
 	
@@ -289,6 +362,37 @@ public class FileBunker
 	}
 }
 
+class ContinuousBackupRunnable implements Runnable
+{
+    private Vault vault;
+    private BackupSpecification spec;
+    
+    public ContinuousBackupRunnable(Vault vault, BackupSpecification spec)
+    {
+        this.vault = vault;
+        this.spec = spec;
+    }
+    
+    public void run()
+    {
+        if (!vault.hasPendingChanges(spec)) {
+            return;
+        }
+        
+        try {
+            BackupResult result = new BackupResult();
+            vault.backup(spec, null, result);
+            System.out.println(new Date() + ": " + result);
+            vault.performMaintenance();
+        }
+        catch (VaultException e) {
+            // Changes are kept in the journal, so the next attempt will
+            // retry them.
+            e.printStackTrace();
+        }
+    }
+}
+
 class GenericFileOperationListener implements FileOperationListener
 {
     private int count;
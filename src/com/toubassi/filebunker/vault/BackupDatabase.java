@@ -34,27 +34,29 @@ import com.toubassi.archive.ArchiveOutputStream;
 import com.toubassi.io.XMLDeserializer;
 import com.toubassi.io.XMLSerializable;
 import com.toubassi.io.XMLSerializer;
+import com.toubassi.util.FileUtil;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.SortedSet;
-import java.util.StringTokenizer;
 import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The BackupDatabase class tracks all revisions of all files that have been
@@ -69,7 +71,26 @@ import java.util.TreeSet;
  * slice at a particular time (or more accurately, at the time of the closest
  * earlier backup operation).
  * 
- * This class is thread safe.
+ * The database is kept on disk as a snapshot of the whole tree along with a
+ * journal of the changes made since the snapshot was written (see
+ * DatabaseJournal).  Saving only commits the journal.  Once the journal has
+ * grown large relative to the snapshot, a new snapshot is written in the
+ * background and the journal starts over.
+ * 
+ * The snapshot is read as the database is used rather than up front (see
+ * DatabaseSnapshot), so opening even a large database is quick, and a node
+ * is only loaded once something needs its children or revisions.  Digests
+ * are looked up in the snapshot, with identifiers recorded since it was
+ * written kept in DigestTables.
+ * 
+ * The database also keeps TypeStatistics of how well the files of each
+ * extension compressed, updated as revisions are recorded and removed and
+ * saved in the snapshot, so estimating the size of a backup doesn't mean
+ * walking the tree for each new extension.
+ * 
+ * This class is thread safe.  Readers share a read-write lock (see lock)
+ * rather than waiting on the database's monitor, so the database can be
+ * browsed and restored from while a backup is recording revisions.
  * 
  * @author garrick
  */
@@ -77,10 +98,69 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
 {
     public static final String ContentsChangedNotification = "ContentsChangedNotification";
     
+    private static final String FileName = "database3";
+    private static final String JournalFileName = "database3.journal";
+    
+    /**
+     * Earlier versions saved the database with the archiver.  It is
+     * converted to a snapshot when first opened.
+     */
+    private static final String ArchiveFileName = "database2";
+    private static final String ArchiveJournalFileName = "database2.journal";
+    
+    /**
+     * A new snapshot is written once the journal is larger than this...
+     */
+    private static final long MinimumCompactionLength = 1024 * 1024;
+    
+    /**
+     * ...and larger than the snapshot divided by this.
+     */
+    private static final long CompactionRatio = 2;
+    
+    /**
+     * How many times compaction writes a snapshot before giving up on the
+     * database being left alone that long.  The next commit starts it again.
+     */
+    private static final int CompactionAttempts = 3;
+    
+    /**
+     * Guards the database and its nodes, which take it through readLock and
+     * writeLock (see Node.database).  Each database has its own, so one
+     * being rebuilt or compared doesn't hold up another.  Readers see the
+     * database as it is between changes rather than as of a point in time,
+     * so a long walk of the tree holds the read lock throughout.
+     */
+    private final transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    final transient Lock readLock = lock.readLock();
+    final transient Lock writeLock = lock.writeLock();
+    
+    /**
+     * The names of this database's nodes, which hold the id of their name
+     * (see Node.name).
+     */
+    final transient NameTable names = new NameTable();
+    
     private Node root;
     private File file;
-    private transient HashMap fileRevisionDigests = new HashMap();
+    private long generation;
+    private transient DatabaseJournal journal;
+    private transient DatabaseSnapshot snapshot;
+    private transient Thread compactor;
+    private transient IOException compactionFailure;
+    private transient DigestTable fileDigests = new DigestTable();
+    private transient DigestTable chunkDigests = new DigestTable();
     private transient int changesSinceLastSaveCounter;
+    private transient long changeCount;
+    private transient DigestCache digestCache;
+    
+    /**
+     * TypeStatistics by extension, which are rebuilt when next needed if
+     * they aren't valid.  It is its own lock, since it may be rebuilt by a
+     * reader.
+     */
+    private transient HashMap typeStatistics = new HashMap();
+    private transient boolean typeStatisticsValid;
 
     public BackupDatabase() throws IOException
     {
@@ -92,7 +172,9 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
         clear();
         
         if (configDirectory != null) {
-            file = new File(configDirectory, "database2");
+            file = new File(configDirectory, FileName);
+            DatabaseJournal newJournal = new DatabaseJournal(new File(configDirectory, JournalFileName));
+            File archiveFile = new File(configDirectory, ArchiveFileName);
             
             if (file.exists()) {
                 long startMillis = 0, endMillis = 0;                
@@ -108,6 +190,7 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
                 }
 
                 load();
+                newJournal.open(this, generation);
                 
                 if (profile) {
 	                endMillis = System.currentTimeMillis();
@@ -120,6 +203,17 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
 	                System.out.println((endMem - startMem) + " b");
                 }                
             }
+            else if (archiveFile.exists()) {
+                loadArchive(archiveFile);
+                DatabaseJournal archiveJournal = new DatabaseJournal(new File(configDirectory, ArchiveJournalFileName));
+                archiveJournal.open(this, generation);
+                archiveJournal.close();
+                
+                journal = newJournal;
+                save();
+                archiveJournal.file().delete();
+                archiveFile.delete();
+            }
             else {
                 File legacyFile = new File(configDirectory, "database");
                 
@@ -134,6 +228,7 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
                         bufferedInput.close();
                     }
                     
+                    journal = newJournal;
                     save();
                     legacyFile.delete();
 
@@ -145,19 +240,131 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
                     saveXML(new BufferedOutputStream(new FileOutputStream(new File(configDirectory, "new.xml"))));
                     */
                 }
+                else {
+                    newJournal.open(this, generation);
+                }
             }
+            
+            // Only now that any journal has been replayed are changes
+            // recorded in it.
+            journal = newJournal;
+            changesSinceLastSaveCounter = 0;
         }
     }
 
     private void clear()
     {
-        root = new Node(null);
+        root = new Node(this);
+        snapshot = null;
+        setTypeStatistics(new HashMap());
     }
 
+    /**
+     * The file containing the snapshot of the database.  It is accompanied
+     * by journalFile.
+     */
     public File file()
     {
         return file;
     }
+    
+    public File journalFile()
+    {
+        return journal != null ? journal.file() : null;
+    }
+    
+    /**
+     * Incremented each time a new snapshot is saved.
+     */
+    public long generation()
+    {
+        readLock.lock();
+        try {
+            return generation;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * The length of the journal committed so far.  It is reset whenever a
+     * new snapshot is saved.
+     */
+    long journalLength()
+    {
+        readLock.lock();
+        try {
+            return journal.length();
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the part of the journal committed since start, a previous
+     * journalLength of the current generation.  See rebuild.
+     */
+    byte[] journalSegment(long start) throws IOException
+    {
+        readLock.lock();
+        try {
+            return journal.segment(start);
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Recreates the database in configDirectory (which must not already have
+     * one) from a snapshot and the journal segments for its generation, as
+     * uploaded by a Vault (see IndexUploader) and then retrieved from the
+     * store and decrypted.  A snapshot uploaded by an earlier version is
+     * restored as such, and converted when the database is opened.
+     */
+    public static void rebuild(File configDirectory, File snapshot, List segments) throws IOException
+    {
+        File file = new File(configDirectory, FileName);
+        File archiveFile = new File(configDirectory, ArchiveFileName);
+        if (file.exists() || archiveFile.exists()) {
+            throw new IOException(configDirectory + " already has a database");
+        }
+        
+        File journalFile = new File(configDirectory, JournalFileName);
+        long generation;
+        if (DatabaseSnapshot.isSnapshot(snapshot)) {
+            generation = new DatabaseSnapshot(snapshot).generation();
+        }
+        else {
+            BackupDatabase database = new BackupDatabase();
+            database.loadArchive(snapshot);
+            generation = database.generation();
+            file = archiveFile;
+            journalFile = new File(configDirectory, ArchiveJournalFileName);
+        }
+        
+        DatabaseJournal.rebuild(journalFile, generation, segments);
+        Files.copy(snapshot.toPath(), file.toPath());
+    }
+    
+    /**
+     * Sets whether saveIfNecessary waits for the journal to reach the disk.
+     * The default is true.
+     */
+    public void setSyncJournal(boolean flag)
+    {
+        writeLock.lock();
+        try {
+            if (journal != null) {
+                journal.setSync(flag);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
 
     public boolean isEmpty()
     {
@@ -169,9 +376,15 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
         return root;
     }
 
-    public synchronized long backedupBytes()
+    public long backedupBytes()
     {
-        return root.totalBackedupSize();
+        readLock.lock();
+        try {
+            return root.totalBackedupSize();
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
     /**
@@ -183,39 +396,84 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
      * @return A newly constructed Set sorted from largest (first) to smallest
      *         (last).
      */
-    public synchronized SortedSet findLargestNodes(int maxNodesToReturn)
+    public SortedSet findLargestNodes(int maxNodesToReturn)
     {
-        SortedSet set = new TreeSet(NodeBackedupSizeComparator.comparator);
+        readLock.lock();
+        try {
+            SortedSet set = new TreeSet(NodeBackedupSizeComparator.comparator);
 
-        root.findLargestNodes(set, maxNodesToReturn);
+            root.findLargestNodes(set, maxNodesToReturn);
 
-        return set;
+            return set;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
-    public synchronized boolean needsBackup(File file)
+    /**
+     * Sets the cache consulted by needsBackup rather than reading a file to
+     * compute its digest.
+     */
+    void setDigestCache(DigestCache digestCache)
     {
-        Revision latest = findLastRevision(file);
+        this.digestCache = digestCache;
+    }
 
-        if (latest == null || latest.isDirectory()) {
-            return true;
-        }
+    public boolean needsBackup(File file)
+    {
+        return needsBackup(file, true);
+    }
+
+    /**
+     * Returns true if the file appears to have changed since it was last
+     * backed up.  If compareDigests is false, a file whose modification date
+     * and size are not conclusive is assumed to need backup rather than
+     * being read to compare its digest with that of the last revision.  This
+     * is for callers that will read the file anyway and can make the digest
+     * comparison themselves (see BackupPipeline).
+     */
+    public boolean needsBackup(File file, boolean compareDigests)
+    {
+        // Only look at the database under the lock.  Reading the file to
+        // digest it can take a long time, and writers must not wait on it.
         long lastModified = file.lastModified();
-        Date lastBackup = latest.date();
-        // 1 second of slop
-        if (lastModified + 1000 < lastBackup.getTime()) {
-            return false;
-        }
+        long length = file.length();
+        FileDigest latestDigest;
+        readLock.lock();
+        try {
+            Revision latest = findLastRevision(file);
+
+            if (latest == null || latest.isDirectory()) {
+                return true;
+            }
+            Date lastBackup = latest.date();
+            // 1 second of slop
+            if (lastModified + 1000 < lastBackup.getTime()) {
+                return false;
+            }
         
-        FileRevision latestFileRevision = (FileRevision)latest;
+            FileRevision latestFileRevision = (FileRevision)latest;
         
-        if (file.length() != latestFileRevision.size()) {
-            return true;
-        }
+            if (length != latestFileRevision.size()) {
+                return true;
+            }
         
-        FileDigest latestDigest = latestFileRevision.identifier().digest();
-        if (latestDigest != null) {
+            latestDigest = latestFileRevision.identifier().digest();
+        }
+        finally {
+            readLock.unlock();
+        }
+
+        if (compareDigests && latestDigest != null) {
             try {
-                FileDigest digest = new FileDigest(file);
+                FileDigest digest;
+                if (digestCache != null) {
+                    digest = digestCache.digest(file, latestDigest.type());
+                }
+                else {
+                    digest = new FileDigest(file, latestDigest.type());
+                }
                 if (digest.equals(latestDigest)) {
                     return false;
                 }                
@@ -227,114 +485,240 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
         return true;
     }
 
-    public synchronized Node findNode(File file)
+    public Node findNode(File file)
     {
-    	String path = file.getPath();
-    	String absPath = file.getAbsolutePath();
-        StringTokenizer tokenizer = new StringTokenizer(absPath,
-                File.separator);
-
-        Node node = root;
-        while (tokenizer.hasMoreTokens()) {
-            String pathComponent = tokenizer.nextToken();
-            node = node.childWithName(pathComponent);
-            if (node == null) {
-                return null;
+        readLock.lock();
+        try {
+            String path = file.getAbsolutePath();
+            int length = path.length();
+
+            // Walk the path a component at a time, skipping empty components
+            // (e.g. the leading separator) as StringTokenizer would.
+            Node node = root;
+            for (int start = 0, end; start < length; start = end + 1) {
+                end = path.indexOf(File.separatorChar, start);
+                if (end == -1) {
+                    end = length;
+                }
+                if (end > start) {
+                    node = node.child(path, start, end);
+                    if (node == null) {
+                        return null;
+                    }
+                }
             }
+            return node;
+        }
+        finally {
+            readLock.unlock();
         }
-        return node;
     }
 
-    public synchronized Revision findRevision(File file, Date date)
+    public Revision findRevision(File file, Date date)
     {
-        Node node = findNode(file);
-        if (node != null) {
-            return node.findRevision(date);
+        readLock.lock();
+        try {
+            Node node = findNode(file);
+            if (node != null) {
+                return node.findRevision(date);
+            }
+            return null;
+        }
+        finally {
+            readLock.unlock();
         }
-        return null;
     }
 
-    public synchronized Revision findLastRevision(File file)
+    public Revision findLastRevision(File file)
     {
-        Node node = findNode(file);
-        if (node != null) {
-            return node.lastRevision();
+        readLock.lock();
+        try {
+            Node node = findNode(file);
+            if (node != null) {
+                return node.lastRevision();
+            }
+            return null;
+        }
+        finally {
+            readLock.unlock();
         }
-        return null;
     }
 
-    public synchronized FileRevision findLastFileRevision(File file)
+    public FileRevision findLastFileRevision(File file)
     {
-        Node node = findNode(file);
-        if (node != null) {
-            return node.lastFileRevision();
+        readLock.lock();
+        try {
+            Node node = findNode(file);
+            if (node != null) {
+                return node.lastFileRevision();
+            }
+            return null;
+        }
+        finally {
+            readLock.unlock();
         }
-        return null;
     }
 
-    public FileRevision fileRevisionWithDigest(FileDigest digest)
+    /**
+     * Returns the identifier of a file revision with the specified digest,
+     * or null if there is none.
+     */
+    public RevisionIdentifier identifierWithDigest(FileDigest digest)
+    {
+        readLock.lock();
+        try {
+            RevisionIdentifier identifier = (RevisionIdentifier)fileDigests.get(digest);
+            if (identifier == null && snapshot != null) {
+                identifier = referenced(snapshot.identifierWithDigest(digest));
+            }
+            return identifier;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the identifier of a stored chunk with the specified digest,
+     * or null if there is none.  See RevisionIdentifier.chunks().
+     */
+    public RevisionIdentifier chunkWithDigest(FileDigest digest)
     {
-        return (FileRevision)fileRevisionDigests.get(digest);
+        readLock.lock();
+        try {
+            RevisionIdentifier chunk = (RevisionIdentifier)chunkDigests.get(digest);
+            if (chunk == null && snapshot != null) {
+                chunk = referenced(snapshot.chunkWithDigest(digest));
+            }
+            return chunk;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
-    private synchronized void addFileRevisionDigest(FileRevision revision)
+    /**
+     * Returns the pack with the specified digest that was in the snapshot
+     * the database was loaded from, or null if there is none, or it was not
+     * loaded from a snapshot.  See RevisionIdentifier.pack().
+     */
+    RevisionIdentifier packWithDigest(FileDigest digest)
     {
-        FileDigest digest = revision.identifier().digest();
+        readLock.lock();
+        try {
+            return snapshot == null ? null : referenced(snapshot.packWithDigest(digest));
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns true if digests are looked up in a snapshot, rather than the
+     * database having been loaded in full.
+     */
+    boolean hasSnapshot()
+    {
+        readLock.lock();
+        try {
+            return snapshot != null;
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * The snapshot doesn't know about revisions removed since it was
+     * written, so an identifier it finds that is no longer referenced
+     * doesn't count.
+     */
+    private static RevisionIdentifier referenced(RevisionIdentifier identifier)
+    {
+        return identifier != null && identifier.hasReferences() ? identifier : null;
+    }
+    
+    private void addDigests(RevisionIdentifier identifier)
+    {
+        FileDigest digest = identifier.digest();
         if (digest != null) {
-            fileRevisionDigests.put(digest, revision);
-        }        
+            fileDigests.put(digest, identifier);
+        }
+        
+        if (identifier.isChunked()) {
+            List chunks = identifier.chunks();
+            for (int i = 0, count = chunks.size(); i < count; i++) {
+                RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                chunkDigests.put(chunk.digest(), chunk);
+            }
+        }
     }
 
-    private synchronized void indexFileRevisionDigests(Node node)
+    private void indexDigests(Node node, ArrayList identifiers)
     {
-        List revisions = node.revisions();
-        for (int i = 0, count = revisions.size(); i < count; i++) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                addFileRevisionDigest((FileRevision)revision);
-            }
+        identifiers.clear();
+        node.collectFileIdentifiers(identifiers);
+        for (int i = 0, count = identifiers.size(); i < count; i++) {
+            addDigests((RevisionIdentifier)identifiers.get(i));
         }
         
-        List children = node.children();
-        for (int i = 0, count = children.size(); i < count; i++) {
-            Node child = (Node)children.get(i);
-            
-            indexFileRevisionDigests(child);
+        for (int i = 0, count = node.childCount(); i < count; i++) {
+            indexDigests(node.childAt(i), identifiers);
         }
     }
 
-    private synchronized void recordRevision(String absolutePath,
+    /**
+     * Loads whatever refers to identifier, which a change to its reference
+     * count or pack changes the totals of (see
+     * RevisionIdentifier.shareChanged).  Called with the write lock held.
+     */
+    private void loadReferrers(RevisionIdentifier identifier)
+    {
+        if (snapshot != null) {
+            snapshot.loadReferrers(root, identifier);
+        }
+    }
+    
+    private void recordRevision(String absolutePath,
             FileRevision revision) throws IOException
     {
-        StringTokenizer tokenizer = new StringTokenizer(absolutePath,
-                File.separator);
+        loadReferrers(revision.identifier());
+        int length = absolutePath.length();
 
         Node node = root;
-        while (tokenizer.hasMoreTokens()) {
-            String pathComponent = tokenizer.nextToken();
+        for (int start = 0, end; start < length; start = end + 1) {
+            end = absolutePath.indexOf(File.separatorChar, start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end == start) {
+                continue;
+            }
 
             // First make sure there is a node for the next component of the
             // path
-            Node child = node.childWithName(pathComponent);
-            if (child == null) {
-                child = new Node(pathComponent);
+            Node child = node.child(absolutePath, start, end);
+            boolean isNewChild = child == null;
+            if (isNewChild) {
+                child = new Node(this, absolutePath, start, end);
                 node.addChild(child);
             }
 
             // Create/update the DirectoryRevision if necessary to show that
             // 'node' is a directory contianing 'child'
-            Revision nodeRevision = node.findRevision(revision.date());
-            if (nodeRevision != node.lastRevision()) {
+            if (node.hasRevisionAfter(revision.date())) {
                 throw new UnsupportedOperationException(
                         "Can't record a revision at " + absolutePath
                                 + " because it is in the past.");
             }
+            Revision nodeRevision = node.findRevision(revision.date());
             boolean addNewDirectoryRevision = true;
 
             if (nodeRevision != null && nodeRevision.isDirectory()) {
                 DirectoryRevision directoryRevision = (DirectoryRevision) nodeRevision;
-                if (directoryRevision.hasChild(child)) {
+                // A new child can't be in any revision yet, so don't bother
+                // looking.
+                if (!isNewChild && directoryRevision.hasChild(child)) {
                     addNewDirectoryRevision = false;
                 } else if (directoryRevision.date().equals(revision.date())) {
                     directoryRevision.addChild(child);
@@ -353,177 +737,650 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
         }
 
         node.addRevision(revision);
-        addFileRevisionDigest(revision);
+        addDigests(revision.identifier());
+        updateTypeStatistics(node, revision.identifier(), true);
 
         databaseChanged();
     }
 
-    public synchronized FileRevision recordRevision(File file, Date date,
+    public FileRevision recordRevision(File file, Date date,
             RevisionIdentifier identifier) throws IOException
     {
-        FileRevision revision = new FileRevision();
-        revision.setIdentifier(identifier);
-        revision.setDate(date);
+        writeLock.lock();
+        try {
+            FileRevision revision = new FileRevision();
+            revision.setIdentifier(identifier);
+            revision.setDate(date);
 
-        recordRevision(file.getAbsolutePath(), revision);
-        return revision;
+            String absolutePath = file.getAbsolutePath();
+            recordRevision(absolutePath, revision);
+        
+            if (journal != null) {
+                journal.recordRevision(absolutePath, date, identifier);
+            }
+            return revision;
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
 
-    public synchronized void updateDirectoryMembership(File directory,
+    public void updateDirectoryMembership(File directory,
             Date date, String children[]) throws IOException
     {
-        Revision revision = findRevision(directory, date);
+        writeLock.lock();
+        try {
+            Revision revision = findRevision(directory, date);
 
-        if (revision == null || !revision.isDirectory()) {
-            return;
-        }
+            if (revision == null || !revision.isDirectory()) {
+                return;
+            }
 
-        // Make sure the revision we got is the last one, because we will be
-        // updating the directory by
-        // appending to the end, so we don't support updating directories that
-        // existed "in the past"
-        if (revision != findLastRevision(directory)) {
-            throw new UnsupportedOperationException("Can't update directory "
-                    + directory + " on " + date
-                    + " because it is not the last revision");
-        }
+            // Make sure the revision we got is the last one, because we will be
+            // updating the directory by
+            // appending to the end, so we don't support updating directories that
+            // existed "in the past"
+            if (revision != findLastRevision(directory)) {
+                throw new UnsupportedOperationException("Can't update directory "
+                        + directory + " on " + date
+                        + " because it is not the last revision");
+            }
 
-        DirectoryRevision directoryRevision = (DirectoryRevision) revision;
-        DirectoryRevision updateDirectoryRevision = null;
-        List childList = Arrays.asList(children);
+            DirectoryRevision directoryRevision = (DirectoryRevision) revision;
+            DirectoryRevision updateDirectoryRevision = null;
+            HashSet childNames = new HashSet(children.length * 2);
+            for (int i = 0; i < children.length; i++) {
+                childNames.add(children[i]);
+            }
         
-        boolean didChange = false;
-
-        Iterator i = directoryRevision.children();
-        while (i.hasNext()) {
-            Node child = (Node) i.next();
-            if (!childList.contains(child.name())) {
-                if (updateDirectoryRevision == null) {
-                    if (directoryRevision.date().equals(date)) {
-                        updateDirectoryRevision = directoryRevision;
-                    } else {
-                        updateDirectoryRevision = new DirectoryRevision();
-                        updateDirectoryRevision.setDate(date);
-                        revision.node().addRevision(updateDirectoryRevision);
+            boolean didChange = false;
+
+            Iterator i = directoryRevision.children();
+            while (i.hasNext()) {
+                Node child = (Node) i.next();
+                if (!childNames.contains(child.name())) {
+                    if (updateDirectoryRevision == null) {
+                        if (directoryRevision.date().equals(date)) {
+                            updateDirectoryRevision = directoryRevision;
+                        } else {
+                            updateDirectoryRevision = new DirectoryRevision();
+                            updateDirectoryRevision.setDate(date);
+                            revision.node().addRevision(updateDirectoryRevision);
+                        }
                     }
+                    updateDirectoryRevision.removeChild(child);
+                    didChange = true;
                 }
-                updateDirectoryRevision.removeChild(child);
-                didChange = true;
             }
-        }
 
-        if (didChange) {
-            databaseChanged();
+            if (didChange) {
+                if (journal != null) {
+                    journal.updateDirectoryMembership(directory.getAbsolutePath(), date, children);
+                }
+                databaseChanged();
+            }
+        }
+        finally {
+            writeLock.unlock();
         }
     }
 
-    public synchronized boolean removeRevision(FileRevision revision)
+    /**
+     * Returns true if the content of the revision is no longer referenced,
+     * and so should be deleted from the store.  If the revision's identifier
+     * is chunked, only its chunks that no longer have references should be
+     * deleted.
+     */
+    public boolean removeRevision(FileRevision revision)
     {
-        RevisionIdentifier identifier = revision.identifier();
-        revision.node().removeRevision(revision);
-        databaseChanged();
-        if (identifier.hasReferences()) {
-            return false;
+        writeLock.lock();
+        try {
+            RevisionIdentifier identifier = revision.identifier();
+            if (journal != null) {
+                journal.removeRevision(revision);
+            }
+            updateTypeStatistics(revision.node(), identifier, false);
+            loadReferrers(identifier);
+            revision.node().removeRevision(revision);
+            databaseChanged();
+            if (identifier.hasReferences()) {
+                return false;
+            }
+            if (identifier.digest() != null) {
+                fileDigests.remove(identifier.digest());
+            }
+            if (identifier.isChunked()) {
+                List chunks = identifier.chunks();
+                for (int i = 0, count = chunks.size(); i < count; i++) {
+                    RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                    if (!chunk.hasReferences()) {
+                        chunkDigests.remove(chunk.digest());
+                    }
+                }
+            }
+            return true;
         }
-        if (identifier.digest() != null) {
-            fileRevisionDigests.remove(identifier.digest());
+        finally {
+            writeLock.unlock();
         }
-        return true;
     }
     
-    public synchronized FileRevision findRevisionWithHandlerName(String name)
+    /**
+     * Returns a map from each pack in the database to a list of the
+     * FileRevisions whose content is in it.  See RevisionIdentifier.pack().
+     */
+    public HashMap findPackMembers()
     {
-        return root.findRevisionWithHandlerName(name);
+        readLock.lock();
+        try {
+            HashMap packs = new HashMap();
+            collectPackMembers(root, packs);
+            return packs;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
-    public synchronized boolean removeRevisionsWithHandlerName(String name) throws IOException
+    private void collectPackMembers(Node node, HashMap packs)
     {
-        boolean removed = root.removeRevisionsWithHandlerName(name);
+        List revisions = node.revisions();
+        for (int i = 0, count = revisions.size(); i < count; i++) {
+            Revision revision = (Revision)revisions.get(i);
+            
+            if (!revision.isDirectory()) {
+                RevisionIdentifier identifier = ((FileRevision)revision).identifier();
+                
+                if (identifier.isPacked()) {
+                    ArrayList members = (ArrayList)packs.get(identifier.pack());
+                    if (members == null) {
+                        members = new ArrayList();
+                        packs.put(identifier.pack(), members);
+                    }
+                    members.add(revision);
+                }
+            }
+        }
         
-        if (removed) {
+        List children = node.children();
+        for (int i = 0, count = children.size(); i < count; i++) {
+            collectPackMembers((Node)children.get(i), packs);
+        }
+    }
+    
+    /**
+     * Records that the content of a packed identifier has been copied to
+     * a different pack.
+     */
+    public void movePackMember(RevisionIdentifier identifier,
+            RevisionIdentifier pack, long packOffset)
+    {
+        writeLock.lock();
+        try {
+            loadReferrers(identifier);
+            identifier.moveToPack(pack, packOffset);
+            invalidateTypeStatistics();
+            if (journal != null) {
+                journal.movePackMember(identifier, pack, packOffset);
+            }
             databaseChanged();
         }
-        return removed;
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    public FileRevision findRevisionWithHandlerName(String name)
+    {
+        readLock.lock();
+        try {
+            return root.findRevisionWithHandlerName(name);
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    public boolean removeRevisionsWithHandlerName(String name) throws IOException
+    {
+        writeLock.lock();
+        try {
+            // The walk loads every node anyway, but a revision it removes
+            // may share its identifier with one it has yet to load.
+            if (snapshot != null) {
+                snapshot.loadAllReferrers(root);
+            }
+            boolean removed = root.removeRevisionsWithHandlerName(name);
+        
+            if (removed) {
+                // Drop any index entries for the removed revisions.
+                fileDigests.clear();
+                chunkDigests.clear();
+                indexDigests(root, new ArrayList());
+                invalidateTypeStatistics();
+            
+                if (journal != null) {
+                    journal.removeRevisionsWithHandlerName(name);
+                }
+                databaseChanged();
+            }
+            return removed;
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
 
-    public synchronized float averageBackedupSizeRatioForType(String extension)
+    public float averageBackedupSizeRatioForType(String extension)
     {
-        if (!extension.startsWith(".")) {
-            throw new IllegalArgumentException(
-                    "Extension must start with a dot");
+        readLock.lock();
+        try {
+            return averageBackedupSizeRatioForType(extension, 1.0f);
         }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the average ratio of backed up size to size of revisions of
+     * files with the extension, or defaultRatio if there are none.
+     */
+    public float averageBackedupSizeRatioForType(String extension, float defaultRatio)
+    {
+        readLock.lock();
+        try {
+            if (!extension.startsWith(".")) {
+                throw new IllegalArgumentException(
+                        "Extension must start with a dot");
+            }
+            
+            if (extension.lastIndexOf('.') == 0) {
+                TypeStatistics statistics = statisticsForType(extension);
+                return statistics == null ? defaultRatio : statistics.averageRatio(defaultRatio);
+            }
+
+            // Only a name's last dot starts its extension, so for something
+            // like ".tar.gz" the names must be matched one by one.
+            float ratio[] = new float[1];
+            int numberOfRevisions[] = new int[1];
 
-        float ratio[] = new float[1];
-        int numberOfRevisions[] = new int[1];
+            root.accumulateBackedupSizeRatiosForType(extension, ratio,
+                    numberOfRevisions);
+            if (ratio[0] == 0 || numberOfRevisions[0] == 0) {
+                return defaultRatio;
+            }
+            return ratio[0] / numberOfRevisions[0];
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
 
-        root.accumulateBackedupSizeRatiosForType(extension, ratio,
-                numberOfRevisions);
-        if (ratio[0] == 0 || numberOfRevisions[0] == 0) {
-            return 1.0f;
+    /**
+     * Returns the statistics of the revisions of files with the extension
+     * (e.g. ".txt"), or null if there are none.
+     */
+    public TypeStatistics statisticsForType(String extension)
+    {
+        readLock.lock();
+        try {
+            synchronized (typeStatistics) {
+                if (!typeStatisticsValid) {
+                    typeStatistics.clear();
+                    collectTypeStatistics(root, new ArrayList());
+                    typeStatisticsValid = true;
+                }
+                TypeStatistics statistics = (TypeStatistics)typeStatistics.get(extension);
+                return statistics == null ? null : statistics.copy();
+            }
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+    
+    private void collectTypeStatistics(Node node, ArrayList identifiers)
+    {
+        node.load();
+        String extension = extension(node);
+        if (extension != null) {
+            identifiers.clear();
+            node.collectFileIdentifiers(identifiers);
+            for (int i = 0, count = identifiers.size(); i < count; i++) {
+                RevisionIdentifier identifier = (RevisionIdentifier)identifiers.get(i);
+                addTypeStatistic(extension, identifier.backedupSizeRatio());
+            }
+        }
+        
+        for (int i = 0, count = node.childCount(); i < count; i++) {
+            collectTypeStatistics(node.childAt(i), identifiers);
+        }
+    }
+    
+    private static String extension(Node node)
+    {
+        return node.nameId() == -1 ? null : TypeStatistics.extension(node.name());
+    }
+    
+    private void addTypeStatistic(String extension, float ratio)
+    {
+        TypeStatistics statistics = (TypeStatistics)typeStatistics.get(extension);
+        if (statistics == null) {
+            statistics = new TypeStatistics();
+            typeStatistics.put(extension, statistics);
+        }
+        statistics.add(ratio);
+    }
+    
+    /**
+     * Adds the ratio of a file revision of node to the statistics, or
+     * removes it.
+     */
+    private void updateTypeStatistics(Node node, RevisionIdentifier identifier, boolean add)
+    {
+        String extension = extension(node);
+        if (extension == null) {
+            return;
+        }
+        
+        synchronized (typeStatistics) {
+            if (!typeStatisticsValid) {
+                return;
+            }
+            if (add) {
+                addTypeStatistic(extension, identifier.backedupSizeRatio());
+            }
+            else {
+                TypeStatistics statistics = (TypeStatistics)typeStatistics.get(extension);
+                if (statistics != null) {
+                    statistics.remove(identifier.backedupSizeRatio());
+                    if (statistics.count() <= 0) {
+                        typeStatistics.remove(extension);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Called when the ratios of revisions may have changed in a way that
+     * can't be followed revision by revision.
+     */
+    private void invalidateTypeStatistics()
+    {
+        synchronized (typeStatistics) {
+            typeStatisticsValid = false;
+        }
+    }
+    
+    private void setTypeStatistics(HashMap newTypeStatistics)
+    {
+        synchronized (typeStatistics) {
+            typeStatistics.clear();
+            typeStatistics.putAll(newTypeStatistics);
+            typeStatisticsValid = true;
         }
-        return ratio[0] / numberOfRevisions[0];
     }
 
-    private synchronized void databaseChanged()
+    private void databaseChanged()
     {
         changesSinceLastSaveCounter++;
+        changeCount++;
         NotificationCenter.sharedCenter().post(ContentsChangedNotification, this, null);
     }
 
-    public synchronized boolean saveIfNecessary() throws IOException
+    /**
+     * Commits the changes made since the last save to the journal, and
+     * returns true if there were any.  If the journal has grown large
+     * enough, a new snapshot is saved in the background.  If the last one
+     * couldn't be saved, that is thrown once the changes are committed.
+     */
+    public boolean saveIfNecessary() throws IOException
     {
-        if (changesSinceLastSaveCounter > 0) {
-            save();
-            return true;
+        writeLock.lock();
+        try {
+            if (changesSinceLastSaveCounter > 0) {
+                if (journal == null) {
+                    save();
+                    return true;
+                }
+            
+                journal.commit();
+                changesSinceLastSaveCounter = 0;
+                throwCompactionFailure();
+            
+                long journalLength = journal.length();
+                if (journalLength > MinimumCompactionLength && journalLength > file.length() / CompactionRatio) {
+                    compactInBackground();
+                }
+                return true;
+            }
+            return false;
+        }
+        finally {
+            writeLock.unlock();
         }
-        return false;
     }
 
-    public synchronized void save() throws IOException
+    /**
+     * Saves a new snapshot of the whole database, and resets the journal.
+     */
+    public void save() throws IOException
     {
-        File tempFile = File.createTempFile("database", null, file.getParentFile());
-        FileOutputStream fileOutput = new FileOutputStream(tempFile);
-        BufferedOutputStream output = new BufferedOutputStream(fileOutput);
-
+        writeLock.lock();
         try {
-            save(output);
-            changesSinceLastSaveCounter = 0;
-        } finally {
-            output.close();
+            File tempFile = File.createTempFile("database", null, file.getParentFile());
+            HashMap newTypeStatistics = new HashMap();
+            RevisionIdentifier identifiers[] = writeSnapshot(tempFile, generation + 1, newTypeStatistics);
+            
+            installSnapshot(tempFile, identifiers, newTypeStatistics);
         }
-
-        file.delete();
-        if (!tempFile.renameTo(file)) {
-            throw new IOException("Couldn't rename " + tempFile + " to " + file);
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Writes the database to tempFile, which is deleted if that fails.  It
+     * only reads the database, so the read lock is enough.
+     */
+    private RevisionIdentifier[] writeSnapshot(File tempFile, long newGeneration, HashMap newTypeStatistics) throws IOException
+    {
+        try {
+            return DatabaseSnapshot.write(tempFile, root, newGeneration, newTypeStatistics);
+        }
+        catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+    
+    /**
+     * Replaces the database's file with the snapshot of it written to
+     * tempFile, and resets the journal.  The write lock must be held, and
+     * the database unchanged since the snapshot was written.
+     */
+    private void installSnapshot(File tempFile, RevisionIdentifier identifiers[], HashMap newTypeStatistics) throws IOException
+    {
+        try {
+            FileUtil.replace(tempFile, file);
+        }
+        catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        generation++;
+        
+        // Writing the snapshot loaded every node, so all it is needed for
+        // now is finding digests, and the identifiers it finds are the ones
+        // already in memory.
+        snapshot = new DatabaseSnapshot(file, this, identifiers);
+        fileDigests.clear();
+        chunkDigests.clear();
+        setTypeStatistics(newTypeStatistics);
+        
+        // The snapshot must be in place before the journal is reset.  If
+        // we are interrupted in between, the old journal is recognized as
+        // already being part of the snapshot.
+        if (journal != null) {
+            journal.reset(generation);
+        }
+        changesSinceLastSaveCounter = 0;
+    }
+    
+    private void compactInBackground()
+    {
+        if (compactor == null) {
+            compactor = new Thread(new Compactor(), "Database Compactor");
+            compactor.start();
+        }
+    }
+    
+    /**
+     * Waits for any snapshot being saved in the background, so the
+     * application can exit without leaving it half done, and throws the
+     * exception if it couldn't be saved.
+     */
+    public void waitForCompaction() throws IOException
+    {
+        Thread thread;
+        
+        writeLock.lock();
+        try {
+            thread = compactor;
+        }
+        finally {
+            writeLock.unlock();
+        }
+        
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        writeLock.lock();
+        try {
+            throwCompactionFailure();
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    private void throwCompactionFailure() throws IOException
+    {
+        IOException e = compactionFailure;
+        
+        if (e != null) {
+            compactionFailure = null;
+            throw e;
+        }
+    }
+    
+    /**
+     * Saves a new snapshot, as save does, but writes it with just the read
+     * lock so a backup or browsing isn't held up while it is written.  The
+     * write lock is only taken to replace the file, and if the database
+     * changed in the meantime the snapshot is written again.
+     */
+    private void compact() throws IOException
+    {
+        for (int attempt = 0; attempt < CompactionAttempts; attempt++) {
+            File tempFile = File.createTempFile("database", null, file.getParentFile());
+            HashMap newTypeStatistics = new HashMap();
+            RevisionIdentifier identifiers[];
+            long startGeneration;
+            long startChangeCount;
+            
+            readLock.lock();
+            try {
+                startGeneration = generation;
+                startChangeCount = changeCount;
+                identifiers = writeSnapshot(tempFile, startGeneration + 1, newTypeStatistics);
+            }
+            finally {
+                readLock.unlock();
+            }
+            
+            writeLock.lock();
+            try {
+                if (generation == startGeneration && changeCount == startChangeCount) {
+                    installSnapshot(tempFile, identifiers, newTypeStatistics);
+                    return;
+                }
+            }
+            finally {
+                writeLock.unlock();
+            }
+            tempFile.delete();
         }
     }
 
-    public synchronized void save(OutputStream output) throws IOException
+    public void save(OutputStream output) throws IOException
     {
-        ArchiveOutputStream archiveOutput = new ArchiveOutputStream(output);
+        readLock.lock();
+        try {
+            ArchiveOutputStream archiveOutput = new ArchiveOutputStream(output);
 
-        archive(archiveOutput);
-        archiveOutput.flush();
+            archive(archiveOutput);
+            archiveOutput.flush();
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
-    private synchronized void saveLegacy(OutputStream output) throws IOException
+    private void saveLegacy(OutputStream output) throws IOException
     {
         DataOutputStream dataOutput = new DataOutputStream(output);
         root.writeData(dataOutput);
         dataOutput.flush();
     }
 
-    public synchronized void saveXML(OutputStream output) throws IOException
+    public void saveXML(OutputStream output) throws IOException
     {
-        XMLSerializer serializer = new XMLSerializer(output);
-        serializer.setIndentIncrement(2);
-        serializeXML(serializer);
-        serializer.flush();
+        readLock.lock();
+        try {
+            XMLSerializer serializer = new XMLSerializer(output);
+            serializer.setIndentIncrement(2);
+            serializeXML(serializer);
+            serializer.flush();
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
-    public synchronized void load() throws IOException
+    /**
+     * Opens the snapshot.  Nodes are loaded from it as they are needed.
+     */
+    public void load() throws IOException
     {
-        FileInputStream fileInput = new FileInputStream(file);
+        writeLock.lock();
+        try {
+            snapshot = new DatabaseSnapshot(file, this);
+            root = snapshot.root();
+            generation = snapshot.generation();
+            fileDigests.clear();
+            chunkDigests.clear();
+            setTypeStatistics(snapshot.typeStatistics());
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Loads a database saved with the archiver by an earlier version.
+     */
+    private void loadArchive(File archiveFile) throws IOException
+    {
+        FileInputStream fileInput = new FileInputStream(archiveFile);
         BufferedInputStream bufferedInput = new BufferedInputStream(fileInput, 4096);
 
         try {
@@ -533,19 +1390,26 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
         }
     }
 
-    public synchronized void load(InputStream input) throws IOException
+    public void load(InputStream input) throws IOException
     {
-        ArchiveInputStream archiveInput = new ArchiveInputStream(input);
+        writeLock.lock();
+        try {
+            ArchiveInputStream archiveInput = new ArchiveInputStream(input);
 
-        unarchive(archiveInput);
+            unarchive(archiveInput);
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
 
-    private synchronized void loadLegacy(InputStream input) throws IOException
+    private void loadLegacy(InputStream input) throws IOException
     {
         clear();
 
         DataInputStream dataInput = new DataInputStream(input);
         root.readData(dataInput);
+        invalidateTypeStatistics();
     }
 
     public void serializeXML(XMLSerializer serializer)
@@ -567,15 +1431,51 @@ public class BackupDatabase implements XMLSerializable, Serializable, Archivable
     
     public void archive(ArchiveOutputStream output) throws IOException
     {
-        output.writeClassVersion("com.toubassi.filebunker.vault.BackupDatabase", 1);
+        output.writeClassVersion("com.toubassi.filebunker.vault.BackupDatabase", 2);
         output.writeObject(root, Archivable.StrictlyTypedValue);
+        output.writeCompactLong(generation);
     }
     
     public void unarchive(ArchiveInputStream input) throws IOException
     {
-        input.readClassVersion("com.toubassi.filebunker.vault.BackupDatabase");
+        int version = input.readClassVersion("com.toubassi.filebunker.vault.BackupDatabase");
+        input.setContext(this);
         root = (Node)input.readObject(Archivable.StrictlyTypedValue, Node.class);
-        indexFileRevisionDigests(root);
+        if (version >= 2) {
+            generation = input.readCompactLong();
+        }
+        snapshot = null;
+        fileDigests.clear();
+        chunkDigests.clear();
+        indexDigests(root, new ArrayList());
+        invalidateTypeStatistics();
+    }
+    
+    class Compactor implements Runnable
+    {
+        public void run()
+        {
+            IOException failure = null;
+            
+            try {
+                compact();
+            }
+            catch (IOException e) {
+                // Nothing is lost, the journal still has every change.  It
+                // is thrown by the next saveIfNecessary.
+                failure = e;
+            }
+            finally {
+                writeLock.lock();
+                try {
+                    compactionFailure = failure;
+                    compactor = null;
+                }
+                finally {
+                    writeLock.unlock();
+                }
+            }
+        }
     }
 }
 
@@ -594,7 +1494,11 @@ class NodeBackedupSizeComparator implements Comparator
             if (node1 == node2) {
                 return 0;
             }
-            return node2.file().getPath().compareTo(node1.file().getPath());
+            StringBuffer path1 = new StringBuffer();
+            StringBuffer path2 = new StringBuffer();
+            node1.appendPath(path1);
+            node2.appendPath(path2);
+            return path2.toString().compareTo(path1.toString());
         }
         return result < 0 ? -1 : 1;
     }
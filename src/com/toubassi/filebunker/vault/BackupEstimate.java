@@ -69,8 +69,6 @@ public class BackupEstimate implements FileFindDelegate
     
     void addFile(File file)
     {
-        String path = file.getPath();
-        
         long size = file.length();
 
         totalSize += size;
@@ -83,10 +81,8 @@ public class BackupEstimate implements FileFindDelegate
         }
         else {
             // Estimate by the extension
-            int lastDot = path.lastIndexOf('.');
-            if (path.indexOf(File.separatorChar, lastDot) == -1) {
-                String extension = path.substring(lastDot);
-                
+            String extension = TypeStatistics.extension(file.getName());
+            if (extension != null) {
                 Float result = (Float)estimatesByType.get(extension);
                 
                 if (result == null) {
@@ -0,0 +1,1134 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.io.ChannelInputStream;
+import com.toubassi.util.BoundedQueue;
+import com.toubassi.util.ContentDefinedChunker;
+import com.toubassi.util.FileFindDelegate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * BackupPipeline performs the work of Vault.backup using several threads
+ * so that reading, digesting, compressing, encrypting and uploading of
+ * different files can overlap.  The FileFind walk runs on the calling thread
+ * and feeds files into a bounded queue.  A pool of digest threads reads each
+ * file exactly once, computing its FileDigest while compressing and
+ * encrypting it into a SpooledFile (see FileStoreUtil.spool), and then
+ * decides whether the content is unchanged or already in the store.
+ * Content that needs to be backed up is handed (through another bounded
+ * queue) to a pool of store threads which upload it via
+ * FileStore.backupSpooledFile.  Finally a single committer thread records
+ * the results in the BackupDatabase.
+ * 
+ * The committer processes files and directory updates in exactly the order
+ * the walk produced them, so the BackupDatabase sees the same sequence of
+ * recordRevision and updateDirectoryMembership calls as a sequential backup.
+ * 
+ * Content that appears more than once in a single backup is only uploaded
+ * once.  The second file waits for the first to finish and then shares its
+ * RevisionIdentifier.
+ * 
+ * If the ChunkingThresholdKey parameter is set, files at least that large
+ * are split into content defined chunks (see SpooledChunks), and only the
+ * chunks that are not already in the store are uploaded.  This means a small
+ * change to a large file only uploads the chunks around the change.  A file
+ * that uses a chunk being uploaded by another file waits for that file
+ * before it is recorded.
+ * 
+ * Before a file is read, its digest is looked up in the Vault's DigestCache,
+ * so a file whose modification date has changed since the last backup but
+ * whose content has not is only read the first time.  The digests computed
+ * while spooling are added to the cache.
+ * 
+ * If the TreeDigestThresholdKey parameter is set, files at least that large
+ * are first digested on all processors (see FileDigest).  If the digest
+ * matches the last revision the file is not spooled at all.  Otherwise the
+ * file is spooled as usual, its MD5 is compared with the last revision in
+ * case that was recorded with an MD5 digest, and the tree digest is
+ * recorded for the new revision.
+ * 
+ * If the PackingThresholdKey parameter is set, files smaller than that are
+ * read into memory and appended to a pack (see PackBuilder).  When the pack
+ * reaches PackSizeKey bytes it is queued for the store threads as a single
+ * object, and its members are done once it is stored.  So that the
+ * committer is never stuck waiting on a pack that is not full, it seals the
+ * open pack if it has waited PackFlushMillis for a file.
+ * 
+ * If any file fails or the listener cancels, the walk stops, work that has
+ * not started is abandoned, and the failure is thrown from finish().  Files
+ * that were successfully stored before the failure are still recorded so the
+ * store is not left with orphaned content.
+ * 
+ * @author garrick
+ */
+class BackupPipeline implements FileFindDelegate
+{
+    /**
+     * VaultConfiguration parameter specifying the number of threads used to
+     * read, digest, compress and encrypt files.  Defaults to the number of
+     * available processors.
+     */
+    public static final String DigestThreadsKey = "BackupDigestThreads";
+    
+    /**
+     * VaultConfiguration parameter specifying the number of threads used to
+     * upload files.  Defaults to 2.
+     */
+    public static final String StoreThreadsKey = "BackupStoreThreads";
+    
+    /**
+     * VaultConfiguration parameter specifying the size in bytes at or above
+     * which files are backed up as chunks.  Chunking is off if unset or 0.
+     */
+    public static final String ChunkingThresholdKey = "ChunkedBackupThreshold";
+    
+    /**
+     * VaultConfiguration parameter specifying the size in bytes below which
+     * files are packed together.  Packing is off if unset or 0.
+     */
+    public static final String PackingThresholdKey = "PackedBackupThreshold";
+    
+    /**
+     * VaultConfiguration parameter specifying the size in bytes at which a
+     * pack is considered full.  Defaults to DefaultPackSize.
+     */
+    public static final String PackSizeKey = "BackupPackSize";
+    
+    public static final long DefaultPackSize = 4 * 1024 * 1024;
+    
+    /**
+     * VaultConfiguration parameter specifying the size in bytes at or above
+     * which files are identified by a FileDigest.TreeType digest, which is
+     * computed in parallel before the file is spooled.  This is off if unset
+     * or 0.
+     */
+    public static final String TreeDigestThresholdKey = "TreeDigestBackupThreshold";
+    
+    private static final long PackFlushMillis = 1000;
+    
+    /**
+     * How many files may be waiting between any two stages.  This bounds
+     * memory use and keeps the walk from running too far ahead.
+     */
+    private static final int QueueCapacity = 256;
+
+    private Vault vault;
+    private BackupDatabase backupdb;
+    private FileStore store;
+    private VaultConfiguration config;
+    private FileOperationListener listener;
+    private Date date;
+    private BackupResult result;
+    private boolean skipUnchangedFiles;
+    private File spoolDirectory;
+    private CodecSelector codecSelector;
+    private ContentDefinedChunker chunker;
+    private long chunkingThreshold;
+    private long packingThreshold;
+    private long packSize;
+    private long treeDigestThreshold;
+    private DigestCache digestCache;
+    
+    /**
+     * The pack small files are currently being added to, and the tasks
+     * for those files.  Guarded by packLock.
+     */
+    private PackBuilder openPack;
+    private ArrayList openPackTasks;
+    private Object packLock = new Object();
+    
+    private BoundedQueue digestQueue;
+    private BoundedQueue storeQueue;
+    private BoundedQueue commitQueue;
+    
+    private ArrayList digestThreads = new ArrayList();
+    private ArrayList storeThreads = new ArrayList();
+    private Thread committerThread;
+    
+    /**
+     * Maps FileDigest to the BackupTask that is currently uploading that
+     * content.  Entries are removed once the committer has recorded the
+     * revision (at which point BackupDatabase.identifierWithDigest takes
+     * over).
+     */
+    private HashMap pendingDigests = new HashMap();
+    
+    /**
+     * Maps the FileDigest of a chunk being uploaded to its identifier, and
+     * that identifier to the BackupTask uploading it.  These are guarded by
+     * pendingDigests and cleaned up like it.
+     */
+    private HashMap pendingChunks = new HashMap();
+    private HashMap pendingChunkOwners = new HashMap();
+    
+    private VaultException failure;
+    private boolean aborted;
+    
+    public static int threadCount(VaultConfiguration config, String key, int defaultCount)
+    {
+        String value = config.parameterForKey(key);
+        
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            }
+            catch (NumberFormatException e) {
+                // Fall through to the default
+            }
+        }
+        return defaultCount;
+    }
+    
+    public BackupPipeline(Vault vault, BackupDatabase backupdb, FileStore store,
+            VaultConfiguration config, FileOperationListener listener,
+            Date date, BackupResult result, boolean skipUnchangedFiles)
+    {
+        this.vault = vault;
+        this.backupdb = backupdb;
+        this.store = store;
+        this.config = config;
+        this.listener = listener == null ? null : new SynchronizedFileOperationListener(listener);
+        this.date = date;
+        this.result = result;
+        this.skipUnchangedFiles = skipUnchangedFiles;
+        spoolDirectory = vault.spoolDirectory();
+        codecSelector = new CodecSelector(backupdb, config);
+        digestCache = vault.digestCache();
+        
+        chunkingThreshold = config.longParameterForKey(ChunkingThresholdKey, 0);
+        if (chunkingThreshold > 0) {
+            chunker = new ContentDefinedChunker();
+        }
+        packingThreshold = config.longParameterForKey(PackingThresholdKey, 0);
+        packSize = Math.max(1, config.longParameterForKey(PackSizeKey, DefaultPackSize));
+        treeDigestThreshold = config.longParameterForKey(TreeDigestThresholdKey, 0);
+
+        digestQueue = new BoundedQueue(QueueCapacity);
+        storeQueue = new BoundedQueue(QueueCapacity);
+        commitQueue = new BoundedQueue(QueueCapacity * 4);
+        
+        int numberOfDigestThreads = threadCount(config, DigestThreadsKey, Runtime.getRuntime().availableProcessors());
+        int numberOfStoreThreads = threadCount(config, StoreThreadsKey, 2);
+        
+        for (int i = 0; i < numberOfDigestThreads; i++) {
+            digestThreads.add(startThread(new DigestWorker(), "BackupDigest-" + i));
+        }
+        for (int i = 0; i < numberOfStoreThreads; i++) {
+            storeThreads.add(startThread(new StoreWorker(), "BackupStore-" + i));
+        }
+        committerThread = startThread(new Committer(), "BackupCommitter");
+    }
+    
+    private static Thread startThread(Runnable runnable, String name)
+    {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+    
+    private static void join(Thread thread)
+    {
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+            }
+        }
+    }
+    
+    private static void joinAll(ArrayList threads)
+    {
+        for (int i = 0, count = threads.size(); i < count; i++) {
+            join((Thread)threads.get(i));
+        }
+    }
+    
+    /**
+     * Records the first failure and tells all stages to stop doing new work.
+     */
+    synchronized void fail(VaultException e)
+    {
+        if (failure == null || (failure instanceof OperationCanceledVaultException &&
+                                !(e instanceof OperationCanceledVaultException)))
+        {
+            failure = e;
+        }
+        aborted = true;
+    }
+    
+    synchronized boolean isAborted()
+    {
+        return aborted;
+    }
+    
+    /**
+     * Waits for all queued work to complete and shuts down the worker
+     * threads.  If any stage failed, the first failure is thrown.  This must
+     * be called once the walk is done, whether or not it completed normally.
+     */
+    public void finish() throws VaultException
+    {
+        digestQueue.close();
+        joinAll(digestThreads);
+        
+        if (isAborted()) {
+            abandonOpenPack();
+        }
+        else {
+            flushOpenPack();
+        }
+        
+        storeQueue.close();
+        joinAll(storeThreads);
+        
+        commitQueue.close();
+        join(committerThread);
+        
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+    
+    /**
+     * Called if the walk itself is aborted by an exception.  Outstanding work
+     * is abandoned, and the threads are shut down.
+     */
+    public void abort()
+    {
+        fail(new OperationCanceledVaultException());
+        try {
+            finish();
+        }
+        catch (VaultException e) {
+            // The caller already has an exception in hand.
+        }
+    }
+
+    public boolean shouldRecurseIntoDirectory(File directory)
+    {
+        return !isAborted();
+    }
+
+    public boolean processFile(File file)
+    {
+        if (isAborted()) {
+            return false;
+        }
+        
+        if (listener != null && !listener.willProcessFile(file)) {
+            fail(new OperationCanceledVaultException(file));
+            return false;
+        }
+
+        // We skip the configuration files.  The database file is handled
+        // separately by Vault.backup.
+        if (!vault.isConfigurationFile(file)) {
+            try {
+                file = file.getCanonicalFile();
+            }
+            catch (IOException e) {
+                fail(new VaultException(file, e));
+                return false;
+            }
+
+            BackupTask task = new BackupTask(file);
+            commitQueue.put(task);
+            digestQueue.put(task);
+        }
+        return true;
+    }
+
+    public void didProcessDirectoryContents(File directory, String children[])
+    {
+        if (!isAborted()) {
+            commitQueue.put(new BackupTask(directory, children));
+        }
+    }
+
+    /**
+     * Returns true if skipUnchangedFiles is set and the digest matches that
+     * of the last revision of the file.  BackupSpecification.find has already
+     * filtered out files whose modification date indicates they have not
+     * changed, but leaves the digest comparison to us so the file only
+     * needs to be read once.
+     */
+    private boolean isUnchanged(File file, FileDigest digest)
+    {
+        if (!skipUnchangedFiles) {
+            return false;
+        }
+        
+        Revision latest = backupdb.findLastRevision(file);
+        if (latest == null || latest.isDirectory()) {
+            return false;
+        }
+        
+        return digest.equals(((FileRevision)latest).identifier().digest());
+    }
+
+    /**
+     * Returns the cached digest of the file if it is of the same type as
+     * the digest of the last revision, so the two can be compared without
+     * reading the file.  Returns null if there is no such digest.
+     */
+    private FileDigest cachedDigest(File file, DigestCache.Signature signature)
+    {
+        if (digestCache == null) {
+            return null;
+        }
+        
+        Revision latest = backupdb.findLastRevision(file);
+        if (latest == null || latest.isDirectory()) {
+            return null;
+        }
+        
+        FileDigest latestDigest = ((FileRevision)latest).identifier().digest();
+        if (latestDigest == null) {
+            return null;
+        }
+        return digestCache.digest(file, signature, latestDigest.type());
+    }
+
+    /**
+     * Returns true if treeDigest (computed when the file had the specified
+     * length and modification date) also describes the content that was
+     * spooled, which may not be the case if the file was modified between
+     * the two reads.
+     */
+    private static boolean isSameContent(File file, FileDigest treeDigest, long length, long lastModified, long spooledSize)
+    {
+        return treeDigest != null && spooledSize == length &&
+               file.length() == length && file.lastModified() == lastModified;
+    }
+
+    /**
+     * Decides whether the spooled content needs to be sent to the store,
+     * either finishing the task immediately (the content is already backed
+     * up), attaching it to an in-progress upload of the same content, or
+     * queuing it for the store threads.  In the first two cases the
+     * SpooledFile is deleted.
+     */
+    private void dispatch(BackupTask task, SpooledFile spooledFile)
+    {
+        FileDigest digest = spooledFile.digest();
+        
+        synchronized (pendingDigests) {
+            RevisionIdentifier existing = backupdb.identifierWithDigest(digest);
+            BackupTask pending = (BackupTask)pendingDigests.get(digest);
+            
+            if (existing == null && pending == null) {
+                task.setIdentifier(new RevisionIdentifier(digest, spooledFile.size()));
+                task.setSpooledFile(spooledFile);
+                pendingDigests.put(digest, task);
+                spooledFile = null;
+            }
+            else if (existing != null) {
+                task.finish(existing);
+            }
+            else {
+                task.shareContentWith(pending);
+            }
+        }
+        
+        if (spooledFile == null) {
+            storeQueue.put(task);
+        }
+        else {
+            spooledFile.delete();
+        }
+    }
+    
+    /**
+     * The chunked counterpart of dispatch.  If the file as a whole is not
+     * already stored, each new chunk is checked again against the database
+     * and chunks being uploaded by other tasks, and the remaining chunks are
+     * queued to be uploaded.
+     */
+    private void dispatch(BackupTask task, SpooledChunks spooledChunks)
+    {
+        FileDigest digest = spooledChunks.digest();
+        boolean needsStore = false;
+        
+        synchronized (pendingDigests) {
+            RevisionIdentifier existing = backupdb.identifierWithDigest(digest);
+            BackupTask pending = (BackupTask)pendingDigests.get(digest);
+            
+            if (existing != null) {
+                task.finish(existing);
+            }
+            else if (pending != null) {
+                task.shareContentWith(pending);
+            }
+            else {
+                List newChunks = new ArrayList(spooledChunks.spooledChunks());
+                
+                for (int i = 0, count = newChunks.size(); i < count; i++) {
+                    RevisionIdentifier chunk = (RevisionIdentifier)newChunks.get(i);
+                    FileDigest chunkDigest = chunk.digest();
+                    RevisionIdentifier existingChunk = backupdb.chunkWithDigest(chunkDigest);
+                    
+                    if (existingChunk == null) {
+                        existingChunk = (RevisionIdentifier)pendingChunks.get(chunkDigest);
+                        if (existingChunk != null) {
+                            task.addDependency((BackupTask)pendingChunkOwners.get(existingChunk));
+                        }
+                    }
+                    
+                    if (existingChunk != null) {
+                        spooledChunks.replaceChunk(chunk, existingChunk);
+                    }
+                    else {
+                        pendingChunks.put(chunkDigest, chunk);
+                        pendingChunkOwners.put(chunk, task);
+                    }
+                }
+                
+                RevisionIdentifier identifier = new RevisionIdentifier(digest,
+                        spooledChunks.size(), spooledChunks.chunks());
+                task.setIdentifier(identifier);
+                pendingDigests.put(digest, task);
+                
+                if (spooledChunks.spooledChunks().isEmpty()) {
+                    task.finish(identifier);
+                }
+                else {
+                    task.setSpooledChunks(spooledChunks);
+                    needsStore = true;
+                }
+            }
+        }
+        
+        if (needsStore) {
+            storeQueue.put(task);
+        }
+        else {
+            spooledChunks.delete();
+        }
+    }
+    
+    /**
+     * The packed counterpart of dispatch.  If the content is not already
+     * stored it is added to the open pack, which is queued for the store
+     * threads if it is full.
+     */
+    private void dispatch(BackupTask task, FileDigest digest, byte content[])
+    {
+        synchronized (pendingDigests) {
+            RevisionIdentifier existing = backupdb.identifierWithDigest(digest);
+            BackupTask pending = (BackupTask)pendingDigests.get(digest);
+            
+            if (existing != null) {
+                task.finish(existing);
+                return;
+            }
+            if (pending != null) {
+                task.shareContentWith(pending);
+                return;
+            }
+            pendingDigests.put(digest, task);
+        }
+        
+        synchronized (packLock) {
+            if (openPack == null) {
+                openPack = new PackBuilder();
+                openPackTasks = new ArrayList();
+            }
+            task.setIdentifier(openPack.add(digest, content, 0, content.length));
+            openPackTasks.add(task);
+            
+            if (openPack.size() >= packSize) {
+                flushOpenPack();
+            }
+        }
+    }
+    
+    /**
+     * Queues the open pack (if there is one) for the store threads.
+     */
+    private void flushOpenPack()
+    {
+        synchronized (packLock) {
+            if (openPack != null) {
+                // The put happens while holding packLock so that finish() can
+                // be sure no pack is queued after it closes the storeQueue.
+                storeQueue.put(new BackupTask(openPack, openPackTasks));
+                openPack = null;
+                openPackTasks = null;
+            }
+        }
+    }
+    
+    private void abandonOpenPack()
+    {
+        synchronized (packLock) {
+            if (openPackTasks != null) {
+                for (int i = 0, count = openPackTasks.size(); i < count; i++) {
+                    ((BackupTask)openPackTasks.get(i)).abandon();
+                }
+                openPack = null;
+                openPackTasks = null;
+            }
+        }
+    }
+    
+    private static byte[] readFile(File file, FileOperationListener listener) throws IOException
+    {
+        ChannelInputStream fileInput = new ChannelInputStream(file);
+        FileProgressInputStream progressInput = new FileProgressInputStream(fileInput, file, listener);
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int)file.length());
+        byte buffer[] = new byte[ChannelInputStream.bufferSizeFor(file.length())];
+        int numRead;
+        
+        try {
+            while ((numRead = progressInput.read(buffer)) >= 0) {
+                output.write(buffer, 0, numRead);
+            }
+        }
+        finally {
+            progressInput.close();
+        }
+        return output.toByteArray();
+    }
+    
+    class DigestWorker implements Runnable
+    {
+        public void run()
+        {
+            BackupTask task;
+            EncryptionKey key = config.currentEncryptionKey();
+            
+            while ((task = (BackupTask)digestQueue.take()) != null) {
+                if (isAborted()) {
+                    task.abandon();
+                    continue;
+                }
+                
+                File file = task.file();
+                try {
+                    DigestCache.Signature signature = DigestCache.Signature.read(file);
+                    FileDigest digest = cachedDigest(file, signature);
+                    FileDigest treeDigest = null;
+                    long length = file.length();
+                    long lastModified = file.lastModified();
+                    
+                    if (digest == null && treeDigestThreshold > 0 && length >= treeDigestThreshold) {
+                        digest = new FileDigest(file, FileDigest.TreeType);
+                    }
+                    if (digest != null && digest.type() == FileDigest.TreeType) {
+                        treeDigest = digest;
+                    }
+                    
+                    if (digest != null && isUnchanged(file, digest)) {
+                        task.finish(null);
+                    }
+                    else if (chunker != null && length >= chunkingThreshold) {
+                        SpooledChunks spooledChunks = SpooledChunks.spool(file, chunker, backupdb, spoolDirectory, key, codecSelector, listener);
+                        
+                        digest = spooledChunks.digest();
+                        if (isUnchanged(file, digest)) {
+                            spooledChunks.delete();
+                            task.finish(null);
+                        }
+                        else {
+                            if (isSameContent(file, treeDigest, length, lastModified, spooledChunks.size())) {
+                                spooledChunks.setDigest(treeDigest);
+                                digest = treeDigest;
+                            }
+                            dispatch(task, spooledChunks);
+                        }
+                    }
+                    else if (length < packingThreshold) {
+                        byte content[] = readFile(file, listener);
+                        MessageDigest messageDigest = FileDigest.createMessageDigest();
+                        messageDigest.update(content);
+                        digest = new FileDigest(messageDigest.digest());
+                        
+                        if (isUnchanged(file, digest)) {
+                            task.finish(null);
+                        }
+                        else {
+                            dispatch(task, digest, content);
+                        }
+                    }
+                    else {
+                        SpooledFile spooledFile = FileStoreUtil.spool(file, spoolDirectory, key, codecSelector, listener);
+    
+                        digest = spooledFile.digest();
+                        if (isUnchanged(file, digest)) {
+                            spooledFile.delete();
+                            task.finish(null);
+                        }
+                        else {
+                            if (isSameContent(file, treeDigest, length, lastModified, spooledFile.size())) {
+                                spooledFile.setContent(treeDigest, spooledFile.size());
+                                digest = treeDigest;
+                            }
+                            dispatch(task, spooledFile);
+                        }
+                    }
+                    
+                    if (digestCache != null) {
+                        digestCache.put(file, signature, digest);
+                    }
+                }
+                catch (OperationCanceledIOException e) {
+                    VaultException vaultException = new OperationCanceledVaultException(file);
+                    task.fail(vaultException);
+                    fail(vaultException);
+                }
+                catch (IOException e) {
+                    VaultException vaultException = new VaultException(file, e);
+                    task.fail(vaultException);
+                    fail(vaultException);
+                }
+                catch (RuntimeException e) {
+                    VaultException vaultException = new VaultException(file, e);
+                    task.fail(vaultException);
+                    fail(vaultException);
+                }
+            }
+        }
+    }
+    
+    class StoreWorker implements Runnable
+    {
+        public void run()
+        {
+            BackupTask task;
+            
+            while ((task = (BackupTask)storeQueue.take()) != null) {
+                if (task.isPack()) {
+                    storePack(task);
+                    continue;
+                }
+                
+                if (isAborted()) {
+                    task.deleteSpooledFile();
+                    task.abandon();
+                    continue;
+                }
+                
+                File file = task.file();
+                try {
+                    SpooledChunks spooledChunks = task.spooledChunks();
+                    
+                    if (spooledChunks != null) {
+                        List chunks = spooledChunks.spooledChunks();
+                        
+                        for (int i = 0, count = chunks.size(); i < count; i++) {
+                            RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                            
+                            if (isAborted()) {
+                                throw new OperationCanceledVaultException(file);
+                            }
+                            store.backupSpooledFile(spooledChunks.spooledFileForChunk(chunk), null, chunk, listener);
+                        }
+                    }
+                    else {
+                        store.backupSpooledFile(task.spooledFile(), null, task.identifier(), listener);
+                    }
+                    task.deleteSpooledFile();
+                    task.finish(task.identifier());
+                }
+                catch (VaultException e) {
+                    task.deleteSpooledFile();
+                    task.fail(e);
+                    fail(e);
+                }
+                catch (RuntimeException e) {
+                    task.deleteSpooledFile();
+                    VaultException vaultException = new VaultException(file, e);
+                    task.fail(vaultException);
+                    fail(vaultException);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Spools and uploads a pack, finishing (or failing) all of its members.
+     */
+    private void storePack(BackupTask packTask)
+    {
+        List members = packTask.packMembers();
+        
+        if (isAborted()) {
+            for (int i = 0, count = members.size(); i < count; i++) {
+                ((BackupTask)members.get(i)).abandon();
+            }
+            return;
+        }
+        
+        File file = ((BackupTask)members.get(0)).file();
+        PackBuilder pack = packTask.packBuilder();
+        VaultException vaultException = null;
+        
+        try {
+            SpooledFile spooledFile = pack.spool(file, spoolDirectory, config.currentEncryptionKey(), codecSelector);
+            try {
+                store.backupSpooledFile(spooledFile, null, pack.pack(), listener);
+            }
+            finally {
+                spooledFile.delete();
+            }
+        }
+        catch (VaultException e) {
+            vaultException = e;
+        }
+        catch (IOException e) {
+            vaultException = new VaultException(file, e);
+        }
+        catch (RuntimeException e) {
+            vaultException = new VaultException(file, e);
+        }
+        
+        for (int i = 0, count = members.size(); i < count; i++) {
+            BackupTask member = (BackupTask)members.get(i);
+            if (vaultException == null) {
+                member.finish(member.identifier());
+            }
+            else {
+                member.fail(vaultException);
+            }
+        }
+        if (vaultException != null) {
+            fail(vaultException);
+        }
+    }
+    
+    class Committer implements Runnable
+    {
+        public void run()
+        {
+            BackupTask task;
+            
+            while ((task = (BackupTask)commitQueue.take()) != null) {
+                
+                // If the file is in a pack that is not full, we could wait
+                // forever, so make sure it gets stored.
+                while (!task.waitUntilDone(System.currentTimeMillis() + PackFlushMillis)) {
+                    flushOpenPack();
+                }
+
+                try {
+                    if (task.isDirectory()) {
+                        // A directory whose contents were not completely
+                        // processed must not have children removed from it.
+                        if (!isAborted()) {
+                            backupdb.updateDirectoryMembership(task.file(), date, task.children());
+                        }
+                    }
+                    else if (task.succeeded()) {
+                        FileRevision revision = backupdb.recordRevision(task.file(), date, task.identifier());
+                        
+                        synchronized (pendingDigests) {
+                            RevisionIdentifier identifier = task.identifier();
+                            FileDigest digest = identifier.digest();
+                            if (pendingDigests.get(digest) == task) {
+                                pendingDigests.remove(digest);
+                            }
+                            
+                            if (identifier.isChunked()) {
+                                List chunks = identifier.chunks();
+                                for (int i = 0, count = chunks.size(); i < count; i++) {
+                                    RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                                    if (pendingChunkOwners.get(chunk) == task) {
+                                        pendingChunkOwners.remove(chunk);
+                                        pendingChunks.remove(chunk.digest());
+                                    }
+                                }
+                            }
+                        }
+                        
+                        if (result != null) {
+                            result.add(revision);
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    fail(new VaultException(task.file(), e));
+                }
+                catch (RuntimeException e) {
+                    fail(new VaultException(task.file(), e));
+                }
+            }
+        }
+    }
+}
+
+/**
+ * A unit of work flowing through the BackupPipeline.  It is either a file
+ * to be backed up, or a directory whose membership needs to be updated.
+ */
+class BackupTask
+{
+    private File file;
+    private String children[];
+    private RevisionIdentifier identifier;
+    private SpooledFile spooledFile;
+    private SpooledChunks spooledChunks;
+    private BackupTask sharedContentTask;
+    private ArrayList dependencies;
+    private PackBuilder packBuilder;
+    private ArrayList packMembers;
+    private VaultException failure;
+    private boolean done;
+    
+    public BackupTask(File file)
+    {
+        this.file = file;
+    }
+    
+    public BackupTask(File directory, String children[])
+    {
+        this.file = directory;
+        this.children = children;
+        done = true;
+    }
+    
+    /**
+     * A task to store a pack on behalf of the member tasks.  These are only
+     * used by the store threads, and are never committed.
+     */
+    public BackupTask(PackBuilder packBuilder, ArrayList packMembers)
+    {
+        this.packBuilder = packBuilder;
+        this.packMembers = packMembers;
+    }
+    
+    public boolean isPack()
+    {
+        return packBuilder != null;
+    }
+    
+    public PackBuilder packBuilder()
+    {
+        return packBuilder;
+    }
+    
+    public List packMembers()
+    {
+        return packMembers;
+    }
+    
+    public File file()
+    {
+        return file;
+    }
+    
+    public boolean isDirectory()
+    {
+        return children != null;
+    }
+    
+    public String[] children()
+    {
+        return children;
+    }
+    
+    public synchronized void setIdentifier(RevisionIdentifier identifier)
+    {
+        this.identifier = identifier;
+    }
+    
+    public synchronized RevisionIdentifier identifier()
+    {
+        return identifier;
+    }
+
+    public synchronized void setSpooledFile(SpooledFile spooledFile)
+    {
+        this.spooledFile = spooledFile;
+    }
+    
+    public synchronized SpooledFile spooledFile()
+    {
+        return spooledFile;
+    }
+    
+    public synchronized void setSpooledChunks(SpooledChunks spooledChunks)
+    {
+        this.spooledChunks = spooledChunks;
+    }
+    
+    public synchronized SpooledChunks spooledChunks()
+    {
+        return spooledChunks;
+    }
+    
+    public synchronized void deleteSpooledFile()
+    {
+        if (spooledFile != null) {
+            spooledFile.delete();
+            spooledFile = null;
+        }
+        if (spooledChunks != null) {
+            spooledChunks.delete();
+            spooledChunks = null;
+        }
+    }
+    
+    public synchronized VaultException failure()
+    {
+        return failure;
+    }
+
+    public synchronized boolean succeeded()
+    {
+        return done && failure == null && identifier != null;
+    }
+    
+    /**
+     * Completes the task.  A null identifier indicates the file is unchanged
+     * since its last revision, and so nothing will be recorded for it.
+     */
+    public synchronized void finish(RevisionIdentifier identifier)
+    {
+        this.identifier = identifier;
+        done = true;
+        notifyAll();
+    }
+    
+    public synchronized void fail(VaultException e)
+    {
+        failure = e;
+        done = true;
+        notifyAll();
+    }
+    
+    /**
+     * Marks the task as done without having been performed (because the
+     * pipeline was aborted).
+     */
+    public synchronized void abandon()
+    {
+        fail(new OperationCanceledVaultException(file));
+    }
+
+    /**
+     * This task's file has the same content as the file of another task that
+     * is being stored.  This task will complete when the other does, and
+     * will share its identifier.
+     */
+    public synchronized void shareContentWith(BackupTask other)
+    {
+        sharedContentTask = other;
+        notifyAll();
+    }
+
+    /**
+     * This task uses a chunk that the other task is storing, so this task
+     * is not done until the other is, and fails if the other fails.
+     */
+    public synchronized void addDependency(BackupTask other)
+    {
+        if (other != this) {
+            if (dependencies == null) {
+                dependencies = new ArrayList();
+            }
+            dependencies.add(other);
+        }
+    }
+
+    public void waitUntilDone()
+    {
+        waitUntilDone(0);
+    }
+    
+    /**
+     * Waits for the task to be done, or until the specified deadline (in
+     * milliseconds, as returned by System.currentTimeMillis, or 0 to wait
+     * indefinitely).  Returns true if the task is done.
+     */
+    public boolean waitUntilDone(long deadline)
+    {
+        BackupTask other;
+        
+        synchronized (this) {
+            while (!done && sharedContentTask == null) {
+                long timeout = 0;
+                if (deadline > 0) {
+                    timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        return false;
+                    }
+                }
+                try {
+                    wait(timeout);
+                }
+                catch (InterruptedException e) {
+                }
+            }
+            other = done ? null : sharedContentTask;
+        }
+        
+        if (other != null) {
+            if (!other.waitUntilDone(deadline)) {
+                return false;
+            }
+            
+            VaultException otherFailure = other.failure();
+            if (otherFailure == null) {
+                finish(other.identifier());
+            }
+            else {
+                fail(otherFailure);
+            }
+        }
+        
+        ArrayList waitFor;
+        synchronized (this) {
+            waitFor = dependencies;
+        }
+        
+        if (waitFor != null) {
+            for (int i = 0, count = waitFor.size(); i < count; i++) {
+                BackupTask dependency = (BackupTask)waitFor.get(i);
+                if (!dependency.waitUntilDone(deadline)) {
+                    return false;
+                }
+                
+                VaultException dependencyFailure = dependency.failure();
+                if (dependencyFailure != null && failure() == null) {
+                    fail(dependencyFailure);
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -39,6 +39,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 // Note we avoid using getParent or getParentFile because that creates new
 // objects every time.  Maybe not a big deal for add/remove, but for contains,
@@ -237,11 +238,23 @@ public class BackupSpecification implements XMLSerializable
     }
     
     public void find(BackupDatabase backupdb, FileFindDelegate delegate, FileOperationListener listener) throws OperationCanceledVaultException
+    {
+        find(backupdb, delegate, listener, true);
+    }
+    
+    /**
+     * If compareDigests is false, then for incremental specifications a file
+     * whose modification date and size have not changed is passed to the
+     * delegate without first reading it to compare its digest against the
+     * last backup (see BackupDatabase.needsBackup).  The delegate must then
+     * detect unchanged content itself.
+     */
+    public void find(BackupDatabase backupdb, FileFindDelegate delegate, FileOperationListener listener, boolean compareDigests) throws OperationCanceledVaultException
     {
         FileFind find = new FileFind();
         
         find.setIgnoreHiddenFiles(true);
-        find.setDelegate(new BackupSpecificationFileFindDelegate(this, backupdb, delegate, listener));
+        find.setDelegate(new BackupSpecificationFileFindDelegate(this, backupdb, delegate, listener, compareDigests));
         
         for (int i = 0, count = includedFiles.size(); i < count; i++) {
             File file = (File)includedFiles.get(i);
@@ -252,6 +265,34 @@ public class BackupSpecification implements XMLSerializable
         }
     }
 
+    /**
+     * Like find, but only visits the specified files (see ChangeJournal).  A
+     * directory's files are visited, but not its subdirectories, which are
+     * expected to be specified themselves if they have changed.
+     */
+    public void findChanged(BackupDatabase backupdb, FileFindDelegate delegate, FileOperationListener listener, boolean compareDigests, List changedFiles) throws OperationCanceledVaultException
+    {
+        FileFindDelegate specDelegate = new BackupSpecificationFileFindDelegate(this, backupdb, delegate, listener, compareDigests);
+        FileFind find = new FileFind();
+        
+        find.setIgnoreHiddenFiles(true);
+        
+        for (int i = 0, count = changedFiles.size(); i < count; i++) {
+            File file = (File)changedFiles.get(i);
+            
+            // Changed directories that have since been removed are handled
+            // by the change to their parent.
+            if (!file.exists() || !containsFile(file)) {
+                continue;
+            }
+            
+            find.setDelegate(new ChangedDirectoryFileFindDelegate(file, specDelegate));
+            if (find.find(file)) {
+                throw new OperationCanceledVaultException();
+            }
+        }
+    }
+
     /**
      * Returns all files in the excludedFiles list which are explicitly used
      * to exclude files from the specified file, which is assumed to be a
@@ -431,15 +472,17 @@ class BackupSpecificationFileFindDelegate implements FileFindDelegate
     private BackupDatabase backupdb;
     private FileFindDelegate delegate;
     private FileOperationListener listener;
+    private boolean compareDigests;
     
     public BackupSpecificationFileFindDelegate(BackupSpecification spec,
             BackupDatabase backupdb, FileFindDelegate delegate,
-            FileOperationListener listener)
+            FileOperationListener listener, boolean compareDigests)
     {
         this.backupdb = backupdb;
         this.spec = spec;
         this.delegate = delegate;
         this.listener = listener;
+        this.compareDigests = compareDigests;
     }
     
     public boolean processFile(File file)
@@ -450,7 +493,7 @@ class BackupSpecificationFileFindDelegate implements FileFindDelegate
                 return false;
             }
             
-            if (!spec.isIncremental() || backupdb.needsBackup(file)) {
+            if (!spec.isIncremental() || backupdb.needsBackup(file, compareDigests)) {
                 return delegate.processFile(file);                
             }
         }
@@ -466,4 +509,31 @@ class BackupSpecificationFileFindDelegate implements FileFindDelegate
 	{
 	    delegate.didProcessDirectoryContents(directory, children);
 	}	
-}
\ No newline at end of file
+}
+
+class ChangedDirectoryFileFindDelegate implements FileFindDelegate
+{
+    private File directory;
+    private FileFindDelegate delegate;
+    
+    public ChangedDirectoryFileFindDelegate(File directory, FileFindDelegate delegate)
+    {
+        this.directory = directory;
+        this.delegate = delegate;
+    }
+    
+    public boolean processFile(File file)
+    {
+        return delegate.processFile(file);
+    }
+
+    public boolean shouldRecurseIntoDirectory(File directory)
+    {
+        return directory == this.directory && delegate.shouldRecurseIntoDirectory(directory);
+    }
+
+    public void didProcessDirectoryContents(File directory, String children[])
+    {
+        delegate.didProcessDirectoryContents(directory, children);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.filebunker.vault;
+
+import java.io.File;
+
+/**
+ * CancelOnlyFileOperationListener is a "wrapper" listener that passes on
+ * fileProgress calls to the underlying listener with a byte count of zero,
+ * so that the underlying listener still has a chance to cancel the operation
+ * but does not count the same bytes twice.  This is used when uploading a
+ * SpooledFile, whose progress was already reported as it was spooled.
+ * 
+ * @author garrick
+ */
+public class CancelOnlyFileOperationListener implements FileOperationListener
+{
+    private FileOperationListener listener;
+    
+    public CancelOnlyFileOperationListener(FileOperationListener listener)
+    {
+        this.listener = listener;
+    }
+    
+    public FileOperationListener listener()
+    {
+        return listener;
+    }
+
+    public boolean fileProgress(File file, long bytesProcessed)
+    {
+        return listener.fileProgress(file, 0);
+    }
+
+    public boolean willProcessFile(File file)
+    {
+        return listener.willProcessFile(file);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ChangeJournal is the persistent set of paths that have changed since the
+ * last backup, as reported by a ChangeWatcher.  Each path is recorded once
+ * no matter how often it changes.  A path is usually a directory whose
+ * contents changed, but may be a file that is itself a backup root.
+ * 
+ * The journal also records whether a full scan is needed, either because
+ * changes may have been missed, or because it has been too long since the
+ * last one.
+ * 
+ * New paths are appended to the journal file as they are recorded, and the
+ * file is rewritten when changes are taken for a backup.  If the file
+ * cannot be written or read, the journal falls back to requiring a full
+ * scan.
+ * 
+ * This class is thread safe.
+ * 
+ * @author garrick
+ */
+class ChangeJournal
+{
+    private static final int Version = 1;
+    
+    private static final byte ChangedRecord = 1;
+    private static final byte FullScanNeededRecord = 2;
+    private static final byte FullScanCompletedRecord = 3;
+    
+    private File file;
+    private HashSet changes = new HashSet();
+    private boolean fullScanNeeded = true;
+    private long lastFullScan;
+    
+    public ChangeJournal(File file)
+    {
+        this.file = file;
+        load();
+    }
+    
+    public synchronized void fileChanged(File changedFile)
+    {
+        String path = changedFile.getPath();
+        
+        if (changes.add(path)) {
+            DataOutputStream output = null;
+            try {
+                output = new DataOutputStream(new FileOutputStream(file, true));
+                output.writeByte(ChangedRecord);
+                output.writeUTF(path);
+            }
+            catch (IOException e) {
+                fullScanNeeded = true;
+            }
+            finally {
+                FileUtil.closeQuietly(output);
+            }
+        }
+    }
+    
+    public synchronized boolean hasChanges()
+    {
+        return !changes.isEmpty();
+    }
+    
+    /**
+     * Returns true if a full scan has been requested, or if the last one
+     * was more than intervalMillis ago.
+     */
+    public synchronized boolean isFullScanNeeded(long intervalMillis)
+    {
+        return fullScanNeeded || System.currentTimeMillis() - lastFullScan >= intervalMillis;
+    }
+    
+    public synchronized void setFullScanNeeded()
+    {
+        if (!fullScanNeeded) {
+            fullScanNeeded = true;
+            save();
+        }
+    }
+    
+    /**
+     * Removes and returns the changed paths (as Files).  If the backup that
+     * processes them fails, they should be put back with restoreChanges.
+     */
+    public synchronized List takeChanges()
+    {
+        ArrayList taken = new ArrayList(changes.size());
+        
+        Iterator i = changes.iterator();
+        while (i.hasNext()) {
+            taken.add(new File((String)i.next()));
+        }
+        changes.clear();
+        save();
+        return taken;
+    }
+    
+    public synchronized void restoreChanges(List files)
+    {
+        for (int i = 0, count = files.size(); i < count; i++) {
+            changes.add(((File)files.get(i)).getPath());
+        }
+        save();
+    }
+
+    /**
+     * Called before a full scan starts.  If it fails, setFullScanNeeded
+     * should be called.
+     */
+    public synchronized void beginFullScan()
+    {
+        fullScanNeeded = false;
+        save();
+    }
+    
+    /**
+     * Records the time a successful full scan started.
+     */
+    public synchronized void fullScanCompleted(Date date)
+    {
+        lastFullScan = date.getTime();
+        save();
+    }
+    
+    private void save()
+    {
+        DataOutputStream output = null;
+        File tempFile = new File(file.getPath() + ".tmp");
+        
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(Version);
+            output.writeByte(FullScanCompletedRecord);
+            output.writeLong(lastFullScan);
+            if (fullScanNeeded) {
+                output.writeByte(FullScanNeededRecord);
+            }
+            
+            Iterator i = changes.iterator();
+            while (i.hasNext()) {
+                output.writeByte(ChangedRecord);
+                output.writeUTF((String)i.next());
+            }
+            output.close();
+            output = null;
+            
+            FileUtil.replace(tempFile, file);
+        }
+        catch (IOException e) {
+            fullScanNeeded = true;
+        }
+        finally {
+            FileUtil.closeQuietly(output);
+        }
+    }
+    
+    private void load()
+    {
+        if (!file.exists()) {
+            save();
+            return;
+        }
+        
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            
+            if (input.readInt() != Version) {
+                throw new IOException("Unknown change journal version");
+            }
+            fullScanNeeded = false;
+            
+            while (true) {
+                int record = input.read();
+                
+                if (record == -1) {
+                    break;
+                }
+                else if (record == ChangedRecord) {
+                    changes.add(input.readUTF());
+                }
+                else if (record == FullScanNeededRecord) {
+                    fullScanNeeded = true;
+                }
+                else if (record == FullScanCompletedRecord) {
+                    lastFullScan = input.readLong();
+                }
+                else {
+                    throw new IOException("Unknown change journal record " + record);
+                }
+            }
+        }
+        catch (EOFException e) {
+            // A record was only partially written, so it may have been lost.
+            fullScanNeeded = true;
+        }
+        catch (IOException e) {
+            changes.clear();
+            fullScanNeeded = true;
+        }
+        finally {
+            FileUtil.closeQuietly(input);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.DirectoryWatcher;
+import com.toubassi.util.DirectoryWatcherDelegate;
+import com.toubassi.util.FileFind;
+import com.toubassi.util.FileFindDelegate;
+import com.toubassi.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * ChangeWatcher watches the directories of a BackupSpecification and
+ * records the ones whose contents change in a ChangeJournal, so that an
+ * incremental backup of the specification need only look at those.
+ * 
+ * Since changes made while nobody was watching are unknown, starting a
+ * ChangeWatcher requests a full scan.  The same is true if any directory
+ * could not be watched (e.g. the system limit on watches was reached), in
+ * which case the watcher is not complete, and every backup is a full scan.
+ * 
+ * @author garrick
+ */
+class ChangeWatcher implements DirectoryWatcherDelegate
+{
+    private BackupSpecification spec;
+    private ChangeJournal journal;
+    private File configDirectory;
+    private DirectoryWatcher watcher;
+    private boolean complete = true;
+    
+    public ChangeWatcher(BackupSpecification spec, ChangeJournal journal,
+            File configDirectory) throws IOException
+    {
+        this.spec = spec;
+        this.journal = journal;
+        this.configDirectory = configDirectory;
+        watcher = new DirectoryWatcher(this);
+    }
+    
+    public void start()
+    {
+        ArrayList roots = spec.includedFiles();
+        
+        for (int i = 0, count = roots.size(); i < count; i++) {
+            File root = (File)roots.get(i);
+            
+            if (root.isDirectory()) {
+                watchTree(root, false);
+            }
+            else if (root.getParentFile() != null) {
+                watch(root.getParentFile());
+            }
+        }
+        
+        journal.setFullScanNeeded();
+        watcher.start();
+    }
+    
+    public void close()
+    {
+        watcher.close();
+    }
+
+    public BackupSpecification specification()
+    {
+        return spec;
+    }
+    
+    public synchronized boolean isComplete()
+    {
+        return complete;
+    }
+    
+    private void watch(File directory)
+    {
+        try {
+            watcher.watch(directory);
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                complete = false;
+            }
+        }
+    }
+    
+    /**
+     * Watches the directory and all its descendants that are part of the
+     * specification.  If markChanged is true each of them is also recorded
+     * in the journal, as is needed for a newly created directory whose
+     * contents may have been created before it was watched.
+     */
+    private void watchTree(File directory, final boolean markChanged)
+    {
+        FileFind find = new FileFind();
+        
+        find.setIgnoreHiddenFiles(true);
+        find.setDelegate(new FileFindDelegate() {
+            public boolean shouldRecurseIntoDirectory(File child)
+            {
+                if (!spec.containsFile(child) || FileUtil.isAncestor(configDirectory, child)) {
+                    return false;
+                }
+                watch(child);
+                if (markChanged) {
+                    journal.fileChanged(child);
+                }
+                return true;
+            }
+            
+            public boolean processFile(File file)
+            {
+                return true;
+            }
+
+            public void didProcessDirectoryContents(File child, String children[])
+            {
+            }
+        });
+        find.find(directory);
+    }
+
+    public void directoryChanged(File directory, File child)
+    {
+        if (FileUtil.isAncestor(configDirectory, directory)) {
+            return;
+        }
+        
+        if (spec.containsFile(directory)) {
+            journal.fileChanged(directory);
+            
+            if (child.isDirectory() && !watcher.isWatching(child)) {
+                // A new directory.
+                watchTree(child, true);
+            }
+        }
+        else if (spec.includedFiles().contains(child)) {
+            journal.fileChanged(child);
+        }
+    }
+
+    public void eventsLost()
+    {
+        journal.setFullScanNeeded();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.filebunker.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Restores the content of a chunked RevisionIdentifier by concatenating
+ * the restored content of each of its chunks.  Chunks are fetched from the
+ * store one at a time, as they are needed.
+ * 
+ * @author garrick
+ */
+public class ChunkedRestoreInputStream extends InputStream
+{
+    private FileStore store;
+    private List chunks;
+    private Date date;
+    private int chunkIndex;
+    private InputStream current;
+    
+    public ChunkedRestoreInputStream(FileStore store, RevisionIdentifier identifier, Date date)
+    {
+        this.store = store;
+        this.chunks = identifier.chunks();
+        this.date = date;
+    }
+    
+    /**
+     * Returns false if there are no more chunks.
+     */
+    private boolean openNextChunk() throws IOException
+    {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        
+        if (chunkIndex >= chunks.size()) {
+            return false;
+        }
+        
+        RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(chunkIndex++);
+        try {
+            current = store.restoreFile(chunk, date);
+        }
+        catch (VaultException e) {
+            IOException ioException = new IOException("Could not restore chunk " + chunk);
+            ioException.initCause(e);
+            throw ioException;
+        }
+        
+        if (current == null) {
+            throw new IOException("Chunk " + chunk + " was not found in the store");
+        }
+        return true;
+    }
+    
+    public int read() throws IOException
+    {
+        byte buf[] = new byte[1];
+        int numRead = read(buf, 0, 1);
+        return numRead == -1 ? -1 : (buf[0] & 0xff);
+    }
+    
+    public int read(byte buf[], int off, int len) throws IOException
+    {
+        while (true) {
+            if (current != null) {
+                int numRead = current.read(buf, off, len);
+                if (numRead != -1) {
+                    return numRead;
+                }
+            }
+            if (!openNextChunk()) {
+                return -1;
+            }
+        }
+    }
+    
+    public void close() throws IOException
+    {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        chunkIndex = chunks.size();
+    }
+}
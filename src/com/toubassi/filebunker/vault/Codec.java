@@ -0,0 +1,234 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.io.LZInputStream;
+import com.toubassi.io.LZOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A Codec is a compression format that content can be stored in.  The
+ * codec used for a file is recorded by id in its stored header (see
+ * FileStoreUtil), so ids must never be reused.  The available codecs are:
+ * 
+ *   store      no compression, for content that is already compressed
+ *   deflate1-9 deflate (as in gzip) at the given level
+ *   lz         a fast LZ77 codec (see LZOutputStream)
+ * 
+ * @author garrick
+ */
+public abstract class Codec
+{
+    private static HashMap codecsById = new HashMap();
+    private static HashMap codecsByName = new HashMap();
+    
+    private static Codec defaultCodec;
+    
+    static {
+        register(new StoreCodec());
+        for (int level = 1; level <= 9; level++) {
+            register(new DeflateCodec(level));
+        }
+        register(new LZCodec());
+        
+        // The level GZIPOutputStream uses.
+        defaultCodec = codecNamed("deflate6");
+    }
+    
+    private static void register(Codec codec)
+    {
+        codecsById.put(Integer.valueOf(codec.id()), codec);
+        codecsByName.put(codec.name(), codec);
+    }
+    
+    /**
+     * Returns the codec with the specified id, or null if there is none.
+     */
+    public static Codec codecWithId(int id)
+    {
+        return (Codec)codecsById.get(Integer.valueOf(id));
+    }
+    
+    /**
+     * Returns the codec with the specified name, or null if there is none.
+     */
+    public static Codec codecNamed(String name)
+    {
+        return (Codec)codecsByName.get(name);
+    }
+    
+    /**
+     * The codec used when there is no reason to choose another, which
+     * compresses like the gzip format used before codecs existed.
+     */
+    public static Codec defaultCodec()
+    {
+        return defaultCodec;
+    }
+    
+    public static Codec storeCodec()
+    {
+        return codecNamed("store");
+    }
+    
+    public static Codec fastCodec()
+    {
+        return codecNamed("lz");
+    }
+    
+    public abstract int id();
+    
+    public abstract String name();
+    
+    /**
+     * Returns a stream that compresses into output.  Closing it closes
+     * output.
+     */
+    public abstract OutputStream compressingStream(OutputStream output) throws IOException;
+    
+    public abstract InputStream decompressingStream(InputStream input) throws IOException;
+    
+    public String toString()
+    {
+        return name();
+    }
+}
+
+class StoreCodec extends Codec
+{
+    public int id()
+    {
+        return 0;
+    }
+    
+    public String name()
+    {
+        return "store";
+    }
+    
+    public OutputStream compressingStream(OutputStream output)
+    {
+        // FilterOutputStream writes arrays a byte at a time, so pass them
+        // straight through.
+        return new FilterOutputStream(output) {
+            public void write(byte buf[], int off, int len) throws IOException
+            {
+                out.write(buf, off, len);
+            }
+        };
+    }
+
+    public InputStream decompressingStream(InputStream input)
+    {
+        return input;
+    }
+}
+
+class DeflateCodec extends Codec
+{
+    private int level;
+    
+    public DeflateCodec(int level)
+    {
+        this.level = level;
+    }
+    
+    public int id()
+    {
+        // Ids 1 through 9 are the deflate levels.
+        return level;
+    }
+    
+    public String name()
+    {
+        return "deflate" + level;
+    }
+    
+    public OutputStream compressingStream(OutputStream output)
+    {
+        final Deflater deflater = new Deflater(level);
+        
+        return new DeflaterOutputStream(output, deflater, 8192) {
+            public void close() throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    // We created the Deflater, so DeflaterOutputStream won't
+                    // release it.
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    public InputStream decompressingStream(InputStream input)
+    {
+        return new InflaterInputStream(input, new Inflater(), 8192) {
+            public void close() throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+}
+
+class LZCodec extends Codec
+{
+    public int id()
+    {
+        return 16;
+    }
+    
+    public String name()
+    {
+        return "lz";
+    }
+    
+    public OutputStream compressingStream(OutputStream output)
+    {
+        return new LZOutputStream(output);
+    }
+
+    public InputStream decompressingStream(InputStream input)
+    {
+        return new LZInputStream(input);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * CodecSelector picks the Codec to store a file with.  Compressing data that
+ * is already compressed (jpegs, mp3s, zips) costs a lot of time for no
+ * gain, so such content is stored as is.  This is judged by the entropy of
+ * a sample of the content (its first block), as well as by how well the
+ * file, or files of its type, compressed in the past.
+ * 
+ * The CodecKey configuration parameter can name the codec used for content
+ * that is worth compressing (by default the Codec.defaultCodec).
+ * 
+ * This class is thread safe.
+ * 
+ * @author garrick
+ */
+public class CodecSelector
+{
+    public static final String CodecKey = "CompressionCodec";
+    
+    /**
+     * The amount of content to sample before choosing a codec.
+     */
+    public static final int SampleSize = 64 * 1024;
+    
+    /**
+     * Samples with at least this entropy (in bits per byte) are considered
+     * incompressible.
+     */
+    private static final double IncompressibleEntropy = 7.9;
+
+    /**
+     * Samples with at least this entropy will compress poorly, so are
+     * compressed with the fast codec (or stored, if history suggests it).
+     */
+    private static final double PoorlyCompressibleEntropy = 7.0;
+    
+    /**
+     * Content that has historically been backed up at least this fraction of
+     * its size is considered incompressible.
+     */
+    private static final float IncompressibleRatio = 0.95f;
+    
+    private BackupDatabase backupdb;
+    private Codec codec;
+    private HashMap ratiosByType = new HashMap();
+    
+    public CodecSelector(BackupDatabase backupdb, VaultConfiguration config)
+    {
+        this.backupdb = backupdb;
+        
+        String name = config.parameterForKey(CodecKey);
+        if (name != null) {
+            codec = Codec.codecNamed(name.trim());
+        }
+        if (codec == null) {
+            codec = Codec.defaultCodec();
+        }
+    }
+    
+    /**
+     * Returns the codec for content from file, of which the first len bytes
+     * of sample are the beginning.
+     */
+    public Codec codecFor(File file, byte sample[], int off, int len)
+    {
+        if (len == 0) {
+            return codec;
+        }
+        
+        double entropy = entropy(sample, off, len);
+        
+        if (entropy >= IncompressibleEntropy) {
+            return Codec.storeCodec();
+        }
+        if (entropy >= PoorlyCompressibleEntropy) {
+            if (historicalRatio(file) >= IncompressibleRatio) {
+                return Codec.storeCodec();
+            }
+            return Codec.fastCodec();
+        }
+        return codec;
+    }
+    
+    /**
+     * Returns the ratio of backed up size to size for the last revision of
+     * file, or failing that the average for files of its type, or 0 if
+     * nothing is known.
+     */
+    private float historicalRatio(File file)
+    {
+        FileRevision revision = backupdb.findLastFileRevision(file);
+        if (revision != null) {
+            return revision.backedupSizeRatio();
+        }
+        
+        String name = file.getName();
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot == -1) {
+            return 0;
+        }
+        
+        String extension = name.substring(lastDot);
+        synchronized (ratiosByType) {
+            Float ratio = (Float)ratiosByType.get(extension);
+            
+            if (ratio == null) {
+                ratio = Float.valueOf(backupdb.averageBackedupSizeRatioForType(extension, 0));
+                ratiosByType.put(extension, ratio);
+            }
+            return ratio.floatValue();
+        }
+    }
+    
+    /**
+     * Returns the order 0 entropy of the bytes, in bits per byte.
+     */
+    static double entropy(byte buf[], int off, int len)
+    {
+        int counts[] = new int[256];
+        
+        for (int i = off, end = off + len; i < end; i++) {
+            counts[buf[i] & 0xff]++;
+        }
+        
+        double entropy = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                double p = (double)counts[i] / len;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
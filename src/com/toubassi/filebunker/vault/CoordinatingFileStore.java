@@ -264,6 +264,19 @@ public class CoordinatingFileStore implements FileStore, NotificationListener
         throw new OutOfSpaceException(file);
     }
 
+	public void backupSpooledFile(SpooledFile spooledFile, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
+    {
+        File file = spooledFile.file();
+        FileStore store = storeThatCanBackupFile(file);
+        
+        if (store != null) {
+            store.backupSpooledFile(spooledFile, name, identifier, listener);
+            return;
+        }
+
+        throw new OutOfSpaceException(file);
+    }
+
     public InputStream restoreFile(RevisionIdentifier identifier, Date date) throws VaultException
     {
         FileStore store = storeForRevision(identifier);
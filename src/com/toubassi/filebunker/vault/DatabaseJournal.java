@@ -0,0 +1,758 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * DatabaseJournal is the write ahead log of changes made to a BackupDatabase
+ * since its snapshot was last saved.  Each change is appended as a compact
+ * record, so the cost of saving the database is proportional to what has
+ * changed rather than to the size of the database.  The database is loaded
+ * by reading the snapshot and replaying the journal over it.
+ * 
+ * Records are buffered in memory and written together (a group commit)
+ * when commit is called, when enough of them have accumulated, or when the
+ * oldest has waited long enough.  Each commit is written as a single frame
+ * with its length and a CRC32 of its contents, so a frame that was only
+ * partially written when the process died is recognized and discarded,
+ * along with anything after it.  Unless sync is turned off, commit also
+ * waits for the frame to reach the disk.
+ * 
+ * The journal carries the generation of the snapshot it applies to.  When
+ * the database writes a new snapshot (which includes every change made so
+ * far), it increments the generation and resets the journal.  If the
+ * process dies in between, the journal left behind is of an older
+ * generation than the snapshot, and is discarded rather than replayed.
+ * 
+ * A range of the committed journal can be copied out as a segment, and a
+ * journal can be rebuilt from the segments of a generation (see
+ * IndexUploader).
+ * 
+ * Identifiers are recorded by value.  When replayed, an identifier whose
+ * content the database already knows about (by digest) is replaced by the
+ * existing instance, so identifiers are shared just as they were when the
+ * changes were first made.
+ * 
+ * This class is not thread safe, BackupDatabase serializes access to it.
+ * Only length and segment, which just read it, are called by more than one
+ * thread at a time (with the database's read lock).
+ * 
+ * @author garrick
+ */
+class DatabaseJournal
+{
+    private static final int Version = 1;
+    static final int HeaderLength = 12;
+    private static final int FrameHeaderLength = 8;
+    private static final int SegmentVersion = 1;
+    
+    private static final byte RecordRevisionRecord = 1;
+    private static final byte UpdateDirectoryMembershipRecord = 2;
+    private static final byte RemoveRevisionRecord = 3;
+    private static final byte MovePackMemberRecord = 4;
+    private static final byte RemoveRevisionsWithHandlerNameRecord = 5;
+    
+    private static final byte LegacyIdentifier = 0;
+    private static final byte PlainIdentifier = 1;
+    private static final byte ChunkedIdentifier = 2;
+    private static final byte PackedIdentifier = 3;
+    
+    /**
+     * Records are committed once this many bytes of them are pending...
+     */
+    private static final int GroupCommitBytes = 256 * 1024;
+    
+    /**
+     * ...or once the oldest has been pending this long.
+     */
+    private static final long GroupCommitMillis = 2000;
+    
+    private File file;
+    private long generation;
+    private boolean resetNeeded;
+    private boolean sync = true;
+    private RandomAccessFile output;
+    private FileChannel channel;
+    private long length;
+    
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream pendingOutput = new DataOutputStream(pending);
+    private long firstPendingMillis;
+    
+    /**
+     * The packs replayed so far by digest, along with those in the database
+     * if it was loaded in full rather than from a snapshot.
+     */
+    private HashMap replayPacks;
+    
+    /**
+     * The dates replayed so far.  Revisions made by the same backup share
+     * a single Date, just as they did when they were recorded.
+     */
+    private HashMap replayDates;
+    
+    public DatabaseJournal(File file)
+    {
+        this.file = file;
+    }
+    
+    public File file()
+    {
+        return file;
+    }
+    
+    /**
+     * Sets whether each commit waits for the journal to reach the disk.
+     */
+    public void setSync(boolean flag)
+    {
+        sync = flag;
+    }
+    
+    /**
+     * The number of bytes committed to the journal file.
+     */
+    public long length()
+    {
+        return length;
+    }
+    
+    /**
+     * Replays the committed records of the journal into database (whose
+     * snapshot is of the specified generation), and prepares the journal
+     * for new records.
+     */
+    public void open(BackupDatabase database, long snapshotGeneration) throws IOException
+    {
+        generation = snapshotGeneration;
+        long validLength = 0;
+        
+        if (file.exists()) {
+            long fileLength = file.length();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            
+            try {
+                if (input.readInt() != Version) {
+                    throw new IOException("Unknown database journal version in " + file);
+                }
+                long journalGeneration = input.readLong();
+                
+                if (journalGeneration > snapshotGeneration) {
+                    throw new IOException("Database journal " + file + " is newer than the database");
+                }
+                if (journalGeneration == snapshotGeneration) {
+                    validLength = HeaderLength;
+                    
+                    while (validLength + FrameHeaderLength <= fileLength) {
+                        int frameLength = input.readInt();
+                        int checksum = input.readInt();
+                        
+                        if (frameLength < 0 || frameLength > fileLength - validLength - FrameHeaderLength) {
+                            break;
+                        }
+                        byte frame[] = new byte[frameLength];
+                        input.readFully(frame);
+                        
+                        CRC32 crc = new CRC32();
+                        crc.update(frame);
+                        if ((int)crc.getValue() != checksum) {
+                            break;
+                        }
+                        
+                        replay(database, frame);
+                        validLength += FrameHeaderLength + frameLength;
+                    }
+                }
+            }
+            catch (EOFException e) {
+                // The header was only partially written.
+            }
+            finally {
+                replayPacks = null;
+                replayDates = null;
+                FileUtil.closeQuietly(input);
+            }
+        }
+        
+        if (validLength > 0) {
+            // Drop any partially written frame so new ones follow the last
+            // complete one.
+            openOutput();
+            channel.truncate(validLength);
+            length = validLength;
+        }
+        else {
+            reset(snapshotGeneration);
+        }
+    }
+
+    /**
+     * Closes the journal file.  Any pending records are discarded.
+     */
+    public void close()
+    {
+        pending.reset();
+        firstPendingMillis = 0;
+        closeOutput();
+    }
+    
+    /**
+     * Discards the journal (whose records are all in the snapshot of the
+     * specified generation) and starts a new one for that generation.
+     */
+    public void reset(long newGeneration) throws IOException
+    {
+        generation = newGeneration;
+        pending.reset();
+        firstPendingMillis = 0;
+        resetNeeded = true;
+        closeOutput();
+        
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream header = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            header.writeInt(Version);
+            header.writeLong(generation);
+        }
+        finally {
+            header.close();
+        }
+        
+        FileUtil.replace(tempFile, file);
+        openOutput();
+        length = HeaderLength;
+        resetNeeded = false;
+    }
+    
+    /**
+     * Writes any pending records to the journal file.  If this fails, they
+     * remain pending.
+     */
+    public void commit() throws IOException
+    {
+        if (resetNeeded) {
+            reset(generation);
+        }
+        if (pending.size() == 0) {
+            return;
+        }
+        
+        byte records[] = pending.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        
+        ByteBuffer frame = ByteBuffer.allocate(FrameHeaderLength + records.length);
+        frame.putInt(records.length);
+        frame.putInt((int)crc.getValue());
+        frame.put(records);
+        frame.flip();
+        
+        try {
+            channel.position(length);
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        }
+        catch (IOException e) {
+            // Don't leave a partial frame for the next commit to follow.
+            try {
+                channel.truncate(length);
+            }
+            catch (IOException truncateException) {
+            }
+            throw e;
+        }
+        length += frame.limit();
+        pending.reset();
+        firstPendingMillis = 0;
+    }
+    
+    /**
+     * Returns the part of the journal committed since start (a previous
+     * length) as a segment, which is the frames prefixed with the journal's
+     * generation and their position in the journal.  Records not yet
+     * committed aren't included, so the journal is only read.
+     */
+    public byte[] segment(long start) throws IOException
+    {
+        if (resetNeeded) {
+            throw new IOException("Database journal " + file + " wasn't reset");
+        }
+        if (start < HeaderLength || start > length) {
+            throw new IllegalArgumentException("Invalid journal segment start " + start);
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)(length - start) + 28);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(SegmentVersion);
+        output.writeLong(generation);
+        output.writeLong(start);
+        output.writeLong(length);
+        
+        ByteBuffer frames = ByteBuffer.allocate((int)(length - start));
+        while (frames.hasRemaining()) {
+            if (channel.read(frames, start + frames.position()) < 0) {
+                throw new EOFException("Database journal " + file + " is shorter than expected");
+            }
+        }
+        output.write(frames.array());
+        output.close();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Writes the journal for the snapshot of the specified generation from
+     * the segments (Files whose content was returned by segment).  Segments
+     * of other generations are ignored, and an IOException is thrown if
+     * those of this generation don't cover the whole journal.
+     */
+    public static void rebuild(File file, long generation, List segmentFiles) throws IOException
+    {
+        // Start offset to segment file, for segments of this generation.
+        TreeMap segments = new TreeMap();
+        
+        for (int i = 0, count = segmentFiles.size(); i < count; i++) {
+            File segmentFile = (File)segmentFiles.get(i);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+            try {
+                if (input.readInt() != SegmentVersion) {
+                    throw new IOException(segmentFile + " is not a database journal segment");
+                }
+                if (input.readLong() == generation) {
+                    segments.put(Long.valueOf(input.readLong()), segmentFile);
+                }
+            }
+            finally {
+                FileUtil.closeQuietly(input);
+            }
+        }
+        
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeInt(Version);
+            output.writeLong(generation);
+            long length = HeaderLength;
+            
+            Iterator i = segments.values().iterator();
+            while (i.hasNext()) {
+                File segmentFile = (File)i.next();
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+                try {
+                    input.readInt();
+                    input.readLong();
+                    long start = input.readLong();
+                    long end = input.readLong();
+                    
+                    if (start > length) {
+                        throw new IOException("Missing the database journal segment starting at " + length);
+                    }
+                    if (end <= length) {
+                        // Already covered by an earlier segment
+                        continue;
+                    }
+                    
+                    input.skipBytes((int)(length - start));
+                    byte frames[] = new byte[(int)(end - length)];
+                    input.readFully(frames);
+                    output.write(frames);
+                    length = end;
+                }
+                finally {
+                    FileUtil.closeQuietly(input);
+                }
+            }
+        }
+        finally {
+            output.close();
+        }
+    }
+    
+    public void recordRevision(String path, Date date, RevisionIdentifier identifier)
+    {
+        try {
+            pendingOutput.writeByte(RecordRevisionRecord);
+            pendingOutput.writeUTF(path);
+            pendingOutput.writeLong(date.getTime());
+            writeIdentifier(identifier);
+        }
+        catch (IOException e) {
+            // Can't happen writing to memory.
+            throw new RuntimeException(e);
+        }
+        recordAppended();
+    }
+    
+    public void updateDirectoryMembership(String path, Date date, String children[])
+    {
+        try {
+            pendingOutput.writeByte(UpdateDirectoryMembershipRecord);
+            pendingOutput.writeUTF(path);
+            pendingOutput.writeLong(date.getTime());
+            pendingOutput.writeInt(children.length);
+            for (int i = 0; i < children.length; i++) {
+                pendingOutput.writeUTF(children[i]);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        recordAppended();
+    }
+    
+    public void removeRevision(FileRevision revision)
+    {
+        try {
+            pendingOutput.writeByte(RemoveRevisionRecord);
+            pendingOutput.writeUTF(revision.node().file().getPath());
+            pendingOutput.writeLong(revision.date().getTime());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        recordAppended();
+    }
+    
+    public void movePackMember(RevisionIdentifier identifier, RevisionIdentifier pack, long packOffset)
+    {
+        try {
+            pendingOutput.writeByte(MovePackMemberRecord);
+            writeDigest(identifier.digest());
+            writeIdentifier(pack);
+            pendingOutput.writeLong(packOffset);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        recordAppended();
+    }
+    
+    public void removeRevisionsWithHandlerName(String name)
+    {
+        try {
+            pendingOutput.writeByte(RemoveRevisionsWithHandlerNameRecord);
+            pendingOutput.writeUTF(name);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        recordAppended();
+    }
+    
+    private void recordAppended()
+    {
+        long now = System.currentTimeMillis();
+        
+        if (firstPendingMillis == 0) {
+            firstPendingMillis = now;
+        }
+        if (pending.size() >= GroupCommitBytes || now - firstPendingMillis >= GroupCommitMillis) {
+            try {
+                commit();
+            }
+            catch (IOException e) {
+                // The records remain pending, and the next explicit commit
+                // will report the problem if it persists.
+            }
+        }
+    }
+
+    private void writeIdentifier(RevisionIdentifier identifier) throws IOException
+    {
+        FileDigest digest = identifier.digest();
+        
+        if (digest == null) {
+            pendingOutput.writeByte(LegacyIdentifier);
+            pendingOutput.writeUTF(identifier.guid());
+            pendingOutput.writeUTF(identifier.handlerName());
+            pendingOutput.writeLong(identifier.size());
+            pendingOutput.writeLong(identifier.backedupSize());
+            return;
+        }
+        
+        if (identifier.isChunked()) {
+            pendingOutput.writeByte(ChunkedIdentifier);
+        }
+        else if (identifier.isPacked()) {
+            pendingOutput.writeByte(PackedIdentifier);
+        }
+        else {
+            pendingOutput.writeByte(PlainIdentifier);
+        }
+        writeDigest(digest);
+        pendingOutput.writeBoolean(identifier.handlerName() != null);
+        if (identifier.handlerName() != null) {
+            pendingOutput.writeUTF(identifier.handlerName());
+        }
+        pendingOutput.writeLong(identifier.size());
+        
+        if (identifier.isChunked()) {
+            List chunks = identifier.chunks();
+            pendingOutput.writeInt(chunks.size());
+            for (int i = 0, count = chunks.size(); i < count; i++) {
+                writeIdentifier((RevisionIdentifier)chunks.get(i));
+            }
+        }
+        else if (identifier.isPacked()) {
+            writeIdentifier(identifier.pack());
+            pendingOutput.writeLong(identifier.packOffset());
+        }
+        else {
+            pendingOutput.writeLong(identifier.backedupSize());
+        }
+    }
+    
+    private void writeDigest(FileDigest digest) throws IOException
+    {
+        byte bytes[] = digest.digestBytes();
+        pendingOutput.writeByte(digest.type());
+        pendingOutput.writeByte(bytes.length);
+        pendingOutput.write(bytes);
+    }
+    
+    private void replay(BackupDatabase database, byte frame[]) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(frame));
+        
+        while (input.available() > 0) {
+            int record = input.readByte();
+            
+            if (record == RecordRevisionRecord) {
+                File file = new File(input.readUTF());
+                Date date = replayDate(input.readLong());
+                RevisionIdentifier identifier = readIdentifier(input, database);
+                
+                RevisionIdentifier existing = database.identifierWithDigest(identifier.digest());
+                if (existing != null) {
+                    identifier = existing;
+                }
+                database.recordRevision(file, date, identifier);
+            }
+            else if (record == UpdateDirectoryMembershipRecord) {
+                File directory = new File(input.readUTF());
+                Date date = replayDate(input.readLong());
+                String children[] = new String[input.readInt()];
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = input.readUTF();
+                }
+                database.updateDirectoryMembership(directory, date, children);
+            }
+            else if (record == RemoveRevisionRecord) {
+                File file = new File(input.readUTF());
+                Date date = replayDate(input.readLong());
+                database.removeRevision(findFileRevision(database, file, date));
+            }
+            else if (record == MovePackMemberRecord) {
+                FileDigest digest = readDigest(input);
+                RevisionIdentifier pack = replayPack(database, readIdentifier(input, database));
+                long packOffset = input.readLong();
+                
+                RevisionIdentifier member = database.identifierWithDigest(digest);
+                if (member == null) {
+                    throw new IOException("Database journal moves unknown pack member " + digest.digestString());
+                }
+                database.movePackMember(member, pack, packOffset);
+            }
+            else if (record == RemoveRevisionsWithHandlerNameRecord) {
+                database.removeRevisionsWithHandlerName(input.readUTF());
+            }
+            else {
+                throw new IOException("Unknown database journal record " + record);
+            }
+        }
+    }
+    
+    private static FileRevision findFileRevision(BackupDatabase database, File file, Date date) throws IOException
+    {
+        Node node = database.findNode(file);
+        if (node != null) {
+            List revisions = node.revisions();
+            for (int i = 0, count = revisions.size(); i < count; i++) {
+                Revision revision = (Revision)revisions.get(i);
+                if (!revision.isDirectory() && revision.date().equals(date)) {
+                    return (FileRevision)revision;
+                }
+            }
+        }
+        throw new IOException("Database journal removes unknown revision of " + file + " on " + date);
+    }
+
+    /**
+     * Reads an identifier written by writeIdentifier.  Chunks and packs the
+     * database already has are used in place of the ones read, as are chunks
+     * that appear earlier in the same identifier.
+     */
+    private RevisionIdentifier readIdentifier(DataInputStream input, BackupDatabase database) throws IOException
+    {
+        int kind = input.readByte();
+        
+        if (kind == LegacyIdentifier) {
+            RevisionIdentifier identifier = new RevisionIdentifier();
+            identifier.readData(input);
+            identifier.setSize(input.readLong());
+            identifier.setBackedupSize(input.readLong());
+            return identifier;
+        }
+        
+        FileDigest digest = readDigest(input);
+        String handlerName = input.readBoolean() ? input.readUTF() : null;
+        long size = input.readLong();
+        
+        if (kind == ChunkedIdentifier) {
+            int count = input.readInt();
+            ArrayList chunkList = new ArrayList(count);
+            HashMap identifierChunks = new HashMap();
+            
+            for (int i = 0; i < count; i++) {
+                RevisionIdentifier chunk = readIdentifier(input, database);
+                RevisionIdentifier existing = database.chunkWithDigest(chunk.digest());
+                if (existing == null) {
+                    existing = (RevisionIdentifier)identifierChunks.get(chunk.digest());
+                }
+                if (existing != null) {
+                    chunk = existing;
+                }
+                else {
+                    identifierChunks.put(chunk.digest(), chunk);
+                }
+                chunkList.add(chunk);
+            }
+            RevisionIdentifier identifier = new RevisionIdentifier(digest, size, chunkList);
+            identifier.setHandlerName(handlerName);
+            return identifier;
+        }
+        else if (kind == PackedIdentifier) {
+            RevisionIdentifier pack = readIdentifier(input, database);
+            long packOffset = input.readLong();
+            
+            RevisionIdentifier identifier = new RevisionIdentifier(digest, size, replayPack(database, pack), packOffset);
+            identifier.setHandlerName(handlerName);
+            return identifier;
+        }
+        else if (kind == PlainIdentifier) {
+            long backedupSize = input.readLong();
+            
+            RevisionIdentifier identifier = new RevisionIdentifier(digest, size);
+            identifier.setHandlerName(handlerName);
+            identifier.setBackedupSize(backedupSize);
+            return identifier;
+        }
+        throw new IOException("Unknown identifier in database journal " + kind);
+    }
+    
+    private Date replayDate(long millis)
+    {
+        if (replayDates == null) {
+            replayDates = new HashMap();
+        }
+        
+        Long key = Long.valueOf(millis);
+        Date date = (Date)replayDates.get(key);
+        if (date == null) {
+            date = new Date(millis);
+            replayDates.put(key, date);
+        }
+        return date;
+    }
+    
+    /**
+     * Returns the database's pack with the same digest as pack, or pack if
+     * there is none.
+     */
+    private RevisionIdentifier replayPack(BackupDatabase database, RevisionIdentifier pack)
+    {
+        if (replayPacks == null) {
+            replayPacks = new HashMap();
+            
+            // A snapshot can look up its packs, otherwise they have to be
+            // found up front.
+            if (!database.hasSnapshot()) {
+                Iterator i = database.findPackMembers().keySet().iterator();
+                while (i.hasNext()) {
+                    RevisionIdentifier existing = (RevisionIdentifier)i.next();
+                    replayPacks.put(existing.digest(), existing);
+                }
+            }
+        }
+        
+        RevisionIdentifier existing = (RevisionIdentifier)replayPacks.get(pack.digest());
+        if (existing == null) {
+            existing = database.packWithDigest(pack.digest());
+        }
+        if (existing != null) {
+            return existing;
+        }
+        replayPacks.put(pack.digest(), pack);
+        return pack;
+    }
+
+    private static FileDigest readDigest(DataInputStream input) throws IOException
+    {
+        int type = input.readByte();
+        byte bytes[] = new byte[input.readByte()];
+        input.readFully(bytes);
+        return new FileDigest(bytes, type);
+    }
+    
+    private void openOutput() throws IOException
+    {
+        if (output == null) {
+            output = new RandomAccessFile(file, "rw");
+            channel = output.getChannel();
+        }
+    }
+    
+    private void closeOutput()
+    {
+        FileUtil.closeQuietly(output);
+        output = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,1556 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.Platform;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * DatabaseSnapshot is the file a BackupDatabase is saved to (along with its
+ * journal, see DatabaseJournal).  Rather than a stream that must be read in
+ * full before the database can be used, it is laid out to be mapped into
+ * memory and read a piece at a time.  Each Node has a record holding its
+ * revisions, and the name of each of its children along with the offset
+ * of the child's record.  Opening a snapshot just creates the root, and a
+ * node's record is read when its children or revisions are first asked for
+ * (see Node.load).  So finding a path only reads the records along it, and
+ * the time and memory needed to open a database don't depend on its size.
+ * What does need every node, like writing a new snapshot, loads them all
+ * first (see loadAll).
+ * 
+ * Identifiers are shared by nodes, so they are kept in a table of their own
+ * and refer to their chunks and pack by their index in it.  An identifier
+ * is created the first time a node that refers to it is loaded, or it is
+ * looked up by digest.  The digests of the identifiers of file revisions,
+ * of their chunks and of their packs are kept in sorted tables, so the
+ * database needn't build a map of every digest to find them (see
+ * BackupDatabase.identifierWithDigest).  The reference count of each
+ * identifier is recorded, since recomputing it would mean loading every
+ * node.  Node names are also kept in a table, since most occur many times.
+ * Each record starts with the number of file revisions and the total
+ * backed up size of the node's subtree, so a node can answer for its
+ * subtree without loading it.
+ * 
+ * The share of an identifier's size that each revision counts changes with
+ * its reference count, and the totals of every node that refers to it
+ * change with it (see RevisionIdentifier.shareChanged).  So the nodes that
+ * refer to each identifier, and the chunked identifiers that refer to each
+ * chunk, are recorded too, and loaded before it changes (see
+ * loadReferrers).  Nodes are numbered in the order of their records, and
+ * a table of the parent and name of each gives the path to load.
+ * 
+ * Most digests looked up during a backup are of new files, which aren't in
+ * the tables, so the tables are fronted by a Bloom filter of all three.
+ * A digest that isn't in it is known to be missing without a search,
+ * which would otherwise touch a page of the snapshot for each step.
+ * 
+ * The TypeStatistics of the file revisions, by extension, are gathered as
+ * the records are written and kept in a section of their own, so they are
+ * available without loading every node.
+ * 
+ * The file is checksummed a block at a time as it is written.  The
+ * checksums themselves are checked when it is opened, and each block the
+ * first time anything in it is read (see verify), so a damaged or torn
+ * snapshot is reported at the block that is damaged rather than as
+ * whatever a damaged record would decode to, without opening it having to
+ * read the whole file.
+ * 
+ * The file is laid out as follows.  Numbers in records are written in a
+ * variable length encoding (see writeCompact), and the tables are of fixed
+ * size entries so they can be indexed.
+ * 
+ *     Magic, Version
+ *     the node records, each following the records of its children
+ *     the names, each as by DataOutput.writeUTF
+ *     a table of the offsets of the names
+ *     the identifier records
+ *     a table of the offsets of the identifier records
+ *     the node table, the number of the parent and the name of each node
+ *     the referrers of each identifier, the numbers of the nodes and then
+ *         the indexes of the chunked identifiers, each as a difference from
+ *         the one before
+ *     a table of the offsets of the referrers
+ *     the handler names, each as by DataOutput.writeUTF
+ *     the identifier, chunk and pack digest tables
+ *     the type statistics, each the extension as by DataOutput.writeUTF,
+ *         the count, the sum of the ratios and the histogram
+ *     the Bloom filter of the digest tables
+ *     the CRC32 of each BlockLength bytes of everything above
+ *     a trailer with the generation, where the sections are, the CRC32 of
+ *         the block checksums and the trailer before it, and Magic
+ * 
+ * The trailer is at the end since where the sections are isn't known
+ * until they have been written.  Offsets are ints, which limits a snapshot
+ * to 2GB.
+ * 
+ * @author garrick
+ */
+final class DatabaseSnapshot
+{
+    private static final int Magic = 0x46424442;
+    private static final int Version = 6;
+    private static final int HeaderLength = 8;
+    private static final int TrailerLength = 100;
+    private static final int BlockLength = 64 * 1024;
+    
+    /**
+     * Version 5 has no checksums, and so a shorter trailer.
+     */
+    private static final int Version5 = 5;
+    private static final int Version5TrailerLength = 92;
+    
+    /**
+     * Version 4 has no node table or referrers, and so a shorter trailer.
+     * Its identifiers' referrers are found by loading every node.
+     */
+    private static final int Version4 = 4;
+    private static final int Version4TrailerLength = 80;
+    
+    private static final int DigestLength = 16;
+    
+    /**
+     * A digest table entry is the type and bytes of a digest followed by
+     * the index of its identifier.
+     */
+    private static final int DigestEntryLength = 1 + DigestLength + 4;
+    
+    /**
+     * The Bloom filter has FilterBitsPerDigest bits for each entry of the
+     * digest tables, and sets FilterHashes of them for each, which gives
+     * about 1% false positives.  A digest is hashed along with the table it
+     * is in.
+     */
+    private static final int FilterBitsPerDigest = 10;
+    private static final int FilterHashes = 7;
+    private static final int FileTable = 0;
+    private static final int ChunkTable = 1;
+    private static final int PackTable = 2;
+    
+    private static final int LegacyIdentifier = 1;
+    private static final int ChunkedIdentifier = 2;
+    private static final int PackedIdentifier = 4;
+    
+    private ByteBuffer buffer;
+    private File file;
+    private long generation;
+    private int rootOffset;
+    
+    private int namesOffset;
+    private int nameCount;
+    private int identifiersOffset;
+    private int identifierCount;
+    private int fileDigestsOffset;
+    private int fileDigestCount;
+    private int chunkDigestsOffset;
+    private int chunkDigestCount;
+    private int packDigestsOffset;
+    private int packDigestCount;
+    private int typeStatisticsOffset;
+    private int typeStatisticsCount;
+    private int filterOffset;
+    private int filterBits;
+    private int nodesOffset;
+    private int referrersOffset;
+    
+    /**
+     * Where the block checksums are, which is also the length covered by
+     * them, and whether each block has been checked against its checksum
+     * yet.  verified is null for a version without checksums.  Readers may
+     * check a block at once, which at worst checks it twice.
+     */
+    private int checksumsOffset;
+    private boolean verified[];
+    
+    /**
+     * The database the nodes are created in, whose NameTable their names
+     * are interned in.
+     */
+    private BackupDatabase database;
+    
+    /**
+     * True once every node has been loaded, so every identifier created
+     * from now on has its referrers loaded.
+     */
+    private boolean allLoaded;
+    
+    private String handlerNames[];
+    
+    /**
+     * The NameTable id of each name, or -1 if it hasn't been needed yet.
+     */
+    private int nameIds[];
+    
+    /**
+     * The identifiers created so far, by index.
+     */
+    private RevisionIdentifier identifiers[];
+    
+    /**
+     * Opens the snapshot in file just to ask it about itself, such as its
+     * generation.  Its nodes can't be loaded, as they have no database.
+     */
+    public DatabaseSnapshot(File file) throws IOException
+    {
+        this(file, null, null);
+    }
+    
+    /**
+     * Opens the snapshot in file for database.  It is mapped into memory,
+     * except on Windows where a mapped file can't be replaced until the
+     * mapping has been garbage collected, so it is read into memory instead.
+     */
+    DatabaseSnapshot(File file, BackupDatabase database) throws IOException
+    {
+        this(file, database, null);
+    }
+    
+    /**
+     * Opens a snapshot just saved by write, which returned identifiers.
+     * They are already referenced by the nodes in memory, so they are used
+     * rather than creating new ones.
+     */
+    DatabaseSnapshot(File file, BackupDatabase database, RevisionIdentifier identifiers[]) throws IOException
+    {
+        this.database = database;
+        this.file = file;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            
+            if (length < HeaderLength + Version4TrailerLength || length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a database snapshot");
+            }
+            if (Platform.isWindows()) {
+                buffer = ByteBuffer.allocate((int)length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new EOFException(file + " is shorter than expected");
+                    }
+                }
+            }
+            else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+        }
+        finally {
+            input.close();
+        }
+        
+        if (buffer.getInt(0) != Magic || buffer.getInt(buffer.limit() - 4) != Magic) {
+            throw new IOException(file + " is not a database snapshot");
+        }
+        int version = buffer.getInt(4);
+        int trailerLength;
+        if (version == Version) {
+            trailerLength = TrailerLength;
+            verifyChecksums();
+        }
+        else if (version == Version5) {
+            trailerLength = Version5TrailerLength;
+        }
+        else if (version == Version4) {
+            trailerLength = Version4TrailerLength;
+        }
+        else {
+            throw new IOException("Unknown database snapshot version in " + file);
+        }
+        
+        ByteBuffer trailer = buffer.duplicate();
+        trailer.position(buffer.limit() - trailerLength);
+        generation = trailer.getLong();
+        namesOffset = trailer.getInt();
+        nameCount = trailer.getInt();
+        identifiersOffset = trailer.getInt();
+        identifierCount = trailer.getInt();
+        int handlersOffset = trailer.getInt();
+        int handlerCount = trailer.getInt();
+        fileDigestsOffset = trailer.getInt();
+        fileDigestCount = trailer.getInt();
+        chunkDigestsOffset = trailer.getInt();
+        chunkDigestCount = trailer.getInt();
+        packDigestsOffset = trailer.getInt();
+        packDigestCount = trailer.getInt();
+        typeStatisticsOffset = trailer.getInt();
+        typeStatisticsCount = trailer.getInt();
+        filterOffset = trailer.getInt();
+        filterBits = trailer.getInt();
+        rootOffset = trailer.getInt();
+        if (version != Version4) {
+            nodesOffset = trailer.getInt();
+            trailer.getInt();
+            referrersOffset = trailer.getInt();
+        }
+        
+        ByteBuffer handlers = buffer.duplicate();
+        handlers.position(handlersOffset);
+        handlerNames = new String[handlerCount];
+        for (int i = 0; i < handlerCount; i++) {
+            handlerNames[i] = readUTF(handlers);
+        }
+        
+        nameIds = new int[nameCount];
+        Arrays.fill(nameIds, -1);
+        
+        if (identifiers == null) {
+            identifiers = new RevisionIdentifier[identifierCount];
+        }
+        else if (identifiers.length != identifierCount) {
+            throw new IOException(file + " is not the snapshot that was saved");
+        }
+        else {
+            for (int i = 0; i < identifierCount; i++) {
+                identifiers[i].referrersLoaded();
+            }
+            allLoaded = true;
+        }
+        this.identifiers = identifiers;
+    }
+    
+    /**
+     * Checks the block checksums of a snapshot written by this version
+     * against the trailer, whose own checksum covers them.  The blocks are
+     * checked as they are read (see verify).
+     */
+    private void verifyChecksums() throws IOException
+    {
+        int limit = buffer.limit();
+        int trailerOffset = limit - TrailerLength;
+        checksumsOffset = buffer.getInt(limit - 12);
+        int blockCount = (checksumsOffset + BlockLength - 1) / BlockLength;
+        if (checksumsOffset < HeaderLength || checksumsOffset > trailerOffset || trailerOffset - checksumsOffset != 4 * blockCount) {
+            throw new IOException("The trailer of " + file + " is damaged");
+        }
+        
+        if (checksum(checksumsOffset, limit - 8) != buffer.getInt(limit - 8)) {
+            throw new IOException("The trailer of " + file + " is damaged");
+        }
+        verified = new boolean[blockCount];
+    }
+    
+    /**
+     * Checks the blocks holding the length bytes at offset, if they
+     * haven't been already.  Called before anything is read from the
+     * buffer.  A damaged block is reported by a RuntimeException, since
+     * records are read where an IOException can't be thrown (see
+     * readIdentifier).
+     */
+    private void verify(int offset, int length)
+    {
+        if (verified == null) {
+            return;
+        }
+        int end = Math.min(offset + length, checksumsOffset);
+        for (int block = offset / BlockLength; block * BlockLength < end; block++) {
+            if (!verified[block]) {
+                int start = block * BlockLength;
+                if (checksum(start, Math.min(start + BlockLength, checksumsOffset)) != buffer.getInt(checksumsOffset + 4 * block)) {
+                    throw new RuntimeException(new IOException("Block " + block + " at offset " + start + " of " + file + " is damaged"));
+                }
+                verified[block] = true;
+            }
+        }
+    }
+    
+    private int checksum(int start, int end)
+    {
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position(start);
+        byte block[] = new byte[Math.min(end - start, BlockLength)];
+        CRC32 crc = new CRC32();
+        
+        while (bytes.position() < end) {
+            int length = Math.min(end - bytes.position(), block.length);
+            bytes.get(block, 0, length);
+            crc.update(block, 0, length);
+        }
+        return (int)crc.getValue();
+    }
+    
+    /**
+     * Returns true if file starts out like a snapshot.  This tells a
+     * snapshot from a database saved by an older version (see
+     * BackupDatabase.rebuild).
+     */
+    public static boolean isSnapshot(File file) throws IOException
+    {
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            return input.readInt() == Magic;
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        finally {
+            input.close();
+        }
+    }
+    
+    public long generation()
+    {
+        return generation;
+    }
+    
+    /**
+     * Returns a new root node, which has yet to be loaded.
+     */
+    public Node root()
+    {
+        return node(buffer.duplicate(), -1, rootOffset);
+    }
+    
+    /**
+     * Returns a new map of the TypeStatistics saved in the snapshot by
+     * extension.
+     */
+    public HashMap typeStatistics() throws IOException
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(typeStatisticsOffset);
+        HashMap typeStatistics = new HashMap(typeStatisticsCount * 2);
+        for (int i = 0; i < typeStatisticsCount; i++) {
+            String extension = readUTF(record);
+            int count = readInt(record);
+            verify(record.position(), 8);
+            double ratioSum = record.getDouble();
+            int histogram[] = new int[TypeStatistics.Buckets];
+            for (int j = 0; j < histogram.length; j++) {
+                histogram[j] = readInt(record);
+            }
+            typeStatistics.put(extension, new TypeStatistics(count, ratioSum, histogram));
+        }
+        return typeStatistics;
+    }
+    
+    /**
+     * Creates a node, which has yet to be loaded, for the record at offset,
+     * reading the totals at its start with record.
+     */
+    private Node node(ByteBuffer record, int name, int offset)
+    {
+        record.position(offset);
+        int fileRevisions = readInt(record);
+        long totalBackedupSize = readCompact(record);
+        return new Node(database, name, this, offset, fileRevisions, totalBackedupSize);
+    }
+    
+    /**
+     * Returns the identifier of a file revision with the specified digest,
+     * or null if there is none.  The identifier may no longer be referenced
+     * if revisions have been removed since the snapshot was saved.
+     */
+    public RevisionIdentifier identifierWithDigest(FileDigest digest)
+    {
+        return find(FileTable, fileDigestsOffset, fileDigestCount, digest);
+    }
+    
+    /**
+     * Like identifierWithDigest, but for the chunks of chunked identifiers.
+     */
+    public RevisionIdentifier chunkWithDigest(FileDigest digest)
+    {
+        return find(ChunkTable, chunkDigestsOffset, chunkDigestCount, digest);
+    }
+    
+    /**
+     * Like identifierWithDigest, but for the packs of packed identifiers.
+     */
+    public RevisionIdentifier packWithDigest(FileDigest digest)
+    {
+        return find(PackTable, packDigestsOffset, packDigestCount, digest);
+    }
+    
+    /**
+     * Reads the record at offset into node, creating (but not loading) its
+     * children, and returns the dates of its revisions, or null if it has
+     * none.  Called by Node.load, which sets the dates itself.
+     */
+    long[] load(Node node, int offset)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        
+        // Skip the totals, which the node already has.
+        readCompact(record);
+        readCompact(record);
+        
+        int childCount = readInt(record);
+        Node children[] = new Node[childCount];
+        ByteBuffer childRecord = buffer.duplicate();
+        for (int i = 0; i < childCount; i++) {
+            int name = readInt(record) - 1;
+            int childOffset = readInt(record);
+            children[i] = node(childRecord, name == -1 ? -1 : nameId(name), childOffset);
+        }
+        if (childCount > 0) {
+            node.loadChildren(children);
+        }
+        
+        int revisionCount = readInt(record);
+        if (revisionCount == 0) {
+            return null;
+        }
+        long dates[] = new long[revisionCount];
+        Object contents[] = new Object[revisionCount];
+        long time = 0;
+        for (int i = 0; i < revisionCount; i++) {
+            time += readCompact(record);
+            dates[i] = time;
+            
+            int identifier = readInt(record) - 1;
+            if (identifier != -1) {
+                contents[i] = identifier(identifier);
+            }
+            else {
+                DirectoryRevision directoryRevision = new DirectoryRevision();
+                directoryRevision.setNode(node);
+                directoryRevision.setDate(Revision.uniqueDate(time));
+                int added[] = readMembers(record);
+                int removed[] = readMembers(record);
+                directoryRevision.loadMembers(added, removed);
+                contents[i] = directoryRevision;
+            }
+        }
+        node.loadRevisions(contents);
+        return dates;
+    }
+    
+    /**
+     * Loads every node under root that hasn't been loaded yet.  The caller
+     * holds the database's lock.
+     */
+    static void loadAll(Node root)
+    {
+        root.load();
+        for (int i = 0, count = root.childCount(); i < count; i++) {
+            loadAll(root.childAt(i));
+        }
+    }
+    
+    /**
+     * Loads the nodes that refer to identifier and to the chunked
+     * identifiers it is a chunk of, and, if a reference to it would change
+     * the reference counts of its chunks, the nodes that refer to them, so
+     * that the change to its share reaches every total it is in (see
+     * RevisionIdentifier.shareChanged).  root is the database's root.  The
+     * nodes are found by path, so the ones that have since been removed
+     * aren't, and neither are their referrers.  Called with the database's
+     * write lock held.
+     */
+    void loadReferrers(Node root, RevisionIdentifier identifier)
+    {
+        loadIdentifierReferrers(root, identifier);
+        if (identifier.isChunked() && identifier.referenceCount() <= 1) {
+            List chunks = identifier.chunks();
+            for (int i = 0, count = chunks.size(); i < count; i++) {
+                loadIdentifierReferrers(root, (RevisionIdentifier)chunks.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Loads every node, after which every identifier's referrers are
+     * loaded.  Called with the database's write lock held.
+     */
+    void loadAllReferrers(Node root)
+    {
+        if (!allLoaded) {
+            loadAll(root);
+            synchronized (this) {
+                for (int i = 0; i < identifierCount; i++) {
+                    if (identifiers[i] != null) {
+                        identifiers[i].referrersLoaded();
+                    }
+                }
+                allLoaded = true;
+            }
+        }
+    }
+    
+    private void loadIdentifierReferrers(Node root, RevisionIdentifier identifier)
+    {
+        int index = identifier.snapshotIndex();
+        if (index == -1) {
+            return;
+        }
+        if (referrersOffset == 0) {
+            loadAllReferrers(root);
+            return;
+        }
+        
+        ByteBuffer record = buffer.duplicate();
+        record.position(getInt(referrersOffset + 4 * index));
+        int node = 0;
+        for (int i = 0, count = readInt(record); i < count; i++) {
+            node += readInt(record);
+            loadNode(root, node);
+        }
+        int container = 0;
+        for (int i = 0, count = readInt(record); i < count; i++) {
+            container += readInt(record);
+            loadIdentifierReferrers(root, identifier(container));
+        }
+        identifier.referrersLoaded();
+    }
+    
+    /**
+     * Loads the node with the specified number, which is found by the
+     * names along its path in the node table.
+     */
+    private void loadNode(Node root, int number)
+    {
+        int names[] = new int[16];
+        int depth = 0;
+        for (int entry = nodesOffset + 8 * number; getInt(entry) != -1; entry = nodesOffset + 8 * getInt(entry)) {
+            if (depth == names.length) {
+                int newNames[] = new int[depth * 2];
+                System.arraycopy(names, 0, newNames, 0, depth);
+                names = newNames;
+            }
+            names[depth++] = getInt(entry + 4);
+        }
+        
+        Node node = root;
+        while (depth > 0 && node != null) {
+            int name = names[--depth];
+            node = node.childWithNameId(name == -1 ? -1 : nameId(name));
+        }
+        if (node != null) {
+            node.load();
+        }
+    }
+    
+    /**
+     * Reads the positions of the members of a directory revision among the
+     * node's children.
+     */
+    private int[] readMembers(ByteBuffer record)
+    {
+        int positions[] = new int[readInt(record)];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = readInt(record);
+        }
+        return positions;
+    }
+    
+    private synchronized int nameId(int index)
+    {
+        int id = nameIds[index];
+        if (id == -1) {
+            ByteBuffer name = buffer.duplicate();
+            name.position(getInt(namesOffset + 4 * index));
+            verify(name.position(), 2);
+            byte utf[] = new byte[name.getShort() & 0xffff];
+            verify(name.position(), utf.length);
+            name.get(utf);
+            id = database.names.intern(utf, 0, utf.length);
+            nameIds[index] = id;
+        }
+        return id;
+    }
+    
+    /**
+     * Returns the identifier at index in the table, creating it if this is
+     * the first time it has been asked for.
+     */
+    synchronized RevisionIdentifier identifier(int index)
+    {
+        RevisionIdentifier identifier = identifiers[index];
+        if (identifier == null) {
+            identifier = readIdentifier(index);
+            identifiers[index] = identifier;
+        }
+        return identifier;
+    }
+    
+    private RevisionIdentifier readIdentifier(int index)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(getInt(identifiersOffset + 4 * index));
+        
+        verify(record.position(), 1);
+        int kind = record.get();
+        int refCount = readInt(record);
+        RevisionIdentifier identifier;
+        
+        if ((kind & LegacyIdentifier) != 0) {
+            GUID guid;
+            try {
+                guid = new GUID(readUTF(record));
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            String handlerName = handlerName(readInt(record));
+            long size = readCompact(record);
+            identifier = new RevisionIdentifier(guid, handlerName, size, readCompact(record));
+        }
+        else {
+            FileDigest digest = readDigest(record);
+            String handlerName = handlerName(readInt(record));
+            long size = readCompact(record);
+            
+            if ((kind & ChunkedIdentifier) != 0) {
+                int count = readInt(record);
+                ArrayList chunks = new ArrayList(count);
+                for (int i = 0; i < count; i++) {
+                    chunks.add(identifier(readInt(record)));
+                }
+                identifier = new RevisionIdentifier(digest, size, chunks);
+            }
+            else if ((kind & PackedIdentifier) != 0) {
+                RevisionIdentifier pack = identifier(readInt(record));
+                identifier = new RevisionIdentifier(digest, size, pack, readCompact(record));
+            }
+            else {
+                identifier = new RevisionIdentifier(digest, size);
+                identifier.setBackedupSize(readCompact(record));
+            }
+            identifier.setHandlerName(handlerName);
+        }
+        identifier.setReferenceCount(refCount, allLoaded ? -1 : index);
+        return identifier;
+    }
+    
+    private int getInt(int offset)
+    {
+        verify(offset, 4);
+        return buffer.getInt(offset);
+    }
+    
+    private String handlerName(int index)
+    {
+        return index == 0 ? null : handlerNames[index - 1];
+    }
+    
+    /**
+     * Returns the identifier with digest in the digest table at offset,
+     * which has count entries, by binary search once the Bloom filter says
+     * it may be there.
+     */
+    private RevisionIdentifier find(int table, int offset, int count, FileDigest digest)
+    {
+        if (digest == null || !mayContain(table, digest)) {
+            return null;
+        }
+        
+        byte bytes[] = digest.digestBytes();
+        int type = digest.type();
+        int low = 0;
+        int high = count - 1;
+        
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = offset + middle * DigestEntryLength;
+            int comparison = compare(entry, type, bytes);
+            
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return identifier(getInt(entry + 1 + DigestLength));
+            }
+        }
+        return null;
+    }
+    
+    private boolean mayContain(int table, FileDigest digest)
+    {
+        long hash = filterHash(table, digest.type(), digest.bits(0));
+        long step = filterHash(table, digest.type(), digest.bits(1)) | 1;
+        for (int i = 0; i < FilterHashes; i++) {
+            int bit = filterBit(hash, step, i, filterBits);
+            int offset = filterOffset + (bit >>> 3);
+            verify(offset, 1);
+            if ((buffer.get(offset) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Mixes half of a digest with its type and table.  The bits of an MD5
+     * need no mixing, but digests made up for tests differ in only a few
+     * bits, so this is the finalizer of MurmurHash3.
+     */
+    private static long filterHash(int table, int type, long bits)
+    {
+        long hash = bits ^ (((long)table << 8) | type) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb93fe1a85ec9L;
+        return hash ^ (hash >>> 33);
+    }
+    
+    /**
+     * Returns the ith bit set for a digest, deriving each from two hashes
+     * of it rather than computing FilterHashes of them.
+     */
+    private static int filterBit(long hash, long step, int i, int filterBits)
+    {
+        return (int)(((hash + i * step) >>> 1) % filterBits);
+    }
+    
+    private int compare(int entry, int type, byte bytes[])
+    {
+        verify(entry, DigestEntryLength);
+        int entryType = buffer.get(entry);
+        if (entryType != type) {
+            return entryType < type ? -1 : 1;
+        }
+        for (int i = 0; i < DigestLength; i++) {
+            int entryByte = buffer.get(entry + 1 + i) & 0xff;
+            int b = bytes[i] & 0xff;
+            if (entryByte != b) {
+                return entryByte < b ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+    
+    private FileDigest readDigest(ByteBuffer record)
+    {
+        verify(record.position(), 1 + DigestLength);
+        int type = record.get();
+        byte bytes[] = new byte[DigestLength];
+        record.get(bytes);
+        return new FileDigest(bytes, type);
+    }
+    
+    private String readUTF(ByteBuffer record) throws IOException
+    {
+        verify(record.position(), 2);
+        byte utf[] = new byte[2 + (record.getShort(record.position()) & 0xffff)];
+        verify(record.position(), utf.length);
+        record.get(utf);
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+    
+    private int readInt(ByteBuffer record)
+    {
+        return (int)readCompact(record);
+    }
+    
+    /**
+     * Reads a number written by writeCompact.
+     */
+    private long readCompact(ByteBuffer record)
+    {
+        verify(record.position(), 10);
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = record.get();
+            value |= (long)(b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+    
+    /**
+     * Writes the tree under root to file as a snapshot of the specified
+     * generation, and returns the identifiers in it, indexed as they are in
+     * the snapshot.  Every node is loaded first (see loadAll).  The
+     * statistics of the file revisions written are put in typeStatistics by
+     * extension.
+     */
+    public static RevisionIdentifier[] write(File file, Node root, long generation, HashMap typeStatistics) throws IOException
+    {
+        loadAll(root);
+        
+        ChecksumOutputStream checksumOutput = new ChecksumOutputStream(new FileOutputStream(file));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(checksumOutput, 64 * 1024));
+        try {
+            Writer writer = new Writer(output, checksumOutput, typeStatistics);
+            return writer.write(root, generation);
+        }
+        finally {
+            output.close();
+        }
+    }
+    
+    /**
+     * Writes a number as groups of 7 bits, least significant first, with
+     * the high bit of each byte set if more follow.  Small numbers, which
+     * most are, take a single byte.
+     */
+    private static void writeCompact(DataOutputStream output, long value) throws IOException
+    {
+        while ((value & ~0x7fL) != 0) {
+            output.writeByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int)value);
+    }
+    
+    /**
+     * Writer holds the tables built up while writing a snapshot.
+     */
+    private static class Writer
+    {
+        private DataOutputStream output;
+        private ChecksumOutputStream checksumOutput;
+        
+        /**
+         * The index of each name by its NameTable id, and the offset of each
+         * name relative to the start of nameBytes.
+         */
+        private HashMap names = new HashMap();
+        private ArrayList nameOffsets = new ArrayList();
+        private ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        private DataOutputStream nameOutput = new DataOutputStream(nameBytes);
+        
+        private HashMap identifierIndexes = new HashMap();
+        private ArrayList identifiers = new ArrayList();
+        
+        /**
+         * The Referrers of each identifier, by index.
+         */
+        private ArrayList referrers = new ArrayList();
+        
+        /**
+         * The number of the parent and the index of the name of each node
+         * written so far, by number.
+         */
+        private int nodeParents[] = new int[1024];
+        private int nodeNames[] = new int[1024];
+        private int nodeCount;
+        
+        private HashMap handlerIndexes = new HashMap();
+        private ArrayList handlerNames = new ArrayList();
+        
+        /**
+         * DigestEntries for the digest tables, in the order they were found.
+         */
+        private ArrayList fileDigests = new ArrayList();
+        private ArrayList chunkDigests = new ArrayList();
+        private ArrayList packDigests = new ArrayList();
+        
+        /**
+         * The Bloom filter, filled in as the digest tables are written.
+         */
+        private byte filter[];
+        
+        /**
+         * TypeStatistics by extension.
+         */
+        private HashMap typeStatistics;
+        
+        public Writer(DataOutputStream output, ChecksumOutputStream checksumOutput, HashMap typeStatistics)
+        {
+            this.output = output;
+            this.checksumOutput = checksumOutput;
+            this.typeStatistics = typeStatistics;
+        }
+        
+        public RevisionIdentifier[] write(Node root, long generation) throws IOException
+        {
+            output.writeInt(Magic);
+            output.writeInt(Version);
+            int rootOffset = writeNode(root);
+            
+            int nameBytesOffset = output.size();
+            nameBytes.writeTo(output);
+            int namesOffset = output.size();
+            for (int i = 0, count = nameOffsets.size(); i < count; i++) {
+                output.writeInt(nameBytesOffset + ((Integer)nameOffsets.get(i)).intValue());
+            }
+            
+            // Writing an identifier may add its chunks or pack to the end
+            // of identifiers.
+            int identifierOffsets[] = new int[16];
+            int identifierCount = 0;
+            for (; identifierCount < identifiers.size(); identifierCount++) {
+                if (identifierCount == identifierOffsets.length) {
+                    int newOffsets[] = new int[identifierCount * 2];
+                    System.arraycopy(identifierOffsets, 0, newOffsets, 0, identifierCount);
+                    identifierOffsets = newOffsets;
+                }
+                identifierOffsets[identifierCount] = output.size();
+                writeIdentifier((RevisionIdentifier)identifiers.get(identifierCount), identifierCount);
+            }
+            int identifiersOffset = output.size();
+            for (int i = 0; i < identifierCount; i++) {
+                output.writeInt(identifierOffsets[i]);
+            }
+            
+            int nodesOffset = output.size();
+            for (int i = 0; i < nodeCount; i++) {
+                output.writeInt(nodeParents[i]);
+                output.writeInt(nodeNames[i]);
+            }
+            
+            // The offsets of the identifier records aren't needed anymore.
+            for (int i = 0; i < identifierCount; i++) {
+                identifierOffsets[i] = output.size();
+                ((Referrers)referrers.get(i)).write(output);
+            }
+            int referrersOffset = output.size();
+            for (int i = 0; i < identifierCount; i++) {
+                output.writeInt(identifierOffsets[i]);
+            }
+            
+            int handlersOffset = output.size();
+            for (int i = 0, count = handlerNames.size(); i < count; i++) {
+                output.writeUTF((String)handlerNames.get(i));
+            }
+            
+            int digestCount = fileDigests.size() + chunkDigests.size() + packDigests.size();
+            filter = new byte[(Math.max(digestCount, 1) * FilterBitsPerDigest + 7) / 8];
+            int fileDigestsOffset = output.size();
+            int fileDigestCount = writeDigests(FileTable, fileDigests);
+            int chunkDigestsOffset = output.size();
+            int chunkDigestCount = writeDigests(ChunkTable, chunkDigests);
+            int packDigestsOffset = output.size();
+            int packDigestCount = writeDigests(PackTable, packDigests);
+            int typeStatisticsOffset = output.size();
+            writeTypeStatistics();
+            int filterOffset = output.size();
+            output.write(filter);
+            
+            // Everything so far is covered by the block checksums, and the
+            // checksums and the trailer by the checksum at the end.
+            output.flush();
+            int checksumsOffset = output.size();
+            int checksums[] = checksumOutput.checksums();
+            ByteArrayOutputStream trailerBytes = new ByteArrayOutputStream();
+            DataOutputStream trailer = new DataOutputStream(trailerBytes);
+            for (int i = 0; i < checksums.length; i++) {
+                trailer.writeInt(checksums[i]);
+            }
+            trailer.writeLong(generation);
+            trailer.writeInt(namesOffset);
+            trailer.writeInt(nameOffsets.size());
+            trailer.writeInt(identifiersOffset);
+            trailer.writeInt(identifierCount);
+            trailer.writeInt(handlersOffset);
+            trailer.writeInt(handlerNames.size());
+            trailer.writeInt(fileDigestsOffset);
+            trailer.writeInt(fileDigestCount);
+            trailer.writeInt(chunkDigestsOffset);
+            trailer.writeInt(chunkDigestCount);
+            trailer.writeInt(packDigestsOffset);
+            trailer.writeInt(packDigestCount);
+            trailer.writeInt(typeStatisticsOffset);
+            trailer.writeInt(typeStatistics.size());
+            trailer.writeInt(filterOffset);
+            trailer.writeInt(filter.length * 8);
+            trailer.writeInt(rootOffset);
+            trailer.writeInt(nodesOffset);
+            trailer.writeInt(nodeCount);
+            trailer.writeInt(referrersOffset);
+            trailer.writeInt(checksumsOffset);
+            trailerBytes.writeTo(output);
+            
+            CRC32 crc = new CRC32();
+            crc.update(trailerBytes.toByteArray());
+            output.writeInt((int)crc.getValue());
+            output.writeInt(Magic);
+            
+            // DataOutputStream stops counting at Integer.MAX_VALUE.
+            if (output.size() == Integer.MAX_VALUE) {
+                throw new IOException("The database is too large for a snapshot");
+            }
+            
+            return (RevisionIdentifier[])identifiers.toArray(new RevisionIdentifier[identifierCount]);
+        }
+        
+        /**
+         * Writes the records of node and its descendants, and returns the
+         * offset of node's record.  The node is numbered after its
+         * descendants, in the order of the records.
+         */
+        private int writeNode(Node node) throws IOException
+        {
+            // The database is locked while it is written, so the node is
+            // read without the methods that take the lock.
+            node.load();
+            int childCount = node.childCount();
+            int childOffsets[] = new int[childCount];
+            int childNumbers[] = new int[childCount];
+            for (int i = 0; i < childCount; i++) {
+                childOffsets[i] = writeNode(node.childAt(i));
+                childNumbers[i] = nodeCount - 1;
+            }
+            
+            int number = addNode(nameIndex(node));
+            for (int i = 0; i < childCount; i++) {
+                nodeParents[childNumbers[i]] = number;
+            }
+            
+            int offset = output.size();
+            writeCompact(output, node.fileRevisions());
+            writeCompact(output, node.backedupSize());
+            writeCompact(output, childCount);
+            for (int i = 0; i < childCount; i++) {
+                Node child = node.childAt(i);
+                writeCompact(output, nameIndex(child) + 1);
+                writeCompact(output, childOffsets[i]);
+            }
+            
+            int revisionCount = node.revisionCount();
+            writeCompact(output, revisionCount);
+            TypeStatistics statistics = null;
+            long previousTime = 0;
+            for (int i = 0; i < revisionCount; i++) {
+                long time = node.revisionTime(i);
+                writeCompact(output, time - previousTime);
+                previousTime = time;
+                
+                Object content = node.revisionContent(i);
+                if (content instanceof RevisionIdentifier) {
+                    RevisionIdentifier identifier = (RevisionIdentifier)content;
+                    int index = identifierIndex(identifier);
+                    writeCompact(output, index + 1);
+                    ((Referrers)referrers.get(index)).addNode(number);
+                    indexDigests(identifier);
+                    
+                    if (statistics == null) {
+                        statistics = typeStatistics(node);
+                    }
+                    if (statistics != null) {
+                        statistics.add(identifier.backedupSizeRatio());
+                    }
+                }
+                else {
+                    DirectoryRevision directoryRevision = (DirectoryRevision)content;
+                    writeCompact(output, 0);
+                    writeMembers(directoryRevision.addedPositions());
+                    writeMembers(directoryRevision.removedPositions());
+                }
+            }
+            return offset;
+        }
+        
+        /**
+         * Adds a node with the specified name to the node table, and returns
+         * its number.  Its parent is filled in once it has been written.
+         */
+        private int addNode(int name)
+        {
+            if (nodeCount == nodeParents.length) {
+                int newParents[] = new int[nodeCount * 2];
+                int newNames[] = new int[nodeCount * 2];
+                System.arraycopy(nodeParents, 0, newParents, 0, nodeCount);
+                System.arraycopy(nodeNames, 0, newNames, 0, nodeCount);
+                nodeParents = newParents;
+                nodeNames = newNames;
+            }
+            nodeParents[nodeCount] = -1;
+            nodeNames[nodeCount] = name;
+            return nodeCount++;
+        }
+        
+        /**
+         * Returns the statistics for the extension of node's name, or null
+         * if it has none.
+         */
+        private TypeStatistics typeStatistics(Node node)
+        {
+            String extension = node.nameId() == -1 ? null : TypeStatistics.extension(node.name());
+            if (extension == null) {
+                return null;
+            }
+            
+            TypeStatistics statistics = (TypeStatistics)typeStatistics.get(extension);
+            if (statistics == null) {
+                statistics = new TypeStatistics();
+                typeStatistics.put(extension, statistics);
+            }
+            return statistics;
+        }
+        
+        private void writeTypeStatistics() throws IOException
+        {
+            for (Iterator i = typeStatistics.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry)i.next();
+                TypeStatistics statistics = (TypeStatistics)entry.getValue();
+                int histogram[] = statistics.histogram();
+                
+                output.writeUTF((String)entry.getKey());
+                writeCompact(output, statistics.count());
+                output.writeDouble(statistics.ratioSum());
+                for (int j = 0; j < histogram.length; j++) {
+                    writeCompact(output, histogram[j]);
+                }
+            }
+        }
+        
+        /**
+         * Writes the positions of the members of a directory revision among
+         * the node's children, which are the order the children are written
+         * in.
+         */
+        private void writeMembers(int positions[]) throws IOException
+        {
+            writeCompact(output, positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                writeCompact(output, positions[i]);
+            }
+        }
+        
+        private int nameIndex(Node node) throws IOException
+        {
+            if (node.nameId() == -1) {
+                return -1;
+            }
+            
+            Integer key = Integer.valueOf(node.nameId());
+            Integer index = (Integer)names.get(key);
+            if (index == null) {
+                index = Integer.valueOf(nameOffsets.size());
+                names.put(key, index);
+                nameOffsets.add(Integer.valueOf(nameOutput.size()));
+                nameOutput.writeUTF(node.name());
+            }
+            return index.intValue();
+        }
+        
+        private int identifierIndex(RevisionIdentifier identifier)
+        {
+            Integer index = (Integer)identifierIndexes.get(identifier);
+            if (index == null) {
+                index = Integer.valueOf(identifiers.size());
+                identifierIndexes.put(identifier, index);
+                identifiers.add(identifier);
+                referrers.add(new Referrers());
+            }
+            return index.intValue();
+        }
+        
+        private int handlerIndex(String handlerName)
+        {
+            if (handlerName == null) {
+                return -1;
+            }
+            
+            Integer index = (Integer)handlerIndexes.get(handlerName);
+            if (index == null) {
+                index = Integer.valueOf(handlerNames.size());
+                handlerIndexes.put(handlerName, index);
+                handlerNames.add(handlerName);
+            }
+            return index.intValue();
+        }
+        
+        /**
+         * Adds the digests of a file revision's identifier to the digest
+         * tables, as BackupDatabase would to its maps.
+         */
+        private void indexDigests(RevisionIdentifier identifier)
+        {
+            if (identifier.digest() != null) {
+                fileDigests.add(new DigestEntry(identifier.digest(), identifier));
+            }
+            if (identifier.isChunked()) {
+                List chunks = identifier.chunks();
+                for (int i = 0, count = chunks.size(); i < count; i++) {
+                    RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                    chunkDigests.add(new DigestEntry(chunk.digest(), chunk));
+                }
+            }
+            if (identifier.isPacked() && identifier.pack().digest() != null) {
+                packDigests.add(new DigestEntry(identifier.pack().digest(), identifier.pack()));
+            }
+        }
+        
+        private void writeIdentifier(RevisionIdentifier identifier, int index) throws IOException
+        {
+            GUID legacyGUID = identifier.legacyGUID();
+            int kind = 0;
+            if (legacyGUID != null) {
+                kind |= LegacyIdentifier;
+            }
+            if (identifier.isChunked()) {
+                kind |= ChunkedIdentifier;
+            }
+            if (identifier.isPacked()) {
+                kind |= PackedIdentifier;
+            }
+            output.writeByte(kind);
+            writeCompact(output, identifier.referenceCount());
+            
+            if (legacyGUID != null) {
+                output.writeUTF(legacyGUID.guidString());
+            }
+            else {
+                writeDigest(identifier.digest());
+            }
+            writeCompact(output, handlerIndex(identifier.handlerName()) + 1);
+            writeCompact(output, identifier.size());
+            
+            if (legacyGUID != null) {
+                writeCompact(output, identifier.backedupSize());
+            }
+            else if (identifier.isChunked()) {
+                List chunks = identifier.chunks();
+                writeCompact(output, chunks.size());
+                for (int i = 0, count = chunks.size(); i < count; i++) {
+                    int chunkIndex = identifierIndex((RevisionIdentifier)chunks.get(i));
+                    writeCompact(output, chunkIndex);
+                    ((Referrers)referrers.get(chunkIndex)).addContainer(index);
+                }
+            }
+            else if (identifier.isPacked()) {
+                writeCompact(output, identifierIndex(identifier.pack()));
+                writeCompact(output, identifier.packOffset());
+            }
+            else {
+                writeCompact(output, identifier.backedupSize());
+            }
+        }
+        
+        private void writeDigest(FileDigest digest) throws IOException
+        {
+            output.writeByte(digest.type());
+            output.write(digest.digestBytes());
+        }
+        
+        /**
+         * Writes a table of the digests of entries sorted so they can be
+         * found by binary search, and returns its length.  Where entries
+         * have the same digest the last one found is used, just as it
+         * would replace the others in a map.
+         */
+        private int writeDigests(int table, ArrayList entries) throws IOException
+        {
+            // The sort is stable, so the last of a run of entries with the
+            // same digest is the last one found.
+            DigestEntry sorted[] = (DigestEntry[])entries.toArray(new DigestEntry[entries.size()]);
+            Arrays.sort(sorted);
+            
+            int count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                DigestEntry entry = sorted[i];
+                if (i + 1 < sorted.length && entry.compareTo(sorted[i + 1]) == 0) {
+                    continue;
+                }
+                
+                // The identifier's record has been written, so it has an
+                // index.
+                Integer index = (Integer)identifierIndexes.get(entry.identifier);
+                output.writeByte(entry.type);
+                output.write(entry.bytes);
+                output.writeInt(index.intValue());
+                count++;
+                
+                int filterBits = filter.length * 8;
+                long hash = filterHash(table, entry.type, entry.high);
+                long step = filterHash(table, entry.type, entry.low) | 1;
+                for (int j = 0; j < FilterHashes; j++) {
+                    int bit = filterBit(hash, step, j, filterBits);
+                    filter[bit >>> 3] |= 1 << (bit & 7);
+                }
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * Referrers collects the numbers of the nodes and the indexes of the
+     * chunked identifiers that refer to an identifier as a snapshot is
+     * written.  Both are found in increasing order, so each is only
+     * recorded once, and written as the difference from the one before.
+     */
+    private static class Referrers
+    {
+        private static final int NoReferrers[] = new int[0];
+        
+        private int nodes[] = NoReferrers;
+        private int nodeCount;
+        private int containers[] = NoReferrers;
+        private int containerCount;
+        
+        void addNode(int node)
+        {
+            if (nodeCount == 0 || nodes[nodeCount - 1] != node) {
+                nodes = add(nodes, nodeCount++, node);
+            }
+        }
+        
+        void addContainer(int index)
+        {
+            if (containerCount == 0 || containers[containerCount - 1] != index) {
+                containers = add(containers, containerCount++, index);
+            }
+        }
+        
+        private static int[] add(int values[], int count, int value)
+        {
+            if (count == values.length) {
+                int newValues[] = new int[count < 2 ? 2 : count * 2];
+                System.arraycopy(values, 0, newValues, 0, count);
+                values = newValues;
+            }
+            values[count] = value;
+            return values;
+        }
+        
+        void write(DataOutputStream output) throws IOException
+        {
+            write(output, nodes, nodeCount);
+            write(output, containers, containerCount);
+        }
+        
+        private static void write(DataOutputStream output, int values[], int count) throws IOException
+        {
+            writeCompact(output, count);
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                writeCompact(output, values[i] - previous);
+                previous = values[i];
+            }
+        }
+    }
+    
+    /**
+     * Passes what is written through to the file, keeping the CRC32 of
+     * each BlockLength bytes (see verify).
+     */
+    private static class ChecksumOutputStream extends FilterOutputStream
+    {
+        private CRC32 crc = new CRC32();
+        private int blockRemaining = BlockLength;
+        private int checksums[] = new int[16];
+        private int checksumCount;
+        
+        ChecksumOutputStream(OutputStream output)
+        {
+            super(output);
+        }
+        
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            crc.update(b);
+            if (--blockRemaining == 0) {
+                endBlock();
+            }
+        }
+        
+        public void write(byte b[], int offset, int length) throws IOException
+        {
+            out.write(b, offset, length);
+            while (length > 0) {
+                int count = Math.min(length, blockRemaining);
+                crc.update(b, offset, count);
+                offset += count;
+                length -= count;
+                blockRemaining -= count;
+                if (blockRemaining == 0) {
+                    endBlock();
+                }
+            }
+        }
+        
+        private void endBlock()
+        {
+            if (checksumCount == checksums.length) {
+                int newChecksums[] = new int[checksumCount * 2];
+                System.arraycopy(checksums, 0, newChecksums, 0, checksumCount);
+                checksums = newChecksums;
+            }
+            checksums[checksumCount++] = (int)crc.getValue();
+            crc.reset();
+            blockRemaining = BlockLength;
+        }
+        
+        /**
+         * Returns the checksums of everything written so far, the last of
+         * which may be of a partial block.
+         */
+        int[] checksums()
+        {
+            if (blockRemaining < BlockLength) {
+                endBlock();
+            }
+            int result[] = new int[checksumCount];
+            System.arraycopy(checksums, 0, result, 0, checksumCount);
+            return result;
+        }
+    }
+    
+    /**
+     * An entry of a digest table, ordered as DatabaseSnapshot.compare
+     * expects.
+     */
+    private static class DigestEntry implements Comparable
+    {
+        byte bytes[];
+        long high;
+        long low;
+        int type;
+        RevisionIdentifier identifier;
+        
+        DigestEntry(FileDigest digest, RevisionIdentifier identifier)
+        {
+            bytes = digest.digestBytes();
+            high = digest.bits(0);
+            low = digest.bits(1);
+            type = digest.type();
+            this.identifier = identifier;
+        }
+        
+        public int compareTo(Object object)
+        {
+            DigestEntry other = (DigestEntry)object;
+            if (type != other.type) {
+                return type < other.type ? -1 : 1;
+            }
+            for (int i = 0; i < DigestLength; i++) {
+                int b = bytes[i] & 0xff;
+                int otherB = other.bytes[i] & 0xff;
+                if (b != otherB) {
+                    return b < otherB ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DigestCache remembers the last FileDigest computed for each file, so that
+ * a file whose modification date has moved (e.g. because it was touched or
+ * checked out again) is only read once to discover that its content has
+ * not changed, rather than on every backup.  A cached digest is only used
+ * if the file still has the same Signature: the device and inode of the
+ * file (if the platform provides them), its size, modification date and
+ * status change date.
+ * 
+ * The cache is kept in a file in the configuration directory.  New entries
+ * are appended to it by save, and it is rewritten when most of its records
+ * are out of date.  Each save also checks some of the least recently used
+ * entries and forgets those whose files have changed or no longer exist, so
+ * the cache is pruned a little at a time rather than all at once.  If the
+ * file cannot be read the cache starts out empty, since it is only an
+ * optimization.
+ * 
+ * This class is thread safe.
+ * 
+ * @author garrick
+ */
+class DigestCache
+{
+    private static final int Version = 1;
+    
+    private static final byte PutRecord = 1;
+    private static final byte RemoveRecord = 2;
+    
+    /**
+     * How many of the least recently used entries save checks.
+     */
+    private static final int PruneCount = 1000;
+    
+    private static final int MaximumEntries = 2000000;
+    
+    private File file;
+    
+    /**
+     * Maps paths to Entries, in least recently used order.
+     */
+    private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+    
+    /**
+     * Paths whose entries have changed since the last save.
+     */
+    private HashSet unsavedPaths = new HashSet();
+    
+    private int fileRecords;
+    
+    public DigestCache(File file)
+    {
+        this.file = file;
+        load();
+    }
+    
+    /**
+     * Returns the cached digest of the specified type for the file, or null
+     * if there is none or the file no longer has the signature the digest
+     * was cached with.
+     */
+    public synchronized FileDigest digest(File file, Signature signature, int type)
+    {
+        if (signature == null) {
+            return null;
+        }
+        
+        Entry entry = (Entry)entries.get(file.getPath());
+        if (entry == null || !entry.signature.equals(signature) || entry.digest.type() != type) {
+            return null;
+        }
+        return entry.digest;
+    }
+    
+    /**
+     * Returns the digest of the specified type for the file, computing it
+     * if it is not cached.
+     */
+    public FileDigest digest(File file, int type) throws IOException
+    {
+        Signature signature = Signature.read(file);
+        FileDigest digest = digest(file, signature, type);
+        
+        if (digest == null) {
+            digest = new FileDigest(file, type);
+            put(file, signature, digest);
+        }
+        return digest;
+    }
+    
+    /**
+     * Caches the digest of the file's content, which was read when the file
+     * had the specified signature.  Nothing is cached if the signature has
+     * changed since, as the content read may not be the current content.
+     */
+    public void put(File file, Signature signature, FileDigest digest)
+    {
+        if (signature == null || !signature.equals(Signature.read(file))) {
+            return;
+        }
+        
+        String path = file.getPath();
+        synchronized (this) {
+            Entry entry = (Entry)entries.get(path);
+            
+            if (entry == null || !entry.signature.equals(signature) || !entry.digest.equals(digest)) {
+                entries.put(path, new Entry(signature, digest));
+                unsavedPaths.add(path);
+            }
+        }
+    }
+    
+    /**
+     * Prunes some of the entries, and writes the unsaved entries to the file.
+     */
+    public synchronized void save()
+    {
+        prune();
+        
+        if (unsavedPaths.isEmpty()) {
+            return;
+        }
+        
+        if (fileRecords > 2 * entries.size() + PruneCount) {
+            rewrite();
+            return;
+        }
+        
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            
+            Iterator i = unsavedPaths.iterator();
+            while (i.hasNext()) {
+                String path = (String)i.next();
+                writeRecord(output, path, (Entry)entries.get(path));
+            }
+            output.close();
+            output = null;
+            unsavedPaths.clear();
+        }
+        catch (IOException e) {
+            // Rewriting the file may succeed where appending to it failed,
+            // and if not the entries will be lost, which only costs time.
+            FileUtil.closeQuietly(output);
+            output = null;
+            rewrite();
+        }
+        finally {
+            FileUtil.closeQuietly(output);
+        }
+    }
+    
+    /**
+     * Checks the PruneCount least recently used entries and removes those
+     * whose files have changed, and removes the least recently used entries
+     * beyond MaximumEntries.  The entries that are still valid become the
+     * most recently used, so that the next prune checks different entries.
+     */
+    private void prune()
+    {
+        ArrayList checked = new ArrayList();
+        Iterator i = entries.entrySet().iterator();
+        
+        for (int count = 0; i.hasNext() && (count < PruneCount || entries.size() > MaximumEntries); count++) {
+            Map.Entry mapEntry = (Map.Entry)i.next();
+            String path = (String)mapEntry.getKey();
+            Entry entry = (Entry)mapEntry.getValue();
+            
+            i.remove();
+            if (count < PruneCount && entry.signature.equals(Signature.read(new File(path)))) {
+                checked.add(path);
+                checked.add(entry);
+            }
+            else {
+                unsavedPaths.add(path);
+            }
+        }
+        
+        for (int j = 0, count = checked.size(); j < count; j += 2) {
+            entries.put(checked.get(j), checked.get(j + 1));
+        }
+    }
+    
+    private void rewrite()
+    {
+        DataOutputStream output = null;
+        File tempFile = new File(file.getPath() + ".tmp");
+        
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(Version);
+            
+            Iterator i = entries.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry mapEntry = (Map.Entry)i.next();
+                writeRecord(output, (String)mapEntry.getKey(), (Entry)mapEntry.getValue());
+            }
+            output.close();
+            output = null;
+            
+            FileUtil.replace(tempFile, file);
+            fileRecords = entries.size();
+            unsavedPaths.clear();
+        }
+        catch (IOException e) {
+            // The file may now be missing or out of date.  Either way the
+            // worst that can happen is that files are digested again.
+        }
+        finally {
+            FileUtil.closeQuietly(output);
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * Writes a PutRecord for the path, or a RemoveRecord if entry is null.
+     */
+    private void writeRecord(DataOutputStream output, String path, Entry entry) throws IOException
+    {
+        if (entry == null) {
+            output.writeByte(RemoveRecord);
+            output.writeUTF(path);
+        }
+        else {
+            Signature signature = entry.signature;
+            
+            output.writeByte(PutRecord);
+            output.writeUTF(path);
+            output.writeLong(signature.fileKey);
+            output.writeLong(signature.size);
+            output.writeLong(signature.lastModified);
+            output.writeLong(signature.lastChanged);
+            output.writeByte(entry.digest.type());
+            output.write(entry.digest.digestBytes());
+        }
+        fileRecords++;
+    }
+    
+    private void load()
+    {
+        if (!file.exists()) {
+            rewrite();
+            return;
+        }
+        
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            
+            if (input.readInt() != Version) {
+                throw new IOException("Unknown digest cache version");
+            }
+            
+            while (true) {
+                int record = input.read();
+                
+                if (record == -1) {
+                    break;
+                }
+                
+                String path = input.readUTF();
+                if (record == PutRecord) {
+                    Signature signature = new Signature(input.readLong(), input.readLong(), input.readLong(), input.readLong());
+                    int type = input.readByte();
+                    byte digestBytes[] = new byte[16];
+                    input.readFully(digestBytes);
+                    entries.put(path, new Entry(signature, new FileDigest(digestBytes, type)));
+                }
+                else if (record == RemoveRecord) {
+                    entries.remove(path);
+                }
+                else {
+                    throw new IOException("Unknown digest cache record " + record);
+                }
+                fileRecords++;
+            }
+        }
+        catch (EOFException e) {
+            // The last record was only partially written.  Rewrite the file
+            // so that new records are not appended after it.
+            FileUtil.closeQuietly(input);
+            input = null;
+            rewrite();
+        }
+        catch (IOException e) {
+            entries.clear();
+            FileUtil.closeQuietly(input);
+            input = null;
+            rewrite();
+        }
+        finally {
+            FileUtil.closeQuietly(input);
+        }
+    }
+    
+    /**
+     * The attributes of a file which, if unchanged, indicate that its
+     * content is unchanged.
+     */
+    static class Signature
+    {
+        private long fileKey;
+        private long size;
+        private long lastModified;
+        private long lastChanged;
+        
+        Signature(long fileKey, long size, long lastModified, long lastChanged)
+        {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lastChanged = lastChanged;
+        }
+        
+        /**
+         * Returns the signature of the file, or null if it can't be read.
+         * Where the unix attribute view is available the device, inode and
+         * status change date are included.  Otherwise the platform's file
+         * key (if any) stands in for the device and inode.
+         */
+        public static Signature read(File file)
+        {
+            Path path = file.toPath();
+            
+            try {
+                Map attributes = Files.readAttributes(path, "unix:dev,ino,size,lastModifiedTime,ctime");
+                long fileKey = ((Number)attributes.get("dev")).longValue() * 31 + ((Number)attributes.get("ino")).longValue();
+                return new Signature(fileKey,
+                        ((Number)attributes.get("size")).longValue(),
+                        ((FileTime)attributes.get("lastModifiedTime")).toMillis(),
+                        ((FileTime)attributes.get("ctime")).toMillis());
+            }
+            catch (UnsupportedOperationException e) {
+            }
+            catch (IllegalArgumentException e) {
+            }
+            catch (IOException e) {
+                return null;
+            }
+            
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                Object fileKey = attributes.fileKey();
+                
+                return new Signature(fileKey == null ? 0 : fileKey.hashCode(),
+                        attributes.size(),
+                        attributes.lastModifiedTime().toMillis(),
+                        attributes.creationTime().toMillis());
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+        
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Signature)) {
+                return false;
+            }
+            Signature otherSignature = (Signature)other;
+            return fileKey == otherSignature.fileKey && size == otherSignature.size &&
+                   lastModified == otherSignature.lastModified &&
+                   lastChanged == otherSignature.lastChanged;
+        }
+        
+        public int hashCode()
+        {
+            return (int)(fileKey ^ size ^ lastModified);
+        }
+    }
+    
+    static class Entry
+    {
+        Signature signature;
+        FileDigest digest;
+        
+        Entry(Signature signature, FileDigest digest)
+        {
+            this.signature = signature;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import java.util.Arrays;
+
+/**
+ * DigestTable maps FileDigests to values, like a HashMap keyed by
+ * FileDigest, but keeps each key as the two longs of its bytes and its
+ * type rather than as a FileDigest and an entry.  A mapping therefore costs
+ * a slot in three arrays and no objects of its own, and a lookup compares
+ * primitives rather than calling equals.
+ * 
+ * It is a hash table using open addressing with linear probing, kept at
+ * most half full.  The digests are MD5s, whose bits are evenly
+ * distributed, so the hash is just the bits multiplied into the top of a
+ * long (see slot).  A removal moves back later entries of its probe
+ * sequence rather than leaving a marker, so lookups don't slow down as
+ * entries come and go.
+ * 
+ * DigestTable is not synchronized.
+ * 
+ * @author garrick
+ */
+final class DigestTable
+{
+    private static final int InitialCapacity = 64;
+    
+    /**
+     * The bits of the digest in each slot are at keys[2 * slot] and
+     * keys[2 * slot + 1].  A slot is empty if its value is null.
+     */
+    private long keys[];
+    private byte types[];
+    private Object values[];
+    private int shift;
+    private int count;
+    
+    public DigestTable()
+    {
+        allocate(InitialCapacity);
+    }
+    
+    public int size()
+    {
+        return count;
+    }
+    
+    /**
+     * Returns the value for digest, or null if there is none (or digest is
+     * null).
+     */
+    public Object get(FileDigest digest)
+    {
+        if (count == 0 || digest == null) {
+            return null;
+        }
+        int slot = find(digest.bits(0), digest.bits(1), digest.type());
+        return slot < 0 ? null : values[slot];
+    }
+    
+    /**
+     * Maps digest to value, which may not be null, replacing any value it
+     * had.
+     */
+    public void put(FileDigest digest, Object value)
+    {
+        if (value == null) {
+            throw new IllegalArgumentException("A DigestTable can't hold null");
+        }
+        
+        if ((count + 1) * 2 > values.length) {
+            long oldKeys[] = keys;
+            byte oldTypes[] = types;
+            Object oldValues[] = values;
+            allocate(values.length * 2);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    insert(oldKeys[2 * i], oldKeys[2 * i + 1], oldTypes[i], oldValues[i]);
+                }
+            }
+        }
+        
+        // The probe for the digest ends at its slot, or at the empty slot
+        // where it belongs.
+        long high = digest.bits(0);
+        long low = digest.bits(1);
+        int type = digest.type();
+        int mask = values.length - 1;
+        int slot = slot(high, low, type);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[2 * slot] == high && keys[2 * slot + 1] == low && types[slot] == type) {
+                values[slot] = value;
+                return;
+            }
+        }
+        keys[2 * slot] = high;
+        keys[2 * slot + 1] = low;
+        types[slot] = (byte)type;
+        values[slot] = value;
+        count++;
+    }
+    
+    /**
+     * Removes any value for digest.
+     */
+    public void remove(FileDigest digest)
+    {
+        if (count == 0) {
+            return;
+        }
+        int slot = find(digest.bits(0), digest.bits(1), digest.type());
+        if (slot < 0) {
+            return;
+        }
+        values[slot] = null;
+        count--;
+        
+        // Move back any later entries of the probe sequence that would no
+        // longer be reachable from their home slot.
+        int mask = values.length - 1;
+        int empty = slot;
+        for (slot = (slot + 1) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            int home = slot(keys[2 * slot], keys[2 * slot + 1], types[slot]);
+            boolean reachable = empty <= slot ? (home > empty && home <= slot) : (home > empty || home <= slot);
+            if (!reachable) {
+                keys[2 * empty] = keys[2 * slot];
+                keys[2 * empty + 1] = keys[2 * slot + 1];
+                types[empty] = types[slot];
+                values[empty] = values[slot];
+                values[slot] = null;
+                empty = slot;
+            }
+        }
+    }
+    
+    public void clear()
+    {
+        if (values.length > InitialCapacity) {
+            allocate(InitialCapacity);
+        }
+        else {
+            Arrays.fill(values, null);
+        }
+        count = 0;
+    }
+    
+    private void allocate(int capacity)
+    {
+        keys = new long[2 * capacity];
+        types = new byte[capacity];
+        values = new Object[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+    
+    /**
+     * Returns the home slot of a digest.  Multiplying by the golden ratio
+     * brings every bit of the digest to bear on the top bits of the
+     * product, which are the slot.
+     */
+    private int slot(long high, long low, int type)
+    {
+        return (int)(((high ^ low ^ type) * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+    
+    /**
+     * Returns the slot holding the digest, or -1 if it isn't in the table.
+     */
+    private int find(long high, long low, int type)
+    {
+        int mask = values.length - 1;
+        for (int slot = slot(high, low, type); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[2 * slot] == high && keys[2 * slot + 1] == low && types[slot] == type) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Puts a digest known not to be in the table in the first empty slot
+     * of its probe sequence.
+     */
+    private void insert(long high, long low, int type, Object value)
+    {
+        int mask = values.length - 1;
+        int slot = slot(high, low, type);
+        while (values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[2 * slot] = high;
+        keys[2 * slot + 1] = low;
+        types[slot] = (byte)type;
+        values[slot] = value;
+    }
+}
@@ -38,73 +38,184 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.locks.Lock;
 
 /**
+ * A DirectoryRevision records the children of its node that were added and
+ * removed at its date, so the members of the directory at that date are
+ * found by going back through the directory revisions before it (until a
+ * file revision breaks the chain).  A child is identified by its position
+ * among the node's children (see Node.position), and the changes are kept
+ * as sorted arrays of positions.
+ * 
+ * So that a lookup needn't go back through every earlier revision, one
+ * that goes back CheckpointInterval revisions leaves a checkpoint of the
+ * full membership behind it, along with one every CheckpointInterval
+ * revisions on the way.  Checkpoints are only a cache, and are dropped when
+ * the revisions they depend on change (see Node.membershipChanged).
+ * 
  * @author garrick
  */
 public class DirectoryRevision extends Revision
 {
-    private ArrayList added;
-    private ArrayList removed;
+    private static final int CheckpointInterval = 16;
+    
+    private Positions added;
+    private Positions removed;
+    
+    /**
+     * The positions of all the members, or null.  It is set by readers, so
+     * it is volatile, and it is never changed once set.
+     */
+    private transient volatile BitSet checkpoint;
+    
+    /**
+     * The members read by unarchive, until the node's children have their
+     * positions (see resolveMembers).
+     */
+    private transient List unarchivedAdded;
+    private transient List unarchivedRemoved;
     
     public DirectoryRevision()
     {
-        added = new ArrayList();
-        removed = new ArrayList();
+        added = new Positions();
+        removed = new Positions();
     }
     
-    public synchronized boolean isEmpty()
+    public boolean isEmpty()
     {
-        return added.isEmpty() && removed.isEmpty();
+        Lock readLock = node.database().readLock;
+        readLock.lock();
+        try {
+            return added.count == 0 && removed.count == 0;
+        }
+        finally {
+            readLock.unlock();
+        }
     }
 
+    /**
+     * Returns the children added in this revision.  The list is a copy.
+     */
     public ArrayList addedChildren()
     {
-        return added;
+        Lock readLock = node.database().readLock;
+        readLock.lock();
+        try {
+            return added.nodes(node);
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
-    public synchronized void addChild(Node child)
+    public void addChild(Node child)
     {
-        added.add(child);
-        removed.remove(child);
+        Lock writeLock = child.database().writeLock;
+        writeLock.lock();
+        try {
+            added.add(child.position());
+            removed.remove(child.position());
+            membershipChanged();
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
 
+    /**
+     * Returns the children removed in this revision.  The list is a copy.
+     */
     public ArrayList removedChildren()
     {
-        return removed;
+        Lock readLock = node.database().readLock;
+        readLock.lock();
+        try {
+            return removed.nodes(node);
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
-    public synchronized void removeChild(Node child)
+    public void removeChild(Node child)
     {
-        removed.add(child);
-        added.remove(child);
+        Lock writeLock = child.database().writeLock;
+        writeLock.lock();
+        try {
+            removed.add(child.position());
+            added.remove(child.position());
+            membershipChanged();
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
     
-    public synchronized void deleteChild(Node child)
+    /**
+     * Called by the node when its child at position is removed, after which
+     * the later children each move down a position.
+     */
+    void deleteChild(int position)
     {
-        removed.remove(child);
-        added.remove(child);        
+        added.delete(position);
+        removed.delete(position);
+        checkpoint = null;
     }
-
-    protected synchronized boolean wasChildRemovedLater(Node child, DirectoryRevision lastRevisionToCheck)
+    
+    /**
+     * The positions of the added and removed children, for DatabaseSnapshot.
+     */
+    int[] addedPositions()
     {
-        if (this == lastRevisionToCheck) {
-            return false;
+        return added.toArray();
+    }
+    
+    int[] removedPositions()
+    {
+        return removed.toArray();
+    }
+    
+    /**
+     * Sets the positions of the added and removed children of a revision
+     * being loaded by a DatabaseSnapshot.
+     */
+    void loadMembers(int addedPositions[], int removedPositions[])
+    {
+        added = new Positions(addedPositions);
+        removed = new Positions(removedPositions);
+    }
+    
+    private void membershipChanged()
+    {
+        if (node != null) {
+            node.membershipChanged(this);
         }
-        
-        for (Revision current = nextRevision(); current != null && current.isDirectory(); current = current.nextRevision()) {
-            DirectoryRevision directory = (DirectoryRevision)current;
-            if (directory.removedChildren().contains(child)) {
-                return true;
-            }
-            if (current == lastRevisionToCheck) {
-                break;
-            }
+        else {
+            checkpoint = null;
         }
-        return false;
+    }
+    
+    void dropCheckpoint()
+    {
+        checkpoint = null;
+    }
+    
+    /**
+     * Returns the previous revision of the node if it is a directory
+     * revision.  The node keeps the position of its directory revisions up
+     * to date, so this neither searches nor changes anything, and readers
+     * holding the read lock can follow the chain at once.
+     */
+    private DirectoryRevision previousDirectoryRevision()
+    {
+        return node.directoryRevisionBefore(position());
     }
 
     public boolean isDirectory()
@@ -112,24 +223,108 @@ public class DirectoryRevision extends Revision
         return true;
     }
     
-    public synchronized boolean hasChild(Node child)
+    public boolean hasChild(Node child)
     {
-        if (removed.contains(child)) {
-            return false;
+        Lock readLock = node.database().readLock;
+        readLock.lock();
+        try {
+            if (child.parent() != node) {
+                return false;
+            }
+            
+            int position = child.position();
+            DirectoryRevision current = this;
+            for (int i = 0; i < CheckpointInterval; i++) {
+                BitSet members = current.checkpoint;
+                if (members != null) {
+                    return members.get(position);
+                }
+                if (current.removed.contains(position)) {
+                    return false;
+                }
+                if (current.added.contains(position)) {
+                    return true;
+                }
+                current = current.previousDirectoryRevision();
+                if (current == null) {
+                    return false;
+                }
+            }
+            return membership().get(position);
         }
-        if (added.contains(child)) {
-            return true;
+        finally {
+            readLock.unlock();
         }
-        Revision previousRevision = previousRevision();
-        if (previousRevision == null || !previousRevision.isDirectory()) {
-            return false;
+    }
+    
+    /**
+     * Returns the positions of the members of this revision, which must not
+     * be modified.  It is built from the last checkpoint at or before this
+     * revision (or the start of the chain), and becomes a checkpoint itself
+     * if that was far back.
+     */
+    private BitSet membership()
+    {
+        BitSet members = checkpoint;
+        if (members != null) {
+            return members;
+        }
+        
+        ArrayList revisions = new ArrayList();
+        DirectoryRevision base = this;
+        while (base != null && base.checkpoint == null) {
+            revisions.add(base);
+            base = base.previousDirectoryRevision();
+        }
+        
+        members = base == null ? new BitSet() : (BitSet)base.checkpoint.clone();
+        for (int i = revisions.size() - 1, applied = 1; i >= 0; i--, applied++) {
+            DirectoryRevision revision = (DirectoryRevision)revisions.get(i);
+            revision.added.setIn(members);
+            revision.removed.clearIn(members);
+            
+            if (applied % CheckpointInterval == 0 && i > 0) {
+                revision.checkpoint = (BitSet)members.clone();
+            }
         }
-        return ((DirectoryRevision)previousRevision).hasChild(child);
+        if (revisions.size() >= CheckpointInterval) {
+            checkpoint = members;
+        }
+        return members;
     }
     
+    /**
+     * Returns an iterator over the members of this revision.  Those added
+     * most recently come first, and those added in the same revision are in
+     * the order they were added to the node.  The members are found up
+     * front, so changes made to the database while iterating aren't seen.
+     */
     public Iterator children()
     {
-        return new ChildrenIterator(this);
+        Lock readLock = node.database().readLock;
+        readLock.lock();
+        try {
+            BitSet members = membership();
+            List nodeChildren = node.children();
+            Node children[] = new Node[members.cardinality()];
+            BitSet found = new BitSet();
+            int count = 0;
+            
+            for (DirectoryRevision current = this; current != null && count < children.length; current = current.previousDirectoryRevision()) {
+                Positions added = current.added;
+                for (int i = 0; i < added.count; i++) {
+                    int position = added.values[i];
+                    if (members.get(position) && !found.get(position)) {
+                        found.set(position);
+                        children[count++] = (Node)nodeChildren.get(position);
+                    }
+                }
+            }
+            return new ChildrenIterator(children, count);
+        }
+        finally {
+            readLock.unlock();
+        }
     }
     
     /**
@@ -149,12 +344,13 @@ public class DirectoryRevision extends Revision
 	{
 	    writer.push("directory");
 	    super.serializeXML(writer);
-	    for (int i = 0, count = added.size(); i < count; i++) {
-	        Node child = (Node)added.get(i);
+	    List children = node.children();
+	    for (int i = 0; i < added.count; i++) {
+	        Node child = (Node)children.get(added.values[i]);
 	        writer.write("added", child.name());
 	    }
-	    for (int i = 0, count = removed.size(); i < count; i++) {
-	        Node child = (Node)removed.get(i);
+	    for (int i = 0; i < removed.count; i++) {
+	        Node child = (Node)children.get(removed.values[i]);
 	        writer.write("removed", child.name());
 	    }
 	    writer.pop();
@@ -192,68 +388,164 @@ public class DirectoryRevision extends Revision
     {
         super.archive(output);
         output.writeClassVersion("com.toubassi.filebunker.vault.DirectoryRevision", 1);
-        output.writeList(added, Archivable.StrictlyTypedReference);
-        output.writeList(removed, Archivable.StrictlyTypedReference);
+        output.writeList(addedChildren(), Archivable.StrictlyTypedReference);
+        output.writeList(removedChildren(), Archivable.StrictlyTypedReference);
     }
     
     public void unarchive(ArchiveInputStream input) throws IOException
     {
         super.unarchive(input);
         input.readClassVersion("com.toubassi.filebunker.vault.DirectoryRevision");
-        added = input.readList(Archivable.StrictlyTypedReference, Node.class);
-        removed = input.readList(Archivable.StrictlyTypedReference, Node.class);
+        unarchivedAdded = input.readList(Archivable.StrictlyTypedReference, Node.class);
+        unarchivedRemoved = input.readList(Archivable.StrictlyTypedReference, Node.class);
+    }
+    
+    /**
+     * Called by the node being unarchived once its children have their
+     * positions.  Members that are no longer children are dropped.
+     */
+    void resolveMembers(Node node)
+    {
+        if (unarchivedAdded != null) {
+            added = new Positions(unarchivedAdded, node);
+            removed = new Positions(unarchivedRemoved, node);
+            unarchivedAdded = null;
+            unarchivedRemoved = null;
+        }
+    }
+    
+    /**
+     * A set of positions kept in a sorted array.
+     */
+    private static final class Positions
+    {
+        private static final int NoValues[] = new int[0];
+        
+        int values[];
+        int count;
+        
+        Positions()
+        {
+            values = NoValues;
+        }
+        
+        Positions(int values[])
+        {
+            Arrays.sort(values);
+            this.values = values;
+            count = values.length;
+        }
+        
+        Positions(List members, Node node)
+        {
+            values = new int[members.size()];
+            for (int i = 0, size = members.size(); i < size; i++) {
+                Node member = (Node)members.get(i);
+                if (member.parent() == node) {
+                    values[count++] = member.position();
+                }
+            }
+            Arrays.sort(values, 0, count);
+        }
+        
+        boolean contains(int position)
+        {
+            return Arrays.binarySearch(values, 0, count, position) >= 0;
+        }
+        
+        void add(int position)
+        {
+            int index = Arrays.binarySearch(values, 0, count, position);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            
+            if (count == values.length) {
+                int newValues[] = new int[count < 2 ? 2 : count * 2];
+                System.arraycopy(values, 0, newValues, 0, count);
+                values = newValues;
+            }
+            System.arraycopy(values, index, values, index + 1, count - index);
+            values[index] = position;
+            count++;
+        }
+        
+        void remove(int position)
+        {
+            int index = Arrays.binarySearch(values, 0, count, position);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, count - index - 1);
+                count--;
+            }
+        }
+        
+        /**
+         * Removes position, and moves those after it down one.
+         */
+        void delete(int position)
+        {
+            remove(position);
+            for (int i = 0; i < count; i++) {
+                if (values[i] > position) {
+                    values[i]--;
+                }
+            }
+        }
+        
+        void setIn(BitSet members)
+        {
+            for (int i = 0; i < count; i++) {
+                members.set(values[i]);
+            }
+        }
+        
+        void clearIn(BitSet members)
+        {
+            for (int i = 0; i < count; i++) {
+                members.clear(values[i]);
+            }
+        }
+        
+        int[] toArray()
+        {
+            int array[] = new int[count];
+            System.arraycopy(values, 0, array, 0, count);
+            return array;
+        }
+        
+        ArrayList nodes(Node node)
+        {
+            ArrayList nodes = new ArrayList(count);
+            List children = node.children();
+            for (int i = 0; i < count; i++) {
+                nodes.add(children.get(values[i]));
+            }
+            return nodes;
+        }
     }
 }
 
 class ChildrenIterator implements Iterator
 {
-    DirectoryRevision revision;
-    DirectoryRevision current;
-    int index;
-    Node currentChild;
+    private Node children[];
+    private int count;
+    private int index;
     
-    public ChildrenIterator(DirectoryRevision revision)
+    public ChildrenIterator(Node children[], int count)
     {
-        this.revision = revision;
-        this.current = revision;
-        index = -1;
-        findNext();
+        this.children = children;
+        this.count = count;
     }
     
     public boolean hasNext()
     {
-        return currentChild != null;
+        return index < count;
     }
 
     public Object next()
     {
-        Node returnValue = currentChild;
-        findNext();
-        return returnValue;
-    }
-    
-    private void findNext()
-    {        
-        currentChild = null;
-        while (true) {
-            ArrayList added = current.addedChildren();
-
-            for (index++; index < added.size(); index++) {
-	            Node child = (Node)added.get(index);
-	            if (!current.wasChildRemovedLater(child, revision)) {
-	                currentChild = child;
-	                return;
-	            }
-	        }
-	        Revision previousRevision = current.previousRevision();
-	        if (previousRevision == null || !previousRevision.isDirectory()) {
-	            break;
-	        }
-	        else {
-		        current = (DirectoryRevision)previousRevision;
-		        index = -1;	            
-	        }
-        }
+        return index < count ? children[index++] : null;
     }
 
     public void remove()
@@ -262,6 +554,7 @@ class ChildrenIterator implements Iterator
     }
 }
 
+
 class DescendantsIterator implements Iterator
 {
     private Object current;
@@ -0,0 +1,110 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.io.AESCipherOutputStream;
+import com.toubassi.io.DESCipherOutputStream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.crypto.SecretKey;
+
+/**
+ * The keys derived from a vault password.  Deriving a key is deliberately
+ * expensive, so an EncryptionKey derives each key once and caches it.  The
+ * AES key used for new content is derived from a salt chosen when the
+ * EncryptionKey is created, so a VaultConfiguration hands out one
+ * EncryptionKey per password (see VaultConfiguration.encryptionKey).
+ * Content encrypted with other salts (e.g. by previous runs) is decrypted
+ * with a key derived for that salt, and those keys are cached by salt so
+ * that a restore spanning many backup sessions derives each one once.
+ * 
+ * @author garrick
+ */
+public class EncryptionKey
+{
+    private String password;
+    private byte salt[];
+    private SecretKey aesKey;
+    private SecretKey desKey;
+    private HashMap otherAESKeys = new HashMap();
+    
+    public EncryptionKey(String password)
+    {
+        this.password = password;
+        salt = AESCipherOutputStream.createSalt();
+    }
+    
+    public String password()
+    {
+        return password;
+    }
+    
+    /**
+     * The salt from which aesKey() was derived.
+     */
+    public byte[] salt()
+    {
+        return salt;
+    }
+    
+    public synchronized SecretKey aesKey()
+    {
+        if (aesKey == null) {
+            aesKey = AESCipherOutputStream.deriveKey(password, salt);
+        }
+        return aesKey;
+    }
+    
+    /**
+     * Returns the AES key for content encrypted with the specified salt.
+     */
+    public synchronized SecretKey aesKey(byte salt[])
+    {
+        if (Arrays.equals(salt, this.salt)) {
+            return aesKey();
+        }
+        ByteBuffer saltKey = ByteBuffer.wrap(salt);
+        SecretKey key = (SecretKey)otherAESKeys.get(saltKey);
+        if (key == null) {
+            key = AESCipherOutputStream.deriveKey(password, salt);
+            otherAESKeys.put(ByteBuffer.wrap((byte[])salt.clone()), key);
+        }
+        return key;
+    }
+    
+    /**
+     * The key for content stored before AES was used.
+     */
+    public synchronized SecretKey desKey()
+    {
+        if (desKey == null) {
+            desKey = DESCipherOutputStream.createKey(password);
+        }
+        return desKey;
+    }
+}
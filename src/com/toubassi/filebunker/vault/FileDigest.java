@@ -26,6 +26,7 @@ package com.toubassi.filebunker.vault;
 import com.toubassi.archive.Archivable;
 import com.toubassi.archive.ArchiveInputStream;
 import com.toubassi.archive.ArchiveOutputStream;
+import com.toubassi.io.ChannelInputStream;
 import com.toubassi.util.FileFind;
 import com.toubassi.util.FileFindDelegate;
 
@@ -36,19 +37,50 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeUtility;
 
 /**
+ * A FileDigest is normally the MD5 of the content of a file.  A TreeType
+ * digest is instead the root of a hash tree whose leaves are the MD5s of
+ * consecutive TreeSegmentSize segments of the file, which allows the
+ * segments of a very large file to be digested in parallel (see
+ * FileDigest(File, int)).  The two types of digest never equal each other,
+ * even for the same content.
+ * 
  * @author garrick
  */
 public class FileDigest implements Archivable
 {
+    public static final int MD5Type = 0;
+    public static final int TreeType = 1;
+    
+    public static final int TreeSegmentSize = 4 * 1024 * 1024;
+    
+    /**
+     * Files at least this large are digested by mapping them into memory
+     * rather than reading them.
+     */
+    private static final long MappedDigestThreshold = 1024 * 1024;
+    
+    /**
+     * The most of a file that is mapped at once.
+     */
+    private static final long MappedRegionSize = 64 * 1024 * 1024;
+    
+    private static ForkJoinPool treePool;
+    
+    private int type;
     private byte[] digestBytes;
     private String digestString;
 
@@ -64,37 +96,74 @@ public class FileDigest implements Archivable
 
 	public FileDigest(byte[] digestBytes)
     {        
-	    // For testing
+	    // For testing, or for digests computed incrementally using
+	    // createMessageDigest (see SpooledFile).
 	    this.digestBytes = digestBytes;	    
 	    if (digestBytes.length != 16) {
 	        throw new RuntimeException();
 	    }
     }
 
+    /**
+     * Creates a digest of the specified type from bytes previously returned
+     * by digestBytes (see DigestCache).
+     */
+    public FileDigest(byte[] digestBytes, int type)
+    {
+        this(digestBytes);
+        this.type = type;
+    }
+
     public FileDigest(File file) throws IOException
     {
-        this(file.getPath());
+        digestBytes = digestBytes(file);
     }
     
     public FileDigest(String path) throws IOException
     {
-        // No need to buffer because we will be reading in large chunks
-        this(new FileInputStream(path));
+        this(new File(path));
     }
     
-    public FileDigest(InputStream input) throws IOException
+    /**
+     * Returns a MessageDigest of the kind used to compute FileDigests.  This
+     * allows the digest to be computed while the file content is being read
+     * for some other purpose.  The resulting bytes can be passed to
+     * FileDigest(byte[]).
+     */
+    public static MessageDigest createMessageDigest()
     {
-        MessageDigest digest;
-
         try {
             //SHA-1 takes about 50% longer than MD5
-            digest = MessageDigest.getInstance("MD5");
+            return MessageDigest.getInstance("MD5");
         }
         catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    }
+    
+    /**
+     * Computes a digest of the specified type, e.g. the type of the digest
+     * of the last revision of the file so the two can be compared.
+     */
+    public FileDigest(File file, int type) throws IOException
+    {
+        if (type == MD5Type) {
+            digestBytes = new FileDigest(file).digestBytes;
+        }
+        else if (type == TreeType) {
+            digestBytes = treeDigestBytes(file);
+        }
+        else {
+            throw new IllegalArgumentException("Unknown digest type " + type);
+        }
+        this.type = type;
+    }
+    
+    public FileDigest(InputStream input) throws IOException
+    {
+        MessageDigest digest = createMessageDigest();
         
-        byte[] buffer = new byte[1024];        
+        byte[] buffer = new byte[64 * 1024];
         int numRead = 0;
         while ((numRead = input.read(buffer)) >= 0) {
             if (numRead > 0) {
@@ -110,6 +179,107 @@ public class FileDigest implements Archivable
         }
     }
     
+    public int type()
+    {
+        return type;
+    }
+    
+    public byte[] digestBytes()
+    {
+        return (byte[])digestBytes.clone();
+    }
+    
+    /**
+     * Large files are mapped a region at a time so their content is digested
+     * without being copied.  Mapping has a fixed cost, so smaller files are
+     * read through a buffer sized for the file.
+     */
+    private static byte[] digestBytes(File file) throws IOException
+    {
+        FileInputStream input = new FileInputStream(file);
+        
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            MessageDigest digest = createMessageDigest();
+            
+            if (length < MappedDigestThreshold) {
+                ByteBuffer buffer = ByteBuffer.allocate(ChannelInputStream.bufferSizeFor(length));
+                while (channel.read(buffer) >= 0) {
+                    digest.update(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            else {
+                for (long position = 0; position < length; position += MappedRegionSize) {
+                    long size = Math.min(MappedRegionSize, length - position);
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                    
+                    try {
+                        digest.update(region);
+                    }
+                    catch (InternalError e) {
+                        // The JVM reports a fault accessing a mapped region
+                        // this way, which happens if the file is truncated
+                        // while it is being digested.
+                        throw new IOException("Could not read " + file.getPath(), e);
+                    }
+                }
+            }
+            return digest.digest();
+        }
+        finally {
+            input.close();
+        }
+    }
+    
+    /**
+     * Reads the segments of the file on a ForkJoinPool with a thread per
+     * processor, using positional reads so the threads can share the file.
+     * Each pair of nodes is combined by taking the MD5 of their digests, and
+     * the root is combined with the length of the file.
+     */
+    private static byte[] treeDigestBytes(File file) throws IOException
+    {
+        FileInputStream input = new FileInputStream(file);
+        
+        try {
+            FileChannel channel = input.getChannel();
+            long length = channel.size();
+            long segments = Math.max(1, (length + TreeSegmentSize - 1) / TreeSegmentSize);
+            TreeDigestTask task = new TreeDigestTask(channel, 0, segments, length);
+            
+            byte root[] = (byte[])treePool().invoke(task);
+            MessageDigest digest = createMessageDigest();
+            digest.update(root);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                digest.update((byte)(length >>> shift));
+            }
+            return digest.digest();
+        }
+        catch (RuntimeException e) {
+            // The IOException from a TreeDigestTask may have been wrapped
+            // again when it was rethrown by the pool.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+            }
+            throw e;
+        }
+        finally {
+            input.close();
+        }
+    }
+    
+    private static synchronized ForkJoinPool treePool()
+    {
+        if (treePool == null) {
+            treePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return treePool;
+    }
+    
     public String digestString()
     {
         if (digestString == null) {
@@ -125,6 +295,11 @@ public class FileDigest implements Archivable
 				    throw new RuntimeException("Size of digest changed");
 				}
 				digestString = encoded.substring(0, 22);
+				if (type == TreeType) {
+				    // Distinguishes the name in the store from an MD5Type
+				    // digest with the same bytes.
+				    digestString = "t" + digestString;
+				}
             }
     	    catch (MessagingException e) {
     	        throw new RuntimeException(e);
@@ -143,7 +318,7 @@ public class FileDigest implements Archivable
             return false;
         }
         FileDigest otherDigest = (FileDigest)other;
-        return otherDigest.digestBytes != null &&
+        return otherDigest.digestBytes != null && type == otherDigest.type &&
         	   Arrays.equals(digestBytes, otherDigest.digestBytes);
     }
     
@@ -154,24 +329,108 @@ public class FileDigest implements Archivable
             // invoked, which is only supposed to be for unarchiving.
             throw new RuntimeException("Can't compute the hashCode before its been unarchived");
         }
-        int hash = digestBytes[0];
-        hash = (hash << 8) | digestBytes[3];
-        hash = (hash << 8) | digestBytes[7];
-        hash = (hash << 8) | digestBytes[11];
-        return hash;
+        // Every bit of an MD5 is as good as any other, so the two halves
+        // are simply folded together.  The bytes must be taken unsigned, or
+        // a negative byte sign extends over the rest.
+        long bits = bits(0) ^ bits(1);
+        return (int)(bits ^ (bits >>> 32)) ^ type;
+    }
+    
+    /**
+     * Returns the first (index 0) or second (index 1) eight bytes of the
+     * digest as a long, e.g. for hashing without copying digestBytes.
+     */
+    long bits(int index)
+    {
+        long bits = 0;
+        for (int i = index * 8, end = i + 8; i < end; i++) {
+            bits = (bits << 8) | (digestBytes[i] & 0xff);
+        }
+        return bits;
     }
     
     public void archive(ArchiveOutputStream output) throws IOException
     {
-        output.writeClassVersion("com.toubassi.filebunker.vault.FileDigest", 1);
+        output.writeClassVersion("com.toubassi.filebunker.vault.FileDigest", 2);
         output.write(digestBytes);
+        output.writeByte(type);
     }
 
     public void unarchive(ArchiveInputStream input) throws IOException
     {
-        input.readClassVersion("com.toubassi.filebunker.vault.FileDigest");
+        int version = input.readClassVersion("com.toubassi.filebunker.vault.FileDigest");
         digestBytes = new byte[16];
         input.readFully(digestBytes);
+        if (version >= 2) {
+            type = input.readByte();
+        }
+    }
+    
+    /**
+     * Computes the digest of segments [firstSegment, lastSegment) of the
+     * channel, splitting the range in half until there is a single segment.
+     */
+    static class TreeDigestTask extends RecursiveTask
+    {
+        private static final long serialVersionUID = 1L;
+        private static final int BufferSize = 64 * 1024;
+        
+        private FileChannel channel;
+        private long firstSegment;
+        private long lastSegment;
+        private long length;
+        
+        TreeDigestTask(FileChannel channel, long firstSegment, long lastSegment, long length)
+        {
+            this.channel = channel;
+            this.firstSegment = firstSegment;
+            this.lastSegment = lastSegment;
+            this.length = length;
+        }
+        
+        protected Object compute()
+        {
+            try {
+                if (lastSegment - firstSegment == 1) {
+                    return segmentDigest();
+                }
+                
+                long middle = (firstSegment + lastSegment) / 2;
+                TreeDigestTask left = new TreeDigestTask(channel, firstSegment, middle, length);
+                TreeDigestTask right = new TreeDigestTask(channel, middle, lastSegment, length);
+                right.fork();
+                byte leftDigest[] = (byte[])left.compute();
+                byte rightDigest[] = (byte[])right.join();
+                
+                MessageDigest digest = createMessageDigest();
+                digest.update(leftDigest);
+                digest.update(rightDigest);
+                return digest.digest();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        private byte[] segmentDigest() throws IOException
+        {
+            MessageDigest digest = createMessageDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(BufferSize);
+            long position = firstSegment * TreeSegmentSize;
+            long end = Math.min(length, position + TreeSegmentSize);
+            
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(BufferSize, end - position));
+                int numRead = channel.read(buffer, position);
+                if (numRead < 0) {
+                    throw new IOException("File shrank while being digested");
+                }
+                digest.update(buffer.array(), 0, numRead);
+                position += numRead;
+            }
+            return digest.digest();
+        }
     }
     
     
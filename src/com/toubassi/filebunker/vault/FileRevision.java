@@ -39,6 +39,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
+ * Once added to a Node, a FileRevision is a view of one of the node's
+ * revisions, which the node stores as a date and an identifier rather than
+ * as a FileRevision (see Node.revisionAt).  Different views of the same
+ * revision are equal.  The node, rather than the FileRevision, holds the
+ * reference to the identifier.
+ * 
  * @author garrick
  */
 public class FileRevision extends Revision
@@ -49,20 +55,9 @@ public class FileRevision extends Revision
     {
     }
 
-    public void revisionWasRemoved()
-    {
-        if (identifier != null) {
-            identifier.removeReference();
-        }
-    }
-    
     public void setIdentifier(RevisionIdentifier identifier)
     {
-        if (this.identifier != null) {
-            this.identifier.removeReference();
-        }
         this.identifier = identifier;
-        identifier.addReference();
     }
 
     public RevisionIdentifier identifier()
@@ -91,13 +86,28 @@ public class FileRevision extends Revision
      */
     public float backedupSizeRatio()
     {
-        long backedupSize = backedupSize();
-        long size = size();
-        
-        if (backedupSize == 0 || size == 0) {
-            return 1;
+        return identifier != null ? identifier.backedupSizeRatio() : 1;
+    }
+    
+    /**
+     * A node has at most one revision at a given date, so two FileRevisions
+     * are the same revision if they have the same node and date.
+     */
+    public boolean equals(Object object)
+    {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof FileRevision)) {
+            return false;
         }
-        return ((float)backedupSize) / ((float)size);
+        FileRevision other = (FileRevision)object;
+        return node != null && node == other.node && date().equals(other.date());
+    }
+    
+    public int hashCode()
+    {
+        return date() == null ? 0 : date().hashCode();
     }
 
 	public void serializeXML(XMLSerializer writer)
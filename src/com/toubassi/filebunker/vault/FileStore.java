@@ -108,6 +108,15 @@ public interface FileStore extends XMLSerializable
 	 * @throws			 VaultException
 	 */
 	public void backupFile(File file, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException;
+
+	/**
+	 * Like backupFile, but the content has already been compressed and
+	 * encrypted into a SpooledFile (see FileStoreUtil.spool), so the original
+	 * file is not read again.  The listener is not told of progress (that
+	 * happened while spooling) but may still cancel the operation.  The
+	 * caller remains responsible for deleting the SpooledFile.
+	 */
+	public void backupSpooledFile(SpooledFile spooledFile, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException;
 	
 	/**
 	 * The specified date is used to identify which password should be used
@@ -27,47 +27,266 @@ THE SOFTWARE.
  */
 package com.toubassi.filebunker.vault;
 
+import com.toubassi.io.AESCipherInputStream;
+import com.toubassi.io.AESCipherOutputStream;
 import com.toubassi.io.ByteCountingInputStream;
+import com.toubassi.io.ChannelInputStream;
 import com.toubassi.io.DESCipherInputStream;
-import com.toubassi.io.DESCipherOutputStream;
 import com.toubassi.io.OutputStreamFilteredInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
+ * Stored content is compressed and then (if there is an EncryptionKey)
+ * encrypted.  The compressed content begins with a header naming the Codec
+ * used.  Content stored before codecs existed is gzip, which is recognized
+ * by the gzip magic number instead of the header.  Content is encrypted
+ * with AES (see AESCipherOutputStream), whose header also distinguishes it
+ * from content stored before AES was used, which is encrypted with DES.
+ * 
  * @author garrick
  */
 public class FileStoreUtil
 {
-    public static ByteCountingInputStream backupInputStream(File file, String password, FileOperationListener listener) throws IOException
+    private static final byte CodecHeaderMagic[] = {(byte)'F', (byte)'B', (byte)'C'};
+    private static final int CodecHeaderVersion = 1;
+    
+    private static final int GZIPMagic1 = 0x1f;
+    private static final int GZIPMagic2 = 0x8b;
+    
+    /**
+     * How far into stored content restoreInputStream may read before
+     * deciding how it was encrypted.
+     */
+    private static final int FormatReadLimit = 8192;
+    
+    public static ByteCountingInputStream backupInputStream(File file, EncryptionKey key, FileOperationListener listener) throws IOException
     {
-		FileInputStream fileInput = new FileInputStream(file);
+		ChannelInputStream fileInput = new ChannelInputStream(file);
 		FileProgressInputStream progressInput = new FileProgressInputStream(fileInput, file, listener);
-		BufferedInputStream bufferedStream = new BufferedInputStream(progressInput, 2048);
-		OutputStreamFilteredInputStream filteredStream = new OutputStreamFilteredInputStream(bufferedStream);
-		GZIPOutputStream compressStream;
-
-		if (password != null) {
-			DESCipherOutputStream cipherStream = new DESCipherOutputStream(filteredStream.finalOutputStream(), password);
-			compressStream = new GZIPOutputStream(cipherStream);		
-		}
-		else {
-			compressStream = new GZIPOutputStream(filteredStream.finalOutputStream());		
-		}
+		OutputStreamFilteredInputStream filteredStream = new OutputStreamFilteredInputStream(progressInput);
+		OutputStream compressStream = encodingOutputStream(filteredStream.finalOutputStream(), key, Codec.defaultCodec());
         
 		filteredStream.setFilterStream(compressStream);
 		return new ByteCountingInputStream(filteredStream);
     }
     
-    public static InputStream restoreInputStream(InputStream input, String password) throws IOException
+    /**
+     * Reads the file exactly once, computing its FileDigest while at the same
+     * time compressing and encrypting it into a SpooledFile.  The spooled
+     * content is in the same format backupInputStream produces.  The
+     * listener is notified of progress as the file is read.
+     * 
+     * @param spoolDirectory Where to put the spooled content if it is too
+     *                       large to be held in memory.  If null, the system
+     *                       temporary directory is used.
+     */
+    public static SpooledFile spool(File file, File spoolDirectory, EncryptionKey key, FileOperationListener listener) throws IOException
+    {
+        return spool(file, spoolDirectory, key, null, listener);
+    }
+
+    /**
+     * Like spool, but the codec is chosen by selector (if not null) once the
+     * first block of the file has been read.
+     */
+    public static SpooledFile spool(File file, File spoolDirectory, EncryptionKey key, CodecSelector selector, FileOperationListener listener) throws IOException
+    {
+        SpooledFile spooledFile = new SpooledFile(file, spoolDirectory);
+        boolean succeeded = false;
+
+        try {
+            MessageDigest digest = FileDigest.createMessageDigest();
+            ChannelInputStream fileInput = new ChannelInputStream(file);
+            FileProgressInputStream progressInput = new FileProgressInputStream(fileInput, file, listener);
+            byte buffer[] = new byte[CodecSelector.SampleSize];
+            OutputStream compressStream = null;
+            long size = 0;
+            int numRead;
+
+            try {
+                // Fill the buffer so the codec can be chosen from a sample
+                int sampleLength = 0;
+                while (sampleLength < buffer.length &&
+                       (numRead = progressInput.read(buffer, sampleLength, buffer.length - sampleLength)) >= 0)
+                {
+                    sampleLength += numRead;
+                }
+                
+                Codec codec = selector == null ? Codec.defaultCodec() : selector.codecFor(file, buffer, 0, sampleLength);
+                compressStream = encodingOutputStream(spooledFile.outputStream(), key, codec);
+                digest.update(buffer, 0, sampleLength);
+                compressStream.write(buffer, 0, sampleLength);
+                size += sampleLength;
+                
+                while ((numRead = progressInput.read(buffer)) >= 0) {
+                    if (numRead > 0) {
+                        digest.update(buffer, 0, numRead);
+                        compressStream.write(buffer, 0, numRead);
+                        size += numRead;
+                    }
+                }
+            }
+            finally {
+                progressInput.close();
+            }
+            compressStream.close();
+
+            spooledFile.setContent(new FileDigest(digest.digest()), size);
+            succeeded = true;
+            return spooledFile;
+        }
+        finally {
+            if (!succeeded) {
+                spooledFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Compresses and encrypts len bytes of buf into a SpooledFile.  This is
+     * used for the chunks of a file (see SpooledChunks) and for packs (see
+     * PackBuilder), so the digest of the bytes is computed by the caller,
+     * and file is the file the bytes came from.  The codec is chosen by
+     * selector, or is the default codec if selector is null.
+     */
+    public static SpooledFile spool(File file, FileDigest digest, byte buf[], int off, int len, File spoolDirectory, EncryptionKey key, CodecSelector selector) throws IOException
+    {
+        SpooledFile spooledFile = new SpooledFile(file, spoolDirectory);
+        boolean succeeded = false;
+        
+        try {
+            Codec codec = Codec.defaultCodec();
+            if (selector != null) {
+                codec = selector.codecFor(file, buf, off, Math.min(len, CodecSelector.SampleSize));
+            }
+            OutputStream compressStream = encodingOutputStream(spooledFile.outputStream(), key, codec);
+            compressStream.write(buf, off, len);
+            compressStream.close();
+            
+            spooledFile.setContent(digest, len);
+            succeeded = true;
+            return spooledFile;
+        }
+        finally {
+            if (!succeeded) {
+                spooledFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Returns a stream which compresses with codec and encrypts (if key is
+     * not null) into output, in the same format as backupInputStream.
+     */
+    private static OutputStream encodingOutputStream(OutputStream output, EncryptionKey key, Codec codec) throws IOException
     {
-		DESCipherInputStream cipherInput = new DESCipherInputStream(input, password);
-		return new GZIPInputStream(cipherInput);			
+        if (key != null) {
+            output = new AESCipherOutputStream(output, key.aesKey(), key.salt());
+        }
+        output.write(CodecHeaderMagic);
+        output.write(CodecHeaderVersion);
+        output.write(codec.id());
+        return codec.compressingStream(output);
+    }
+
+    /**
+     * Returns a stream of the spooled content suitable for uploading to a
+     * store.  The listener is given the opportunity to cancel as the content
+     * is read, but progress is not reported since it was already reported
+     * when the file was spooled.
+     */
+    public static ByteCountingInputStream spooledInputStream(SpooledFile spooledFile, FileOperationListener listener) throws IOException
+    {
+        InputStream input = spooledFile.openStream();
+        
+        if (listener != null) {
+            input = new FileProgressInputStream(input, spooledFile.file(), new CancelOnlyFileOperationListener(listener));
+        }
+        return new ByteCountingInputStream(input);
+    }
+    
+    public static InputStream restoreInputStream(InputStream input, EncryptionKey key) throws IOException
+    {
+        InputStream decodedInput;
+        
+        if (key == null) {
+            decodedInput = decodingInputStream(input);
+        }
+        else {
+            if (!input.markSupported()) {
+                input = new BufferedInputStream(input, FormatReadLimit);
+            }
+            input.mark(FormatReadLimit);
+            
+            AESCipherInputStream.Header header = AESCipherInputStream.readHeader(input);
+            decodedInput = null;
+            if (header != null) {
+                decodedInput = decodingInputStream(new AESCipherInputStream(input, key.aesKey(header.salt()), header));
+            }
+            if (decodedInput == null) {
+                // Stored before AES was used (or DES content which happened
+                // to begin with the AES header).
+                input.reset();
+                decodedInput = decodingInputStream(new DESCipherInputStream(input, key.desKey()));
+            }
+        }
+        
+        if (decodedInput == null) {
+            throw new IOException("Unrecognized stored file format");
+        }
+        return decodedInput;
+    }
+    
+    /**
+     * Returns a stream which decompresses the decrypted input, or null if
+     * input does not begin with a recognized header.
+     */
+    private static InputStream decodingInputStream(InputStream input) throws IOException
+    {
+		PushbackInputStream pushbackInput = new PushbackInputStream(input, CodecHeaderMagic.length);
+		byte magic[] = new byte[CodecHeaderMagic.length];
+		int magicLength = readFully(pushbackInput, magic);
+		
+		if (magicLength >= 2 && (magic[0] & 0xff) == GZIPMagic1 && (magic[1] & 0xff) == GZIPMagic2) {
+			// Stored before codecs existed.
+			pushbackInput.unread(magic, 0, magicLength);
+			return new GZIPInputStream(pushbackInput);
+		}
+		
+		if (magicLength != magic.length || !Arrays.equals(magic, CodecHeaderMagic)) {
+			return null;
+		}
+		
+		int version = pushbackInput.read();
+		if (version != CodecHeaderVersion) {
+			throw new IOException("Unsupported stored file version " + version);
+		}
+		
+		int codecId = pushbackInput.read();
+		Codec codec = Codec.codecWithId(codecId);
+		if (codec == null) {
+			throw new IOException("Unknown codec " + codecId);
+		}
+		return codec.decompressingStream(pushbackInput);
+    }
+    
+    private static int readFully(InputStream input, byte buf[]) throws IOException
+    {
+        int length = 0;
+        int numRead;
+        
+        while (length < buf.length && (numRead = input.read(buf, length, buf.length - length)) >= 0) {
+            length += numRead;
+        }
+        return length;
     }
 }
@@ -231,7 +231,7 @@ public class GMailFileStore extends WebMailFileStore
 			
 			// The GMailMultiPartInputStream will check the conversation back in
 			input = new GMailMultiPartInputStream(this, wc, messageIds);
-			return FileStoreUtil.restoreInputStream(input, vaultConfig.passwordForDate(date));
+			return FileStoreUtil.restoreInputStream(input, vaultConfig.encryptionKeyForDate(date));
 		}
 		catch (Exception e) {
 		    // If an exception occurred, we may need to check in the web conversation
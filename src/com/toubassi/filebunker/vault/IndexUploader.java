@@ -0,0 +1,254 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * IndexUploader backs up the BackupDatabase to the store, so it can be
+ * recovered if the configuration directory is lost.  Rather than uploading
+ * the whole database every time it changes, its snapshot is uploaded as a
+ * base (named BaseName), and after that only segments of its journal (see
+ * DatabaseJournal) covering what has been committed since the last upload
+ * (named SegmentName followed by the generation and sequence number).  To
+ * recover the database, retrieve and decrypt the most recent base and the
+ * segments of the same generation, and pass them to BackupDatabase.rebuild.
+ * 
+ * A new base is uploaded whenever the database saves a new snapshot, which
+ * it does once its journal has grown large relative to the snapshot.  The
+ * database is also made to save one when MaximumSegments have been uploaded
+ * since the last base, so recovery never needs more than that many.
+ * 
+ * What has been uploaded is recorded in a file in the configuration
+ * directory.  If the file is lost, a new base is uploaded.
+ * 
+ * @author garrick
+ */
+class IndexUploader
+{
+    public static final String BaseName = "BackupIndex";
+    public static final String SegmentName = "BackupIndexSegment";
+    
+    public static final int MaximumSegments = 64;
+    
+    private static final int Version = 1;
+    
+    private File file;
+    private BackupDatabase backupdb;
+    private FileStore store;
+    private VaultConfiguration config;
+    private File spoolDirectory;
+    
+    /**
+     * The generation of the last base uploaded, the length of its journal
+     * that has been uploaded, and the number of segments that took.
+     */
+    private long generation = -1;
+    private long uploadedLength;
+    private int segments;
+    
+    public IndexUploader(File file, BackupDatabase backupdb, FileStore store,
+            VaultConfiguration config, File spoolDirectory)
+    {
+        this.file = file;
+        this.backupdb = backupdb;
+        this.store = store;
+        this.config = config;
+        this.spoolDirectory = spoolDirectory;
+        load();
+    }
+    
+    /**
+     * Uploads whatever is needed to bring the copy of the database in the
+     * store up to date with what has been committed locally.
+     */
+    public void upload(FileOperationListener listener) throws VaultException, IOException
+    {
+        // The snapshot only changes when the journal is compacted into it,
+        // and the journal only when the database changes, neither of which
+        // can happen while we hold the database's read lock.  Saving a new
+        // snapshot needs the write lock, so that is done first, and the
+        // write lock is then exchanged for the read lock while what is to be
+        // uploaded is spooled.  The upload itself doesn't need the database,
+        // so it can change while that takes place.
+        Lock readLock = backupdb.readLock;
+        Lock writeLock = backupdb.writeLock;
+        boolean rebase;
+        long newGeneration;
+        long journalLength;
+        SpooledFile spooledIndex = null;
+        SpooledFile spooledSegment = null;
+        
+        writeLock.lock();
+        try {
+            rebase = backupdb.generation() != generation || !backupdb.file().exists();
+            
+            // If the journal is shorter than what we uploaded, it was lost
+            // or rolled back, so the segments in the store no longer match.
+            if (segments >= MaximumSegments || backupdb.journalLength() < uploadedLength) {
+                rebase = true;
+            }
+            if (rebase && (backupdb.generation() == generation || !backupdb.file().exists())) {
+                backupdb.save();
+            }
+            readLock.lock();
+        }
+        finally {
+            writeLock.unlock();
+        }
+        
+        try {
+            newGeneration = backupdb.generation();
+            journalLength = backupdb.journalLength();
+            long segmentStart = rebase ? DatabaseJournal.HeaderLength : uploadedLength;
+            
+            if (rebase) {
+                if (listener != null) {
+                    listener.willProcessFile(backupdb.file());
+                }
+                spooledIndex = FileStoreUtil.spool(backupdb.file(),
+                        spoolDirectory, config.currentEncryptionKey(), listener);
+            }
+            
+            if (journalLength > segmentStart) {
+                if (listener != null) {
+                    listener.willProcessFile(backupdb.journalFile());
+                }
+                byte segment[] = backupdb.journalSegment(segmentStart);
+                MessageDigest digest = FileDigest.createMessageDigest();
+                digest.update(segment);
+                
+                spooledSegment = FileStoreUtil.spool(backupdb.journalFile(),
+                        new FileDigest(digest.digest()), segment, 0, segment.length,
+                        spoolDirectory, config.currentEncryptionKey(), null);
+            }
+        }
+        catch (IOException e) {
+            if (spooledIndex != null) {
+                spooledIndex.delete();
+            }
+            throw e;
+        }
+        finally {
+            readLock.unlock();
+        }
+        
+        try {
+            if (spooledIndex != null) {
+                backup(spooledIndex, BaseName, listener);
+                
+                generation = newGeneration;
+                uploadedLength = DatabaseJournal.HeaderLength;
+                segments = 0;
+                save();
+            }
+            
+            if (spooledSegment != null) {
+                backup(spooledSegment, SegmentName + " " + generation + "." + (segments + 1), listener);
+                
+                uploadedLength = journalLength;
+                segments++;
+                save();
+            }
+        }
+        finally {
+            if (spooledSegment != null) {
+                spooledSegment.delete();
+            }
+        }
+    }
+    
+    private void backup(SpooledFile spooledFile, String name, FileOperationListener listener) throws VaultException
+    {
+        try {
+            RevisionIdentifier identifier = new RevisionIdentifier(
+                    spooledFile.digest(), spooledFile.size());
+
+            store.backupSpooledFile(spooledFile, name, identifier, listener);
+        }
+        finally {
+            spooledFile.delete();
+        }
+    }
+    
+    private void save() throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(tempFile));
+        
+        try {
+            output.writeInt(Version);
+            output.writeLong(generation);
+            output.writeLong(uploadedLength);
+            output.writeInt(segments);
+        }
+        finally {
+            output.close();
+        }
+        
+        FileUtil.replace(tempFile, file);
+    }
+    
+    private void load()
+    {
+        if (!file.exists()) {
+            return;
+        }
+        
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            
+            if (input.readInt() == Version) {
+                generation = input.readLong();
+                uploadedLength = input.readLong();
+                segments = input.readInt();
+            }
+        }
+        catch (IOException e) {
+            // Start over with a new base.
+            generation = -1;
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -29,15 +29,13 @@ package com.toubassi.filebunker.vault;
 
 import com.subx.common.NotificationCenter;
 import com.toubassi.io.ByteCountingInputStream;
+import com.toubassi.io.ChannelInputStream;
 import com.toubassi.io.XMLDeserializer;
 import com.toubassi.io.XMLSerializable;
 import com.toubassi.io.XMLSerializer;
 import com.toubassi.util.ClassUtil;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -53,6 +51,8 @@ import java.util.Date;
  */
 public class LocalDiskFileStore implements FileStore
 {
+    private static final int CopyBufferSize = 64 * 1024;
+    
     private long availableBytes = 1000*1024*1024; // 1000 MB
     private File rootDirectory;
     private VaultConfiguration vaultConfig;
@@ -92,32 +92,23 @@ public class LocalDiskFileStore implements FileStore
 	public void backupFile(File file, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
     {
 		try {
-            identifier.setHandlerName(name());
-            
-	        String password = vaultConfig.currentPassword();
-	        ByteCountingInputStream countingStream = FileStoreUtil.backupInputStream(file, password, listener);
-			
-	        File target = fileForGuid(identifier.guid());
-	        File parent = target.getParentFile();
-	        if (!parent.isDirectory() && !parent.mkdirs()) {
-	            throw new VaultException("Could not make directory " + target.getParentFile().getPath());
-	        }
-			FileOutputStream fileOutput = new FileOutputStream(target);
-			BufferedOutputStream bufferedOutput = new BufferedOutputStream(fileOutput, 2048);
-			
-			byte buffer[] = new byte[2048];
-			int numRead;
-			
-			while ((numRead = countingStream.read(buffer)) >= 0) {
-			    bufferedOutput.write(buffer, 0, numRead);
-			}
-
-			countingStream.close();                
-            bufferedOutput.close();                
-
-		    long backedupSize = countingStream.byteCount();
-		    adjustAvailableBytes(backedupSize);
-		    identifier.setBackedupSize(backedupSize);
+	        EncryptionKey key = vaultConfig.currentEncryptionKey();
+	        backupStream(identifier, FileStoreUtil.backupInputStream(file, key, listener));
+		}
+		catch (OperationCanceledIOException e) {
+		    throw new OperationCanceledVaultException(e);
+		}
+        catch (IOException e) {
+            throw new VaultException(file, "Could not backup " + file.getPath() + " due to errors reading the file.", e);
+        }
+    }
+
+	public void backupSpooledFile(SpooledFile spooledFile, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
+    {
+	    File file = spooledFile.file();
+	    
+		try {
+	        backupStream(identifier, FileStoreUtil.spooledInputStream(spooledFile, listener));
 		}
 		catch (OperationCanceledIOException e) {
 		    throw new OperationCanceledVaultException(e);
@@ -127,13 +118,38 @@ public class LocalDiskFileStore implements FileStore
         }
     }
 
+    private void backupStream(RevisionIdentifier identifier, ByteCountingInputStream countingStream) throws IOException, VaultException
+    {
+        identifier.setHandlerName(name());
+
+        File target = fileForGuid(identifier.guid());
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new VaultException("Could not make directory " + target.getParentFile().getPath());
+        }
+        FileOutputStream fileOutput = new FileOutputStream(target);
+
+        byte buffer[] = new byte[CopyBufferSize];
+        int numRead;
+
+        while ((numRead = countingStream.read(buffer)) >= 0) {
+            fileOutput.write(buffer, 0, numRead);
+        }
+
+        countingStream.close();
+        fileOutput.close();
+
+        long backedupSize = countingStream.byteCount();
+        adjustAvailableBytes(backedupSize);
+        identifier.setBackedupSize(backedupSize);
+    }
+
     public InputStream restoreFile(RevisionIdentifier identifier, Date date)
             throws VaultException
     {
         try {
-            FileInputStream fileInput = new FileInputStream(fileForGuid(identifier.guid()));
-            BufferedInputStream input = new BufferedInputStream(fileInput, 2048);
-			return FileStoreUtil.restoreInputStream(input, vaultConfig.passwordForDate(date));
+            ChannelInputStream input = new ChannelInputStream(fileForGuid(identifier.guid()));
+			return FileStoreUtil.restoreInputStream(input, vaultConfig.encryptionKeyForDate(date));
         }
         catch (IOException e) {
             throw new VaultException("Error encountered.  The file could not be restored.", e);            
@@ -0,0 +1,364 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+/**
+ * NameTable interns the names of Nodes.  Each distinct name is stored once,
+ * encoded as in DataOutput.writeUTF, in a shared arena of bytes, and is
+ * identified by an int.  A node therefore costs four bytes for its name
+ * rather than a String and its characters, and the many nodes that share a
+ * name (e.g. every "CVS" directory) share its bytes.  Names can be looked
+ * up directly from a region of a path, so walking a path needn't create a
+ * String for each component.
+ * 
+ * Names are never removed, since they are small and nodes are rarely
+ * deleted.
+ * 
+ * Every node's name is looked up through the database's table, by many
+ * readers at once, so only intern is synchronized.  The arrays are
+ * published to readers through a volatile Contents, which is replaced
+ * whenever a name is added.  Arrays are copied rather than changed when
+ * they grow, and a name is never rewritten once added, so what a reader's
+ * Contents covers doesn't change underneath it.
+ * 
+ * @author garrick
+ */
+final class NameTable
+{
+    private byte bytes[];
+    private int length;
+    
+    /**
+     * The name with id i occupies bytes from offsets[i] to offsets[i + 1].
+     */
+    private int offsets[];
+    private int hashes[];
+    private int count;
+    
+    /**
+     * A hash table of ids + 1 by the hashCode of their name (0 is an empty
+     * slot), using open addressing with linear probing.
+     */
+    private int slots[];
+    
+    /**
+     * What readers see, which is replaced as names are added.
+     */
+    private volatile Contents contents;
+    
+    public NameTable()
+    {
+        bytes = new byte[16 * 1024];
+        offsets = new int[1025];
+        hashes = new int[1024];
+        slots = new int[2048];
+        contents = new Contents(bytes, offsets, hashes, slots, count);
+    }
+    
+    /**
+     * Returns the same value as String.hashCode for the characters of path
+     * from start to end.
+     */
+    public static int hash(String path, int start, int end)
+    {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + path.charAt(i);
+        }
+        return hash;
+    }
+    
+    public synchronized int intern(String path, int start, int end)
+    {
+        int hash = hash(path, start, end);
+        int id = contents.find(path, start, end, hash);
+        if (id != -1) {
+            return id;
+        }
+        
+        ensureCapacity(3 * (end - start));
+        encode(path, start, end);
+        return add(hash);
+    }
+    
+    /**
+     * Interns the name encoded (as by DataOutput.writeUTF, without the
+     * length) in utf from start to end.  See DatabaseSnapshot.
+     */
+    public synchronized int intern(byte utf[], int start, int end)
+    {
+        int hash = 0;
+        for (int offset = start; offset < end; ) {
+            int b = utf[offset++] & 0xff;
+            if (b < 0x80) {
+                hash = 31 * hash + b;
+            }
+            else if (b < 0xe0) {
+                hash = 31 * hash + (((b & 0x1f) << 6) | (utf[offset++] & 0x3f));
+            }
+            else {
+                int b2 = utf[offset++] & 0x3f;
+                int b3 = utf[offset++] & 0x3f;
+                hash = 31 * hash + (((b & 0x0f) << 12) | (b2 << 6) | b3);
+            }
+        }
+        
+        int id = contents.find(utf, start, end, hash);
+        if (id != -1) {
+            return id;
+        }
+        
+        ensureCapacity(end - start);
+        System.arraycopy(utf, start, bytes, length, end - start);
+        length += end - start;
+        return add(hash);
+    }
+    
+    /**
+     * Adds the name whose bytes were just appended to the arena.
+     */
+    private int add(int hash)
+    {
+        int id = count;
+        if (id == hashes.length) {
+            hashes = grow(hashes);
+            offsets = grow(offsets);
+        }
+        hashes[id] = hash;
+        offsets[id + 1] = length;
+        count++;
+        
+        if (count * 2 > slots.length) {
+            rehash();
+        }
+        else {
+            insert(id);
+        }
+        contents = new Contents(bytes, offsets, hashes, slots, count);
+        return id;
+    }
+    
+    /**
+     * Returns the id of the name made up of the characters of path from
+     * start to end, or -1 if there is no such name.
+     */
+    public int find(String path, int start, int end)
+    {
+        return contents.find(path, start, end, hash(path, start, end));
+    }
+    
+    public String name(int id)
+    {
+        return contents.name(id);
+    }
+    
+    public int hashCode(int id)
+    {
+        return contents.hashes[id];
+    }
+    
+    private void ensureCapacity(int needed)
+    {
+        if (bytes.length - length < needed) {
+            int capacity = bytes.length * 2;
+            while (capacity - length < needed) {
+                capacity *= 2;
+            }
+            byte newBytes[] = new byte[capacity];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+        }
+    }
+    
+    private void encode(String path, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            
+            if (c > 0 && c < 0x80) {
+                bytes[length++] = (byte)c;
+            }
+            else if (c < 0x800) {
+                bytes[length++] = (byte)(0xc0 | (c >> 6));
+                bytes[length++] = (byte)(0x80 | (c & 0x3f));
+            }
+            else {
+                bytes[length++] = (byte)(0xe0 | (c >> 12));
+                bytes[length++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+    }
+    
+    /**
+     * Readers may be probing slots, but they ignore an id they don't have
+     * yet.
+     */
+    private void insert(int id)
+    {
+        int mask = slots.length - 1;
+        int slot = spread(hashes[id]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id + 1;
+    }
+    
+    private void rehash()
+    {
+        slots = new int[slots.length * 2];
+        for (int id = 0; id < count; id++) {
+            insert(id);
+        }
+    }
+    
+    private static int[] grow(int array[])
+    {
+        int newArray[] = new int[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+    
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+    
+    /**
+     * The names with ids below count.  Those entries of the arrays are
+     * never changed, though the rest may be as names are added.
+     */
+    private static final class Contents
+    {
+        final byte bytes[];
+        final int offsets[];
+        final int hashes[];
+        final int slots[];
+        final int count;
+        
+        Contents(byte bytes[], int offsets[], int hashes[], int slots[], int count)
+        {
+            this.bytes = bytes;
+            this.offsets = offsets;
+            this.hashes = hashes;
+            this.slots = slots;
+            this.count = count;
+        }
+        
+        int find(String path, int start, int end, int hash)
+        {
+            int mask = slots.length - 1;
+            for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (id < count && hashes[id] == hash && matches(id, path, start, end)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+        
+        int find(byte utf[], int start, int end, int hash)
+        {
+            int mask = slots.length - 1;
+            for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (id < count && hashes[id] == hash && matches(id, utf, start, end)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+        
+        String name(int id)
+        {
+            int offset = offsets[id];
+            int end = offsets[id + 1];
+            char chars[] = new char[end - offset];
+            int length = 0;
+            
+            while (offset < end) {
+                int b = bytes[offset++] & 0xff;
+                if (b < 0x80) {
+                    chars[length++] = (char)b;
+                }
+                else if (b < 0xe0) {
+                    chars[length++] = (char)(((b & 0x1f) << 6) | (bytes[offset++] & 0x3f));
+                }
+                else {
+                    int b2 = bytes[offset++] & 0x3f;
+                    int b3 = bytes[offset++] & 0x3f;
+                    chars[length++] = (char)(((b & 0x0f) << 12) | (b2 << 6) | b3);
+                }
+            }
+            return new String(chars, 0, length);
+        }
+        
+        private boolean matches(int id, String path, int start, int end)
+        {
+            int offset = offsets[id];
+            int nameEnd = offsets[id + 1];
+            
+            for (int i = start; i < end; i++) {
+                char c = path.charAt(i);
+                
+                if (c > 0 && c < 0x80) {
+                    if (offset == nameEnd || bytes[offset++] != c) {
+                        return false;
+                    }
+                }
+                else if (c < 0x800) {
+                    if (nameEnd - offset < 2
+                            || bytes[offset++] != (byte)(0xc0 | (c >> 6))
+                            || bytes[offset++] != (byte)(0x80 | (c & 0x3f))) {
+                        return false;
+                    }
+                }
+                else {
+                    if (nameEnd - offset < 3
+                            || bytes[offset++] != (byte)(0xe0 | (c >> 12))
+                            || bytes[offset++] != (byte)(0x80 | ((c >> 6) & 0x3f))
+                            || bytes[offset++] != (byte)(0x80 | (c & 0x3f))) {
+                        return false;
+                    }
+                }
+            }
+            return offset == nameEnd;
+        }
+        
+        private boolean matches(int id, byte utf[], int start, int end)
+        {
+            int offset = offsets[id];
+            if (offsets[id + 1] - offset != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (bytes[offset++] != utf[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -41,9 +41,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.SortedSet;
 
@@ -52,24 +54,303 @@ import java.util.SortedSet;
  */
 public class Node implements XMLSerializable, Serializable, Archivable
 {
+    /**
+     * Nodes with more children than this index them by name (see
+     * childIndex), and smaller ones are simply searched.
+     */
+    private static final int ChildIndexThreshold = 8;
+    
+    private static final long NoDates[] = new long[0];
+    
+    /**
+     * Maps a time to a shared array holding just that time.  Most nodes
+     * have a single revision, and all the revisions from a backup have the
+     * same time, so they share an array.  The dates of a node are never
+     * modified in place, so this is safe.
+     */
+    private static final HashMap singleDates = new HashMap();
+    private static final Node NoChildren[] = new Node[0];
+    
+    /**
+     * The database this node is in.  Nodes are guarded by its lock (see
+     * BackupDatabase.lock) rather than each by its own monitor.  Public
+     * methods take it once themselves, so the tree can be browsed while a
+     * backup is recording revisions, and walk the subtree with private
+     * methods that expect it to be held.
+     */
+    private transient BackupDatabase database;
+    
     private Node parent;
-    private String name;
-    private File file;
-    private List revisions;
-    private List children;
     
+    /**
+     * The id of this node's name in the database's NameTable, or -1 if it
+     * has none.  Nodes hold the id rather than a String, and their path is
+     * built when asked for rather than cached, since there are a great many
+     * of them.
+     */
+    private int name;
+    
+    /**
+     * The index of this node among its parent's children, by which the
+     * parent's DirectoryRevisions refer to it.
+     */
+    private int position;
+    
+    /**
+     * The revisions are kept in columns rather than as Revision objects.
+     * revisionDates holds the time of each revision in increasing order,
+     * and revisionContents what each refers to: the RevisionIdentifier of a
+     * file revision or the DirectoryRevision of a directory revision.  With
+     * a single revision its content is held directly, and otherwise
+     * revisionContents is an Object[] of the same length as revisionDates.
+     * FileRevisions are created as they are asked for (see revisionAt), so
+     * there is no object per file revision other than its identifier, which
+     * is often shared.
+     * 
+     * revisionDates is volatile so that a node loaded by one reader is seen
+     * whole by others (see load).
+     */
+    private volatile long revisionDates[];
+    private Object revisionContents;
+    
+    /**
+     * The children are kept in an array that grows as needed, as most nodes
+     * have none.  The first childCount elements are never changed in place
+     * (a child is removed by copying), so children() can return a view of
+     * them.
+     */
+    private Node children[];
+    private int childCount;
+    
+    // A node from a DatabaseSnapshot is created knowing only its name, and
+    // the rest is read from its record when it is first used (see load).
+    // Until then revisionDates is null, revisionContents is the snapshot,
+    // and childCount is the offset of the record, so an unloaded node costs
+    // no more than a loaded one.
+    
+    /**
+     * A hash table of the children by name, using open addressing with
+     * linear probing.  Its length is a power of two, and at least twice the
+     * number of children.  It is kept up to date as children are added
+     * rather than built by a lookup, since lookups only hold the read lock,
+     * and it is null for nodes with few children.
+     */
+    private transient Node childIndex[];
+    
+    /**
+     * The number of file revisions of this node and its descendants.  It is
+     * kept up to date along the ancestors as revisions and children are
+     * added and removed, so isEmpty and totalFileRevisions needn't walk the
+     * subtree, and a node from a snapshot knows it before it is loaded.
+     */
+    private int fileRevisions;
+    
+    /**
+     * The totalBackedupSize of the subtree, which is kept up to date like
+     * fileRevisions.  The share of an identifier's size that a revision
+     * counts (see RevisionIdentifier.effectiveBackedupSize) depends on what
+     * else refers to it, so the identifier applies changes in it to the
+     * nodes that refer to it as well (see backedupSizeChanged).
+     */
+    private transient long totalBackedupSize;
+    
+    /**
+     * Creates a node that is given its database and name when it is added
+     * as a child or unarchived.
+     */
     public Node()
     {
-        this(null);
+        name = -1;
+        revisionDates = NoDates;
+        children = NoChildren;
     }
     
-    public Node(String name)
+    /**
+     * Creates the root of database.
+     */
+    Node(BackupDatabase database)
     {
-        this.name = name;
-        revisions = Collections.EMPTY_LIST;
-        children = Collections.EMPTY_LIST;
+        this();
+        this.database = database;
+    }
+    
+    /**
+     * Creates a node of database named by the characters of path from start
+     * to end.
+     */
+    Node(BackupDatabase database, String path, int start, int end)
+    {
+        this.database = database;
+        name = database.names.intern(path, start, end);
+        revisionDates = NoDates;
+        children = NoChildren;
     }
 
+    /**
+     * Creates a node of database whose children and revisions are in the
+     * record at offset in snapshot, and whose subtree had the specified
+     * totals when the snapshot was opened.  See DatabaseSnapshot.
+     */
+    Node(BackupDatabase database, int name, DatabaseSnapshot snapshot, int offset, int fileRevisions, long totalBackedupSize)
+    {
+        this.database = database;
+        this.name = name;
+        revisionContents = snapshot;
+        childCount = offset;
+        this.fileRevisions = fileRevisions;
+        this.totalBackedupSize = totalBackedupSize;
+    }
+    
+    /**
+     * Reads this node's record if it came from a snapshot and hasn't been
+     * read yet.  Every method that looks at the children or revisions calls
+     * this first.  Any number of readers may get here at once, so the
+     * record is read holding the node's monitor, and revisionDates is set
+     * last.  Once it is, the monitor is never needed again.
+     */
+    void load()
+    {
+        if (revisionDates == null) {
+            synchronized (this) {
+                if (revisionDates == null) {
+                    DatabaseSnapshot snapshot = (DatabaseSnapshot)revisionContents;
+                    int offset = childCount;
+                    
+                    revisionContents = null;
+                    children = NoChildren;
+                    childCount = 0;
+                    long dates[] = snapshot.load(this, offset);
+                    
+                    if (dates == null) {
+                        revisionDates = NoDates;
+                    }
+                    else if (dates.length == 1) {
+                        revisionDates = singleDate(dates[0]);
+                    }
+                    else {
+                        revisionDates = dates;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sets the children of a node being loaded by a DatabaseSnapshot.
+     */
+    void loadChildren(Node children[])
+    {
+        this.children = children;
+        childCount = children.length;
+        for (int i = 0; i < childCount; i++) {
+            children[i].setParent(this);
+            children[i].position = i;
+        }
+        if (childCount > ChildIndexThreshold) {
+            indexChildren();
+        }
+    }
+    
+    /**
+     * Sets the contents of the revisions of a node being loaded by a
+     * DatabaseSnapshot, which returns their dates to load.  Each content is
+     * a RevisionIdentifier, whose reference count already includes this
+     * node, or a DirectoryRevision.
+     */
+    void loadRevisions(Object contents[])
+    {
+        revisionContents = contents.length == 1 ? contents[0] : contents;
+        for (int i = 0; i < contents.length; i++) {
+            if (contents[i] instanceof RevisionIdentifier) {
+                ((RevisionIdentifier)contents[i]).referrerLoaded(this);
+            }
+            else {
+                ((DirectoryRevision)contents[i]).setPosition(i);
+            }
+        }
+    }
+    
+    BackupDatabase database()
+    {
+        return database;
+    }
+    
+    int position()
+    {
+        return position;
+    }
+    
+    // The following are for DatabaseSnapshot, which holds the lock.
+    
+    int childCount()
+    {
+        return childCount;
+    }
+    
+    Node childAt(int index)
+    {
+        return children[index];
+    }
+    
+    int fileRevisions()
+    {
+        return fileRevisions;
+    }
+    
+    long backedupSize()
+    {
+        return totalBackedupSize;
+    }
+    
+    /**
+     * The id of this node's name, for DatabaseSnapshot.
+     */
+    int nameId()
+    {
+        return name;
+    }
+    
+    /**
+     * Called by RevisionIdentifier.shareChanged, with the write lock held,
+     * when the share of one of this node's revisions has changed by delta.
+     */
+    void backedupSizeChanged(long delta)
+    {
+        subtreeChanged(0, delta);
+    }
+    
+    /**
+     * Adds the deltas to the fileRevisions and totalBackedupSize of this
+     * node and its ancestors.
+     */
+    private void subtreeChanged(int revisionsDelta, long sizeDelta)
+    {
+        for (Node node = this; node != null; node = node.parent) {
+            node.fileRevisions += revisionsDelta;
+            node.totalBackedupSize += sizeDelta;
+        }
+    }
+    
+    int revisionCount()
+    {
+        load();
+        return revisionDates.length;
+    }
+    
+    long revisionTime(int index)
+    {
+        return revisionDates[index];
+    }
+    
+    /**
+     * Returns the RevisionIdentifier or DirectoryRevision of the revision at
+     * index.  See revisionContents.
+     */
+    Object revisionContent(int index)
+    {
+        return contentAt(index);
+    }
+    
     public void setParent(Node parent)
     {
         this.parent = parent;
@@ -82,449 +363,1060 @@ public class Node implements XMLSerializable, Serializable, Archivable
     
     public void setName(String name)
     {
-        this.name = name;
+        database.writeLock.lock();
+        try {
+            this.name = name == null ? -1 : database.names.intern(name, 0, name.length());
+            if (parent != null && parent.childIndex != null) {
+                parent.indexChildren();
+            }
+        }
+        finally {
+            database.writeLock.unlock();
+        }
     }
     
     public String name()
     {
-        return name;
+        return name == -1 ? null : database.names.name(name);
     }
     
-    private synchronized void collectDescendantFileRevisionDates(Collection dates, boolean onlyCollectChildren)
+    private void collectDescendantFileRevisionDates(Collection dates, boolean onlyCollectChildren)
     {
+        load();
         if (!onlyCollectChildren) {
-            collectFileRevisionDates(dates);
+            addFileRevisionDates(dates);
         }
         
-        for (int i = 0; i < children.size() ; i++) {
-            Node child = (Node)children.get(i);
+        for (int i = 0; i < childCount; i++) {
+            Node child = children[i];
 
             child.collectDescendantFileRevisionDates(dates, false);
         }        
     }
 
-    public synchronized void collectDescendantFileRevisionDates(Collection dates)
+    public void collectDescendantFileRevisionDates(Collection dates)
     {
-        collectDescendantFileRevisionDates(dates, true);
+        database.readLock.lock();
+        try {
+            collectDescendantFileRevisionDates(dates, true);
+        }
+        finally {
+            database.readLock.unlock();
+        }
     }
     
-    public synchronized void collectFileRevisionDates(Collection dates)
+    public void collectFileRevisionDates(Collection dates)
     {
-	    for (int i = 0; i < revisions.size(); i++) {
-	        Revision revision = (Revision)revisions.get(i);
-	        
-	        if (!revision.isDirectory()) {
-	            FileRevision fileRevision = (FileRevision)revision;
-	            dates.add(fileRevision.date());
+        database.readLock.lock();
+        try {
+            load();
+            addFileRevisionDates(dates);
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    private void addFileRevisionDates(Collection dates)
+    {
+	    for (int i = 0; i < revisionDates.length; i++) {
+	        if (!isDirectoryAt(i)) {
+	            dates.add(Revision.uniqueDate(revisionDates[i]));
 	        }
 	    }
     }
     
-    public synchronized boolean isEmpty()
+    /**
+     * Returns true if neither this node nor any of its descendants has a
+     * file revision.
+     */
+    public boolean isEmpty()
     {
-        for (int i = 0; i < revisions.size(); i++) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                return false;
-            }
+        return totalFileRevisions() == 0;
+    }
+    
+    public int totalFileRevisions()
+    {
+        database.readLock.lock();
+        try {
+            return fileRevisions;
         }
-        
-        for (int i = 0; i < children.size() ; i++) {
-            Node child = (Node)children.get(i);
-
-            if (!child.isEmpty()) {
-                return false;
-            }
+        finally {
+            database.readLock.unlock();
         }
-        
-        return true;        
     }
     
-    public synchronized int totalFileRevisions()
+    public long totalBackedupSize()
     {
-        int total = 0;
-        
-        for (int i = 0; i < revisions.size(); i++) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                total++;
-            }
+        database.readLock.lock();
+        try {
+            return totalBackedupSize;
+        }
+        finally {
+            database.readLock.unlock();
         }
-        
-        for (int i = 0; i < children.size() ; i++) {
-            Node child = (Node)children.get(i);
-            
-            total += child.totalFileRevisions();
-        }        
-        return total;
     }
     
-    public synchronized long totalBackedupSize()
+    public long nodeBackedupSize()
     {
-        long totalBackedupSize = nodeBackedupSize();
-        
-        for (int i = 0, count = children.size(); i < count; i++) {
-            Node child = (Node)children.get(i);
-            totalBackedupSize += child.totalBackedupSize();
+        database.readLock.lock();
+        try {
+            return revisionsBackedupSize();
+        }
+        finally {
+            database.readLock.unlock();
         }
-        
-        return totalBackedupSize;
     }
     
-    public synchronized long nodeBackedupSize()
+    private long revisionsBackedupSize()
     {
+        load();
         long nodeBackedupSize = 0;
-        
-        for (int i = 0, count = revisions.size(); i < count; i++) {
-            Revision revision = (Revision)revisions.get(i);
+    
+        for (int i = 0, count = revisionDates.length; i < count; i++) {
+            RevisionIdentifier identifier = identifierAt(i);
 
-            if (!revision.isDirectory()) {
-                FileRevision fileRevision = (FileRevision)revision;
-                nodeBackedupSize += fileRevision.effectiveBackedupSize();
+            if (identifier != null) {
+                nodeBackedupSize += identifier.effectiveBackedupSize();
             }
         }
-        
+    
         return nodeBackedupSize;
     }
 
-    public synchronized void findLargestNodes(SortedSet set, int maxNodesToReturn)
+    public void findLargestNodes(SortedSet set, int maxNodesToReturn)
+    {
+        database.readLock.lock();
+        try {
+            addLargestNodes(set, maxNodesToReturn);
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    private void addLargestNodes(SortedSet set, int maxNodesToReturn)
     {
+        load();
         if (maxNodesToReturn == -1 || set.size() < maxNodesToReturn) {
             set.add(this);
         }
         else {
-            long smallest = ((Node)set.last()).nodeBackedupSize();
-            
-            if (nodeBackedupSize() > smallest) {
+            long smallest = ((Node)set.last()).revisionsBackedupSize();
+        
+            if (revisionsBackedupSize() > smallest) {
                 set.remove(set.last());
                 set.add(this);
             }
         }
-        
-        for (int i = 0, count = children.size(); i < count; i++) {
-            Node child = (Node)children.get(i);
-            child.findLargestNodes(set, maxNodesToReturn);
+    
+        for (int i = 0, count = childCount; i < count; i++) {
+            Node child = children[i];
+            child.addLargestNodes(set, maxNodesToReturn);
         }
     }
 
-	public synchronized File file()
+	public File file()
 	{
-	    if (file == null) {
-	    	StringBuffer buffer = new StringBuffer();
-	    	getFullPath(buffer);
-	        file = new File(buffer.toString());
-	    }
-	    return file;
+		database.readLock.lock();
+		try {
+		    StringBuffer buffer = new StringBuffer();
+		    addPath(buffer);
+		    return new File(buffer.toString());
+		}
+		finally {
+			database.readLock.unlock();
+		}
 	}
 
-	private synchronized void getFullPath(StringBuffer buffer)
+	/**
+	 * Appends the full path of this node to buffer.  Callers building many
+	 * paths can reuse a buffer rather than creating a File for each node.
+	 */
+	public void appendPath(StringBuffer buffer)
+	{
+		database.readLock.lock();
+		try {
+		    addPath(buffer);
+		}
+		finally {
+			database.readLock.unlock();
+		}
+	}
+	
+	private void addPath(StringBuffer buffer)
 	{
 		// If we are the root node, we are done.
 		if (parent == null) {
 			return;
 		}
-				
-		parent.getFullPath(buffer);			
-		
+			
+		parent.addPath(buffer);			
+	
 		// On linux we always prepend with a slash since paths start
 		// that way, while on windows slashes only SEPARATE components
 		// (the first component is a drive).
 		if (buffer.length() > 0 || !Platform.isWindows()) {
 			buffer.append(File.separatorChar);							
 		}
-		buffer.append(name);
+		buffer.append(name());
 	}
 
+	/**
+	 * Returns the revisions in order.  The FileRevisions are views (see
+	 * revisionAt), so the list is a copy.
+	 */
 	public List revisions()
     {
-        return revisions;
+        database.readLock.lock();
+        try {
+            load();
+            if (revisionDates.length == 0) {
+                return Collections.EMPTY_LIST;
+            }
+        
+            ArrayList revisions = new ArrayList(revisionDates.length);
+            for (int i = 0, count = revisionDates.length; i < count; i++) {
+                revisions.add(revisionAt(i));
+            }
+            return revisions;
+        }
+        finally {
+            database.readLock.unlock();
+        }
     }
     
-    public synchronized void addRevision(Revision revision)
+    private Object contentAt(int index)
     {
-        Date date = revision.date();
-        if (date != null) {
-            Revision lastRevision = lastRevision();
-            if (lastRevision != null) {
-                if (!date.after(lastRevision.date())) {
-                    throw new IllegalArgumentException("Can't add a revision with a date earlier than the last revision " + date + " " + lastRevision.date());
-                }
+        if (revisionDates.length == 1) {
+            return revisionContents;
+        }
+        return ((Object[])revisionContents)[index];
+    }
+    
+    private boolean isDirectoryAt(int index)
+    {
+        return contentAt(index) instanceof DirectoryRevision;
+    }
+    
+    /**
+     * Returns the identifier of the revision at index, or null if it is a
+     * directory revision.
+     */
+    private RevisionIdentifier identifierAt(int index)
+    {
+        Object content = contentAt(index);
+        return content instanceof RevisionIdentifier ? (RevisionIdentifier)content : null;
+    }
+    
+    /**
+     * Returns the revision at index.  A DirectoryRevision is returned as is,
+     * and knows its index already, since the methods that move it keep it up
+     * to date.  A FileRevision is created as a view of the row (see
+     * FileRevision.equals) that remembers where it was found.  Either way
+     * previousRevision and nextRevision needn't search.
+     */
+    private Revision revisionAt(int index)
+    {
+        Object content = contentAt(index);
+        
+        if (content instanceof DirectoryRevision) {
+            return (DirectoryRevision)content;
+        }
+        
+        FileRevision revision = new FileRevision();
+        revision.setNode(this);
+        revision.setDate(Revision.uniqueDate(revisionDates[index]));
+        revision.setIdentifier((RevisionIdentifier)content);
+        revision.setPosition(index);
+        return revision;
+    }
+    
+    private int indexOfRevision(Revision revision)
+    {
+        long time = revision.date().getTime();
+        
+        // The dates are distinct, so the revision is at the position it
+        // was found at if the date there still matches.
+        int index = revision.position();
+        if (index < 0 || index >= revisionDates.length || revisionDates[index] != time) {
+            index = Arrays.binarySearch(revisionDates, time);
+            if (index < 0) {
+                return -1;
+            }
+        }
+        
+        Object content = contentAt(index);
+        if (revision.isDirectory() ? content == revision : !(content instanceof DirectoryRevision)) {
+            return index;
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the index of the last revision at or before time, or -1 if
+     * there is none.
+     */
+    private int indexOfRevisionAt(long time)
+    {
+        int index = Arrays.binarySearch(revisionDates, time);
+        return index >= 0 ? index : -index - 2;
+    }
+    
+    /**
+     * Returns the revision before the one at index if it is a directory
+     * revision, or null.  DirectoryRevision calls this holding the lock,
+     * with the index it was last added or moved to, to walk its chain.
+     */
+    DirectoryRevision directoryRevisionBefore(int index)
+    {
+        if (index <= 0) {
+            return null;
+        }
+        Object content = contentAt(index - 1);
+        return content instanceof DirectoryRevision ? (DirectoryRevision)content : null;
+    }
+    
+    private static long[] singleDate(long time)
+    {
+        synchronized (singleDates) {
+            Long key = Long.valueOf(time);
+            long dates[] = (long[])singleDates.get(key);
+            if (dates == null) {
+                dates = new long[] {time};
+                singleDates.put(key, dates);
             }
+            return dates;
+        }
+    }
+    
+    private void appendRevision(long time, Object content)
+    {
+        int count = revisionDates.length;
+        
+        if (content instanceof DirectoryRevision) {
+            ((DirectoryRevision)content).setPosition(count);
+        }
+        if (count == 0) {
+            revisionContents = content;
+            revisionDates = singleDate(time);
+            return;
+        }
+        
+        Object newContents[] = new Object[count + 1];
+        for (int i = 0; i < count; i++) {
+            newContents[i] = contentAt(i);
         }
+        newContents[count] = content;
+        revisionContents = newContents;
+        
+        long newDates[] = new long[count + 1];
+        System.arraycopy(revisionDates, 0, newDates, 0, count);
+        newDates[count] = time;
+        revisionDates = newDates;
+    }
+    
+    private void removeRevisionAt(int index)
+    {
+        int count = revisionDates.length - 1;
+        
+        Object removed = contentAt(index);
+        if (removed instanceof DirectoryRevision) {
+            ((DirectoryRevision)removed).setPosition(-1);
+        }
+        
+        if (count == 0) {
+            revisionContents = null;
+            revisionDates = NoDates;
+            return;
+        }
+        
+        if (count == 1) {
+            revisionContents = contentAt(1 - index);
+            revisionDates = singleDate(revisionDates[1 - index]);
+            positionDirectoryRevisions(0);
+            dropCheckpoints(0);
+            return;
+        }
+        
+        Object contents[] = (Object[])revisionContents;
+        Object newContents[] = new Object[count];
+        System.arraycopy(contents, 0, newContents, 0, index);
+        System.arraycopy(contents, index + 1, newContents, index, count - index);
+        revisionContents = newContents;
 
+        long newDates[] = new long[count];
+        System.arraycopy(revisionDates, 0, newDates, 0, index);
+        System.arraycopy(revisionDates, index + 1, newDates, index, count - index);
+        revisionDates = newDates;
+        
+        // The directory revisions that followed the removed one have moved
+        // down, and may now follow others.
+        positionDirectoryRevisions(index);
+        dropCheckpoints(index);
+    }
+    
+    /**
+     * Tells the directory revisions from index on where they now are.
+     */
+    private void positionDirectoryRevisions(int index)
+    {
+        for (int i = index, count = revisionDates.length; i < count; i++) {
+            Object content = contentAt(i);
+            if (content instanceof DirectoryRevision) {
+                ((DirectoryRevision)content).setPosition(i);
+            }
+        }
+    }
+    
+    /**
+     * Drops the checkpoints (see DirectoryRevision) of the directory
+     * revisions from index to the end of their run.
+     */
+    private void dropCheckpoints(int index)
+    {
+        for (int i = index, count = revisionDates.length; i < count && isDirectoryAt(i); i++) {
+            ((DirectoryRevision)contentAt(i)).dropCheckpoint();
+        }
+    }
+    
+    /**
+     * Called with the write lock held when the members of revision have
+     * changed, which changes the members of the directory revisions that
+     * follow it.
+     */
+    void membershipChanged(DirectoryRevision revision)
+    {
+        int index = indexOfRevision(revision);
+        if (index == -1) {
+            revision.dropCheckpoint();
+        }
+        else {
+            dropCheckpoints(index);
+        }
+    }
+    
+    /**
+     * Adds revision as the latest revision of this node.  A FileRevision's
+     * date and identifier are recorded, and it becomes a view of that
+     * revision.  The node holds a reference to the identifier for as long
+     * as the revision exists.  Whatever else refers to the identifier must
+     * have been loaded, since its share changes (see
+     * DatabaseSnapshot.loadReferrers).
+     */
+    public void addRevision(Revision revision)
+    {
+        database.writeLock.lock();
+        try {
+            load();
+            Date date = revision.date();
+            if (revisionDates.length > 0 && date.getTime() <= revisionDates[revisionDates.length - 1]) {
+                throw new IllegalArgumentException("Can't add a revision with a date earlier than the last revision " + date + " " + new Date(revisionDates[revisionDates.length - 1]));
+            }
+            appendRevision(revision);
+        }
+        finally {
+            database.writeLock.unlock();
+        }
+    }
+    
+    private void appendRevision(Revision revision)
+    {
         revision.setNode(this);
-        if (revisions == Collections.EMPTY_LIST) {
-            revisions = new ArrayList();
+        if (revision.isDirectory()) {
+            // Share the Date with the revisions of other nodes at the same
+            // time, as FileRevisions do (see revisionAt).
+            long time = revision.date().getTime();
+            revision.setDate(Revision.uniqueDate(time));
+            appendRevision(time, revision);
+        }
+        else {
+            RevisionIdentifier identifier = ((FileRevision)revision).identifier();
+            long share = identifier.addReference(this);
+            appendRevision(revision.date().getTime(), identifier);
+            subtreeChanged(1, share);
         }
-        revisions.add(revision);
     }
     
-    public synchronized FileRevision findRevisionWithHandlerName(String name)
+    /**
+     * Returns true if this node has a revision later than date, i.e. if
+     * findRevision(date) is not the last revision.
+     */
+    public boolean hasRevisionAfter(Date date)
     {
-        for (int i = children.size() - 1 ; i >=0; i--) {
-            Node child = (Node)children.get(i);
-            
-            FileRevision fileRevision = child.findRevisionWithHandlerName(name);
+        database.readLock.lock();
+        try {
+            load();
+            return revisionDates.length > 0 && revisionDates[revisionDates.length - 1] > date.getTime();
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    public FileRevision findRevisionWithHandlerName(String name)
+    {
+        database.readLock.lock();
+        try {
+            return revisionWithHandlerName(name);
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    private FileRevision revisionWithHandlerName(String name)
+    {
+        load();
+        for (int i = childCount - 1 ; i >=0; i--) {
+            Node child = children[i];
+        
+            FileRevision fileRevision = child.revisionWithHandlerName(name);
             if (fileRevision != null) {
                 return fileRevision;
             }
         }
+    
+        for (int i = revisionDates.length - 1 ; i >=0; i--) {
+            RevisionIdentifier identifier = identifierAt(i);
         
-        for (int i = revisions.size() - 1 ; i >=0; i--) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                FileRevision fileRevision = (FileRevision)revision;
-                
-                if (name.equals(fileRevision.identifier().handlerName())) {
-                    return fileRevision;
-                }
+            if (identifier != null && identifier.isHandledBy(name)) {
+                return (FileRevision)revisionAt(i);
             }
         }
-        
+    
         return null;
     }
 
-    public synchronized boolean removeRevisionsWithHandlerName(String name)
+    public boolean removeRevisionsWithHandlerName(String name)
     {
+        database.writeLock.lock();
+        try {
+            return removeRevisionsHandledBy(name);
+        }
+        finally {
+            database.writeLock.unlock();
+        }
+    }
+    
+    private boolean removeRevisionsHandledBy(String name)
+    {
+        load();
         boolean removed = false;
+    
+        for (int i = childCount - 1 ; i >=0; i--) {
+            Node child = children[i];
         
-        for (int i = children.size() - 1 ; i >=0; i--) {
-            Node child = (Node)children.get(i);
-            
-            removed |= child.removeRevisionsWithHandlerName(name);
+            removed |= child.removeRevisionsHandledBy(name);
         }
+    
+        for (int i = revisionDates.length - 1 ; i >=0; i--) {
+            RevisionIdentifier identifier = identifierAt(i);
         
-        for (int i = revisions.size() - 1 ; i >=0; i--) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                FileRevision fileRevision = (FileRevision)revision;
-                
-                if (name.equals(fileRevision.identifier().handlerName())) {
-                    removed |= removeRevision(fileRevision);
-                }
+            if (identifier != null && identifier.isHandledBy(name)) {
+                removeFileRevisionAt(i);
+                removed = true;
             }
         }
-        
+    
         return removed;
     }
     
-    public synchronized boolean removeRevision(FileRevision revision)
+    public boolean removeRevision(FileRevision revision)
     {
-        boolean didRemove = revisions.remove(revision);
+        database.writeLock.lock();
+        try {
+            load();
+            int index = indexOfRevision(revision);
+            boolean didRemove = index != -1;
 
-        if (didRemove) {
-
-            revision.revisionWasRemoved();
-            
-            // Strictly speaking we should never have children with no
-            // revisions.  There should be one or more DirectoryRevisions
-            // containing those children.
-            if (revisions.isEmpty() && children.isEmpty()) {
-                parent.removeChild(this);
+            if (didRemove) {
+                removeFileRevisionAt(index);
             }
-        }
 
-        return didRemove;
+            return didRemove;
+        }
+        finally {
+            database.writeLock.unlock();
+        }
     }
     
-    public synchronized void removeChild(Node child)
+    private void removeFileRevisionAt(int index)
     {
-        if (children != Collections.EMPTY_LIST) {
-            children.remove(child);
+        RevisionIdentifier identifier = identifierAt(index);
+        removeRevisionAt(index);
+        subtreeChanged(-1, -identifier.removeReference(this));
+    
+        // Strictly speaking we should never have children with no
+        // revisions.  There should be one or more DirectoryRevisions
+        // containing those children.
+        if (revisionDates.length == 0 && childCount == 0) {
+            parent.detachChild(this);
         }
-        
+    }
+    
+    public void removeChild(Node child)
+    {
+        database.writeLock.lock();
+        try {
+            load();
+            detachChild(child);
+        }
+        finally {
+            database.writeLock.unlock();
+        }
+    }
+    
+    private void detachChild(Node child)
+    {
+        int position = -1;
+        for (int i = 0; i < childCount; i++) {
+            if (children[i] == child) {
+                // Copy rather than shift the later children down, as
+                // a list from children() may be looking at the array.
+                Node newChildren[] = new Node[children.length];
+                System.arraycopy(children, 0, newChildren, 0, i);
+                System.arraycopy(children, i + 1, newChildren, i, childCount - i - 1);
+                children = newChildren;
+                childCount--;
+                for (int j = i; j < childCount; j++) {
+                    children[j].position = j;
+                }
+                position = i;
+                break;
+            }
+        }
+        if (childIndex != null) {
+            if (childCount <= ChildIndexThreshold) {
+                childIndex = null;
+            }
+            else {
+                unindexChild(child);
+            }
+        }
+    
         child.setParent(null);
+        subtreeChanged(-child.fileRevisions, -child.totalBackedupSize);
+    
+        for (int i = revisionDates.length - 1 ; i >=0; i--) {
+            Object content = contentAt(i);
         
-        for (int i = revisions.size() - 1 ; i >=0; i--) {
-            Revision revision = (Revision)revisions.get(i);
+            if (content instanceof DirectoryRevision && position != -1) {
+                DirectoryRevision directoryRevision = (DirectoryRevision)content;
             
-            if (revision.isDirectory()) {
-                DirectoryRevision directoryRevision = (DirectoryRevision)revision;
-                
-                directoryRevision.deleteChild(child);
+                directoryRevision.deleteChild(position);
                 if (directoryRevision.isEmpty()) {
-                    revisions.remove(i);
+                    removeRevisionAt(i);
                 }
             }
         }
-        
-        if (revisions.isEmpty() && children.isEmpty() && parent != null) {
-            parent.removeChild(this);
+    
+        if (revisionDates.length == 0 && childCount == 0 && parent != null) {
+            parent.detachChild(this);
         }
     }
     
-    public synchronized Revision findRevision(Date date)
+    public Revision findRevision(Date date)
     {
-        if (date == null) {
-            return lastRevision();
-        }
-        
-        for (int i = revisions.size() - 1 ; i >=0; i--) {
-            Revision revision = (Revision)revisions.get(i);
-            Date revisionDate = revision.date();
-            
-            if (revisionDate.compareTo(date) < 1) {
-                return revision;
+        database.readLock.lock();
+        try {
+            load();
+            if (date == null) {
+                return latestRevision();
             }
+        
+            int index = indexOfRevisionAt(date.getTime());
+            return index == -1 ? null : revisionAt(index);
+        }
+        finally {
+            database.readLock.unlock();
         }
-        return null;
     }
     
-    public synchronized Revision lastRevision()
+    public Revision lastRevision()
     {
-        if (revisions.isEmpty()) {
-            return null;
+        database.readLock.lock();
+        try {
+            load();
+            return latestRevision();
+        }
+        finally {
+            database.readLock.unlock();
         }
-        return (Revision)revisions.get(revisions.size() - 1);
     }    
     
-    public synchronized FileRevision lastFileRevision()
+    private Revision latestRevision()
     {
-        for (int i = revisions.size() - 1 ; i >=0; i--) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                return (FileRevision)revision;
+        if (revisionDates.length == 0) {
+            return null;
+        }
+        return revisionAt(revisionDates.length - 1);
+    }
+    
+    public FileRevision lastFileRevision()
+    {
+        database.readLock.lock();
+        try {
+            load();
+            for (int i = revisionDates.length - 1 ; i >=0; i--) {
+                if (!isDirectoryAt(i)) {
+                    return (FileRevision)revisionAt(i);
+                }
             }
+            return null;
+        }
+        finally {
+            database.readLock.unlock();
         }
-        return null;
     }
     
-    public synchronized DirectoryRevision lastDirectoryRevision()
+    public DirectoryRevision lastDirectoryRevision()
     {
-        for (int i = revisions.size() - 1 ; i >=0; i--) {
-            Revision revision = (Revision)revisions.get(i);
+        database.readLock.lock();
+        try {
+            load();
+            for (int i = revisionDates.length - 1 ; i >=0; i--) {
+                Object content = contentAt(i);
             
-            if (revision.isDirectory()) {
-                return (DirectoryRevision)revision;
+                if (content instanceof DirectoryRevision) {
+                    return (DirectoryRevision)content;
+                }
             }
+            return null;
+        }
+        finally {
+            database.readLock.unlock();
         }
-        return null;
     }
     
-    public synchronized Revision previousRevision(Revision revision)
+    public Revision previousRevision(Revision revision)
     {
-        int index = revisions.indexOf(revision);
+        database.readLock.lock();
+        try {
+            load();
+            int index = indexOfRevision(revision);
         
-        if (index == -1) {
-            throw new IllegalArgumentException("Attempt to find previous revision for a revision not associated with the target node");
-        }
+            if (index == -1) {
+                throw new IllegalArgumentException("Attempt to find previous revision for a revision not associated with the target node");
+            }
         
-        if (index == 0) {
-            return null;
-        }
+            if (index == 0) {
+                return null;
+            }
         
-        return (Revision)revisions.get(index - 1);
+            return revisionAt(index - 1);
+        }
+        finally {
+            database.readLock.unlock();
+        }
     }
     
-    public synchronized Revision nextRevision(Revision revision)
+    public Revision nextRevision(Revision revision)
     {
-        int index = revisions.indexOf(revision);
+        database.readLock.lock();
+        try {
+            load();
+            int index = indexOfRevision(revision);
         
-        if (index == -1) {
-            throw new IllegalArgumentException("Attempt to find next revision for a revision not associated with the target node");
-        }
+            if (index == -1) {
+                throw new IllegalArgumentException("Attempt to find next revision for a revision not associated with the target node");
+            }
         
-        if (index == revisions.size() - 1) {
-            return null;
-        }
+            if (index == revisionDates.length - 1) {
+                return null;
+            }
         
-        return (Revision)revisions.get(index + 1);
+            return revisionAt(index + 1);
+        }
+        finally {
+            database.readLock.unlock();
+        }
     }
     
-    public synchronized boolean hasBothFileAndDirectoryRevisions()
+    public boolean hasBothFileAndDirectoryRevisions()
     {
-        boolean isFile = false;
-        boolean isDirectory = false;
+        database.readLock.lock();
+        try {
+            load();
+            boolean isFile = false;
+            boolean isDirectory = false;
         
-        for (int i = 0, count = revisions.size(); i < count; i++) {
-            Revision revision = (Revision)revisions.get(i);
-
-            if (revision.isDirectory()) {
-                isDirectory |= true;
-            }
-            else {
-                isFile |= true;
-            }
+            for (int i = 0, count = revisionDates.length; i < count; i++) {
+                if (isDirectoryAt(i)) {
+                    isDirectory |= true;
+                }
+                else {
+                    isFile |= true;
+                }
             
-            if (isDirectory && isFile) {
-                return true;
+                if (isDirectory && isFile) {
+                    return true;
+                }
+            }        
+            return false;
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    /**
+     * Adds the identifiers of this node's file revisions to identifiers.
+     * Called by BackupDatabase, which holds the lock.
+     */
+    void collectFileIdentifiers(List identifiers)
+    {
+        load();
+        for (int i = 0, count = revisionDates.length; i < count; i++) {
+            RevisionIdentifier identifier = identifierAt(i);
+        
+            if (identifier != null) {
+                identifiers.add(identifier);
             }
-        }        
-        return false;
+        }
     }
     
     public List children()
     {
-        return children;
+        database.readLock.lock();
+        try {
+            load();
+            return childCount == 0 ? Collections.EMPTY_LIST : Arrays.asList(children).subList(0, childCount);
+        }
+        finally {
+            database.readLock.unlock();
+        }
     }
     
-	public synchronized Node childWithName(String name)
+	public Node childWithName(String name)
+	{
+		database.readLock.lock();
+		try {
+		    return child(name, 0, name.length());
+		}
+		finally {
+			database.readLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the child whose name is the characters of path from start to
+	 * end, without creating a String for them.  This allows a path to be
+	 * walked a component at a time (see BackupDatabase.findNode).
+	 */
+	public Node childWithName(String path, int start, int end)
 	{
-		for (int i = 0, count = children.size(); i < count; i++) {
-			Node child = (Node)children.get(i);
-			if (child.name().equals(name)) {
-				return child;
-			}
+		database.readLock.lock();
+		try {
+		    return child(path, start, end);
+		}
+		finally {
+			database.readLock.unlock();
 		}
-		return null;
 	}
 	
-    public synchronized void addChild(Node node)
+	/**
+	 * Does the work of childWithName for BackupDatabase, which holds the
+	 * lock while it walks a path.
+	 */
+	Node child(String path, int start, int end)
+	{
+		load();
+	    if (childCount == 0) {
+	        return null;
+	    }
+    
+	    // Names are interned, so if no node has this name, neither do any of
+	    // our children, and otherwise it is enough to compare ids.
+	    int id = database.names.find(path, start, end);
+	    if (id == -1) {
+	        return null;
+	    }
+	    return childWithNameId(id);
+	}
+	
+	/**
+	 * Returns the child whose name has the specified id.  DatabaseSnapshot
+	 * uses this to find a node by the names in its records, holding the
+	 * lock itself.
+	 */
+	Node childWithNameId(int id)
+	{
+	    load();
+	    if (childIndex == null) {
+	        for (int i = 0; i < childCount; i++) {
+	            Node child = children[i];
+	            if (child.name == id) {
+	                return child;
+	            }
+	        }
+	        return null;
+	    }
+	    
+	    int mask = childIndex.length - 1;
+	    for (int slot = hash(id) & mask; childIndex[slot] != null; slot = (slot + 1) & mask) {
+	        Node child = childIndex[slot];
+	        if (child.name == id) {
+	            return child;
+	        }
+	    }
+	    return null;
+	}
+	
+	private static int hash(int id)
+	{
+	    int hash = id * 0x9e3779b9;
+	    return hash ^ (hash >>> 16);
+	}
+	
+	private void indexChildren()
+	{
+	    int count = childCount;
+	    int capacity = 16;
+	    while (capacity < count * 2) {
+	        capacity <<= 1;
+	    }
+	    
+	    childIndex = new Node[capacity];
+	    for (int i = 0; i < count; i++) {
+	        indexChild(children[i]);
+	    }
+	}
+	
+	private void indexChild(Node child)
+	{
+	    int mask = childIndex.length - 1;
+	    int slot = hash(child.name) & mask;
+	    while (childIndex[slot] != null) {
+	        slot = (slot + 1) & mask;
+	    }
+	    childIndex[slot] = child;
+	}
+	
+	private void unindexChild(Node child)
+	{
+	    int mask = childIndex.length - 1;
+	    int slot = hash(child.name) & mask;
+	    while (childIndex[slot] != child) {
+	        if (childIndex[slot] == null) {
+	            return;
+	        }
+	        slot = (slot + 1) & mask;
+	    }
+	    childIndex[slot] = null;
+	    
+	    // Move back any later entries of the probe sequence that would no
+	    // longer be reachable from their home slot.
+	    int empty = slot;
+	    for (slot = (slot + 1) & mask; childIndex[slot] != null; slot = (slot + 1) & mask) {
+	        int home = hash(childIndex[slot].name) & mask;
+	        boolean reachable = empty <= slot ? (home > empty && home <= slot) : (home > empty || home <= slot);
+	        if (!reachable) {
+	            childIndex[empty] = childIndex[slot];
+	            childIndex[slot] = null;
+	            empty = slot;
+	        }
+	    }
+	}
+	
+    public void addChild(Node node)
     {
-        if (children == Collections.EMPTY_LIST) {
-            children = new ArrayList();
+        database.writeLock.lock();
+        try {
+            load();
+            if (childCount == children.length) {
+                Node newChildren[] = new Node[childCount < 2 ? 2 : childCount * 2];
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                children = newChildren;
+            }
+            node.database = database;
+            node.position = childCount;
+            children[childCount++] = node;
+            node.setParent(this);
+            subtreeChanged(node.fileRevisions, node.totalBackedupSize);
+        
+            if (childIndex != null) {
+                if (childCount * 2 > childIndex.length) {
+                    indexChildren();
+                }
+                else {
+                    indexChild(node);
+                }
+            }
+            else if (childCount > ChildIndexThreshold) {
+                indexChildren();
+            }
+        }
+        finally {
+            database.writeLock.unlock();
         }
-        children.add(node);
-        node.setParent(this);
     }
     
-    public synchronized void accumulateBackedupSizeRatiosForType(String extension, float ratioOut[], int numberOfRevisions[])
+    public void accumulateBackedupSizeRatiosForType(String extension, float ratioOut[], int numberOfRevisions[])
     {
-        if (name != null && name.endsWith(extension)) {
+        database.readLock.lock();
+        try {
+            accumulateBackedupSizeRatios(extension, ratioOut, numberOfRevisions);
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    private void accumulateBackedupSizeRatios(String extension, float ratioOut[], int numberOfRevisions[])
+    {
+        load();
+        if (name != -1 && name().endsWith(extension)) {
 
-            for (int i = 0, count = revisions.size() ; i < count; i++) {
-                Revision revision = (Revision)revisions.get(i);
-                
-                if (!revision.isDirectory()) {
-                    FileRevision fileRevision = (FileRevision)revision;
+            for (int i = 0, count = revisionDates.length ; i < count; i++) {
+                RevisionIdentifier identifier = identifierAt(i);
+            
+                if (identifier != null) {
                     numberOfRevisions[0]++;
-                    ratioOut[0] += fileRevision.backedupSizeRatio();
+                    ratioOut[0] += identifier.backedupSizeRatio();
                 }
             }
         }
 
-		for (int i = 0, count = children.size(); i < count; i++) {
-			Node child = (Node)children.get(i);
-			
-			child.accumulateBackedupSizeRatiosForType(extension, ratioOut, numberOfRevisions);
+		for (int i = 0, count = childCount; i < count; i++) {
+			Node child = children[i];
+		
+			child.accumulateBackedupSizeRatios(extension, ratioOut, numberOfRevisions);
 		}
     }
     
 	public void serializeXML(XMLSerializer writer)
 	{
-	    if (children.isEmpty() && revisions.isEmpty()) {
+		database.readLock.lock();
+		try {
+		    serializeSubtreeXML(writer);
+		}
+		finally {
+			database.readLock.unlock();
+		}
+	}
+	
+	private void serializeSubtreeXML(XMLSerializer writer)
+	{
+		load();
+	    if (childCount == 0 && revisionDates.length == 0) {
 	        // Garbage collection for useless nodes.
 	        return;
 	    }
-	    
+    
 		writer.push("node");
 
-		if (name != null) {
-	        writer.write("name", name);
+		if (name != -1) {
+	        writer.write("name", name());
 	    }
-	    
-		for (int i = 0, count = children.size(); i < count; i++) {
-			Node node = (Node)children.get(i);
-			node.serializeXML(writer);
+    
+		for (int i = 0, count = childCount; i < count; i++) {
+			Node node = children[i];
+			node.serializeSubtreeXML(writer);
 		}
 
-		for (int i = 0, count = revisions.size(); i < count; i++) {
-		    Revision revision = (Revision)revisions.get(i);
+		for (int i = 0, count = revisionDates.length; i < count; i++) {
+		    Revision revision = revisionAt(i);
 			revision.serializeXML(writer);
 		}
 
@@ -543,10 +1435,8 @@ public class Node implements XMLSerializable, Serializable, Archivable
     
     public void readData(DataInputStream in) throws IOException
     {
-        name = in.readUTF();
-        if (name.length() == 0) {
-            name = null;
-        }
+        String name = in.readUTF();
+        setName(name.length() == 0 ? null : name);
         int count = in.readInt();
         for (int i = 0; i < count; i++) {
 			Node child = new Node();
@@ -565,69 +1455,92 @@ public class Node implements XMLSerializable, Serializable, Archivable
             else {
                 revision = new FileRevision();
             }
-			addRevision(revision);
+			revision.setNode(this);
 			revision.readData(in);
+			appendRevision(revision);
         }
     }
 
     public void archive(ArchiveOutputStream output) throws IOException
     {
         output.writeClassVersion("com.toubassi.filebunker.vault.Node", 1);
-        output.writeUTF(name == null ? "" : name);
-        output.writeList(children, Archivable.StrictlyTypedReference);
-        output.writeList(revisions, Archivable.PolymorphicValue);
+        output.writeUTF(name == -1 ? "" : name());
+        output.writeList(children(), Archivable.StrictlyTypedReference);
+        output.writeList(revisions(), Archivable.PolymorphicValue);
     }
     
     public void unarchive(ArchiveInputStream input) throws IOException
     {
         input.readClassVersion("com.toubassi.filebunker.vault.Node");
         
-        name = input.readUTF();
-        if (name.length() == 0) {
-            name = null;
-        }
+        database = (BackupDatabase)input.context();
+        String name = input.readUTF();
+        setName(name.length() == 0 ? null : name);
 
-        children = input.readList(Archivable.StrictlyTypedReference, Node.class);
-        if (children.isEmpty()) {
-            children = Collections.EMPTY_LIST;
+        List list = input.readList(Archivable.StrictlyTypedReference, Node.class);
+        childCount = list.size();
+        if (childCount == 0) {
+            children = NoChildren;
         }
         else {
-            for (int i = 0, count = children.size(); i < count; i++) {
-                Node child = (Node)children.get(i);
+            children = (Node[])list.toArray(new Node[childCount]);
+            for (int i = 0, count = childCount; i < count; i++) {
+                Node child = children[i];
                 child.setParent(this);
+                child.position = i;
             }
         }
-        revisions = input.readList(Archivable.PolymorphicValue, null);
-        if (revisions.isEmpty()) {
-            revisions = Collections.EMPTY_LIST;
+        childIndex = null;
+        if (childCount > ChildIndexThreshold) {
+            indexChildren();
         }
-        else {
-            for (int i = 0, count = revisions.size(); i < count; i++) {
-                Revision revision = (Revision)revisions.get(i);
-                revision.setNode(this);
+        fileRevisions = 0;
+        totalBackedupSize = 0;
+        for (int i = 0, count = childCount; i < count; i++) {
+            fileRevisions += children[i].fileRevisions;
+            totalBackedupSize += children[i].totalBackedupSize;
+        }
+        list = input.readList(Archivable.PolymorphicValue, null);
+        revisionDates = NoDates;
+        revisionContents = null;
+        for (int i = 0, count = list.size(); i < count; i++) {
+            Revision revision = (Revision)list.get(i);
+            if (revision.isDirectory()) {
+                ((DirectoryRevision)revision).resolveMembers(this);
             }
+            appendRevision(revision);
         }
     }
     
     /** For debugging/tests */
     public void findMultiplyReferencedRevisionIdentifiers(List identifiers)
     {
-        for (int i = 0; i < revisions.size(); i++) {
-            Revision revision = (Revision)revisions.get(i);
-            
-            if (!revision.isDirectory()) {
-                RevisionIdentifier identifier = ((FileRevision)revision).identifier();
-                
+        database.readLock.lock();
+        try {
+            collectMultiplyReferencedIdentifiers(identifiers);
+        }
+        finally {
+            database.readLock.unlock();
+        }
+    }
+    
+    private void collectMultiplyReferencedIdentifiers(List identifiers)
+    {
+        load();
+        for (int i = 0; i < revisionDates.length; i++) {
+            RevisionIdentifier identifier = identifierAt(i);
+        
+            if (identifier != null) {
                 if (identifier.referenceCount() > 1 && !identifiers.contains(identifier)) {
                     identifiers.add(identifier);
                 }
             }
         }
-        
-        for (int i = 0; i < children.size() ; i++) {
-            Node child = (Node)children.get(i);
+    
+        for (int i = 0; i < childCount; i++) {
+            Node child = children[i];
 
-            child.findMultiplyReferencedRevisionIdentifiers(identifiers);
+            child.collectMultiplyReferencedIdentifiers(identifiers);
         }        
     }
 }
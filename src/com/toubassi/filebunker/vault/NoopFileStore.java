@@ -115,6 +115,20 @@ public class NoopFileStore implements FileStore
         identifier.setBackedupSize(backedupSize);
     }
 
+	public void backupSpooledFile(SpooledFile spooledFile, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
+    {
+        if (listener != null && !listener.fileProgress(spooledFile.file(), 0)) {
+            throw new OperationCanceledVaultException();
+        }
+        
+        long backedupSize = spooledFile.spooledSize();
+        adjustAvailable(-backedupSize);
+        NotificationCenter.sharedCenter().post(MaintenanceNeededNotification, this, null);
+
+        identifier.setHandlerName(name());
+        identifier.setBackedupSize(backedupSize);
+    }
+
     public InputStream restoreFile(RevisionIdentifier identifier, Date date) throws VaultException
     {
         return new ByteArrayInputStream(new byte[0]);
@@ -0,0 +1,122 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.filebunker.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * PackBuilder accumulates the content of small files into a pack, which is
+ * stored as a single object.  Each file added gets a packed
+ * RevisionIdentifier recording where its content lies in the pack.  The
+ * pack's own RevisionIdentifier is available immediately, but its digest
+ * and size are not set until the pack is spooled.
+ * 
+ * Packs begin with a random header so that the digest of a pack (and so
+ * its guid in the store) can never coincide with the digest of a file,
+ * even if the pack holds only that file.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author garrick
+ */
+class PackBuilder
+{
+    public static final int HeaderLength = 16;
+    
+    private static SecureRandom random = new SecureRandom();
+
+    private ByteArrayOutputStream content = new ByteArrayOutputStream();
+    private MessageDigest digest = FileDigest.createMessageDigest();
+    private RevisionIdentifier pack = new RevisionIdentifier(null, 0);
+    private int numberOfMembers;
+    
+    public PackBuilder()
+    {
+        byte header[] = new byte[HeaderLength];
+        synchronized (random) {
+            random.nextBytes(header);
+        }
+        append(header, 0, header.length);
+    }
+    
+    private void append(byte buf[], int off, int len)
+    {
+        content.write(buf, off, len);
+        digest.update(buf, off, len);
+    }
+    
+    /**
+     * Adds len bytes of buf to the pack, and returns a packed identifier
+     * for them.
+     */
+    public RevisionIdentifier add(FileDigest memberDigest, byte buf[], int off, int len)
+    {
+        RevisionIdentifier member = new RevisionIdentifier(memberDigest, len, pack, content.size());
+        append(buf, off, len);
+        numberOfMembers++;
+        return member;
+    }
+    
+    public RevisionIdentifier pack()
+    {
+        return pack;
+    }
+    
+    public boolean isEmpty()
+    {
+        return numberOfMembers == 0;
+    }
+    
+    /**
+     * The number of bytes in the pack so far, including the header.
+     */
+    public int size()
+    {
+        return content.size();
+    }
+    
+    /**
+     * Completes the pack and compresses and encrypts it into a SpooledFile.
+     * No more members can be added.
+     * 
+     * @param file	Used for progress and error reporting, typically the
+     * 				file of one of the members.
+     */
+    public SpooledFile spool(File file, File spoolDirectory, EncryptionKey key, CodecSelector selector) throws IOException
+    {
+        if (pack.digest() == null) {
+            pack.setDigest(new FileDigest(digest.digest()));
+            pack.setSize(content.size());
+            pack.setBackedupSize(content.size());
+        }
+        
+        byte bytes[] = content.toByteArray();
+        content = null;
+        return FileStoreUtil.spool(file, pack.digest(), bytes, 0, bytes.length, spoolDirectory, key, selector);
+    }
+}
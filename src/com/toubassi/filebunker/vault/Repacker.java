@@ -0,0 +1,288 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Repacker reclaims the space held by packs (see PackBuilder) whose
+ * members have mostly been deleted.  The live members of such packs are
+ * copied into new packs, the members are moved to them, and the old packs
+ * are left without references so they can be deleted.
+ * 
+ * Since a restore uses the date of the revision to find the password its
+ * content was encrypted with, packs are only combined with others whose
+ * revisions all use the same password, and the new packs are encrypted with
+ * that password.
+ * 
+ * @author garrick
+ */
+class Repacker
+{
+    /**
+     * Packs with less than this proportion of their content still referenced
+     * are repacked.
+     */
+    public static final float MinimumLiveness = 0.5f;
+    
+    private BackupDatabase backupdb;
+    private FileStore store;
+    private VaultConfiguration config;
+    private File spoolDirectory;
+    private long packSize;
+    private CodecSelector selector;
+    
+    public Repacker(BackupDatabase backupdb, FileStore store,
+            VaultConfiguration config, File spoolDirectory)
+    {
+        this.backupdb = backupdb;
+        this.store = store;
+        this.config = config;
+        this.spoolDirectory = spoolDirectory;
+        packSize = Math.max(1, config.longParameterForKey(
+                BackupPipeline.PackSizeKey, BackupPipeline.DefaultPackSize));
+        selector = new CodecSelector(backupdb, config);
+    }
+    
+    /**
+     * Copies the live content of sparse packs into new packs, and moves their
+     * members.  Returns the packs that no longer have any references, which
+     * should be deleted from the store once the database has been saved.
+     */
+    public List repack() throws VaultException, IOException
+    {
+        HashMap candidatesByPassword = new HashMap();
+        HashMap packs = backupdb.findPackMembers();
+        
+        Iterator i = packs.keySet().iterator();
+        while (i.hasNext()) {
+            RevisionIdentifier pack = (RevisionIdentifier)i.next();
+            Candidate candidate = candidate(pack, (List)packs.get(pack));
+            
+            if (candidate != null) {
+                List candidates = (List)candidatesByPassword.get(candidate.password);
+                if (candidates == null) {
+                    candidates = new ArrayList();
+                    candidatesByPassword.put(candidate.password, candidates);
+                }
+                candidates.add(candidate);
+            }
+        }
+
+        ArrayList emptiedPacks = new ArrayList();
+        i = candidatesByPassword.keySet().iterator();
+        while (i.hasNext()) {
+            String password = (String)i.next();
+            List candidates = (List)candidatesByPassword.get(password);
+            
+            repack(candidates, password);
+            
+            for (int j = 0, count = candidates.size(); j < count; j++) {
+                RevisionIdentifier pack = ((Candidate)candidates.get(j)).pack;
+                if (!pack.hasReferences()) {
+                    emptiedPacks.add(pack);
+                }
+            }
+        }
+        return emptiedPacks;
+    }
+    
+    /**
+     * Returns a Candidate if the pack is sparse enough to be repacked, and
+     * all of its revisions use the same password.
+     */
+    private Candidate candidate(RevisionIdentifier pack, List revisions)
+    {
+        if (pack.size() == 0) {
+            return null;
+        }
+
+        Candidate candidate = new Candidate();
+        candidate.pack = pack;
+        HashSet members = new HashSet();
+        
+        for (int i = 0, count = revisions.size(); i < count; i++) {
+            FileRevision revision = (FileRevision)revisions.get(i);
+            String password = config.passwordForDate(revision.date());
+            
+            if (candidate.password == null) {
+                candidate.password = password;
+            }
+            else if (!candidate.password.equals(password)) {
+                return null;
+            }
+            
+            if (candidate.date == null || revision.date().before(candidate.date)) {
+                candidate.date = revision.date();
+                candidate.file = revision.node().file();
+            }
+            
+            if (members.add(revision.identifier())) {
+                candidate.liveBytes += revision.identifier().size();
+            }
+        }
+        
+        if (candidate.liveBytes >= pack.size() * MinimumLiveness) {
+            return null;
+        }
+        
+        candidate.members = new ArrayList(members);
+        Collections.sort(candidate.members, new PackOffsetComparator());
+        return candidate;
+    }
+    
+    private void repack(List candidates, String password) throws VaultException, IOException
+    {
+        PackBuilder builder = new PackBuilder();
+        ArrayList moves = new ArrayList();
+        File file = null;
+        
+        for (int i = 0, count = candidates.size(); i < count; i++) {
+            Candidate candidate = (Candidate)candidates.get(i);
+            InputStream input = store.restoreFile(candidate.pack, candidate.date);
+            
+            if (input == null) {
+                throw new FileNotFoundInStoreException(candidate.file);
+            }
+            
+            try {
+                long position = 0;
+                for (int j = 0, memberCount = candidate.members.size(); j < memberCount; j++) {
+                    RevisionIdentifier member = (RevisionIdentifier)candidate.members.get(j);
+                    byte content[] = new byte[(int)member.size()];
+                    
+                    skipFully(input, member.packOffset() - position);
+                    readFully(input, content);
+                    position = member.packOffset() + content.length;
+                    
+                    RevisionIdentifier moved = builder.add(member.digest(), content, 0, content.length);
+                    moves.add(member);
+                    moves.add(moved);
+                    if (file == null) {
+                        file = candidate.file;
+                    }
+
+                    if (builder.size() >= packSize) {
+                        store(builder, moves, file, password);
+                        builder = new PackBuilder();
+                        moves.clear();
+                        file = null;
+                    }
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+        
+        if (!builder.isEmpty()) {
+            store(builder, moves, file, password);
+        }
+    }
+    
+    /**
+     * Stores a new pack, and then moves the members in it.  The moves list
+     * holds pairs of the original identifier and the identifier returned
+     * by PackBuilder.add.
+     */
+    private void store(PackBuilder builder, List moves, File file, String password)
+            throws VaultException, IOException
+    {
+        SpooledFile spooledFile = builder.spool(file, spoolDirectory, config.encryptionKey(password), selector);
+        try {
+            store.backupSpooledFile(spooledFile, null, builder.pack(), null);
+        }
+        finally {
+            spooledFile.delete();
+        }
+        
+        for (int i = 0, count = moves.size(); i < count; i += 2) {
+            RevisionIdentifier member = (RevisionIdentifier)moves.get(i);
+            RevisionIdentifier moved = (RevisionIdentifier)moves.get(i + 1);
+            
+            backupdb.movePackMember(member, moved.pack(), moved.packOffset());
+        }
+    }
+    
+    private static void skipFully(InputStream input, long length) throws IOException
+    {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("Unexpected end of pack");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+    
+    private static void readFully(InputStream input, byte buffer[]) throws IOException
+    {
+        int offset = 0;
+        
+        while (offset < buffer.length) {
+            int numRead = input.read(buffer, offset, buffer.length - offset);
+            
+            if (numRead < 0) {
+                throw new IOException("Unexpected end of pack");
+            }
+            offset += numRead;
+        }
+    }
+    
+    static class Candidate
+    {
+        RevisionIdentifier pack;
+        String password;
+        Date date;
+        File file;
+        long liveBytes;
+        List members;
+    }
+    
+    static class PackOffsetComparator implements Comparator
+    {
+        public int compare(Object o1, Object o2)
+        {
+            long offset1 = ((RevisionIdentifier)o1).packOffset();
+            long offset2 = ((RevisionIdentifier)o2).packOffset();
+            
+            return offset1 < offset2 ? -1 : (offset1 == offset2 ? 0 : 1);
+        }
+    }
+}
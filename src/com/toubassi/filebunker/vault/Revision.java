@@ -42,6 +42,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author garrick
@@ -50,6 +51,15 @@ public class Revision implements XMLSerializable, Serializable, Archivable
 {
     protected Node node;
     private Date date;
+    
+    /**
+     * The index of this revision in its node's revisions, or -1.  A
+     * FileRevision is a view that records where it was found, and earlier
+     * revisions may since have been removed, so the node checks it before
+     * relying on it (see Node.indexOfRevision).  The node keeps that of a
+     * DirectoryRevision up to date itself, under the write lock.
+     */
+    private transient int position = -1;
 
 	private static final SimpleDateFormat dateFormat =
 		new SimpleDateFormat("d MMM yyyy HH:mm:ss:S z");//"MM/dd/yyyy hh:mm:ss a, z");
@@ -77,6 +87,37 @@ public class Revision implements XMLSerializable, Serializable, Archivable
     {
         return date;
     }
+    
+    int position()
+    {
+        return position;
+    }
+    
+    void setPosition(int position)
+    {
+        this.position = position;
+    }
+    
+    // Nodes store the dates of their revisions as times (see Node), and
+    // this gives all the revisions of a backup the same Date again when
+    // they are asked for.  There is a Date per backup, so we don't need to
+    // worry about cleaning up this Map.  It is asked for every revision a
+    // reader looks at, so looking up a date doesn't take a lock.
+    private static ConcurrentHashMap datesByTime = new ConcurrentHashMap();
+    
+    static Date uniqueDate(long time)
+    {
+        Long key = Long.valueOf(time);
+        Date date = (Date)datesByTime.get(key);
+        if (date == null) {
+            date = new Date(time);
+            Date existing = (Date)datesByTime.putIfAbsent(key, date);
+            if (existing != null) {
+                date = existing;
+            }
+        }
+        return date;
+    }
 
     public boolean isDirectory()
     {
@@ -39,8 +39,23 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
+ * A RevisionIdentifier describes a piece of content in a FileStore.  Usually
+ * the content of a file is stored as a single object, identified by its
+ * digest.  A chunked identifier instead refers to an ordered list of chunk
+ * identifiers, each of which is stored separately (see BackupPipeline).  A
+ * chunk may be shared by any number of chunked identifiers, and the chunk's
+ * reference count is the number of times it appears in the chunk lists of
+ * identifiers that are themselves referenced.
+ * 
+ * A packed identifier's content is a range of the content of a pack, which
+ * is itself stored as a single object so that many small files don't each
+ * pay the overhead of an object in the store (see PackBuilder).  A pack's
+ * reference count is the number of its members that are referenced.
+ * 
  * @author garrick
  */
 public class RevisionIdentifier implements XMLSerializable, Serializable, Archivable
@@ -51,8 +66,32 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
     private String handlerName;
     private long size;
     private long backedupSize;
+    private ArrayList chunks;
+    private RevisionIdentifier pack;
+    private long packOffset;
     private transient int refCount;
     
+    /**
+     * What refers to this identifier: the nodes with a revision of it, once
+     * for each revision, and the chunked identifiers it is a chunk of, once
+     * for each time it is in their chunks while they are referenced.  It is
+     * null, a single referrer or an ArrayList of them, since most
+     * identifiers have a single reference.  See shareChanged.
+     */
+    private transient Object referrers;
+    
+    /**
+     * The effectiveBackedupSize that the totals of the referrers include.
+     */
+    private transient long countedShare;
+    
+    /**
+     * One more than the index of this identifier in the DatabaseSnapshot it
+     * was read from while some of its referrers may not have been loaded
+     * (see DatabaseSnapshot.loadReferrers), and otherwise 0.
+     */
+    private transient int snapshotIndex;
+    
     public static final String guidCharacterClass()
     {
         return FileDigest.digestStringCharacterClass();
@@ -70,6 +109,29 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         this.backedupSize = size;
     }
     
+    /**
+     * Creates a chunked identifier.  The content is the concatenation of the
+     * content of the specified chunk identifiers.
+     */
+    public RevisionIdentifier(FileDigest digest, long size, List chunks)
+    {
+        this.digest = digest;
+        this.size = size;
+        this.chunks = new ArrayList(chunks);
+    }
+    
+    /**
+     * Creates a packed identifier.  The content is size bytes of the content
+     * of pack, starting at packOffset.
+     */
+    public RevisionIdentifier(FileDigest digest, long size, RevisionIdentifier pack, long packOffset)
+    {
+        this.digest = digest;
+        this.size = size;
+        this.pack = pack;
+        this.packOffset = packOffset;
+    }
+    
     public RevisionIdentifier(String handlerName, File file) throws IOException
     {
         this(handlerName, file, 0);
@@ -91,17 +153,214 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         this.backedupSize = backedupSize;
     }
     
-    public void addReference()
+    /**
+     * Creates an identifier of content backed up by an older version, which
+     * is named by a GUID rather than its digest.
+     */
+    RevisionIdentifier(GUID legacyGUID, String handlerName, long size, long backedupSize)
+    {
+        this.legacyGUID = legacyGUID;
+        this.handlerName = handlerName;
+        this.size = size;
+        this.backedupSize = backedupSize;
+    }
+    
+    /**
+     * Returns the GUID of an identifier created by an older version, or null.
+     */
+    GUID legacyGUID()
+    {
+        return legacyGUID;
+    }
+    
+    /**
+     * Adds a reference from a revision of node, and returns the share of
+     * this identifier that node should add to its totals.  Adding the
+     * reference changes the share of this identifier, and maybe of its
+     * chunks, that everything else referring to them counts, which is
+     * applied to their totals (see shareChanged).  Called with the
+     * database's write lock held, once the referrers have been loaded.
+     */
+    long addReference(Node node)
+    {
+        addReference();
+        shareChanged();
+        addReferrer(node);
+        return countedShare;
+    }
+    
+    /**
+     * Removes a reference added by addReference(Node), and returns the
+     * share that node should take from its totals.
+     */
+    long removeReference(Node node)
+    {
+        removeReferrer(node);
+        long share = countedShare;
+        removeReference();
+        shareChanged();
+        return share;
+    }
+    
+    private void addReference()
     {
+        if (refCount == 0) {
+            if (chunks != null) {
+                for (int i = 0, count = chunks.size(); i < count; i++) {
+                    RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                    chunk.addReference();
+                    chunk.addReferrer(this);
+                    chunk.shareChanged();
+                }
+            }
+            if (pack != null) {
+                pack.addReference();
+            }
+        }
         refCount++;
     }
     
-    public void removeReference()
+    private void removeReference()
     {
         if (refCount <= 0) {
             throw new IllegalStateException("Attempt to remove reference when count == " + refCount);
         }
         refCount--;
+        if (refCount == 0) {
+            if (chunks != null) {
+                for (int i = 0, count = chunks.size(); i < count; i++) {
+                    RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+                    chunk.removeReferrer(this);
+                    chunk.removeReference();
+                    chunk.shareChanged();
+                }
+            }
+            if (pack != null) {
+                pack.removeReference();
+            }
+        }
+    }
+    
+    /**
+     * Applies a change in effectiveBackedupSize, which depends on the
+     * reference counts of this identifier and its chunks, to the totals of
+     * the nodes that refer to it (see Node.backedupSizeChanged), and to the
+     * chunked identifiers it is a chunk of, whose share includes its own.
+     * So a node's totalBackedupSize is kept up to date rather than
+     * recomputed when a share changes, however many nodes share it.
+     */
+    void shareChanged()
+    {
+        long share = effectiveBackedupSize();
+        long delta = share - countedShare;
+        if (delta == 0) {
+            return;
+        }
+        countedShare = share;
+        
+        if (referrers instanceof ArrayList) {
+            ArrayList list = (ArrayList)referrers;
+            for (int i = 0, count = list.size(); i < count; i++) {
+                referrerChanged(list.get(i), delta);
+            }
+        }
+        else if (referrers != null) {
+            referrerChanged(referrers, delta);
+        }
+    }
+    
+    private static void referrerChanged(Object referrer, long delta)
+    {
+        if (referrer instanceof Node) {
+            ((Node)referrer).backedupSizeChanged(delta);
+        }
+        else {
+            ((RevisionIdentifier)referrer).shareChanged();
+        }
+    }
+    
+    /**
+     * Nodes may be loaded by several readers at once (see Node.load), so
+     * the referrers are changed holding the monitor.
+     */
+    private synchronized void addReferrer(Object referrer)
+    {
+        if (referrers == null) {
+            referrers = referrer;
+        }
+        else if (referrers instanceof ArrayList) {
+            ((ArrayList)referrers).add(referrer);
+        }
+        else {
+            ArrayList list = new ArrayList(2);
+            list.add(referrers);
+            list.add(referrer);
+            referrers = list;
+        }
+    }
+    
+    private synchronized void removeReferrer(Object referrer)
+    {
+        if (referrers == referrer) {
+            referrers = null;
+        }
+        else if (referrers instanceof ArrayList) {
+            ArrayList list = (ArrayList)referrers;
+            list.remove(referrer);
+            if (list.size() == 1) {
+                referrers = list.get(0);
+            }
+        }
+    }
+    
+    /**
+     * Adds a node loaded from a DatabaseSnapshot to the referrers.  Its
+     * reference is already in the reference count, and its share in the
+     * totals the snapshot recorded.
+     */
+    void referrerLoaded(Node node)
+    {
+        addReferrer(node);
+    }
+    
+    /**
+     * Sets the reference count of an identifier read from a DatabaseSnapshot
+     * at index in its table, after its chunks.  It is not yet referenced by
+     * anything in memory, since the snapshot records reference counts
+     * rather than loading everything to recompute them.  The chunked
+     * identifier is a referrer of its chunks from the start, as their
+     * reference counts include it.
+     */
+    void setReferenceCount(int count, int index)
+    {
+        refCount = count;
+        countedShare = effectiveBackedupSize();
+        if (count > 0) {
+            snapshotIndex = index + 1;
+            if (chunks != null) {
+                for (int i = 0, chunkCount = chunks.size(); i < chunkCount; i++) {
+                    ((RevisionIdentifier)chunks.get(i)).addReferrer(this);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the index of this identifier in the DatabaseSnapshot it was
+     * read from if some of its referrers may not have been loaded, and
+     * otherwise -1.
+     */
+    int snapshotIndex()
+    {
+        return snapshotIndex - 1;
+    }
+    
+    /**
+     * Called by DatabaseSnapshot once every referrer has been loaded.
+     */
+    void referrersLoaded()
+    {
+        snapshotIndex = 0;
     }
     
     public int referenceCount()
@@ -123,6 +382,78 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         return handlerName;
     }
     
+    /**
+     * Returns true if the content is stored (in whole or in part) by the
+     * named handler.
+     */
+    public boolean isHandledBy(String name)
+    {
+        if (chunks != null) {
+            for (int i = 0, count = chunks.size(); i < count; i++) {
+                if (((RevisionIdentifier)chunks.get(i)).isHandledBy(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (pack != null) {
+            return pack.isHandledBy(name);
+        }
+        return name.equals(handlerName);
+    }
+    
+    public boolean isChunked()
+    {
+        return chunks != null;
+    }
+    
+    /**
+     * Returns the chunk identifiers in order, or null if this identifier is
+     * not chunked.  A chunk may appear more than once.
+     */
+    public List chunks()
+    {
+        return chunks;
+    }
+    
+    public boolean isPacked()
+    {
+        return pack != null;
+    }
+    
+    /**
+     * Returns the pack containing this identifier's content, or null if this
+     * identifier is not packed.
+     */
+    public RevisionIdentifier pack()
+    {
+        return pack;
+    }
+    
+    public long packOffset()
+    {
+        return packOffset;
+    }
+    
+    /**
+     * Moves a packed identifier's content to a different pack (see
+     * Repacker), transferring its reference from the old pack to the new.
+     * Its share of the new pack may differ (see shareChanged).
+     */
+    public synchronized void moveToPack(RevisionIdentifier newPack, long newPackOffset)
+    {
+        if (pack == null) {
+            throw new IllegalStateException("Attempt to move an identifier that is not packed");
+        }
+        if (refCount > 0) {
+            newPack.addReference();
+            pack.removeReference();
+        }
+        pack = newPack;
+        packOffset = newPackOffset;
+        shareChanged();
+    }
+    
     public String guid()
     {
         if (legacyGUID != null) {
@@ -139,6 +470,11 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         return digest;
     }
     
+    synchronized void setDigest(FileDigest digest)
+    {
+        this.digest = digest;
+    }
+    
     public synchronized void setSize(long size)
     {
         this.size = size;
@@ -154,14 +490,55 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         backedupSize = size;
     }
 
+    /**
+     * For a chunked identifier this is the total size of all of its chunks,
+     * whether or not they are shared with other identifiers.
+     */
     public long backedupSize()
     {
+        if (chunks != null) {
+            long total = 0;
+            for (int i = 0, count = chunks.size(); i < count; i++) {
+                total += ((RevisionIdentifier)chunks.get(i)).backedupSize();
+            }
+            return total;
+        }
+        if (pack != null) {
+            // Our proportion of the pack
+            long packSize = pack.size();
+            return packSize == 0 ? 0 : (long)((double)pack.backedupSize() * size / packSize);
+        }
         return backedupSize;
     }
 
+    /**
+     * The ratio of backupSize to size.  
+     */
+    public float backedupSizeRatio()
+    {
+        long backedupSize = backedupSize();
+        
+        if (backedupSize == 0 || size == 0) {
+            return 1;
+        }
+        return ((float)backedupSize) / ((float)size);
+    }
+
     public long effectiveBackedupSize()
     {        
-        return refCount == 0 ? backedupSize : (backedupSize / refCount);
+        long effectiveSize = backedupSize;
+        
+        if (pack != null) {
+            effectiveSize = backedupSize();
+        }
+        else if (chunks != null) {
+            // Each chunk's size is divided among all of its references.
+            effectiveSize = 0;
+            for (int i = 0, count = chunks.size(); i < count; i++) {
+                effectiveSize += ((RevisionIdentifier)chunks.get(i)).effectiveBackedupSize();
+            }
+        }
+        return refCount == 0 ? effectiveSize : (effectiveSize / refCount);
     }
 
     public String toString()
@@ -200,7 +577,7 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
 
     public void archive(ArchiveOutputStream output) throws IOException
     {
-        output.writeClassVersion("com.toubassi.filebunker.vault.RevisionIdentifier", 1);
+        output.writeClassVersion("com.toubassi.filebunker.vault.RevisionIdentifier", 3);
         output.writeBoolean(legacyGUID == null);
         if (legacyGUID != null) {
             output.writeObject(legacyGUID, Archivable.StrictlyTypedValue);
@@ -211,11 +588,14 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         output.writeUniqueString(handlerName);
         output.writeCompactLong(size);
         output.writeCompactLong(backedupSize);
+        output.writeList(chunks, Archivable.StrictlyTypedReference);
+        output.writeObject(pack, Archivable.StrictlyTypedReference);
+        output.writeCompactLong(packOffset);
     }
 
     public void unarchive(ArchiveInputStream input) throws IOException
     {
-        input.readClassVersion("com.toubassi.filebunker.vault.RevisionIdentifier");
+        int version = input.readClassVersion("com.toubassi.filebunker.vault.RevisionIdentifier");
         boolean hasDigest = input.readBoolean();
         if (hasDigest) {
             digest = (FileDigest)input.readObject(Archivable.StrictlyTypedValue, FileDigest.class);
@@ -226,5 +606,12 @@ public class RevisionIdentifier implements XMLSerializable, Serializable, Archiv
         handlerName = input.readUniqueString();
         size = input.readCompactLong();
         backedupSize = input.readCompactLong();
+        if (version >= 2) {
+            chunks = input.readList(Archivable.StrictlyTypedReference, RevisionIdentifier.class);
+        }
+        if (version >= 3) {
+            pack = (RevisionIdentifier)input.readObject(Archivable.StrictlyTypedReference, RevisionIdentifier.class);
+            packOffset = input.readCompactLong();
+        }
     }    
 }
@@ -0,0 +1,234 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.util.ContentDefinedChunker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * SpooledChunks is the chunked counterpart of SpooledFile.  The file is
+ * read once and split into chunks by a ContentDefinedChunker, computing the
+ * digest of the whole file as well as the digest of each chunk.  Chunks
+ * that are already in the BackupDatabase are represented by the existing
+ * chunk identifiers and are not spooled.  Each new chunk gets a new
+ * RevisionIdentifier, and its content is compressed and encrypted into a
+ * SpooledFile ready to be uploaded.
+ * 
+ * Callers must call delete() when they are done with the SpooledChunks.
+ * 
+ * @author garrick
+ */
+public class SpooledChunks
+{
+    private File file;
+    private FileDigest digest;
+    private long size;
+    private ArrayList chunks = new ArrayList();
+    private ArrayList spooledChunks = new ArrayList();
+    private HashMap spooledFiles = new HashMap();
+    
+    private SpooledChunks(File file)
+    {
+        this.file = file;
+    }
+
+    public static SpooledChunks spool(File file, ContentDefinedChunker chunker,
+            BackupDatabase backupdb, File spoolDirectory, EncryptionKey key,
+            CodecSelector selector, FileOperationListener listener) throws IOException
+    {
+        SpooledChunks spooledChunks = new SpooledChunks(file);
+        HashMap newChunks = new HashMap();
+        MessageDigest fileDigest = FileDigest.createMessageDigest();
+        int maximumSize = chunker.maximumSize();
+        byte buffer[] = new byte[maximumSize * 2];
+        int start = 0;
+        int end = 0;
+        boolean endOfFile = false;
+        boolean succeeded = false;
+        
+        FileInputStream fileInput = new FileInputStream(file);
+        FileProgressInputStream progressInput = new FileProgressInputStream(fileInput, file, listener);
+
+        try {
+            while (true) {
+                
+                // The chunker needs to see a full maximum sized chunk
+                // unless we are at the end of the file.
+                if (!endOfFile && end - start < maximumSize) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    
+                    while (!endOfFile && end < buffer.length) {
+                        int numRead = progressInput.read(buffer, end, buffer.length - end);
+                        if (numRead == -1) {
+                            endOfFile = true;
+                        }
+                        else {
+                            fileDigest.update(buffer, end, numRead);
+                            end += numRead;
+                        }
+                    }
+                }
+                
+                if (start == end) {
+                    break;
+                }
+                
+                int length = chunker.nextChunkLength(buffer, start, end - start);
+                spooledChunks.addChunk(buffer, start, length, newChunks, backupdb, spoolDirectory, key, selector);
+                start += length;
+            }
+            
+            spooledChunks.digest = new FileDigest(fileDigest.digest());
+            succeeded = true;
+            return spooledChunks;
+        }
+        finally {
+            progressInput.close();
+            if (!succeeded) {
+                spooledChunks.delete();
+            }
+        }
+    }
+    
+    private void addChunk(byte buf[], int off, int len, HashMap newChunks,
+            BackupDatabase backupdb, File spoolDirectory, EncryptionKey key,
+            CodecSelector selector) throws IOException
+    {
+        MessageDigest messageDigest = FileDigest.createMessageDigest();
+        messageDigest.update(buf, off, len);
+        FileDigest chunkDigest = new FileDigest(messageDigest.digest());
+        
+        RevisionIdentifier chunk = backupdb.chunkWithDigest(chunkDigest);
+        
+        if (chunk == null) {
+            // The same content may appear more than once in a file (e.g.
+            // runs of zeros in a disk image).
+            chunk = (RevisionIdentifier)newChunks.get(chunkDigest);
+        }
+        
+        if (chunk == null) {
+            chunk = new RevisionIdentifier(chunkDigest, len);
+            newChunks.put(chunkDigest, chunk);
+            spooledChunks.add(chunk);
+            spooledFiles.put(chunk, FileStoreUtil.spool(file, chunkDigest, buf, off, len, spoolDirectory, key, selector));
+        }
+        
+        chunks.add(chunk);
+        size += len;
+    }
+    
+    /**
+     * The file that was spooled.
+     */
+    public File file()
+    {
+        return file;
+    }
+    
+    /**
+     * The digest of the entire content of the file.
+     */
+    public FileDigest digest()
+    {
+        return digest;
+    }
+    
+    void setDigest(FileDigest digest)
+    {
+        this.digest = digest;
+    }
+    
+    /**
+     * The number of bytes read from the file.
+     */
+    public long size()
+    {
+        return size;
+    }
+    
+    /**
+     * The identifiers of all of the chunks of the file, in order.
+     */
+    public List chunks()
+    {
+        return chunks;
+    }
+    
+    /**
+     * The identifiers of the chunks that have spooled content, which need
+     * to be uploaded.
+     */
+    public List spooledChunks()
+    {
+        return spooledChunks;
+    }
+    
+    public SpooledFile spooledFileForChunk(RevisionIdentifier chunk)
+    {
+        return (SpooledFile)spooledFiles.get(chunk);
+    }
+    
+    /**
+     * Replaces all uses of a spooled chunk with an identifier for the same
+     * content that was stored by someone else.  The spooled content for the
+     * chunk is deleted.
+     */
+    public void replaceChunk(RevisionIdentifier chunk, RevisionIdentifier replacement)
+    {
+        for (int i = 0, count = chunks.size(); i < count; i++) {
+            if (chunks.get(i) == chunk) {
+                chunks.set(i, replacement);
+            }
+        }
+        spooledChunks.remove(chunk);
+        
+        SpooledFile spooledFile = (SpooledFile)spooledFiles.remove(chunk);
+        if (spooledFile != null) {
+            spooledFile.delete();
+        }
+    }
+    
+    /**
+     * Releases all spooled content.
+     */
+    public void delete()
+    {
+        for (int i = 0, count = spooledChunks.size(); i < count; i++) {
+            SpooledFile spooledFile = (SpooledFile)spooledFiles.get(spooledChunks.get(i));
+            if (spooledFile != null) {
+                spooledFile.delete();
+            }
+        }
+        spooledFiles.clear();
+    }
+}
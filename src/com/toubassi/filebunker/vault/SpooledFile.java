@@ -0,0 +1,205 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.filebunker.vault;
+
+import com.toubassi.io.ChannelInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A SpooledFile holds the compressed and encrypted form of a file, along
+ * with the FileDigest and size of the original content, all of which were
+ * computed in a single pass over the file (see FileStoreUtil.spool).  Small
+ * files are held in memory, larger ones are written to a temporary file in
+ * the spool directory.  This allows the decision of whether the content
+ * needs to be backed up to be made after the file has been read, without
+ * having to read it again to upload it.
+ * 
+ * The spooled content is in the format FileStoreUtil.backupInputStream
+ * produces (though possibly with a different Codec), so it is restored
+ * with FileStoreUtil.restoreInputStream as usual.
+ * 
+ * Callers must call delete() when they are done with the SpooledFile.
+ * 
+ * @author garrick
+ */
+public class SpooledFile
+{
+    /**
+     * Spooled content up to this many bytes is kept in memory.
+     */
+    public static final int MemoryThreshold = 64 * 1024;
+
+    private File file;
+    private File spoolDirectory;
+    private FileDigest digest;
+    private long size;
+    private long spooledSize;
+    private ByteArrayOutputStream memoryOutput;
+    private File spoolFile;
+    
+    SpooledFile(File file, File spoolDirectory)
+    {
+        this.file = file;
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * The original file that was spooled.
+     */
+    public File file()
+    {
+        return file;
+    }
+    
+    /**
+     * The digest of the original content of the file.
+     */
+    public FileDigest digest()
+    {
+        return digest;
+    }
+    
+    /**
+     * The number of bytes read from the original file.
+     */
+    public long size()
+    {
+        return size;
+    }
+    
+    /**
+     * The number of bytes of spooled (compressed and encrypted) content.
+     */
+    public long spooledSize()
+    {
+        return spooledSize;
+    }
+    
+    void setContent(FileDigest digest, long size)
+    {
+        this.digest = digest;
+        this.size = size;
+    }
+    
+    /**
+     * Returns the stream to which the spooled content is written.  This may
+     * only be called once.
+     */
+    OutputStream outputStream()
+    {
+        if (memoryOutput != null || spoolFile != null) {
+            throw new IllegalStateException("SpooledFile has already been written");
+        }
+        memoryOutput = new ByteArrayOutputStream();
+        return new SpoolOutputStream();
+    }
+    
+    /**
+     * Returns a stream of the spooled content.  It may be called more than
+     * once, for instance if an upload needs to be retried.
+     */
+    public InputStream openStream() throws IOException
+    {
+        if (spoolFile != null) {
+            return new ChannelInputStream(spoolFile);
+        }
+        if (memoryOutput != null) {
+            return new ByteArrayInputStream(memoryOutput.toByteArray());
+        }
+        throw new IOException("SpooledFile for " + file.getPath() + " has been deleted");
+    }
+    
+    /**
+     * Releases the spooled content.
+     */
+    public void delete()
+    {
+        memoryOutput = null;
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+
+    class SpoolOutputStream extends OutputStream
+    {
+        private OutputStream out;
+        
+        public SpoolOutputStream()
+        {
+            out = memoryOutput;
+        }
+        
+        public void write(int b) throws IOException
+        {
+            prepareToWrite(1);
+            out.write(b);
+            spooledSize++;
+        }
+        
+        public void write(byte b[], int off, int len) throws IOException
+        {
+            prepareToWrite(len);
+            out.write(b, off, len);
+            spooledSize += len;
+        }
+        
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+        
+        public void close() throws IOException
+        {
+            out.close();
+        }
+        
+        /**
+         * Moves the content from memory to the spool directory once it
+         * exceeds MemoryThreshold.
+         */
+        private void prepareToWrite(int len) throws IOException
+        {
+            if (spoolFile == null && spooledSize + len > MemoryThreshold) {
+                if (spoolDirectory != null && !spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+                    throw new IOException("Could not make directory " + spoolDirectory.getPath());
+                }
+                spoolFile = File.createTempFile("spool", null, spoolDirectory);
+                spoolFile.deleteOnExit();
+                
+                out = new BufferedOutputStream(new FileOutputStream(spoolFile), 64 * 1024);
+                memoryOutput.writeTo(out);
+                memoryOutput = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+import java.io.File;
+
+/**
+ * SynchronizedFileOperationListener is a "wrapper" listener that serializes
+ * all calls to the underlying listener provided to the constructor.  It is
+ * used when a single operation reports progress from several threads (see
+ * BackupPipeline), since listeners are generally written assuming they are
+ * called from one thread at a time.
+ * @author garrick
+ */
+public class SynchronizedFileOperationListener implements FileOperationListener
+{
+    private FileOperationListener listener;
+    
+    public SynchronizedFileOperationListener(FileOperationListener listener)
+    {
+        this.listener = listener;
+    }
+    
+    public FileOperationListener listener()
+    {
+        return listener;
+    }
+
+    public synchronized boolean fileProgress(File file, long bytesProcessed)
+    {
+        return listener.fileProgress(file, bytesProcessed);
+    }
+
+    public synchronized boolean willProcessFile(File file)
+    {
+        return listener.willProcessFile(file);
+    }
+}
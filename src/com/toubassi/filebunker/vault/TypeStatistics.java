@@ -0,0 +1,128 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault;
+
+/**
+ * TypeStatistics summarizes how well the revisions of files of one type
+ * (i.e. with one extension) have compressed: how many there are, the sum
+ * of their backed up size ratios (see RevisionIdentifier.backedupSizeRatio)
+ * and how those ratios are distributed.  BackupDatabase keeps one for each
+ * extension, so estimating how large a file will be once backed up needn't
+ * look at every node.
+ * 
+ * @author garrick
+ */
+public class TypeStatistics
+{
+    /**
+     * The number of histogram buckets.  Each covers a tenth, and the last
+     * also counts ratios of 1 or more (content that didn't compress).
+     */
+    public static final int Buckets = 10;
+    
+    private int count;
+    private double ratioSum;
+    private int histogram[];
+    
+    TypeStatistics()
+    {
+        histogram = new int[Buckets];
+    }
+    
+    TypeStatistics(int count, double ratioSum, int histogram[])
+    {
+        this.count = count;
+        this.ratioSum = ratioSum;
+        this.histogram = histogram;
+    }
+    
+    /**
+     * Returns the extension of name, which is from its last dot on, or null
+     * if it has none.
+     */
+    static String extension(String name)
+    {
+        int lastDot = name.lastIndexOf('.');
+        return lastDot == -1 ? null : name.substring(lastDot);
+    }
+    
+    private static int bucket(float ratio)
+    {
+        int bucket = (int)(ratio * Buckets);
+        return bucket < 0 ? 0 : (bucket >= Buckets ? Buckets - 1 : bucket);
+    }
+    
+    void add(float ratio)
+    {
+        count++;
+        ratioSum += ratio;
+        histogram[bucket(ratio)]++;
+    }
+    
+    void remove(float ratio)
+    {
+        count--;
+        ratioSum -= ratio;
+        histogram[bucket(ratio)]--;
+    }
+    
+    /**
+     * The number of file revisions of this type.
+     */
+    public int count()
+    {
+        return count;
+    }
+    
+    public double ratioSum()
+    {
+        return ratioSum;
+    }
+    
+    /**
+     * Returns the average backed up size ratio of the revisions, or
+     * defaultRatio if there are none.
+     */
+    public float averageRatio(float defaultRatio)
+    {
+        if (count <= 0 || ratioSum <= 0) {
+            return defaultRatio;
+        }
+        return (float)(ratioSum / count);
+    }
+    
+    /**
+     * Returns the number of revisions whose ratio falls in each bucket.
+     */
+    public int[] histogram()
+    {
+        return (int[])histogram.clone();
+    }
+    
+    TypeStatistics copy()
+    {
+        return new TypeStatistics(count, ratioSum, histogram());
+    }
+}
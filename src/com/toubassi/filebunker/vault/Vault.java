@@ -26,10 +26,11 @@ package com.toubassi.filebunker.vault;
 
 import com.subx.common.NotificationCenter;
 import com.subx.common.NotificationListener;
+import com.toubassi.io.ChannelInputStream;
+import com.toubassi.io.RangeInputStream;
 import com.toubassi.io.XMLDeserializer;
 import com.toubassi.io.XMLSerializable;
 import com.toubassi.io.XMLSerializer;
-import com.toubassi.util.FileFindDelegate;
 import com.toubassi.util.FileUtil;
 
 import java.io.File;
@@ -39,6 +40,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.SortedSet;
@@ -69,12 +71,36 @@ public class Vault implements NotificationListener, XMLSerializable
      */
     public static final String ContentsChangedNotification = BackupDatabase.ContentsChangedNotification;
 
+    /**
+     * VaultConfiguration parameter specifying how many hours may pass before
+     * a watched specification (see watch) is scanned in full again.
+     */
+    public static final String RescanIntervalKey = "ContinuousBackupRescanHours";
+    
+    public static final long DefaultRescanIntervalHours = 24;
+
+    /**
+     * VaultConfiguration parameter which, if set to 0, lets saving the backup
+     * database return without waiting for its journal to reach the disk.
+     * This is faster, but changes may be lost if the system crashes.
+     */
+    public static final String SyncDatabaseKey = "SyncBackupDatabase";
+
     private File configDirectory;
     private File configFile;
     private VaultConfiguration vaultConfig;
     private CoordinatingFileStore store;
     private BackupDatabase backupdb;
-
+    
+    /**
+     * Set when a pack may have become sparse enough to be worth repacking.
+     * Starts out set as packs may have become sparse in previous sessions.
+     */
+    private boolean repackNeeded = true;
+    
+    private ChangeJournal changeJournal;
+    private ChangeWatcher changeWatcher;
+    private DigestCache digestCache;
     
     public static boolean needsPassword(File configDirectory)
     {
@@ -100,6 +126,10 @@ public class Vault implements NotificationListener, XMLSerializable
 
             // Create the index
             backupdb = new BackupDatabase(configDirectory);
+            backupdb.setSyncJournal(vaultConfig.longParameterForKey(SyncDatabaseKey, 1) != 0);
+            
+            digestCache = new DigestCache(new File(configDirectory, "digests.cache"));
+            backupdb.setDigestCache(digestCache);
 
             NotificationCenter.sharedCenter().register(backupdb, this);
         }
@@ -139,6 +169,7 @@ public class Vault implements NotificationListener, XMLSerializable
         vaultConfig = newVaultConfig;
         ArrayList deletedStores = store.updateStores(stores);
         store.setConfiguration(vaultConfig);
+        backupdb.setSyncJournal(vaultConfig.longParameterForKey(SyncDatabaseKey, 1) != 0);
 
         try {
             save();
@@ -161,6 +192,13 @@ public class Vault implements NotificationListener, XMLSerializable
 	public void prepareForShutdown() throws VaultException
 	{
 	    store.prepareForShutdown();
+	    
+	    try {
+	        backupdb.waitForCompaction();
+	    }
+	    catch (IOException e) {
+	        throw new VaultException("Couldn't save backup database", e);
+	    }
 	}
 
     public boolean isEmpty()
@@ -194,95 +232,73 @@ public class Vault implements NotificationListener, XMLSerializable
         BackupEstimate estimate = new BackupEstimate(null, backupdb);
 
         spec.find(backupdb, estimate, listener);
+        digestCache.save();
 
         return estimate;
     }
 
-    private FileRevision backupFile(File file, Date date,
-            FileOperationListener listener) throws VaultException
-    {
-        try {
-            file = file.getCanonicalFile();
-            
-            RevisionIdentifier identifier;
-            FileDigest digest = new FileDigest(file);
-
-            // See if there is an existing file in the backup repository
-            // that has the same content.
-            FileRevision existingRevision = backupdb.fileRevisionWithDigest(digest);
-            if (existingRevision != null) {
-                identifier = existingRevision.identifier();
-            }
-            else {
-                identifier = new RevisionIdentifier(digest, file.length());
-                store.backupFile(file, null, identifier, listener);
-            }
-
-            return backupdb.recordRevision(file, date, identifier);                
-        }
-        catch (IOException e) {
-            throw new VaultException(file, e);
-        }
-    }
-    
-    private void updateDirectoryContents(File directory, Date date, String children[])
-    	throws VaultException
-    {
-        try {
-            backupdb.updateDirectoryMembership(directory, date, children);
-        }
-        catch (IOException e) {
-            throw new VaultException(e);
-        }
-    }
-
     public void backup(BackupSpecification spec,
             FileOperationListener listener, BackupResult result)
             throws VaultException
     {
         Date date = new Date();
-        BackupFileFindDelegate findDelegate = new BackupFileFindDelegate(
-                listener, date, result);
+        BackupPipeline pipeline = new BackupPipeline(this, backupdb, store,
+                vaultConfig, listener, date, result, spec.isIncremental());
+
+        // If the specification is being watched, only the changes recorded
+        // in the journal need to be looked at, unless a full scan is due.
+        ChangeJournal journal = journalForSpecification(spec);
+        List changes = null;
+        boolean fullScan = true;
+        if (journal != null) {
+            fullScan = journal.isFullScanNeeded(rescanIntervalMillis());
+            changes = journal.takeChanges();
+            if (fullScan) {
+                journal.beginFullScan();
+            }
+        }
 
         boolean exceptionThrown = true;
         try {
-            spec.find(backupdb, findDelegate);
+            try {
+                // The pipeline reads each file once, and compares digests
+                // itself, so there is no need for find to read files too.
+                if (fullScan) {
+                    spec.find(backupdb, pipeline, null, false);
+                }
+                else {
+                    spec.findChanged(backupdb, pipeline, null, false, changes);
+                }
+            }
+            catch (OperationCanceledVaultException e) {
+                // The walk is stopped early if any stage of the pipeline
+                // fails, in which case finish() throws the actual failure.
+                pipeline.finish();
+                throw e;
+            }
+            pipeline.finish();
 
             // If we got here, no exception was thrown.
             exceptionThrown = false;
+            
+            if (journal != null && fullScan) {
+                journal.fullScanCompleted(date);
+            }
         }
         catch (RuntimeException e) {
-            
-            // Unwrap the VaultException since the BackupFileFindDelegate may wrap
-            // a VaultException in a RuntimeException in order to percolate it up.
-            
-            VaultException vaultException = VaultException.extract(e);
-            if (vaultException != null) {
-                throw vaultException;
-            } else {
-                throw e;
-            }            
+            pipeline.abort();
+            throw e;
         }
         finally {
-            try {
-                if (backupdb.saveIfNecessary()) {
-
-                    if (listener != null) {
-                        // Note we don't let the listener cancel out of this one.
-                        listener.willProcessFile(backupdb.file());
-                    }
-                    
-                    FileDigest digest = new FileDigest(backupdb.file());
-                    long size = backupdb.file().length();
-                    RevisionIdentifier identifier = new RevisionIdentifier(digest, size);
-
-                    // Make sure the user doesn't cancel out of this.  We want to make sure
-                    // we've backed up the latest version of the backup index.  Perhaps
-                    // this is not worth it?
-                    store.backupFile(backupdb.file(), "BackupIndex", identifier,
-                            new UncancelableFileOperationListener(listener));
+            if (exceptionThrown && journal != null) {
+                journal.restoreChanges(changes);
+                if (fullScan) {
+                    journal.setFullScanNeeded();
                 }
             }
+            try {
+                saveDatabase(listener);
+            }
             catch (VaultException e) {
                 // Don't mask existing exception that took place in try/catch block
                 if (!exceptionThrown) {
@@ -298,6 +314,92 @@ public class Vault implements NotificationListener, XMLSerializable
         }
     }
 
+    /**
+     * Starts watching the specification's directories for changes, so that
+     * incremental backups of it need only look at what has changed rather
+     * than scanning every file.  Only one specification can be watched at a
+     * time.  The first backup after watching starts is a full scan, and one
+     * is performed periodically (see RescanIntervalKey) as a safety net.
+     */
+    public synchronized void watch(BackupSpecification spec) throws VaultException
+    {
+        stopWatching();
+        
+        if (changeJournal == null) {
+            changeJournal = new ChangeJournal(new File(configDirectory, "changes.journal"));
+        }
+        try {
+            changeWatcher = new ChangeWatcher(spec, changeJournal, configDirectory);
+        }
+        catch (IOException e) {
+            throw new VaultException("Could not watch for changes", e);
+        }
+        changeWatcher.start();
+    }
+    
+    public synchronized void stopWatching()
+    {
+        if (changeWatcher != null) {
+            changeWatcher.close();
+            changeWatcher = null;
+        }
+    }
+    
+    /**
+     * Returns false if the specification is being watched and nothing has
+     * changed since the last backup of it, meaning a backup is unnecessary.
+     */
+    public boolean hasPendingChanges(BackupSpecification spec)
+    {
+        ChangeJournal journal = journalForSpecification(spec);
+        
+        if (journal == null) {
+            return true;
+        }
+        return journal.hasChanges() || journal.isFullScanNeeded(rescanIntervalMillis());
+    }
+    
+    /**
+     * Returns the journal recording the changes to spec, or null if it is not
+     * being (completely) watched, or is not incremental.
+     */
+    private synchronized ChangeJournal journalForSpecification(BackupSpecification spec)
+    {
+        if (changeWatcher != null && changeWatcher.specification() == spec &&
+            changeWatcher.isComplete() && spec.isIncremental())
+        {
+            return changeJournal;
+        }
+        return null;
+    }
+    
+    private long rescanIntervalMillis()
+    {
+        return vaultConfig.longParameterForKey(RescanIntervalKey,
+                DefaultRescanIntervalHours) * 60 * 60 * 1000;
+    }
+    
+    /**
+     * Saves the database if it has changed, and backs it up to the store.
+     */
+    private void saveDatabase(FileOperationListener listener) throws VaultException, IOException
+    {
+        digestCache.save();
+        backupdb.saveIfNecessary();
+
+        // Make sure the user doesn't cancel out of this.  We want to make sure
+        // we've backed up the latest version of the backup index.  Perhaps
+        // this is not worth it?
+        FileOperationListener uncancelableListener = null;
+        if (listener != null) {
+            uncancelableListener = new UncancelableFileOperationListener(listener);
+        }
+
+        IndexUploader uploader = new IndexUploader(new File(configDirectory, "index.uploaded"),
+                backupdb, store, vaultConfig, spoolDirectory());
+        uploader.upload(uncancelableListener);
+    }
+
     /**
      * Restores the file associated with the specified revision as
      * restoreTarget. If overwrite is true, then any existing file at
@@ -339,7 +441,7 @@ public class Vault implements NotificationListener, XMLSerializable
                 }
             }
 
-            InputStream input = store.restoreFile(revision.identifier(), revision.date());
+            InputStream input = restoreInputStream(revision.identifier(), revision.date());
             
             if (input == null) {
                 throw new FileNotFoundInStoreException(file);
@@ -350,7 +452,7 @@ public class Vault implements NotificationListener, XMLSerializable
             FileOutputStream output = new FileOutputStream(restoreTarget);
 
             try {
-                byte[] buf = new byte[2048];
+                byte[] buf = new byte[ChannelInputStream.bufferSizeFor(revision.size())];
                 int numRead;
                 while ((numRead = progressInput.read(buf)) >= 0) {
                     output.write(buf, 0, numRead);
@@ -469,12 +571,69 @@ public class Vault implements NotificationListener, XMLSerializable
             IOException
     {
         if (backupdb.removeRevision(revision)) {
-            store.deleteFile(revision.identifier(), revision.backedupSize());
+            deleteContent(revision.identifier());
             return true;
         }
         return false;
     }
 
+    /**
+     * Deletes the content of an identifier that is no longer referenced from
+     * the store.  For a chunked identifier, only the chunks that are no
+     * longer referenced by any other identifier are deleted.  A pack is
+     * deleted once none of its members are referenced, otherwise it is left
+     * for performMaintenance to repack.
+     */
+    private void deleteContent(RevisionIdentifier identifier) throws VaultException
+    {
+        if (identifier.isPacked()) {
+            RevisionIdentifier pack = identifier.pack();
+            
+            if (!pack.hasReferences()) {
+                store.deleteFile(pack, pack.backedupSize());
+            }
+            else {
+                repackNeeded = true;
+            }
+            return;
+        }
+        
+        if (!identifier.isChunked()) {
+            store.deleteFile(identifier, identifier.backedupSize());
+            return;
+        }
+        
+        List chunks = identifier.chunks();
+        HashSet deleted = new HashSet();
+        for (int i = 0, count = chunks.size(); i < count; i++) {
+            RevisionIdentifier chunk = (RevisionIdentifier)chunks.get(i);
+            
+            if (!chunk.hasReferences() && deleted.add(chunk)) {
+                store.deleteFile(chunk, chunk.backedupSize());
+            }
+        }
+    }
+    
+    /**
+     * Returns the restored content of the identifier, reassembling it from
+     * its chunks, or extracting it from its pack if necessary.
+     */
+    private InputStream restoreInputStream(RevisionIdentifier identifier, Date date) throws VaultException
+    {
+        if (identifier.isChunked()) {
+            return new ChunkedRestoreInputStream(store, identifier, date);
+        }
+        if (identifier.isPacked()) {
+            InputStream input = store.restoreFile(identifier.pack(), date);
+            
+            if (input == null) {
+                return null;
+            }
+            return new RangeInputStream(input, identifier.packOffset(), identifier.size());
+        }
+        return store.restoreFile(identifier, date);
+    }
+
     private void performDelete(File file, Date date) throws VaultException,
             IOException
     {
@@ -527,6 +686,31 @@ public class Vault implements NotificationListener, XMLSerializable
     public void performMaintenance() throws VaultException
     {
         store.performMaintenance();
+        
+        if (repackNeeded) {
+            repack();
+        }
+    }
+    
+    private void repack() throws VaultException
+    {
+        try {
+            Repacker repacker = new Repacker(backupdb, store, vaultConfig, spoolDirectory());
+            List emptiedPacks = repacker.repack();
+            
+            // The database must refer to the new packs before the old
+            // ones are deleted.
+            saveDatabase(null);
+            
+            for (int i = 0, count = emptiedPacks.size(); i < count; i++) {
+                RevisionIdentifier pack = (RevisionIdentifier)emptiedPacks.get(i);
+                store.deleteFile(pack, pack.backedupSize());
+            }
+            repackNeeded = false;
+        }
+        catch (IOException e) {
+            throw new VaultException(e);
+        }
     }
 
     public long recoverBytes(long bytes, FileOperationListener listener)
@@ -537,12 +721,16 @@ public class Vault implements NotificationListener, XMLSerializable
             long recoveredBytes = 0;
 
             while (recoveredBytes < bytes && set.size() > 0) {
-                Node largest = (Node) set.first();
+                Iterator iterator = set.iterator();
+                Node largest = (Node) iterator.next();
 
                 // Its important that we remove it and re-add it (later) so that
                 // the
-                // sorting is recomputed.
-                set.remove(largest);
+                // sorting is recomputed.  Note the sizes of other nodes can change
+                // as content they share with this node loses references, so the
+                // set may no longer be perfectly ordered.  Removing through the
+                // iterator guarantees we make progress regardless.
+                iterator.remove();
 
                 List revisions = largest.revisions();
                 FileRevision oldestFileRevision = null;
@@ -605,6 +793,20 @@ public class Vault implements NotificationListener, XMLSerializable
         return backupdb.backedupBytes();
     }
     
+    DigestCache digestCache()
+    {
+        return digestCache;
+    }
+    
+    /**
+     * The directory used to hold SpooledFiles during backup.  It is within
+     * the configuration directory so its contents are never backed up.
+     */
+    File spoolDirectory()
+    {
+        return new File(configDirectory, "spool");
+    }
+    
     /**
      * Returns true if the specified file should be ignored
      * for purposes of backup and restore.
@@ -703,62 +905,4 @@ public class Vault implements NotificationListener, XMLSerializable
         }
         return null;
     }
-
-    class BackupFileFindDelegate implements FileFindDelegate
-    {
-        private FileOperationListener listener;
-
-        BackupResult result;
-
-        private Date date;
-
-        public BackupFileFindDelegate(FileOperationListener listener,
-                Date date, BackupResult result)
-        {
-            this.listener = listener;
-            this.date = date;
-            this.result = result;
-        }
-
-        public boolean shouldRecurseIntoDirectory(File directory)
-        {
-            return true;
-        }
-
-        public boolean processFile(File file)
-        {
-            if (listener != null && !listener.willProcessFile(file)) {
-                return false;
-            }
-
-            try {
-                // We skip the configuration files.  The database.xml file
-                // is handled separately.
-                if (!isConfigurationFile(file)) {
-
-                    FileRevision revision = backupFile(file, date, listener);
-
-                    if (result != null) {
-                        result.add(revision);
-                    }
-                }
-            } catch (VaultException e) {
-                // Wrap the VaultException in a RuntimeException so I can percolate it back
-                // up where it will be unwrapped and rethrown as a strongly typed exception.
-                throw new RuntimeException(e);
-            }
-            return true;
-        }
-
-    	public void didProcessDirectoryContents(File directory, String children[])
-    	{
-    	    try {
-    	        updateDirectoryContents(directory, date, children);
-	        } catch (VaultException e) {
-	            // Wrap the VaultException in a RuntimeException so I can percolate it back
-	            // up where it will be unwrapped and rethrown as a strongly typed exception.
-	            throw new RuntimeException(e);
-	        }
-    	}    	
-    }    
-}
\ No newline at end of file
+}
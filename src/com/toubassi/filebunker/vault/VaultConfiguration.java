@@ -61,6 +61,7 @@ public class VaultConfiguration implements XMLSerializable
     private ArrayList passwordDates = new ArrayList();
     private HashMap parameters = new HashMap();
     private HashMap secureParameters = new HashMap();
+    private HashMap encryptionKeys = new HashMap();
 
     public VaultConfiguration editableCopy()
     {
@@ -69,6 +70,7 @@ public class VaultConfiguration implements XMLSerializable
         copy.passwordDates = (ArrayList)passwordDates.clone();
         copy.parameters.putAll(parameters);
         copy.secureParameters.putAll(secureParameters);
+        copy.encryptionKeys = encryptionKeys;
         return copy;
     }
 
@@ -107,6 +109,37 @@ public class VaultConfiguration implements XMLSerializable
         return (String)passwords.get(passwords.size() - 1);
     }
     
+    public EncryptionKey currentEncryptionKey()
+    {
+        return encryptionKey(currentPassword());
+    }
+    
+    public EncryptionKey encryptionKeyForDate(Date date)
+    {
+        return encryptionKey(passwordForDate(date));
+    }
+    
+    /**
+     * Returns the EncryptionKey for password, which is shared with any
+     * editable copies so that its keys are only derived once.  Returns null
+     * if password is null.
+     */
+    public EncryptionKey encryptionKey(String password)
+    {
+        if (password == null) {
+            return null;
+        }
+        synchronized (encryptionKeys) {
+            EncryptionKey key = (EncryptionKey)encryptionKeys.get(password);
+            
+            if (key == null) {
+                key = new EncryptionKey(password);
+                encryptionKeys.put(password, key);
+            }
+            return key;
+        }
+    }
+    
     public String parameterForKey(String key)
     {
         String parameter = (String)parameters.get(key);
@@ -117,6 +150,25 @@ public class VaultConfiguration implements XMLSerializable
         return parameter; 
     }
     
+    /**
+     * Returns the parameter as a non negative long, or defaultValue if it
+     * is not set or is not a number.
+     */
+    public long longParameterForKey(String key, long defaultValue)
+    {
+        String value = parameterForKey(key);
+        
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            }
+            catch (NumberFormatException e) {
+                // Fall through to the default
+            }
+        }
+        return defaultValue;
+    }
+    
     public String requiredParameterForKey(String key) throws NoSuchVaultConfigurationParameterException
     {
         String parameter = parameterForKey(key);
@@ -283,6 +283,20 @@ public abstract class WebMailFileStore implements FileStore
     }
 
 	public void backupFile(File file, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
+    {
+        backupFile(file, null, name, identifier, listener);
+    }
+
+	public void backupSpooledFile(SpooledFile spooledFile, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
+    {
+        backupFile(spooledFile.file(), spooledFile, name, identifier, listener);
+    }
+
+    /**
+     * Sends the content of the file, taking it from the spooledFile if one
+     * is provided, otherwise reading and encoding the file itself.
+     */
+	private void backupFile(File file, SpooledFile spooledFile, String name, RevisionIdentifier identifier, FileOperationListener listener) throws VaultException
     {
         ChunkedInputStream chunkedStream = null;
 
@@ -290,8 +304,14 @@ public abstract class WebMailFileStore implements FileStore
 
             identifier.setHandlerName(name());
             
-            String encryptionPassword = vaultConfig.currentPassword();
-            ByteCountingInputStream countingStream = FileStoreUtil.backupInputStream(file, encryptionPassword, listener);
+            ByteCountingInputStream countingStream;
+            if (spooledFile != null) {
+                countingStream = FileStoreUtil.spooledInputStream(spooledFile, listener);
+            }
+            else {
+                EncryptionKey encryptionKey = vaultConfig.currentEncryptionKey();
+                countingStream = FileStoreUtil.backupInputStream(file, encryptionKey, listener);
+            }
             int maxMessageSize = maximumMessageSize();
             
             int outgoingLimit = outgoingMessageSizeLimit();            
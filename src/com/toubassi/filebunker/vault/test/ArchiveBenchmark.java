@@ -0,0 +1,126 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault.test;
+
+import com.toubassi.filebunker.vault.BackupDatabase;
+import com.toubassi.filebunker.vault.FileDigest;
+import com.toubassi.filebunker.vault.RevisionIdentifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Measures how long a BackupDatabase takes to be saved with the archiver
+ * and loaded back, which is how a database2 file from an earlier version
+ * is read when it is converted.  The archive is kept in memory so the
+ * archiver rather than the disk is measured.  Without a file, a database
+ * of synthetic revisions is created.
+ * 
+ * usage: ArchiveBenchmark [database2 file] [iterations]
+ * 
+ * @author garrick
+ */
+public class ArchiveBenchmark
+{
+    private static final int DefaultRevisionCount = 200000;
+    
+    private static BackupDatabase createDatabase(int revisionCount) throws IOException
+    {
+        BackupDatabase db = new BackupDatabase();
+        Random random = new Random(0);
+        Date dates[] = new Date[10];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = new Date(1000000000000L + i * 86400000L);
+        }
+        
+        // Files spread over directories, each backed up a few times.
+        for (int i = 0; i < revisionCount; i++) {
+            int file = i / 4;
+            byte bytes[] = new byte[16];
+            random.nextBytes(bytes);
+            File path = new File("/home/user/project" + (file % 50) + "/dir" + (file % 1000) + "/file" + file + ".txt");
+            long size = random.nextInt(100000);
+            db.recordRevision(path, dates[i % 4], new RevisionIdentifier("store", new FileDigest(bytes), size, size / 2));
+        }
+        return db;
+    }
+    
+    private static byte[] readFile(File file) throws IOException
+    {
+        byte bytes[] = new byte[(int)file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(bytes);
+        }
+        finally {
+            input.close();
+        }
+        return bytes;
+    }
+    
+    private static void report(String name, long bytes, long millis)
+    {
+        double megabytes = bytes / (1024.0 * 1024.0);
+        double seconds = Math.max(1, millis) / 1000.0;
+        System.out.println(name + ": " + millis + " ms, " + Math.round(megabytes / seconds) + " MB/s");
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        BackupDatabase db;
+        
+        if (args.length > 0) {
+            db = new BackupDatabase();
+            db.load(new ByteArrayInputStream(readFile(new File(args[0]))));
+        }
+        else {
+            db = createDatabase(DefaultRevisionCount);
+        }
+        
+        for (int i = 0; i < iterations; i++) {
+            System.gc();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024 * 1024);
+            long start = System.currentTimeMillis();
+            db.save(output);
+            byte archive[] = output.toByteArray();
+            report("save", archive.length, System.currentTimeMillis() - start);
+            
+            output = null;
+            db = null;
+            System.gc();
+            start = System.currentTimeMillis();
+            db = new BackupDatabase();
+            db.load(new ByteArrayInputStream(archive));
+            report("load", archive.length, System.currentTimeMillis() - start);
+        }
+    }
+}
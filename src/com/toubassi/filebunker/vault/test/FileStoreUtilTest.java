@@ -0,0 +1,160 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+
+package com.toubassi.filebunker.vault.test;
+
+import com.toubassi.filebunker.vault.EncryptionKey;
+import com.toubassi.filebunker.vault.FileDigest;
+import com.toubassi.filebunker.vault.FileStoreUtil;
+import com.toubassi.filebunker.vault.SpooledFile;
+import com.toubassi.io.DESCipherOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author garrick
+ */
+public class FileStoreUtilTest
+{
+    private static byte[] readAll(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte buffer[] = new byte[3000];
+        int numRead;
+        while ((numRead = input.read(buffer)) >= 0) {
+            result.write(buffer, 0, numRead);
+        }
+        input.close();
+        return result.toByteArray();
+    }
+    
+    /**
+     * Encodes data as it is stored now, encrypted with AES if key is not
+     * null.
+     */
+    private static byte[] store(byte data[], EncryptionKey key, File spoolDirectory) throws IOException
+    {
+        SpooledFile spooledFile = FileStoreUtil.spool(new File("data"), new FileDigest(new byte[16]),
+                data, 0, data.length, spoolDirectory, key, null);
+        try {
+            return readAll(spooledFile.openStream());
+        }
+        finally {
+            spooledFile.delete();
+        }
+    }
+    
+    /**
+     * Encodes data as it was stored before codecs and AES, gzipped and
+     * encrypted with DES if password is not null.
+     */
+    private static byte[] storeLegacy(byte data[], String password) throws IOException
+    {
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        GZIPOutputStream output;
+        if (password != null) {
+            output = new GZIPOutputStream(new DESCipherOutputStream(stored, password));
+        }
+        else {
+            output = new GZIPOutputStream(stored);
+        }
+        output.write(data);
+        output.close();
+        return stored.toByteArray();
+    }
+    
+    private static byte[] restore(byte stored[], EncryptionKey key) throws IOException
+    {
+        return readAll(FileStoreUtil.restoreInputStream(new ByteArrayInputStream(stored), key));
+    }
+    
+    private static void assertRestoreFails(byte stored[], EncryptionKey key) throws IOException
+    {
+        try {
+            restore(stored, key);
+            assert false;
+        }
+        catch (IOException e) {
+        }
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        File spoolDirectory = File.createTempFile("spool", null);
+        spoolDirectory.delete();
+        spoolDirectory.mkdir();
+        
+        try {
+            Random random = new Random(3);
+            EncryptionKey key = new EncryptionKey("password");
+            
+            // Larger than SpooledFile.MemoryThreshold, so some are spooled
+            // to disk.
+            int sizes[] = {0, 1, 1000, 100000};
+            
+            for (int i = 0; i < sizes.length; i++) {
+                byte data[] = new byte[sizes[i]];
+                random.nextBytes(data);
+                
+                assert Arrays.equals(data, restore(store(data, key, spoolDirectory), key));
+                assert Arrays.equals(data, restore(store(data, null, spoolDirectory), null));
+                
+                // Content stored before AES was used is recognized by not
+                // having the AES header, and decrypted with DES.
+                assert Arrays.equals(data, restore(storeLegacy(data, "password"), key));
+                assert Arrays.equals(data, restore(storeLegacy(data, null), null));
+                
+                // An EncryptionKey for the same password has a salt of its
+                // own, but decrypts with the one the content was stored with.
+                EncryptionKey laterKey = new EncryptionKey("password");
+                assert !Arrays.equals(key.salt(), laterKey.salt());
+                assert Arrays.equals(data, restore(store(data, key, spoolDirectory), laterKey));
+                assert Arrays.equals(data, restore(storeLegacy(data, "password"), laterKey));
+                
+                // Encrypted content can't be restored without a key, or with
+                // the key for another password.
+                assertRestoreFails(store(data, key, spoolDirectory), null);
+                assertRestoreFails(storeLegacy(data, "password"), null);
+                assertRestoreFails(store(data, key, spoolDirectory), new EncryptionKey("wrong"));
+            }
+        }
+        finally {
+            File files[] = spoolDirectory.listFiles();
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+            spoolDirectory.delete();
+        }
+        
+        System.out.println("FileStoreUtilTest passed");
+    }
+}
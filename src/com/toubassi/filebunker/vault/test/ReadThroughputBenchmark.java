@@ -0,0 +1,144 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.filebunker.vault.test;
+
+import com.toubassi.filebunker.vault.FileDigest;
+import com.toubassi.io.ChannelInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Compares the throughput in MB/s of the small buffer stream reads that
+ * backup and restore used to do with the channel based reads that replaced
+ * them.  Run the benchmark on a file larger than the machine's memory to
+ * measure the disk rather than the page cache.
+ * 
+ * usage: ReadThroughputBenchmark [file] [iterations]
+ * 
+ * @author garrick
+ */
+public class ReadThroughputBenchmark
+{
+    private static final int DefaultFileSize = 256 * 1024 * 1024;
+    
+    private static void createFile(File file, int size) throws IOException
+    {
+        FileOutputStream output = new FileOutputStream(file);
+        Random random = new Random(0);
+        byte buffer[] = new byte[1024 * 1024];
+        
+        try {
+            for (int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                output.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        }
+        finally {
+            output.close();
+        }
+    }
+    
+    private static void report(String name, long bytes, long millis)
+    {
+        double megabytes = bytes / (1024.0 * 1024.0);
+        double seconds = Math.max(1, millis) / 1000.0;
+        System.out.println(name + ": " + Math.round(megabytes / seconds) + " MB/s");
+    }
+    
+    private static long copy(InputStream input, byte buffer[]) throws IOException
+    {
+        long total = 0;
+        int numRead;
+        
+        try {
+            while ((numRead = input.read(buffer)) >= 0) {
+                total += numRead;
+            }
+        }
+        finally {
+            input.close();
+        }
+        return total;
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        File file;
+        boolean deleteFile = false;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        
+        if (args.length > 0) {
+            file = new File(args[0]);
+        }
+        else {
+            file = File.createTempFile("ReadThroughputBenchmark", ".dat");
+            deleteFile = true;
+            createFile(file, DefaultFileSize);
+        }
+        
+        try {
+            long length = file.length();
+            
+            for (int i = 0; i < iterations; i++) {
+                long start = System.currentTimeMillis();
+                MessageDigest digest = FileDigest.createMessageDigest();
+                InputStream input = new FileInputStream(file);
+                byte buffer[] = new byte[1024];
+                int numRead;
+                while ((numRead = input.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, numRead);
+                }
+                input.close();
+                byte streamDigest[] = digest.digest();
+                report("digest, 1KB stream", length, System.currentTimeMillis() - start);
+                
+                start = System.currentTimeMillis();
+                FileDigest fileDigest = new FileDigest(file);
+                report("digest, FileDigest(File)", length, System.currentTimeMillis() - start);
+                assert fileDigest.equals(new FileDigest(streamDigest));
+                
+                start = System.currentTimeMillis();
+                copy(new BufferedInputStream(new FileInputStream(file), 2048), new byte[2048]);
+                report("read, 2KB buffered stream", length, System.currentTimeMillis() - start);
+                
+                start = System.currentTimeMillis();
+                copy(new ChannelInputStream(file), new byte[ChannelInputStream.bufferSizeFor(length)]);
+                report("read, ChannelInputStream", length, System.currentTimeMillis() - start);
+            }
+        }
+        finally {
+            if (deleteFile) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+
+/**
+ * Decrypts the output of AESCipherOutputStream.  The header must first be
+ * read with readHeader, so that the key can be derived from its salt.
+ * 
+ * @author garrick
+ */
+public class AESCipherInputStream extends CipherInputStream
+{
+    /**
+     * The header of an AESCipherOutputStream.
+     */
+    public static class Header
+    {
+        private byte salt[];
+        private byte iv[];
+        
+        public byte[] salt()
+        {
+            return salt;
+        }
+        
+        public byte[] iv()
+        {
+            return iv;
+        }
+    }
+    
+    /**
+     * Reads the header from the beginning of in, or returns null if in does
+     * not begin with one, in which case an unknown number of bytes will have
+     * been read.
+     */
+    public static Header readHeader(InputStream in) throws IOException
+    {
+        byte magic[] = AESCipherOutputStream.Magic;
+        
+        for (int i = 0; i < magic.length; i++) {
+            if (in.read() != (magic[i] & 0xff)) {
+                return null;
+            }
+        }
+        if (in.read() != AESCipherOutputStream.Version) {
+            return null;
+        }
+        
+        int saltLength = in.read();
+        if (saltLength <= 0) {
+            return null;
+        }
+        
+        Header header = new Header();
+        header.salt = new byte[saltLength];
+        header.iv = new byte[AESCipherOutputStream.IVLength];
+        if (!readFully(in, header.salt) || !readFully(in, header.iv)) {
+            return null;
+        }
+        return header;
+    }
+    
+    private static boolean readFully(InputStream in, byte buf[]) throws IOException
+    {
+        int off = 0;
+        while (off < buf.length) {
+            int numRead = in.read(buf, off, buf.length - off);
+            if (numRead < 0) {
+                return false;
+            }
+            off += numRead;
+        }
+        return true;
+    }
+    
+    /**
+     * @param in	The stream, positioned just after the header.
+     * @param key	The key derived from the header's salt.
+     */
+    public AESCipherInputStream(InputStream in, SecretKey key, Header header)
+    {
+        super(in, AESCipherOutputStream.createCipher(key, header.iv(), Cipher.DECRYPT_MODE));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AESCipherOutputStream encrypts with AES in CTR mode, which (unlike the
+ * DES used by DESCipherOutputStream) is hardware accelerated on most
+ * processors.  The stream begins with a header holding the salt the key
+ * was derived with (see deriveKey) and a random initialization vector, so
+ * that the same key can safely be used for many streams.  See
+ * AESCipherInputStream.
+ * 
+ * Since deriving a key from a password is deliberately expensive, callers
+ * should derive keys once and reuse them.
+ * 
+ * @author garrick
+ */
+public class AESCipherOutputStream extends CipherOutputStream
+{
+    static final byte Magic[] = {(byte)'F', (byte)'B', (byte)'A'};
+    static final int Version = 1;
+    static final int IVLength = 16;
+    
+    public static final int SaltLength = 16;
+    
+    private static final int KeyLength = 128;
+    private static final int IterationCount = 10000;
+    
+    private static SecureRandom random = new SecureRandom();
+    
+    public static SecretKey deriveKey(String passPhrase, byte salt[])
+    {
+        try {
+            PBEKeySpec keySpec = new PBEKeySpec(passPhrase.toCharArray(), salt, IterationCount, KeyLength);
+            SecretKey key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(keySpec);
+            return new SecretKeySpec(key.getEncoded(), "AES");
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public static byte[] createSalt()
+    {
+        return randomBytes(SaltLength);
+    }
+    
+    private static byte[] randomBytes(int length)
+    {
+        byte bytes[] = new byte[length];
+        synchronized (random) {
+            random.nextBytes(bytes);
+        }
+        return bytes;
+    }
+    
+    static Cipher createCipher(SecretKey key, byte iv[], int mode)
+    {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(mode, key, new IvParameterSpec(iv));
+            return cipher;
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param key	A key derived from salt with deriveKey.
+     */
+    public AESCipherOutputStream(OutputStream out, SecretKey key, byte salt[]) throws IOException
+    {
+        this(out, key, salt, randomBytes(IVLength));
+    }
+    
+    private AESCipherOutputStream(OutputStream out, SecretKey key, byte salt[], byte iv[]) throws IOException
+    {
+        super(out, createCipher(key, iv, Cipher.ENCRYPT_MODE));
+        
+        out.write(Magic);
+        out.write(Version);
+        out.write(salt.length);
+        out.write(salt);
+        out.write(iv);
+    }
+}
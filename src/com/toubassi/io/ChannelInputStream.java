@@ -0,0 +1,233 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A buffered InputStream over a file which reads from its FileChannel into
+ * a direct ByteBuffer.  The buffer is sized according to the length of the
+ * file (see bufferSizeFor), and is returned to a shared pool when the
+ * stream is closed, so that streams over many small files do not each
+ * allocate a buffer.  Reads at least as large as the buffer go directly
+ * into the caller's array.  Since the stream can seek, mark is supported
+ * without any read limit.
+ * 
+ * @author garrick
+ */
+public class ChannelInputStream extends InputStream
+{
+    public static final int MinimumBufferSize = 8 * 1024;
+    public static final int MaximumBufferSize = 256 * 1024;
+    
+    /**
+     * The number of free buffers of each size kept in the pool.
+     */
+    private static final int MaximumPooledBuffers = 8;
+    
+    private static ArrayList bufferPool = new ArrayList();
+    
+    private FileInputStream input;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long markPosition = -1;
+    
+    /**
+     * Returns the power of two between MinimumBufferSize and
+     * MaximumBufferSize which is the best fit for reading a file of the
+     * specified length.
+     */
+    public static int bufferSizeFor(long length)
+    {
+        int size = MinimumBufferSize;
+        while (size < length && size < MaximumBufferSize) {
+            size *= 2;
+        }
+        return size;
+    }
+    
+    private static ByteBuffer allocateBuffer(int size)
+    {
+        synchronized (bufferPool) {
+            for (int i = bufferPool.size() - 1; i >= 0; i--) {
+                ByteBuffer buffer = (ByteBuffer)bufferPool.get(i);
+                if (buffer.capacity() == size) {
+                    bufferPool.remove(i);
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+    
+    private static void releaseBuffer(ByteBuffer buffer)
+    {
+        synchronized (bufferPool) {
+            int pooled = 0;
+            for (int i = 0, count = bufferPool.size(); i < count; i++) {
+                if (((ByteBuffer)bufferPool.get(i)).capacity() == buffer.capacity()) {
+                    pooled++;
+                }
+            }
+            if (pooled < MaximumPooledBuffers) {
+                bufferPool.add(buffer);
+            }
+        }
+    }
+    
+    public ChannelInputStream(File file) throws IOException
+    {
+        input = new FileInputStream(file);
+        channel = input.getChannel();
+        buffer = allocateBuffer(bufferSizeFor(channel.size()));
+        buffer.limit(0);
+    }
+    
+    public int read() throws IOException
+    {
+        checkOpen();
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+    
+    public int read(byte b[], int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        checkOpen();
+        
+        int remaining = buffer.remaining();
+        if (remaining == 0 && len >= buffer.capacity()) {
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+        if (remaining == 0) {
+            if (!fill()) {
+                return -1;
+            }
+            remaining = buffer.remaining();
+        }
+        
+        int numRead = Math.min(len, remaining);
+        buffer.get(b, off, numRead);
+        return numRead;
+    }
+    
+    public long skip(long n) throws IOException
+    {
+        checkOpen();
+        if (n <= 0) {
+            return 0;
+        }
+        
+        int remaining = buffer.remaining();
+        if (n <= remaining) {
+            buffer.position(buffer.position() + (int)n);
+            return n;
+        }
+        
+        buffer.limit(0);
+        long position = channel.position();
+        long skipped = Math.min(n - remaining, channel.size() - position);
+        if (skipped > 0) {
+            channel.position(position + skipped);
+        }
+        else {
+            skipped = 0;
+        }
+        return remaining + skipped;
+    }
+    
+    public int available() throws IOException
+    {
+        checkOpen();
+        long available = buffer.remaining() + channel.size() - channel.position();
+        return (int)Math.max(0, Math.min(Integer.MAX_VALUE, available));
+    }
+    
+    public boolean markSupported()
+    {
+        return true;
+    }
+    
+    public void mark(int readLimit)
+    {
+        try {
+            markPosition = channel.position() - buffer.remaining();
+        }
+        catch (IOException e) {
+            markPosition = -1;
+        }
+    }
+    
+    public void reset() throws IOException
+    {
+        checkOpen();
+        if (markPosition < 0) {
+            throw new IOException("Resetting to invalid mark");
+        }
+        channel.position(markPosition);
+        buffer.limit(0);
+    }
+    
+    public void close() throws IOException
+    {
+        if (buffer != null) {
+            releaseBuffer(buffer);
+            buffer = null;
+            input.close();
+        }
+    }
+    
+    private boolean fill() throws IOException
+    {
+        buffer.clear();
+        
+        int numRead;
+        do {
+            numRead = channel.read(buffer);
+        }
+        while (numRead == 0);
+        
+        buffer.flip();
+        return numRead > 0;
+    }
+    
+    private void checkOpen() throws IOException
+    {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -34,6 +34,7 @@ import java.io.InputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeUtility;
 
@@ -47,6 +48,11 @@ public class DESCipherInputStream extends CipherInputStream
 		super(in, DESCipherOutputStream.createCipher(passPhrase, Cipher.DECRYPT_MODE));
 	}
 
+	public DESCipherInputStream(InputStream in, SecretKey key)
+	{
+		super(in, DESCipherOutputStream.createCipher(key, Cipher.DECRYPT_MODE));
+	}
+
 	public static String decrypt(String passPhrase, String cipherText)
 	{
 	    try {
@@ -53,16 +53,33 @@ public class DESCipherOutputStream extends CipherOutputStream
 		(byte)0x56, (byte)0x35, (byte)0xE3, (byte)0x03
 	};
 	
+	private static final int iterationCount = 19;
+	
 	public static Cipher createCipher(String passPhrase, int mode)
+	{
+		return createCipher(createKey(passPhrase), mode);
+	}
+	
+	/**
+	 * Creating the key is the expensive part of creating a cipher, so
+	 * callers creating many ciphers for the same pass phrase can create
+	 * the key once and use createCipher(SecretKey, int).
+	 */
+	public static SecretKey createKey(String passPhrase)
+	{
+		try {
+			KeySpec keySpec = new PBEKeySpec(passPhrase.toCharArray(), salt, iterationCount);
+			return SecretKeyFactory.getInstance("PBEWithMD5AndDES").generateSecret(keySpec);
+		} catch (java.security.GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static Cipher createCipher(SecretKey key, int mode)
 	{
 		Cipher cipher;
 		
-		int iterationCount = 19;
 		try {
-			// Create the key
-			KeySpec keySpec = new PBEKeySpec(passPhrase.toCharArray(), salt, iterationCount);
-			SecretKey key = SecretKeyFactory.getInstance(
-				"PBEWithMD5AndDES").generateSecret(keySpec);
 			cipher = Cipher.getInstance(key.getAlgorithm());
     
 			// Prepare the parameter to the ciphers
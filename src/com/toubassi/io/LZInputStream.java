@@ -0,0 +1,206 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.io;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses the output of LZOutputStream.
+ * 
+ * @author garrick
+ */
+public class LZInputStream extends FilterInputStream
+{
+    private byte block[] = new byte[LZOutputStream.BlockSize];
+    private byte compressed[] = new byte[LZOutputStream.BlockSize];
+    private int blockLength;
+    private int position;
+    private boolean atEnd;
+    
+    public LZInputStream(InputStream in)
+    {
+        super(in);
+    }
+    
+    public int read() throws IOException
+    {
+        if (position == blockLength && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+    
+    public int read(byte buf[], int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == blockLength && !readBlock()) {
+            return -1;
+        }
+        int numRead = Math.min(len, blockLength - position);
+        System.arraycopy(block, position, buf, off, numRead);
+        position += numRead;
+        return numRead;
+    }
+    
+    public long skip(long n) throws IOException
+    {
+        long numSkipped = 0;
+        
+        while (numSkipped < n) {
+            if (position == blockLength && !readBlock()) {
+                break;
+            }
+            int count = (int)Math.min(n - numSkipped, blockLength - position);
+            position += count;
+            numSkipped += count;
+        }
+        return numSkipped;
+    }
+    
+    public int available() throws IOException
+    {
+        return blockLength - position;
+    }
+    
+    public boolean markSupported()
+    {
+        return false;
+    }
+    
+    private boolean readBlock() throws IOException
+    {
+        if (atEnd) {
+            return false;
+        }
+        
+        int length = readInt();
+        int storedLength = readInt();
+        
+        if (length == 0) {
+            atEnd = true;
+            return false;
+        }
+        if (length < 0 || length > block.length || storedLength < 0 || storedLength > length) {
+            throw new IOException("Corrupt LZ block");
+        }
+        
+        if (storedLength == length) {
+            readFully(block, length);
+        }
+        else {
+            readFully(compressed, storedLength);
+            decompress(compressed, storedLength, block, length);
+        }
+        blockLength = length;
+        position = 0;
+        return true;
+    }
+    
+    private void readFully(byte buf[], int length) throws IOException
+    {
+        int off = 0;
+        while (off < length) {
+            int numRead = in.read(buf, off, length - off);
+            if (numRead < 0) {
+                throw new EOFException("Unexpected end of LZ stream");
+            }
+            off += numRead;
+        }
+    }
+    
+    private int readInt() throws IOException
+    {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of LZ stream");
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+    
+    static void decompress(byte src[], int srcLength, byte dst[], int dstLength) throws IOException
+    {
+        int ip = 0;
+        int op = 0;
+        
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+                
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                
+                if (ip == srcLength) {
+                    break;
+                }
+                
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int matchLength = token & 0x0f;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += LZOutputStream.MinimumMatch;
+                
+                int ref = op - offset;
+                if (offset == 0 || ref < 0 || op + matchLength > dstLength) {
+                    throw new IOException("Corrupt LZ block");
+                }
+                // The match may overlap the output, so copy a byte at a time.
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt LZ block");
+        }
+        
+        if (op != dstLength) {
+            throw new IOException("Corrupt LZ block");
+        }
+    }
+}
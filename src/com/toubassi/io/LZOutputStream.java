@@ -0,0 +1,240 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * LZOutputStream compresses with a simple LZ77 scheme in the style of LZ4,
+ * which compresses considerably less than deflate but is several times
+ * faster.  See LZInputStream.
+ * 
+ * The stream is a series of blocks, each holding up to BlockSize bytes of
+ * data.  A block starts with its uncompressed and stored lengths, as 4 byte
+ * integers.  If they are equal the block is stored uncompressed, otherwise
+ * it is a series of sequences.  Each sequence is a token byte whose high 4
+ * bits are the number of literal bytes and whose low 4 bits are the length
+ * of the match minus MinimumMatch, followed by any extra literal length
+ * bytes, the literals, the 2 byte match offset, and any extra match length
+ * bytes.  A length nibble of 15 means extra length bytes follow, each adding
+ * up to 255, ending with a byte less than 255.  The last sequence of a block
+ * has no match.  A block with an uncompressed length of 0 ends the stream.
+ * 
+ * @author garrick
+ */
+public class LZOutputStream extends FilterOutputStream
+{
+    public static final int BlockSize = 64 * 1024;
+    
+    static final int MinimumMatch = 4;
+    static final int MaximumOffset = 65535;
+    
+    private static final int HashBits = 14;
+    
+    // The last match must start this far from the end of the block, and
+    // the block must end with at least LastLiterals literals.
+    private static final int MatchFindLimit = 12;
+    private static final int LastLiterals = 5;
+    
+    private byte block[] = new byte[BlockSize];
+    private int blockLength;
+    private byte compressed[] = new byte[BlockSize + BlockSize / 255 + 16];
+    private int hashTable[] = new int[1 << HashBits];
+    private boolean closed;
+    
+    public LZOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+    
+    public void write(int b) throws IOException
+    {
+        if (blockLength == BlockSize) {
+            writeBlock();
+        }
+        block[blockLength++] = (byte)b;
+    }
+    
+    public void write(byte buf[], int off, int len) throws IOException
+    {
+        while (len > 0) {
+            if (blockLength == BlockSize) {
+                writeBlock();
+            }
+            int numToCopy = Math.min(len, BlockSize - blockLength);
+            System.arraycopy(buf, off, block, blockLength, numToCopy);
+            blockLength += numToCopy;
+            off += numToCopy;
+            len -= numToCopy;
+        }
+    }
+    
+    public void flush() throws IOException
+    {
+        if (blockLength > 0) {
+            writeBlock();
+        }
+        out.flush();
+    }
+    
+    public void close() throws IOException
+    {
+        if (!closed) {
+            closed = true;
+            if (blockLength > 0) {
+                writeBlock();
+            }
+            writeInt(0);
+            writeInt(0);
+            out.close();
+        }
+    }
+    
+    private void writeBlock() throws IOException
+    {
+        int compressedLength = compress(block, blockLength, compressed, hashTable);
+        
+        writeInt(blockLength);
+        if (compressedLength < 0) {
+            writeInt(blockLength);
+            out.write(block, 0, blockLength);
+        }
+        else {
+            writeInt(compressedLength);
+            out.write(compressed, 0, compressedLength);
+        }
+        blockLength = 0;
+    }
+    
+    private void writeInt(int value) throws IOException
+    {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+    
+    private static int read32(byte buf[], int i)
+    {
+        return (buf[i] & 0xff) | ((buf[i + 1] & 0xff) << 8) |
+               ((buf[i + 2] & 0xff) << 16) | ((buf[i + 3] & 0xff) << 24);
+    }
+    
+    private static int hash(int value)
+    {
+        return (value * -1640531535) >>> (32 - HashBits);
+    }
+    
+    /**
+     * Compresses the first length bytes of src into dst, returning the
+     * compressed length, or -1 if the data would not get smaller.
+     */
+    static int compress(byte src[], int length, byte dst[], int hashTable[])
+    {
+        // Entries are positions plus one, so that 0 means empty.
+        Arrays.fill(hashTable, 0);
+        
+        int limit = length - MatchFindLimit;
+        int matchLimit = length - LastLiterals;
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        
+        while (ip < limit) {
+            int value = read32(src, ip);
+            int h = hash(value);
+            int ref = hashTable[h] - 1;
+            hashTable[h] = ip + 1;
+            
+            if (ref < 0 || ip - ref > MaximumOffset || read32(src, ref) != value) {
+                ip++;
+                continue;
+            }
+            
+            int matchLength = MinimumMatch;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, length);
+            if (op < 0) {
+                return -1;
+            }
+            ip += matchLength;
+            anchor = ip;
+        }
+        
+        op = writeSequence(src, anchor, length - anchor, 0, 0, dst, op, length);
+        return op;
+    }
+    
+    /**
+     * Writes a sequence of literals followed by a match (if matchLength is
+     * not 0) and returns the new output position, or -1 if the output would
+     * reach limit.
+     */
+    private static int writeSequence(byte src[], int literalStart, int literalLength,
+            int offset, int matchLength, byte dst[], int op, int limit)
+    {
+        // Worst case size of the sequence
+        if (op + 1 + literalLength + literalLength / 255 + 8 >= limit) {
+            return -1;
+        }
+        
+        int matchCode = matchLength == 0 ? 0 : matchLength - MinimumMatch;
+        int token = (Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15);
+        dst[op++] = (byte)token;
+        op = writeExtraLength(literalLength, dst, op);
+        
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        
+        if (matchLength > 0) {
+            dst[op++] = (byte)offset;
+            dst[op++] = (byte)(offset >>> 8);
+            op = writeExtraLength(matchCode, dst, op);
+            if (op >= limit) {
+                return -1;
+            }
+        }
+        return op;
+    }
+    
+    private static int writeExtraLength(int length, byte dst[], int op)
+    {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte)255;
+                length -= 255;
+            }
+            dst[op++] = (byte)length;
+        }
+        return op;
+    }
+}
@@ -42,7 +42,7 @@ public class OutputStreamFilteredInputStream extends FilterInputStream
 {
 	private OutputStream filter;
 	private ReadableByteArrayOutputStream byteArrayOut;
-	private byte chunkBuffer[] = new byte[1024];
+	private byte chunkBuffer[] = new byte[64 * 1024];
 	private byte singleByteBuffer[] = new byte[1];
 	
 	public OutputStreamFilteredInputStream(InputStream in)
@@ -0,0 +1,123 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.io;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RangeInputStream presents length bytes of the underlying stream starting
+ * at offset.  The bytes before offset are skipped the first time the stream
+ * is read, and the stream reports end of file after length bytes.
+ * 
+ * @author garrick
+ */
+public class RangeInputStream extends FilterInputStream
+{
+    private long offset;
+    private long remaining;
+    
+    public RangeInputStream(InputStream in, long offset, long length)
+    {
+        super(in);
+        this.offset = offset;
+        this.remaining = length;
+    }
+    
+    private void skipToOffset() throws IOException
+    {
+        byte buf[] = null;
+        
+        while (offset > 0) {
+            long numSkipped = in.skip(offset);
+            
+            if (numSkipped <= 0) {
+                // Some streams (e.g. GZIPInputStream at times) won't skip,
+                // so fall back to reading.
+                if (buf == null) {
+                    buf = new byte[2048];
+                }
+                int numRead = in.read(buf, 0, (int)Math.min(buf.length, offset));
+                if (numRead == -1) {
+                    throw new EOFException("Range starts beyond the end of the stream");
+                }
+                numSkipped = numRead;
+            }
+            offset -= numSkipped;
+        }
+    }
+
+    public int read() throws IOException
+    {
+        byte buf[] = new byte[1];
+        int numRead = read(buf, 0, 1);
+        return numRead == -1 ? -1 : (buf[0] & 0xff);
+    }
+    
+    public int read(byte buf[], int off, int len) throws IOException
+    {
+        skipToOffset();
+        
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (len > remaining) {
+            len = (int)remaining;
+        }
+        
+        int numRead = in.read(buf, off, len);
+        if (numRead == -1) {
+            throw new EOFException("Range extends beyond the end of the stream");
+        }
+        remaining -= numRead;
+        return numRead;
+    }
+    
+    public long skip(long n) throws IOException
+    {
+        skipToOffset();
+        
+        if (n > remaining) {
+            n = remaining;
+        }
+        long numSkipped = in.skip(n);
+        remaining -= numSkipped;
+        return numSkipped;
+    }
+    
+    public int available() throws IOException
+    {
+        if (offset > 0) {
+            return 0;
+        }
+        return (int)Math.min(in.available(), remaining);
+    }
+    
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+
+package com.toubassi.io.test;
+
+import com.toubassi.io.AESCipherInputStream;
+import com.toubassi.io.AESCipherOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+/**
+ * @author garrick
+ */
+public class AESCipherStreamTest
+{
+    private static byte[] encrypt(byte data[], SecretKey key, byte salt[]) throws IOException
+    {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        OutputStream output = new AESCipherOutputStream(encrypted, key, salt);
+        
+        // Write in odd sized pieces so they don't line up with AES blocks.
+        for (int offset = 0; offset < data.length; offset += 1001) {
+            output.write(data, offset, Math.min(1001, data.length - offset));
+        }
+        output.close();
+        return encrypted.toByteArray();
+    }
+    
+    /**
+     * Decrypts with the key for the salt in the header, as derived with
+     * passPhrase.
+     */
+    private static byte[] decrypt(byte encrypted[], String passPhrase) throws IOException
+    {
+        InputStream input = new ByteArrayInputStream(encrypted);
+        AESCipherInputStream.Header header = AESCipherInputStream.readHeader(input);
+        assert header != null;
+        
+        SecretKey key = AESCipherOutputStream.deriveKey(passPhrase, header.salt());
+        input = new AESCipherInputStream(input, key, header);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte buffer[] = new byte[3000];
+        int numRead;
+        while ((numRead = input.read(buffer)) >= 0) {
+            result.write(buffer, 0, numRead);
+        }
+        return result.toByteArray();
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        Random random = new Random(7);
+        int sizes[] = {0, 1, 15, 16, 17, 1000, 300000};
+        byte salt[] = AESCipherOutputStream.createSalt();
+        SecretKey key = AESCipherOutputStream.deriveKey("password", salt);
+        
+        for (int i = 0; i < sizes.length; i++) {
+            byte data[] = new byte[sizes[i]];
+            random.nextBytes(data);
+            
+            byte encrypted[] = encrypt(data, key, salt);
+            assert Arrays.equals(data, decrypt(encrypted, "password"));
+            
+            // Each stream has its own initialization vector, so the same
+            // data encrypts differently every time.
+            assert sizes[i] == 0 || !Arrays.equals(encrypted, encrypt(data, key, salt));
+            
+            // The wrong password gives the wrong key, which is only noticed
+            // in what it decrypts to.
+            assert sizes[i] < 16 || !Arrays.equals(data, decrypt(encrypted, "wrong"));
+        }
+        
+        // The key is derived from the salt as well as the password.
+        byte otherSalt[] = AESCipherOutputStream.createSalt();
+        byte data[] = "FileBunker backs up files.".getBytes();
+        byte encrypted[] = encrypt(data, AESCipherOutputStream.deriveKey("password", otherSalt), otherSalt);
+        assert !Arrays.equals(salt, otherSalt);
+        assert Arrays.equals(data, decrypt(encrypted, "password"));
+        encrypted = encrypt(data, AESCipherOutputStream.deriveKey("password", otherSalt), salt);
+        assert !Arrays.equals(data, decrypt(encrypted, "password"));
+        
+        // Streams that aren't AESCipherOutputStream's have no header.
+        assert AESCipherInputStream.readHeader(new ByteArrayInputStream(data)) == null;
+        assert AESCipherInputStream.readHeader(new ByteArrayInputStream(new byte[] {'F', 'B', 'A'})) == null;
+        
+        System.out.println("AESCipherStreamTest passed");
+    }
+}
@@ -0,0 +1,90 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.io.test;
+
+import com.toubassi.io.LZInputStream;
+import com.toubassi.io.LZOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author garrick
+ */
+public class LZStreamTest
+{
+    private static byte[] roundTrip(byte data[], int compressedSize[]) throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream output = new LZOutputStream(compressed);
+        
+        // Write in odd sized pieces to cross block boundaries.
+        for (int offset = 0; offset < data.length; offset += 10007) {
+            output.write(data, offset, Math.min(10007, data.length - offset));
+        }
+        output.close();
+        compressedSize[0] = compressed.size();
+        
+        InputStream input = new LZInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte buffer[] = new byte[3000];
+        int numRead;
+        while ((numRead = input.read(buffer)) >= 0) {
+            result.write(buffer, 0, numRead);
+        }
+        return result.toByteArray();
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        Random random = new Random(5);
+        int sizes[] = {0, 1, 12, 13, 1000, LZOutputStream.BlockSize, LZOutputStream.BlockSize + 1, 300000};
+        int compressedSize[] = new int[1];
+        byte text[] = "FileBunker backs up files. ".getBytes();
+        
+        for (int i = 0; i < sizes.length; i++) {
+            byte randomData[] = new byte[sizes[i]];
+            random.nextBytes(randomData);
+            assert Arrays.equals(randomData, roundTrip(randomData, compressedSize));
+            
+            byte repetitiveData[] = new byte[sizes[i]];
+            for (int j = 0; j < repetitiveData.length; j++) {
+                repetitiveData[j] = text[j % text.length];
+            }
+            assert Arrays.equals(repetitiveData, roundTrip(repetitiveData, compressedSize));
+            assert sizes[i] < 1000 || compressedSize[0] < sizes[i] / 10;
+            
+            byte zeros[] = new byte[sizes[i]];
+            assert Arrays.equals(zeros, roundTrip(zeros, compressedSize));
+        }
+        
+        System.out.println("LZStreamTest passed");
+    }
+}
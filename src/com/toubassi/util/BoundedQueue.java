@@ -0,0 +1,128 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.util;
+
+import java.util.LinkedList;
+
+/**
+ * A simple FIFO queue with a fixed capacity that is used to hand work from
+ * one thread to another.  Producers block in put when the queue is full, and
+ * consumers block in take when it is empty.  Once the queue is closed, take
+ * will drain the remaining elements and then return null, which is the
+ * signal for consumers to exit.
+ * 
+ * This class is thread safe.
+ * 
+ * @author garrick
+ */
+public class BoundedQueue
+{
+    private LinkedList elements = new LinkedList();
+    private int capacity;
+    private boolean closed;
+    
+    public BoundedQueue(int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+    }
+    
+    public int capacity()
+    {
+        return capacity;
+    }
+    
+    public synchronized int size()
+    {
+        return elements.size();
+    }
+    
+    /**
+     * Adds the element to the end of the queue, waiting for space to become
+     * available if necessary.
+     */
+    public synchronized void put(Object element)
+    {
+        if (element == null) {
+            throw new IllegalArgumentException("Can't put null in a BoundedQueue");
+        }
+        
+        while (elements.size() >= capacity && !closed) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+            }
+        }
+
+        if (closed) {
+            throw new IllegalStateException("Attempt to put into a closed queue");
+        }
+        
+        elements.addLast(element);
+        notifyAll();
+    }
+    
+    /**
+     * Removes and returns the element at the head of the queue, waiting for
+     * one to become available if necessary.  Returns null if the queue has
+     * been closed and all elements have been taken.
+     */
+    public synchronized Object take()
+    {
+        while (elements.isEmpty() && !closed) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        
+        if (elements.isEmpty()) {
+            return null;
+        }
+
+        Object element = elements.removeFirst();
+        notifyAll();
+        return element;
+    }
+    
+    /**
+     * Indicates that no more elements will be put in the queue.  Consumers
+     * blocked in take will wake up once the queue is drained.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+    
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.util;
+
+import java.util.Random;
+
+/**
+ * ContentDefinedChunker splits data into variable sized chunks whose
+ * boundaries are determined by the content itself rather than by offset.
+ * Because of this, inserting or removing bytes in the middle of a file only
+ * changes the chunks around the edit, and the rest of the chunks (and their
+ * digests) stay the same.
+ * 
+ * This is the FastCDC approach.  A "gear" rolling hash is computed over the
+ * bytes following the minimum chunk size, and a boundary is declared where
+ * the high bits of the hash are zero.  Before the average size a stricter
+ * mask (more bits) is used, and after it a looser one, which pulls chunk
+ * sizes towards the average.  No chunk is larger than the maximum size.
+ * 
+ * @author garrick
+ */
+public class ContentDefinedChunker
+{
+    public static final int DefaultMinimumSize = 256 * 1024;
+    public static final int DefaultAverageSize = 1024 * 1024;
+    public static final int DefaultMaximumSize = 4 * 1024 * 1024;
+    
+    private static final long gear[] = new long[256];
+    
+    static {
+        // The seed must never change, or chunk boundaries (and therefore
+        // digests) of previously backed up files would no longer line up.
+        Random random = new Random(0x46696c6542756e6bL);
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+    }
+    
+    private int minimumSize;
+    private int averageSize;
+    private int maximumSize;
+    private long smallChunkMask;
+    private long largeChunkMask;
+    
+    public ContentDefinedChunker()
+    {
+        this(DefaultMinimumSize, DefaultAverageSize, DefaultMaximumSize);
+    }
+    
+    public ContentDefinedChunker(int minimumSize, int averageSize, int maximumSize)
+    {
+        if (minimumSize <= 0 || averageSize < minimumSize || maximumSize < averageSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < minimum <= average <= maximum");
+        }
+        this.minimumSize = minimumSize;
+        this.averageSize = averageSize;
+        this.maximumSize = maximumSize;
+        
+        int bits = 0;
+        while ((1 << (bits + 1)) <= averageSize) {
+            bits++;
+        }
+        smallChunkMask = highBits(bits + 2);
+        largeChunkMask = highBits(Math.max(bits - 2, 1));
+    }
+    
+    private static long highBits(int count)
+    {
+        return count >= 64 ? -1L : ~(-1L >>> count);
+    }
+    
+    public int minimumSize()
+    {
+        return minimumSize;
+    }
+    
+    public int averageSize()
+    {
+        return averageSize;
+    }
+    
+    public int maximumSize()
+    {
+        return maximumSize;
+    }
+    
+    /**
+     * Returns the length of the chunk that starts at buf[off].  The caller
+     * must provide maximumSize() bytes if that many remain in the input,
+     * otherwise all of the remaining bytes, so that len is only short at the
+     * end of the input.  The result is never more than len.
+     */
+    public int nextChunkLength(byte buf[], int off, int len)
+    {
+        if (len <= minimumSize) {
+            return len;
+        }
+        if (len > maximumSize) {
+            len = maximumSize;
+        }
+        
+        int normalSize = averageSize < len ? averageSize : len;
+        long hash = 0;
+        int i = minimumSize;
+        
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + gear[buf[off + i] & 0xff];
+            if ((hash & smallChunkMask) == 0) {
+                return i + 1;
+            }
+        }
+        
+        for (; i < len; i++) {
+            hash = (hash << 1) + gear[buf[off + i] & 0xff];
+            if ((hash & largeChunkMask) == 0) {
+                return i + 1;
+            }
+        }
+        
+        return len;
+    }
+}
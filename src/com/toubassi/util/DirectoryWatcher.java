@@ -0,0 +1,145 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+
+package com.toubassi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * DirectoryWatcher reports changes to the contents of a set of directories
+ * using the platform's file change notification (e.g. inotify on Linux).
+ * Directories are watched individually, not recursively, so the delegate
+ * is responsible for watching directories as they are created.
+ * 
+ * @author garrick
+ */
+public class DirectoryWatcher implements Runnable
+{
+    private static final WatchEvent.Kind watchedKinds[] = {
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY
+    };
+    
+    private DirectoryWatcherDelegate delegate;
+    private WatchService watchService;
+    private HashMap directories = new HashMap();
+    private HashSet watchedDirectories = new HashSet();
+    private Thread thread;
+    
+    public DirectoryWatcher(DirectoryWatcherDelegate delegate) throws IOException
+    {
+        this.delegate = delegate;
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+    
+    public void watch(File directory) throws IOException
+    {
+        WatchKey key = directory.toPath().register(watchService, watchedKinds);
+        
+        synchronized (directories) {
+            directories.put(key, directory);
+            watchedDirectories.add(directory);
+        }
+    }
+    
+    public boolean isWatching(File directory)
+    {
+        synchronized (directories) {
+            return watchedDirectories.contains(directory);
+        }
+    }
+    
+    /**
+     * Starts delivering changes to the delegate from a daemon thread.
+     */
+    public synchronized void start()
+    {
+        if (thread == null) {
+            thread = new Thread(this, "DirectoryWatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    public void close()
+    {
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {
+            // Nothing to be done, and the thread exits regardless.
+        }
+    }
+    
+    public void run()
+    {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                File directory;
+                
+                synchronized (directories) {
+                    directory = (File)directories.get(key);
+                }
+                
+                List events = key.pollEvents();
+                for (int i = 0, count = events.size(); i < count; i++) {
+                    WatchEvent event = (WatchEvent)events.get(i);
+                    
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        delegate.eventsLost();
+                    }
+                    else if (directory != null) {
+                        Path name = (Path)event.context();
+                        delegate.directoryChanged(directory, new File(directory, name.toString()));
+                    }
+                }
+                
+                if (!key.reset()) {
+                    // The directory is gone, or no longer accessible.
+                    synchronized (directories) {
+                        directories.remove(key);
+                        watchedDirectories.remove(directory);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+        }
+        catch (ClosedWatchServiceException e) {
+        }
+    }
+}
@@ -27,7 +27,12 @@ THE SOFTWARE.
  */
 package com.toubassi.util;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * @author garrick
@@ -105,4 +110,35 @@ public class FileUtil
         
         return path.substring(firstChar, lastDot);
     }
+    
+    /**
+     * Replaces target with source, which is typically a temporary file
+     * written next to it.  The move is atomic where the file system allows,
+     * so if we are interrupted target is either the old file or the new one
+     * rather than missing.
+     */
+    public static void replace(File source, File target) throws IOException
+    {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Closes stream, if it isn't null, ignoring any failure.  This is for
+     * cleaning up after a failure that is already being handled.
+     */
+    public static void closeQuietly(Closeable stream)
+    {
+        if (stream != null) {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+            }
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/*
+
+Copyright (c) 2004, Garrick Toubassi
+
+Permission is hereby granted, free of charge, to any person obtaining
+a copy of this software and associated documentation files (the "Software"),
+to deal in the Software without restriction, including without limitation
+the rights to use, copy, modify, merge, publish, distribute, sublicense,
+and/or sell copies of the Software, and to permit persons to whom the
+Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+
+*/
+package com.toubassi.util.test;
+
+import com.toubassi.util.ContentDefinedChunker;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * @author garrick
+ */
+public class ContentDefinedChunkerTest
+{
+    private static HashSet chunk(ContentDefinedChunker chunker, byte data[])
+    {
+        HashSet chunks = new HashSet();
+        int offset = 0;
+        
+        while (offset < data.length) {
+            int available = Math.min(data.length - offset, chunker.maximumSize());
+            int length = chunker.nextChunkLength(data, offset, available);
+            
+            assert length > 0 && length <= chunker.maximumSize();
+            assert length >= chunker.minimumSize() || offset + length == data.length;
+            
+            chunks.add(new String(data, 0, offset, length));
+            offset += length;
+        }
+        
+        assert offset == data.length;
+        return chunks;
+    }
+    
+    public static void main(String[] args)
+    {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(2 * 1024, 8 * 1024, 32 * 1024);
+        byte data[] = new byte[4 * 1024 * 1024];
+        new Random(17).nextBytes(data);
+        
+        HashSet original = chunk(chunker, data);
+        int averageSize = data.length / original.size();
+        assert averageSize > chunker.minimumSize() && averageSize < chunker.maximumSize();
+        
+        // Insert some bytes in the middle, all but a few chunks should
+        // be unaffected.
+        byte edited[] = new byte[data.length + 100];
+        int editOffset = data.length / 2;
+        System.arraycopy(data, 0, edited, 0, editOffset);
+        System.arraycopy(data, editOffset, edited, editOffset + 100, data.length - editOffset);
+        
+        HashSet modified = chunk(chunker, edited);
+        HashSet changed = new HashSet(modified);
+        changed.removeAll(original);
+        
+        assert changed.size() <= 3;
+        
+        // Data with no content boundaries (all zeros) falls back to the
+        // maximum size.
+        byte zeros[] = new byte[100 * 1024];
+        assert chunker.nextChunkLength(zeros, 0, zeros.length) == chunker.maximumSize();
+        
+        System.out.println(original.size() + " chunks, average size " + averageSize + ", " + changed.size() + " changed by an insert");
+    }
+}